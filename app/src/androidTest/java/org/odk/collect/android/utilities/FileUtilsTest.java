@@ -0,0 +1,273 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+/** Tests for {@link FileUtils#getMd5Hash} and the {@link FileHashCache} behind it. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class FileUtilsTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String MD5_OF_EMPTY = "d41d8cd98f00b204e9800998ecf8427e";
+    private static final String MD5_OF_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String FAKE_MD5 = "0123456789abcdef0123456789abcdef";
+    // Old enough that the cache will remember the hashes of files with this time.
+    private static final long SETTLED_MILLIS = System.currentTimeMillis() - 60000;
+
+    private File mDir;
+    private File mCacheFile;
+
+    @Before
+    public void setUp() {
+        mDir = new File(getInstrumentation().getTargetContext().getCacheDir(), "file-utils-test");
+        deleteDirectory(mDir);
+        mDir.mkdirs();
+        mCacheFile = new File(mDir, "md5hashes.txt");
+        FileHashCache.setCacheFile(mCacheFile);
+    }
+
+    @After
+    public void tearDown() {
+        FileHashCache.setCacheFile(null);
+        deleteDirectory(mDir);
+    }
+
+    /** Tests that files are hashed as the old chunked implementation hashed them. */
+    @Test
+    public void testGetMd5Hash_MatchesOldImplementation() throws Exception {
+        // GIVEN files of sizes around the old 256-byte chunks and the new 64 KiB buffer
+        int[] sizes = {0, 1, 255, 256, 257, 65535, 65536, 65537, 200000};
+        Random random = new Random(0);
+        for (int size : sizes) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            File file = new File(mDir, "random-" + size);
+            writeBytes(file, bytes);
+            // WHEN each is hashed
+            // THEN its hash is the same as the old implementation's
+            assertEquals("size " + size, getMd5HashTheOldWay(file), getMd5Hash(file));
+        }
+    }
+
+    /** Tests that hashes are the MD5 digests of the contents, as 32 lowercase hex digits. */
+    @Test
+    public void testGetMd5Hash_KnownValues() throws IOException {
+        assertEquals(MD5_OF_EMPTY, getMd5Hash(write("empty", "", SETTLED_MILLIS)));
+        assertEquals(MD5_OF_ABC, getMd5Hash(write("abc", "abc", SETTLED_MILLIS)));
+    }
+
+    /** Tests that a missing file has no hash. */
+    @Test
+    public void testGetMd5Hash_MissingFile_ReturnsNull() {
+        assertNull(getMd5Hash(new File(mDir, "missing")));
+    }
+
+    /** Tests that a remembered hash is used while the file's size and time are unchanged. */
+    @Test
+    public void testGetMd5Hash_UnchangedFile_UsesCachedHash() throws IOException {
+        // GIVEN a file whose hash is remembered
+        File file = write("form.xml", "abc", SETTLED_MILLIS);
+        FileHashCache.put(file, file.length(), file.lastModified(), FAKE_MD5);
+        // WHEN it is hashed
+        // THEN the remembered hash is returned without reading the file
+        assertEquals(FAKE_MD5, getMd5Hash(file));
+    }
+
+    /** Tests that a change in modification time makes the file be hashed again. */
+    @Test
+    public void testGetMd5Hash_NewModificationTime_Rehashes() throws IOException {
+        // GIVEN a remembered hash of a file
+        File file = write("form.xml", "xyz", SETTLED_MILLIS);
+        FileHashCache.put(file, file.length(), file.lastModified(), FAKE_MD5);
+        // WHEN its contents change but not its size
+        write("form.xml", "abc", SETTLED_MILLIS + 1000);
+        // THEN the new contents are hashed
+        assertEquals(MD5_OF_ABC, getMd5Hash(file));
+    }
+
+    /** Tests that a change in size makes the file be hashed again. */
+    @Test
+    public void testGetMd5Hash_NewSize_Rehashes() throws IOException {
+        // GIVEN a remembered hash of a file
+        File file = write("form.xml", "abcd", SETTLED_MILLIS);
+        FileHashCache.put(file, file.length(), file.lastModified(), FAKE_MD5);
+        // WHEN its size changes but not its modification time
+        write("form.xml", "abc", SETTLED_MILLIS);
+        // THEN the new contents are hashed
+        assertEquals(MD5_OF_ABC, getMd5Hash(file));
+    }
+
+    /** Tests that the hash of a file that may still be changing is not remembered. */
+    @Test
+    public void testGetMd5Hash_RecentlyModified_NotCached() throws IOException {
+        // GIVEN a file that was just written
+        File file = write("form.xml", "abc", System.currentTimeMillis());
+        // WHEN its hash is put in the cache
+        FileHashCache.put(file, file.length(), file.lastModified(), FAKE_MD5);
+        // THEN it is not remembered
+        assertNull(FileHashCache.get(file, file.length(), file.lastModified()));
+        assertEquals(MD5_OF_ABC, getMd5Hash(file));
+    }
+
+    /** Tests that remembered hashes are written to the cache file and read back. */
+    @Test
+    public void testCacheFile_SavedAndLoaded() throws IOException {
+        // GIVEN a remembered hash, written to the cache file
+        File file = write("form with spaces.xml", "abc", SETTLED_MILLIS);
+        FileHashCache.put(file, file.length(), file.lastModified(), FAKE_MD5);
+        FileHashCache.save();
+        // WHEN the cache is read again from that file, as after a restart
+        FileHashCache.setCacheFile(mCacheFile);
+        // THEN the hash is still remembered
+        assertEquals(FAKE_MD5, getMd5Hash(file));
+    }
+
+    /** Tests that a cache file with a truncated or malformed line keeps only good entries. */
+    @Test
+    public void testCacheFile_PartialLines_Skipped() throws IOException {
+        // GIVEN a cache file with a good entry, one with a cut-off hash, and one cut short
+        File good = write("good.xml", "abc", SETTLED_MILLIS);
+        File truncated = write("truncated.xml", "abc", SETTLED_MILLIS);
+        File partial = write("partial.xml", "abc", SETTLED_MILLIS);
+        writeCacheFile(
+            cacheLine(good, FAKE_MD5),
+            cacheLine(truncated, FAKE_MD5.substring(0, 10)),
+            good.length() + " " + SETTLED_MILLIS);
+        // WHEN the cache is read
+        FileHashCache.setCacheFile(mCacheFile);
+        // THEN the good entry is used and the damaged ones are not
+        assertEquals(FAKE_MD5, getMd5Hash(good));
+        assertEquals(MD5_OF_ABC, getMd5Hash(truncated));
+        assertEquals(MD5_OF_ABC, getMd5Hash(partial));
+    }
+
+    /** Tests that a cache file that can't be parsed is ignored. */
+    @Test
+    public void testCacheFile_Corrupt_Ignored() throws IOException {
+        // GIVEN a cache file with a line whose numbers are garbled
+        File file = write("form.xml", "abc", SETTLED_MILLIS);
+        writeCacheFile(
+            cacheLine(file, FAKE_MD5),
+            "3x 12?4 " + FAKE_MD5 + " " + file.getAbsolutePath());
+        // WHEN the cache is read
+        FileHashCache.setCacheFile(mCacheFile);
+        // THEN no hash is taken from it
+        assertEquals(MD5_OF_ABC, getMd5Hash(file));
+    }
+
+    /** Tests that entries for files that no longer exist are dropped when the cache is read. */
+    @Test
+    public void testCacheFile_DeletedFile_Dropped() throws IOException {
+        // GIVEN a cache file with an entry for a file that has since been deleted
+        File file = write("form.xml", "abc", SETTLED_MILLIS);
+        writeCacheFile(cacheLine(file, FAKE_MD5));
+        file.delete();
+        // WHEN the cache is read
+        FileHashCache.setCacheFile(mCacheFile);
+        // THEN there is no entry for the file
+        assertNull(FileHashCache.get(file, 3, SETTLED_MILLIS));
+    }
+
+    private static String getMd5Hash(File file) {
+        return FileUtils.getMd5Hash(file);
+    }
+
+    private File write(String name, String contents, long lastModified) throws IOException {
+        File file = new File(mDir, name);
+        writeBytes(file, contents.getBytes(UTF_8));
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+    private void writeCacheFile(String... lines) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (String line : lines) {
+            contents.append(line).append('\n');
+        }
+        writeBytes(mCacheFile, contents.toString().getBytes(UTF_8));
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String cacheLine(File file, String md5) {
+        return file.length() + " " + file.lastModified() + " " + md5
+            + " " + file.getAbsolutePath();
+    }
+
+    /** The hashing loop of getMd5Hash before it read through a larger NIO buffer. */
+    private static String getMd5HashTheOldWay(File file) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        int chunkSize = 256;
+        byte[] chunk = new byte[chunkSize];
+        int length = (int) file.length();
+        InputStream is = new FileInputStream(file);
+        try {
+            int l;
+            for (l = 0; l + chunkSize < length; l += chunkSize) {
+                is.read(chunk, 0, chunkSize);
+                md.update(chunk, 0, chunkSize);
+            }
+            int remaining = length - l;
+            if (remaining > 0) {
+                is.read(chunk, 0, remaining);
+                md.update(chunk, 0, remaining);
+            }
+        } finally {
+            is.close();
+        }
+        String md5 = new BigInteger(1, md.digest()).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
+        }
+        return md5;
+    }
+}
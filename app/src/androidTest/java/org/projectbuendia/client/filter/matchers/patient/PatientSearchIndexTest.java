@@ -0,0 +1,277 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.matchers.patient;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.FakeTypedCursor;
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.utils.Utils;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/** Tests for {@link PatientSearchIndex}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PatientSearchIndexTest {
+    private static final Patient[] PATIENTS = new Patient[] {
+        getPatient("KH.12", "John", "Doe"),
+        getPatient("KH.123", "Anna Marie", "Smith"),
+        getPatient("45", null, "Doe"),
+        getPatient("A/B", "Dick", "Van Dyke"),
+        getPatient(null, null, null),
+        getPatient("9", "Jo", "Johnson")
+    };
+
+    private PatientSearchIndex mIndex;
+
+    @Before
+    public void createIndex() throws Exception {
+        mIndex = new PatientSearchIndex(new FakeTypedCursor<>(PATIENTS));
+    }
+
+    private static Patient getPatient(String id, String givenName, String familyName) {
+        return Patient.builder()
+            .setId(id)
+            .setGivenName(Utils.nameOrUnknown(givenName))
+            .setFamilyName(Utils.nameOrUnknown(familyName))
+            .build();
+    }
+
+    /** Returns true if a search of an index holding only the given patient finds it. */
+    private static boolean matches(Patient patient, String query) {
+        return !new PatientSearchIndex(new FakeTypedCursor<>(patient)).search(query).isEmpty();
+    }
+
+    private static Patient getPatientWithId(String id) {
+        return Patient.builder().setId(id).build();
+    }
+
+    private static Patient getPatientWithName(String givenName, String familyName) {
+        return getPatient(null, givenName, familyName);
+    }
+
+    /** Tests that an empty query matches every patient. */
+    @Test
+    public void testSearch_emptyQueryMatchesAll() {
+        assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5), mIndex.search(""));
+    }
+
+    /** Tests that IDs are matched anywhere, not just at the start. */
+    @Test
+    public void testSearch_matchesIdSubstring() {
+        assertEquals(ImmutableList.of(0, 1), mIndex.search("h.12"));
+        assertEquals(ImmutableList.of(1), mIndex.search("23"));
+    }
+
+    /** Tests that every word of the query must prefix-match some word of the name. */
+    @Test
+    public void testSearch_matchesNamePrefixes() {
+        assertEquals(ImmutableList.of(0, 5), mIndex.search("jo"));
+        assertEquals(ImmutableList.of(0), mIndex.search("Jo D"));
+        assertEquals(ImmutableList.of(3), mIndex.search("dy van"));
+        assertEquals(ImmutableList.<Integer>of(), mIndex.search("jim"));
+    }
+
+    /** Tests that a dash of any kind matches unknown name parts. */
+    @Test
+    public void testSearch_dashMatchesUnknownNames() {
+        assertEquals(ImmutableList.of(2, 4), mIndex.search("-"));
+        assertEquals(ImmutableList.of(2, 4), mIndex.search("\u2e17"));
+        assertEquals(ImmutableList.of(2), mIndex.search("- doe"));
+    }
+
+    /** Tests that blank and repeated spaces in the query are ignored between words. */
+    @Test
+    public void testSearch_extraSpacesIgnored() {
+        assertEquals(ImmutableList.of(0, 1, 2, 3, 4, 5), mIndex.search(" "));
+        assertEquals(ImmutableList.of(0), mIndex.search("doe  j"));
+        assertEquals(ImmutableList.of(2, 4), mIndex.search("- -"));
+    }
+
+    /** Tests that id matching works in the base case. */
+    @Test
+    public void testSearch_idExactMatch() {
+        assertTrue(matches(getPatientWithId("123"), "123"));
+    }
+
+    /** Tests that id matching allows for a prefix match. */
+    @Test
+    public void testSearch_idMatchesPrefix() {
+        assertTrue(matches(getPatientWithId("123"), "12"));
+    }
+
+    /** Tests that id matching allows for a suffix match. */
+    @Test
+    public void testSearch_idMatchesSuffix() {
+        assertTrue(matches(getPatientWithId("123"), "23"));
+    }
+
+    /** Tests that id matching allows for an internal substring match. */
+    @Test
+    public void testSearch_idMatchesSubstring() {
+        assertTrue(matches(getPatientWithId("123"), "2"));
+    }
+
+    /** Tests that id matching supports unicode. */
+    @Test
+    public void testSearch_idAllowsUnicode() {
+        String id = "\u0b90\u0bae\u0bcd\u0baa\u0ba4\u0bc1";
+        assertTrue(matches(getPatientWithId(id), id));
+    }
+
+    /** Tests that id matching does not return false positives. */
+    @Test
+    public void testSearch_idNegativeMatch() {
+        assertFalse(matches(getPatientWithId("123"), "4"));
+    }
+
+    /** Tests that id matching is case-insensitive. */
+    @Test
+    public void testSearch_idIgnoresCase() {
+        assertTrue(matches(getPatientWithId("abc"), "ABC"));
+    }
+
+    /** Tests that name matching works when a matching full name is provided. */
+    @Test
+    public void testSearch_exactMatchOnFullName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "John Doe"));
+    }
+
+    /** Tests that name matching works on just the given name. */
+    @Test
+    public void testSearch_exactMatchOnGivenName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "John"));
+    }
+
+    /** Tests that name matching works on just the family name. */
+    @Test
+    public void testSearch_exactMatchOnFamilyName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "Doe"));
+    }
+
+    /** Tests that name matching works on just the prefix of a given name. */
+    @Test
+    public void testSearch_prefixMatchOnGivenName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "Jo"));
+    }
+
+    /** Tests that name matching works on just the prefix of a family name. */
+    @Test
+    public void testSearch_prefixMatchOnFamilyName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "Do"));
+    }
+
+    /** Tests that prefix matching works when multiple parts of the name are given. */
+    @Test
+    public void testSearch_prefixMatchOnGivenAndFamilyName() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "John D"));
+    }
+
+    /** Tests that prefix matching on given names works when the given name has multiple words. */
+    @Test
+    public void testSearch_prefixMatchOnMultiwordGivenName() {
+        assertTrue(matches(getPatientWithName("Anna Marie", "Smith"), "Anna Ma"));
+    }
+
+    /** Tests that prefix matching on family names works when the family name has multiple words. */
+    @Test
+    public void testSearch_prefixMatchOnMultiwordFamilyName() {
+        assertTrue(matches(getPatientWithName("Dick", "Van Dyke"), "Van Dy"));
+    }
+
+    /** Tests that name matching is case-insensitive. */
+    @Test
+    public void testSearch_nameIsCaseInsensitive() {
+        assertTrue(matches(getPatientWithName("John", "Doe"), "JOHN"));
+    }
+
+    /** Tests that name matching works on unicode names. */
+    @Test
+    public void testSearch_nameSupportsUnicode() {
+        String familyName = "\u0baa\u0bbe\u0bb0\u0ba4\u0bbf\u0baf\u0bbe\u0bb0\u0bcd";
+        String givenName = "\u0b9a\u0bc1\u0baa\u0bcd\u0bb0\u0bae\u0ba3\u0bbf\u0baf";
+        assertTrue(matches(getPatientWithName(givenName, familyName), familyName));
+    }
+
+    /** Tests that a non-matching search query does not match. */
+    @Test
+    public void testSearch_nameNegativeMatch() {
+        assertFalse(matches(getPatientWithName("John", "Doe"), "Jim"));
+    }
+
+    /** Tests that a query with a dash matches a patient with an unknown family name. */
+    @Test
+    public void testSearch_dashMatchesUnknownFamilyName() {
+        assertTrue(matches(getPatientWithName("John", null), "-"));
+    }
+
+    /** Tests that a query with a dash matches a patient with an unknown given name. */
+    @Test
+    public void testSearch_dashMatchesUnknownGivenName() {
+        assertTrue(matches(getPatientWithName(null, "Doe"), "-"));
+    }
+
+    /** Tests that a query with a dash matches a patient with unknown family AND given names. */
+    @Test
+    public void testSearch_dashMatchesCompletelyUnknownName() {
+        assertTrue(matches(getPatientWithName(null, null), "-"));
+    }
+
+    /**
+     * Tests that a query with multiple dashes matches a patient with unknown family AND given
+     * names.
+     */
+    @Test
+    public void testSearch_doubleDashMatchesCompletelyUnknownName() {
+        assertTrue(matches(getPatientWithName(null, null), "- -"));
+    }
+
+    /** Tests that a Unicode dash still matches an unknown name. */
+    @Test
+    public void testSearch_unicodeDashMatchesUnknownName() {
+        assertTrue(matches(getPatientWithName(null, "Doe"), "\u2e17"));
+    }
+
+    /**
+     * Tests that a query with both a dash and a family name matches a patient with an unknown given
+     * name and matching family name.
+     */
+    @Test
+    public void testSearch_unknownGivenNameWithMatchingFamilyName() {
+        assertTrue(matches(getPatientWithName(null, "Doe"), "- Doe"));
+    }
+
+    /**
+     * Tests that a query with both a dash and a given name matches a patient with an unknown family
+     * name and matching given name.
+     */
+    @Test
+    public void testSearch_unknownFamilyNameWithMatchingGivenName() {
+        assertTrue(matches(getPatientWithName("John", null), "John -"));
+    }
+
+    /** Tests that a dash does not match a patient with a fully-known name. */
+    @Test
+    public void testSearch_dashDoesNotMatchKnownName() {
+        assertFalse(matches(getPatientWithName("John", "Doe"), "-"));
+    }
+}
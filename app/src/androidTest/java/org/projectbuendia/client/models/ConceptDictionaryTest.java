@@ -0,0 +1,221 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.models;
+
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.json.ConceptType;
+import org.projectbuendia.client.json.JsonConcept;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.TestDatabaseContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/** Tests for {@link ConceptDictionary}, reading concepts from a test database. */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public final class ConceptDictionaryTest {
+
+    private static final String TEMPERATURE = "concept-dictionary-test-temperature";
+    private static final String DIARRHEA = "concept-dictionary-test-diarrhea";
+    private static final String NOTES = "concept-dictionary-test-notes";
+    private static final String UNKNOWN = "concept-dictionary-test-unknown";
+
+    private Context mContext;
+    private BuendiaProvider mProvider;
+    private MockContentResolver mResolver;
+    private ConceptDictionary mDictionary;
+
+    @Before
+    public void setUp() {
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        mProvider = new BuendiaProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = Contracts.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+        mResolver = new MockContentResolver(mContext);
+        mResolver.addProvider(Contracts.CONTENT_AUTHORITY, mProvider);
+        mDictionary = new ConceptDictionary();
+
+        SQLiteDatabase db = mProvider.getWritableDatabase();
+        addConcept(db, TEMPERATURE, 1, "NUMERIC");
+        addConcept(db, DIARRHEA, 2, "CODED");
+        addConcept(db, NOTES, 3, "NOT_A_TYPE");
+        addName(db, TEMPERATURE, "en", "Temperature");
+        addName(db, TEMPERATURE, "fr", "Temp\u00e9rature");
+        addName(db, DIARRHEA, "en", "Diarrhea");
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.getWritableDatabase().close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that the types and names read from the db can be looked up. */
+    @Test
+    public void testLoad_LooksUpTypesAndNames() {
+        // WHEN the dictionary is loaded for English
+        mDictionary.load(mResolver, "en");
+        // THEN the concepts have their types and English names
+        assertEquals(ConceptType.NUMERIC, mDictionary.getType(TEMPERATURE));
+        assertEquals(ConceptType.CODED, mDictionary.getType(DIARRHEA));
+        assertEquals("Temperature", mDictionary.getName(TEMPERATURE, "en"));
+        assertEquals("Diarrhea", mDictionary.getName(DIARRHEA, "en"));
+        // AND each concept has its own id
+        assertTrue(mDictionary.getId(TEMPERATURE) >= 0);
+        assertTrue(mDictionary.getId(DIARRHEA) >= 0);
+        assertTrue(mDictionary.getId(TEMPERATURE) != mDictionary.getId(DIARRHEA));
+    }
+
+    /** Tests that loading a second locale adds its names without losing the first. */
+    @Test
+    public void testLoad_SecondLocale_KeepsFirst() {
+        // GIVEN a dictionary loaded for English
+        mDictionary.load(mResolver, "en");
+        // WHEN it is loaded for French too
+        mDictionary.load(mResolver, "fr");
+        // THEN names in both locales can be looked up
+        assertEquals("Temperature", mDictionary.getName(TEMPERATURE, "en"));
+        assertEquals("Temp\u00e9rature", mDictionary.getName(TEMPERATURE, "fr"));
+        // AND a concept with no French name has none
+        assertNull(mDictionary.getName(DIARRHEA, "fr"));
+    }
+
+    /** Tests that lookups of concepts, types, and locales that are missing return nothing. */
+    @Test
+    public void testLookups_Misses() {
+        // GIVEN a dictionary loaded for English
+        mDictionary.load(mResolver, "en");
+        // THEN unknown and null UUIDs have no id, type, name, or severity
+        assertEquals(-1, mDictionary.getId(UNKNOWN));
+        assertEquals(-1, mDictionary.getId(null));
+        assertNull(mDictionary.getType(UNKNOWN));
+        assertNull(mDictionary.getType(null));
+        assertNull(mDictionary.getName(UNKNOWN, "en"));
+        assertEquals(0, mDictionary.getSeverity(UNKNOWN));
+        // AND a concept with an unrecognized type name has no type
+        assertNull(mDictionary.getType(NOTES));
+        // AND a locale that was never loaded has no names
+        assertNull(mDictionary.getName(TEMPERATURE, "fr"));
+    }
+
+    /** Tests that the admission date is a date even before anything is loaded. */
+    @Test
+    public void testGetType_AdmissionDate_IsDateWithoutLoading() {
+        assertEquals(ConceptType.DATE, mDictionary.getType(ConceptUuids.ADMISSION_DATE_UUID));
+    }
+
+    /** Tests that coded values are ordered from least to most severe. */
+    @Test
+    public void testGetSeverity_OrdersCodedValues() {
+        int none = mDictionary.getSeverity(ConceptUuids.NONE_UUID);
+        int mild = mDictionary.getSeverity(ConceptUuids.MILD_UUID);
+        int severe = mDictionary.getSeverity(ConceptUuids.SEVERE_UUID);
+        assertTrue(none < mild);
+        assertTrue(mild < severe);
+    }
+
+    /** Tests that the concepts written by a concept sync replace the ones read before. */
+    @Test
+    public void testUpdate_AfterConceptSync_RefreshesLookups() {
+        // GIVEN a dictionary loaded for English
+        mDictionary.load(mResolver, "en");
+        // WHEN a concept sync changes a type and a name, and adds a concept
+        JsonConcept changed = newConcept(DIARRHEA, ConceptType.TEXT, "en", "Loose stools");
+        JsonConcept added = newConcept(UNKNOWN, ConceptType.NUMERIC, "en", "Weight");
+        added.names.put("fr", "Poids");
+        mDictionary.update(new JsonConcept[] {changed, added});
+        // THEN the lookups return what the sync wrote
+        assertEquals(ConceptType.TEXT, mDictionary.getType(DIARRHEA));
+        assertEquals("Loose stools", mDictionary.getName(DIARRHEA, "en"));
+        assertEquals(ConceptType.NUMERIC, mDictionary.getType(UNKNOWN));
+        assertEquals("Weight", mDictionary.getName(UNKNOWN, "en"));
+        // AND untouched concepts are unchanged
+        assertEquals("Temperature", mDictionary.getName(TEMPERATURE, "en"));
+        // AND names in locales that were never loaded are not kept
+        assertNull(mDictionary.getName(UNKNOWN, "fr"));
+    }
+
+    /** Tests that loading again does not read the db or undo an update. */
+    @Test
+    public void testLoad_AlreadyLoaded_KeepsUpdatedValues() {
+        // GIVEN a loaded dictionary that was updated by a sync
+        mDictionary.load(mResolver, "en");
+        mDictionary.update(new JsonConcept[] {
+            newConcept(TEMPERATURE, ConceptType.TEXT, "en", "Temp")});
+        // WHEN it is loaded again for the same locale
+        mDictionary.load(mResolver, "en");
+        // THEN the updated values are kept
+        assertEquals(ConceptType.TEXT, mDictionary.getType(TEMPERATURE));
+        assertEquals("Temp", mDictionary.getName(TEMPERATURE, "en"));
+    }
+
+    /** Tests that the dictionary grows past its initial capacity without losing concepts. */
+    @Test
+    public void testUpdate_ManyConcepts_AllCanBeLookedUp() {
+        // GIVEN a dictionary loaded for English
+        mDictionary.load(mResolver, "en");
+        // WHEN more concepts are added than fit in the initial arrays
+        JsonConcept[] concepts = new JsonConcept[1000];
+        for (int i = 0; i < concepts.length; i++) {
+            concepts[i] = newConcept("many-" + i, ConceptType.NUMERIC, "en", "Concept " + i);
+        }
+        mDictionary.update(concepts);
+        // THEN every concept, old and new, can be looked up
+        assertEquals("Temperature", mDictionary.getName(TEMPERATURE, "en"));
+        for (int i = 0; i < concepts.length; i++) {
+            assertEquals(ConceptType.NUMERIC, mDictionary.getType("many-" + i));
+            assertEquals("Concept " + i, mDictionary.getName("many-" + i, "en"));
+        }
+    }
+
+    private static void addConcept(SQLiteDatabase db, String uuid, int xformId, String type) {
+        db.execSQL("INSERT INTO concepts (uuid, xform_id, concept_type) VALUES (?, ?, ?)",
+            new Object[] {uuid, xformId, type});
+    }
+
+    private static void addName(SQLiteDatabase db, String uuid, String locale, String name) {
+        db.execSQL("INSERT INTO concept_names (concept_uuid, locale, name) VALUES (?, ?, ?)",
+            new Object[] {uuid, locale, name});
+    }
+
+    private static JsonConcept newConcept(
+        String uuid, ConceptType type, String locale, String name) {
+        JsonConcept concept = new JsonConcept();
+        concept.uuid = uuid;
+        concept.type = type;
+        Map<String, String> names = new HashMap<>();
+        names.put(locale, name);
+        concept.names = names;
+        return concept;
+    }
+}
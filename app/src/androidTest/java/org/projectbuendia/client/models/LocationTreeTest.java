@@ -0,0 +1,138 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.models;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.FakeTypedCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.projectbuendia.client.FakeAppLocationTreeFactory.ROOT_UUID;
+import static org.projectbuendia.client.FakeAppLocationTreeFactory.SUSPECT_1_UUID;
+import static org.projectbuendia.client.FakeAppLocationTreeFactory.SUSPECT_2_UUID;
+
+/** Tests for {@link LocationTree}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class LocationTreeTest {
+
+    /** Tests that each location's total includes the patients in all of its descendants. */
+    @Test
+    public void testGetTotalPatientCount_IncludesDescendants() {
+        // GIVEN a tree with patients in the triage zone, the suspect zone, and both its tents
+        LocationTree tree = buildTree("S1", 2, 3, 1, 4);
+        // WHEN patient counts are requested
+        // THEN each location counts its own patients plus those of its descendants
+        assertEquals(10, tree.getTotalPatientCount(tree.getRoot()));
+        assertEquals(2, tree.getTotalPatientCount(tree.findByUuid(Zones.TRIAGE_ZONE_UUID)));
+        assertEquals(8, tree.getTotalPatientCount(tree.findByUuid(Zones.SUSPECT_ZONE_UUID)));
+        assertEquals(3, tree.getTotalPatientCount(tree.findByUuid(SUSPECT_1_UUID)));
+        assertEquals(0, tree.getTotalPatientCount(tree.findByUuid(Zones.DISCHARGED_ZONE_UUID)));
+        // AND a location that isn't in the tree has no patients
+        assertEquals(0, tree.getTotalPatientCount(new Location("other", ROOT_UUID, "Other", 5)));
+        tree.close();
+    }
+
+    /** Tests that descendants at a relative depth are limited to the given location's subtree. */
+    @Test
+    public void testGetDescendantsAtDepth_RelativeToLocation() {
+        // GIVEN a tree with two tents in the suspect zone
+        LocationTree tree = buildTree("S1", 0, 0, 0, 0);
+        Location suspect = tree.findByUuid(Zones.SUSPECT_ZONE_UUID);
+        Location triage = tree.findByUuid(Zones.TRIAGE_ZONE_UUID);
+        // WHEN descendants are requested relative to a zone
+        // THEN only that zone's own descendants at that depth are returned, in order
+        assertEquals(Arrays.asList(Zones.SUSPECT_ZONE_UUID),
+            getUuids(tree.getDescendantsAtDepth(suspect, 0)));
+        assertEquals(Arrays.asList(SUSPECT_1_UUID, SUSPECT_2_UUID),
+            getUuids(tree.getDescendantsAtDepth(suspect, 1)));
+        assertTrue(tree.getDescendantsAtDepth(triage, 1).isEmpty());
+        assertTrue(tree.getDescendantsAtDepth(suspect, 2).isEmpty());
+        assertTrue(tree.getDescendantsAtDepth(suspect, -1).isEmpty());
+        // AND depths relative to the root are absolute depths
+        assertEquals(
+            Arrays.asList(Zones.TRIAGE_ZONE_UUID, Zones.SUSPECT_ZONE_UUID, Zones.DISCHARGED_ZONE_UUID),
+            getUuids(tree.getDescendantsAtDepth(LocationTree.ABSOLUTE_DEPTH_ZONE)));
+        assertEquals(Arrays.asList(SUSPECT_1_UUID, SUSPECT_2_UUID),
+            getUuids(tree.getDescendantsAtDepth(tree.getRoot(), 2)));
+        tree.close();
+    }
+
+    /** Tests that a tree rebuilt after patients move has fresh counts and the same order. */
+    @Test
+    public void testRebuild_WithNewPatientCounts_ReusesOrderWithNewCounts() {
+        // GIVEN a tree that has been built once
+        LocationTree first = buildTree("S1", 1, 1, 0, 1);
+        first.close();
+        // WHEN it is rebuilt with the same locations but different patient counts
+        LocationTree second = buildTree("S1", 0, 5, 0, 2);
+        // THEN the rebuilt tree reports the new counts
+        assertEquals(7, second.getTotalPatientCount(second.getRoot()));
+        assertEquals(7, second.getTotalPatientCount(second.findByUuid(Zones.SUSPECT_ZONE_UUID)));
+        assertEquals(0, second.getTotalPatientCount(second.findByUuid(Zones.TRIAGE_ZONE_UUID)));
+        // AND its locations are still in display order
+        assertEquals(Arrays.asList(SUSPECT_1_UUID, SUSPECT_2_UUID),
+            getUuids(second.getDescendantsAtDepth(LocationTree.ABSOLUTE_DEPTH_TENT)));
+        second.close();
+    }
+
+    /** Tests that the order of the last tree is not reused once a location is renamed. */
+    @Test
+    public void testRebuild_WithRenamedLocation_SortsAgain() {
+        // GIVEN a tree in which tent S1 sorts before tent S2
+        LocationTree first = buildTree("S1", 0, 0, 0, 0);
+        first.close();
+        // WHEN it is rebuilt after S1 is renamed so that it sorts after S2
+        LocationTree second = buildTree("S3", 0, 0, 0, 0);
+        // THEN the tents are in the new order
+        assertEquals(Arrays.asList(SUSPECT_2_UUID, SUSPECT_1_UUID),
+            getUuids(second.getDescendantsAtDepth(LocationTree.ABSOLUTE_DEPTH_TENT)));
+        assertTrue(second.getComparator().compare(
+            second.findByUuid(SUSPECT_2_UUID), second.findByUuid(SUSPECT_1_UUID)) < 0);
+        second.close();
+    }
+
+    /**
+     * Builds a tree with the same shape as the one from
+     * {@link org.projectbuendia.client.FakeAppLocationTreeFactory}, with the given name for the
+     * first suspect tent and the given numbers of patients.
+     */
+    private static LocationTree buildTree(String tent1Name, long triageCount, long tent1Count,
+                                          long suspectCount, long tent2Count) {
+        return LocationTree.forTypedCursor(new FakeTypedCursor<>(
+            new Location(ROOT_UUID, null, "Fake Site", 0),
+            new Location(Zones.TRIAGE_ZONE_UUID, ROOT_UUID, "Triage", triageCount),
+            new Location(Zones.DISCHARGED_ZONE_UUID, ROOT_UUID, "Discharged", 0),
+            new Location(Zones.SUSPECT_ZONE_UUID, ROOT_UUID, "Suspect", suspectCount),
+            new Location(SUSPECT_1_UUID, Zones.SUSPECT_ZONE_UUID, tent1Name, tent1Count),
+            new Location(SUSPECT_2_UUID, Zones.SUSPECT_ZONE_UUID, "S2", tent2Count)
+        ));
+    }
+
+    private static List<String> getUuids(Collection<Location> locations) {
+        List<String> uuids = new ArrayList<>();
+        for (Location location : locations) {
+            uuids.add(location.uuid);
+        }
+        return uuids;
+    }
+}
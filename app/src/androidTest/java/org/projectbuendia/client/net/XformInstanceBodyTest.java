@@ -0,0 +1,110 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.net;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonObject;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.net.OpenMrsXformsConnection.XformInstanceBody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import okio.Buffer;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+
+/** Tests for the streamed request body that carries an xform instance to the server. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class XformInstanceBodyTest {
+
+    private File mInstance;
+
+    @Before
+    public void setUp() {
+        mInstance = new File(getInstrumentation().getTargetContext().getCacheDir(),
+            "xform-instance-body-test.xml");
+    }
+
+    @After
+    public void tearDown() {
+        mInstance.delete();
+    }
+
+    /** Tests that characters that need escaping in JSON come through unchanged. */
+    @Test
+    public void testWriteTo_EscapesXml() throws Exception {
+        // GIVEN an instance with quotes, backslashes, control and non-ASCII characters
+        String xml = "<?xml version=\"1.0\"?>\r\n<data id=\"a\\b\">\t"
+            + "Fi\u00e8vre 38\u00b0 \u0001 \u3000 \u65e5\u672c</data>\n";
+        // WHEN it is written as a request body
+        JSONObject json = writeBody(xml, newProperties());
+        // THEN the xml property holds the instance as it was
+        assertEquals(xml, json.getString("xml"));
+        // AND the other properties are kept
+        assertEquals("enterer", json.getString("enterer_uuid"));
+        assertEquals("client", json.getString("client_uuid"));
+    }
+
+    /** Tests that an instance larger than the read buffer is written whole. */
+    @Test
+    public void testWriteTo_LargeInstance() throws Exception {
+        // GIVEN an instance many times larger than the buffer, with quotes throughout
+        StringBuilder xml = new StringBuilder("<data>");
+        for (int i = 0; i < 5000; i++) {
+            xml.append("<obs concept=\"").append(i).append("\">\u00e9</obs>\n");
+        }
+        xml.append("</data>");
+        // WHEN it is written as a request body
+        JSONObject json = writeBody(xml.toString(), newProperties());
+        // THEN the xml property holds the instance as it was
+        assertEquals(xml.toString(), json.getString("xml"));
+    }
+
+    /** Tests that a body with no other properties is still valid JSON. */
+    @Test
+    public void testWriteTo_NoOtherProperties() throws Exception {
+        JSONObject json = writeBody("<data/>", new JsonObject());
+        assertEquals("<data/>", json.getString("xml"));
+        assertEquals(1, json.length());
+    }
+
+    private static JsonObject newProperties() {
+        JsonObject properties = new JsonObject();
+        properties.addProperty("enterer_uuid", "enterer");
+        properties.addProperty("client_uuid", "client");
+        return properties;
+    }
+
+    private JSONObject writeBody(String xml, JsonObject properties) throws Exception {
+        FileOutputStream out = new FileOutputStream(mInstance);
+        try {
+            out.write(xml.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        Buffer buffer = new Buffer();
+        new XformInstanceBody(properties, mInstance).writeTo(buffer);
+        return new JSONObject(buffer.readUtf8());
+    }
+}
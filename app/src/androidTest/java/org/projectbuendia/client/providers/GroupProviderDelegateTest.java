@@ -0,0 +1,191 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.TestDatabaseContext;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/** Tests for the change notifications sent by {@link GroupProviderDelegate}. */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public final class GroupProviderDelegateTest {
+
+    private static final Uri PATIENT_A_URI =
+        Contracts.getPatientChangeUri(Orders.CONTENT_URI, "patient-a");
+    private static final Uri PATIENT_B_URI =
+        Contracts.getPatientChangeUri(Orders.CONTENT_URI, "patient-b");
+
+    private Context mContext;
+    private Database mDbHelper;
+    private ContentResolver mMockResolver;
+    private GroupProviderDelegate mDelegate;
+
+    @Before
+    public void setUp() {
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        mDbHelper = new Database(mContext);
+        mMockResolver = mock(ContentResolver.class);
+        mDelegate = new GroupProviderDelegate(
+            Orders.GROUP_CONTENT_TYPE, Table.ORDERS, Orders.PATIENT_UUID);
+        insertOrder("order-a1", "patient-a");
+        insertOrder("order-a2", "patient-a");
+        insertOrder("order-b1", "patient-b");
+        insertOrder("order-c1", "patient-c");
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that an update is notified on the patient whose rows changed, not the table. */
+    @Test
+    public void testUpdate_NotifiesAffectedPatientOnly() {
+        // WHEN one patient's orders are updated
+        update("patient_uuid = ?", "patient-a");
+        // THEN only that patient's URI is notified
+        verifyNotifiedOnce(PATIENT_A_URI);
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that a delete is notified on each patient whose rows were deleted. */
+    @Test
+    public void testDelete_NotifiesEachAffectedPatient() {
+        // WHEN orders belonging to two patients are deleted
+        int count = mDelegate.delete(mDbHelper, mMockResolver, Orders.CONTENT_URI,
+            "uuid in (?, ?)", new String[] {"order-a1", "order-b1"});
+        // THEN each of those patients is notified, and no one else
+        assertEquals(2, count);
+        verifyNotifiedOnce(PATIENT_A_URI);
+        verifyNotifiedOnce(PATIENT_B_URI);
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that moving a row to another patient notifies both patients. */
+    @Test
+    public void testUpdate_MovingRowNotifiesOldAndNewPatient() {
+        // WHEN an order is moved from one patient to another
+        ContentValues values = new ContentValues();
+        values.put(Orders.PATIENT_UUID, "patient-b");
+        mDelegate.update(mDbHelper, mMockResolver, Orders.CONTENT_URI,
+            values, "uuid = ?", new String[] {"order-a1"});
+        // THEN both patients are notified
+        verifyNotifiedOnce(PATIENT_A_URI);
+        verifyNotifiedOnce(PATIENT_B_URI);
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that a change that matches no rows sends no notification. */
+    @Test
+    public void testUpdate_NoMatchingRows_NotifiesNothing() {
+        // WHEN an update matches nothing
+        update("patient_uuid = ?", "patient-z");
+        // THEN nothing is notified
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that a change with no selection is notified on the whole table. */
+    @Test
+    public void testDelete_WholeTable_NotifiesTable() {
+        // WHEN every order is deleted
+        mDelegate.delete(mDbHelper, mMockResolver, Orders.CONTENT_URI, null, null);
+        // THEN the table URI is notified once
+        verifyNotifiedOnce(Orders.CONTENT_URI);
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that a batch of changes in one transaction sends one notification per URI. */
+    @Test
+    public void testBatchInTransaction_NotifiesEachUriOnceAfterCommit() {
+        // GIVEN a transaction with several updates and deletes to two patients' orders
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDbHelper, "TEST")) {
+            update("uuid = ?", "order-a1");
+            update("uuid = ?", "order-a2");
+            update("patient_uuid = ?", "patient-a");
+            update("uuid = ?", "order-b1");
+            mDelegate.delete(mDbHelper, mMockResolver, Orders.CONTENT_URI,
+                "uuid = ?", new String[] {"order-a1"});
+            // WHEN the transaction is still open
+            // THEN nothing has been notified
+            verify(mMockResolver, never()).notifyChange(
+                any(Uri.class), any(ContentObserver.class), anyBoolean());
+        }
+        // WHEN the transaction commits
+        // THEN each patient's URI is notified exactly once
+        verifyNotifiedOnce(PATIENT_A_URI);
+        verifyNotifiedOnce(PATIENT_B_URI);
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    /** Tests that a batch that is rolled back sends no notifications. */
+    @Test
+    public void testBatchInTransaction_RolledBack_NotifiesNothing() {
+        // GIVEN a transaction with some updates
+        try (DatabaseTransaction tx = new DatabaseTransaction(mDbHelper, "TEST")) {
+            update("uuid = ?", "order-a1");
+            update("uuid = ?", "order-b1");
+            // WHEN it is rolled back
+            tx.rollback();
+        }
+        // THEN nothing is notified
+        verifyNoMoreInteractions(mMockResolver);
+    }
+
+    private void insertOrder(String uuid, String patientUuid) {
+        ContentValues values = new ContentValues();
+        values.put(Orders.UUID, uuid);
+        values.put(Orders.PATIENT_UUID, patientUuid);
+        values.put(Orders.INSTRUCTIONS, "Paracetamol");
+        mDbHelper.getWritableDatabase().insertOrThrow(Table.ORDERS.name, null, values);
+    }
+
+    private void update(String selection, String arg) {
+        ContentValues values = new ContentValues();
+        values.put(Orders.INSTRUCTIONS, "Ibuprofen");
+        mDelegate.update(mDbHelper, mMockResolver, Orders.CONTENT_URI,
+            values, selection, new String[] {arg});
+    }
+
+    private void verifyNotifiedOnce(Uri uri) {
+        verify(mMockResolver, times(1)).notifyChange(
+            eq(uri), (ContentObserver) isNull(), eq(false));
+    }
+}
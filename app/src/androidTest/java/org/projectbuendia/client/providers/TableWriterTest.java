@@ -0,0 +1,199 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/** Tests for {@link TableWriter}, against an in-memory database with the current schema. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class TableWriterTest {
+
+    private static final int UUID = 0;
+    private static final int XFORM_ID = 1;
+    private static final int CONCEPT_TYPE = 2;
+
+    private SQLiteDatabase mDb;
+    private ContentResolver mMockResolver;
+
+    @Before
+    public void setUp() {
+        Database helper = new Database(getInstrumentation().getTargetContext());
+        mDb = SQLiteDatabase.create(null);
+        helper.onConfigure(mDb);
+        helper.onCreate(mDb);
+        mMockResolver = mock(ContentResolver.class);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    /** Tests that rows are written, replaced, and deleted as asked. */
+    @Test
+    public void testWriteReplaceDelete_TableHasExpectedRows() {
+        // GIVEN a writer for the concepts table
+        try (TableWriter writer = newConceptWriter()) {
+            // WHEN three rows are written
+            writer.bind(UUID, "c1").bind(XFORM_ID, 1L).bind(CONCEPT_TYPE, "NUMERIC").upsert();
+            writer.bind(UUID, "c2").bind(XFORM_ID, 2L).bind(CONCEPT_TYPE, "CODED").upsert();
+            writer.bind(UUID, "c3").bind(XFORM_ID, 3L).upsert();
+            // AND one is replaced, one is deleted, and a missing one is deleted
+            writer.bind(UUID, "c2").bind(XFORM_ID, 2L).bind(CONCEPT_TYPE, "TEXT").upsert();
+            assertEquals(1, writer.delete(Concepts.UUID, "c1"));
+            assertEquals(0, writer.delete(Concepts.UUID, "missing"));
+        }
+        // THEN the table holds the replaced row and the untouched one, with unbound columns null
+        Map<String, String> expected = new HashMap<>();
+        expected.put("c2", "TEXT");
+        expected.put("c3", null);
+        assertEquals(expected, readConceptTypes());
+    }
+
+    /** Tests that the bindings of one row don't carry over into the next. */
+    @Test
+    public void testUpsert_ClearsBindings() {
+        // GIVEN a row written with every column bound
+        try (TableWriter writer = newConceptWriter()) {
+            writer.bind(UUID, "c1").bind(XFORM_ID, 1L).bind(CONCEPT_TYPE, "NUMERIC").upsert();
+            // WHEN the next row leaves a column unbound
+            writer.bind(UUID, "c2").bind(XFORM_ID, 2L).upsert();
+        }
+        // THEN that column is null in the next row
+        assertNull(readConceptTypes().get("c2"));
+        assertEquals("NUMERIC", readConceptTypes().get("c1"));
+    }
+
+    /** Tests that a row can be bound from ContentValues, whose extra keys are ignored. */
+    @Test
+    public void testBindContentValues_WritesMatchingColumns() {
+        // GIVEN ContentValues with an integer, a string, and a key that isn't a writer column
+        ContentValues values = new ContentValues();
+        values.put(Concepts.UUID, "c1");
+        values.put(Concepts.XFORM_ID, 7);
+        values.put(Concepts.CONCEPT_TYPE, "DATE");
+        values.put("not_a_column", "ignored");
+        // WHEN the values are written
+        try (TableWriter writer = newConceptWriter()) {
+            writer.bind(values).upsert();
+        }
+        // THEN the row has the values of the writer's columns
+        try (Cursor c = mDb.rawQuery("SELECT xform_id, concept_type FROM concepts", null)) {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals(7, c.getLong(0));
+            assertEquals("DATE", c.getString(1));
+        }
+    }
+
+    /** Tests that deleteAll empties the table. */
+    @Test
+    public void testDeleteAll_EmptiesTable() {
+        // GIVEN a table with two rows
+        try (TableWriter writer = newConceptWriter()) {
+            writer.bind(UUID, "c1").bind(XFORM_ID, 1L).upsert();
+            writer.bind(UUID, "c2").bind(XFORM_ID, 2L).upsert();
+            // WHEN every row is deleted
+            writer.deleteAll();
+        }
+        // THEN the table is empty
+        assertEquals(0, readConceptTypes().size());
+    }
+
+    /** Tests that each recorded URI is notified once, when the writer is closed. */
+    @Test
+    public void testClose_NotifiesEachChangeOnce() {
+        // GIVEN a writer that records the same URI twice and another URI once
+        Uri other = Contracts.ConceptNames.CONTENT_URI;
+        TableWriter writer = newConceptWriter();
+        writer.addChange(Concepts.CONTENT_URI);
+        writer.addChange(Concepts.CONTENT_URI);
+        writer.addChange(other);
+        verify(mMockResolver, never()).notifyChange(
+            any(Uri.class), any(ContentObserver.class), anyBoolean());
+        // WHEN the writer is closed
+        writer.close();
+        // THEN each URI is notified exactly once
+        verify(mMockResolver, times(1)).notifyChange(
+            eq(Concepts.CONTENT_URI), (ContentObserver) isNull(), eq(false));
+        verify(mMockResolver, times(1)).notifyChange(
+            eq(other), (ContentObserver) isNull(), eq(false));
+    }
+
+    /** Tests that notifications are held back until the enclosing transaction commits. */
+    @Test
+    public void testClose_InsideTransaction_NotifiesAfterCommit() {
+        // GIVEN a writer used inside a transaction
+        DatabaseTransaction tx = new DatabaseTransaction(mDb, "TEST");
+        try (TableWriter writer = newConceptWriter()) {
+            writer.bind(UUID, "c1").bind(XFORM_ID, 1L).upsert();
+            writer.addChange(Concepts.CONTENT_URI);
+        }
+        // WHEN the writer has been closed but the transaction has not
+        // THEN nothing has been notified yet
+        verify(mMockResolver, never()).notifyChange(
+            any(Uri.class), any(ContentObserver.class), anyBoolean());
+        // WHEN the transaction commits
+        tx.close();
+        // THEN the change is notified
+        verify(mMockResolver, times(1)).notifyChange(
+            eq(Concepts.CONTENT_URI), (ContentObserver) isNull(), eq(false));
+    }
+
+    private TableWriter newConceptWriter() {
+        return new TableWriter(mDb, mMockResolver, Table.CONCEPTS,
+            Concepts.UUID, Concepts.XFORM_ID, Concepts.CONCEPT_TYPE);
+    }
+
+    /** Reads the concepts table as a map from UUID to concept type. */
+    private Map<String, String> readConceptTypes() {
+        Map<String, String> types = new HashMap<>();
+        try (Cursor c = mDb.rawQuery("SELECT uuid, concept_type FROM concepts", null)) {
+            while (c.moveToNext()) {
+                types.put(c.getString(0), c.isNull(1) ? null : c.getString(1));
+            }
+        }
+        return types;
+    }
+}
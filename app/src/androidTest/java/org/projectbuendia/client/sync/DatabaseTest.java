@@ -0,0 +1,494 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+/**
+ * Tests for the observation storage in {@link Database}: writes through the observations view,
+ * the latest_observations table that its triggers maintain, and the migrations to it.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public final class DatabaseTest {
+
+    private static final String PATIENT_1 = "database-test-patient-1";
+    private static final String PATIENT_2 = "database-test-patient-2";
+    private static final String NUMERIC_CONCEPT = "database-test-numeric";
+    private static final String CODED_CONCEPT = "database-test-coded";
+    private static final String TEXT_CONCEPT = "database-test-text";
+    private static final String ANSWER = "database-test-answer";
+
+    /**
+     * The tables, indexes, and triggers of a version 32 database that hold observations, and
+     * the concepts that version 33 reads while migrating them.
+     */
+    static final String[] VERSION_32_OBSERVATIONS = {
+        "CREATE TABLE concepts (uuid TEXT PRIMARY KEY NOT NULL,"
+            + "xform_id INTEGER UNIQUE NOT NULL,concept_type TEXT)",
+        "CREATE TABLE observations (uuid TEXT PRIMARY KEY,patient_uuid TEXT,"
+            + "encounter_uuid TEXT,encounter_millis INTEGER,concept_uuid TEXT,"
+            + "enterer_uuid TEXT,value STRING,voided INTEGER,"
+            + "UNIQUE (patient_uuid, encounter_uuid, concept_uuid))",
+        "CREATE TABLE latest_observations (patient_uuid TEXT NOT NULL,"
+            + "concept_uuid TEXT NOT NULL,encounter_millis INTEGER,uuid TEXT,value STRING,"
+            + "PRIMARY KEY (patient_uuid, concept_uuid))",
+        "CREATE INDEX observations_patient_concept_millis"
+            + " ON observations (patient_uuid, concept_uuid, encounter_millis)",
+        "CREATE INDEX observations_patient_millis"
+            + " ON observations (patient_uuid, encounter_millis)",
+        "CREATE INDEX observations_concept_millis"
+            + " ON observations (concept_uuid, encounter_millis)",
+        "CREATE INDEX latest_observations_concept_value"
+            + " ON latest_observations (concept_uuid, value)",
+        "CREATE TRIGGER observations_insert_latest AFTER INSERT ON observations BEGIN"
+            + " DELETE FROM latest_observations"
+            + " WHERE patient_uuid = NEW.patient_uuid AND concept_uuid = NEW.concept_uuid;"
+            + " INSERT INTO latest_observations"
+            + " (patient_uuid, concept_uuid, encounter_millis, uuid, value)"
+            + " SELECT patient_uuid, concept_uuid, encounter_millis, uuid, value"
+            + " FROM observations"
+            + " WHERE patient_uuid = NEW.patient_uuid AND concept_uuid = NEW.concept_uuid"
+            + " AND voided IS NOT 1 ORDER BY encounter_millis DESC LIMIT 1; END",
+        "CREATE TRIGGER observations_delete_latest AFTER DELETE ON observations BEGIN"
+            + " DELETE FROM latest_observations"
+            + " WHERE patient_uuid = OLD.patient_uuid AND concept_uuid = OLD.concept_uuid;"
+            + " INSERT INTO latest_observations"
+            + " (patient_uuid, concept_uuid, encounter_millis, uuid, value)"
+            + " SELECT patient_uuid, concept_uuid, encounter_millis, uuid, value"
+            + " FROM observations"
+            + " WHERE patient_uuid = OLD.patient_uuid AND concept_uuid = OLD.concept_uuid"
+            + " AND voided IS NOT 1 ORDER BY encounter_millis DESC LIMIT 1; END"
+    };
+
+    /** The complete schema of a version 29 database, the oldest that is migrated in place. */
+    static final String[] VERSION_29 = {
+        "CREATE TABLE chart_items (rowid INTEGER PRIMARY KEY NOT NULL,chart_uuid TEXT,"
+            + "weight INTEGER,section_type TEXT,parent_rowid INTEGER,label TEXT,type TEXT,"
+            + "required INTEGER,concept_uuids TEXT,format TEXT,caption_format TEXT,"
+            + "css_class TEXT,css_style TEXT,script TEXT)",
+        "CREATE TABLE concept_names (concept_uuid TEXT,locale TEXT,name TEXT,"
+            + "UNIQUE (concept_uuid, locale))",
+        "CREATE TABLE concepts (uuid TEXT PRIMARY KEY NOT NULL,"
+            + "xform_id INTEGER UNIQUE NOT NULL,concept_type TEXT)",
+        "CREATE TABLE forms (uuid TEXT PRIMARY KEY NOT NULL,name TEXT,version TEXT)",
+        "CREATE TABLE location_names (location_uuid TEXT,locale TEXT,name TEXT,"
+            + "UNIQUE (location_uuid, locale))",
+        "CREATE TABLE locations (uuid TEXT PRIMARY KEY NOT NULL,parent_uuid TEXT)",
+        "CREATE TABLE misc (full_sync_start_millis INTEGER,full_sync_end_millis INTEGER)",
+        "CREATE TABLE observations (uuid TEXT PRIMARY KEY,patient_uuid TEXT,"
+            + "encounter_uuid TEXT,encounter_millis INTEGER,concept_uuid TEXT,"
+            + "enterer_uuid TEXT,value STRING,voided INTEGER,"
+            + "UNIQUE (patient_uuid, encounter_uuid, concept_uuid))",
+        "CREATE TABLE orders (uuid TEXT PRIMARY KEY NOT NULL,patient_uuid TEXT,"
+            + "instructions TEXT,start_millis INTEGER,stop_millis INTEGER)",
+        "CREATE TABLE patients (uuid TEXT PRIMARY KEY NOT NULL,id TEXT,given_name TEXT,"
+            + "family_name TEXT,location_uuid TEXT,birthdate TEXT,gender TEXT)",
+        "CREATE TABLE users (uuid TEXT PRIMARY KEY NOT NULL,full_name TEXT)",
+        "CREATE TABLE sync_tokens (table_name TEXT PRIMARY KEY NOT NULL,"
+            + "sync_token TEXT NOT NULL)"
+    };
+
+    private Context mContext;
+    private Database mDatabase;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        open();
+        addConcepts(mDb);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that values read back as they were written, whatever column stores them. */
+    @Test
+    public void testInsert_ValuesReadBackUnchanged() {
+        // GIVEN observations of numeric, coded, and text concepts
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(mDb, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "38.50");
+        insert(mDb, "o3", PATIENT_1, "e1", 1000, CODED_CONCEPT, ANSWER);
+        insert(mDb, "o4", PATIENT_1, "e1", 1000, TEXT_CONCEPT, "007");
+        // WHEN they are read through the view
+        // THEN each value is the text that was written
+        assertEquals("38", getValue("o1"));
+        assertEquals("38.50", getValue("o2"));
+        assertEquals(ANSWER, getValue("o3"));
+        assertEquals("007", getValue("o4"));
+        // AND the newest observation of each concept is the latest one
+        assertEquals("o2", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+        assertEquals("o3", getLatestUuid(PATIENT_1, CODED_CONCEPT));
+    }
+
+    /** Tests that an older observation does not displace the latest one. */
+    @Test
+    public void testInsert_OlderObservation_KeepsLatest() {
+        // GIVEN an observation
+        insert(mDb, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "39");
+        // WHEN an older one of the same concept arrives
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        // THEN the newer one is still the latest
+        assertEquals("o2", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+    }
+
+    /** Tests that replacing an observation with one for another patient updates both. */
+    @Test
+    public void testReplace_UuidMovedToAnotherPatient_RefreshesBothPatients() {
+        // GIVEN two observations of one patient
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(mDb, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "39");
+        // WHEN the newer one is replaced by an observation of another patient
+        insert(mDb, "o2", PATIENT_2, "e3", 3000, NUMERIC_CONCEPT, "40");
+        // THEN the first patient's latest observation is the older one
+        assertEquals("o1", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+        // AND the replacement is the other patient's latest observation
+        assertEquals("o2", getLatestUuid(PATIENT_2, NUMERIC_CONCEPT));
+        assertEquals(2, count(Table.OBSERVATION_DATA));
+    }
+
+    /** Tests that an update keeps the row's id and is counted. */
+    @Test
+    public void testUpdate_KeepsIdAndRefreshesLatest() {
+        // GIVEN an observation
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        long id = getId("o1");
+        // WHEN its value is updated through the view
+        ContentValues values = new ContentValues();
+        values.put(Observations.VALUE, "39");
+        int count = new QueryBuilder(Table.OBSERVATIONS)
+            .where(Observations.UUID + " = ?", "o1")
+            .update(mDb, values);
+        // THEN one row is reported, and it keeps its id
+        assertEquals(1, count);
+        assertEquals(id, getId("o1"));
+        assertEquals("39", getValue("o1"));
+        // AND the latest observation has the new value
+        assertEquals("39", getLatestValue(PATIENT_1, NUMERIC_CONCEPT));
+    }
+
+    /** Tests that voiding the latest observation makes the previous one the latest. */
+    @Test
+    public void testUpdate_Voided_PreviousObservationBecomesLatest() {
+        // GIVEN two observations of one concept
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(mDb, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "39");
+        // WHEN the newer one is voided
+        ContentValues values = new ContentValues();
+        values.put(Observations.VOIDED, 1);
+        new QueryBuilder(Table.OBSERVATIONS)
+            .where(Observations.UUID + " = ?", "o2")
+            .update(mDb, values);
+        // THEN the older one is the latest
+        assertEquals("o1", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+    }
+
+    /** Tests that a deletion through the view is counted and updates the latest observations. */
+    @Test
+    public void testDelete_CountsRowsAndRefreshesLatest() {
+        // GIVEN two observations of one patient and one of another
+        insert(mDb, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(mDb, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "39");
+        insert(mDb, "o3", PATIENT_2, "e3", 3000, NUMERIC_CONCEPT, "40");
+        // WHEN the first patient's observations are deleted through the view
+        int count = new QueryBuilder(Table.OBSERVATIONS)
+            .where(Observations.PATIENT_UUID + " = ?", PATIENT_1)
+            .delete(mDb);
+        // THEN both rows are reported, and the patient has no latest observation
+        assertEquals(2, count);
+        assertNull(getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+        // AND the other patient is untouched
+        assertEquals("o3", getLatestUuid(PATIENT_2, NUMERIC_CONCEPT));
+        // AND a deletion that matches nothing reports no rows
+        assertEquals(0, new QueryBuilder(Table.OBSERVATIONS)
+            .where(Observations.PATIENT_UUID + " = ?", PATIENT_1)
+            .delete(mDb));
+    }
+
+    /** Tests that the sync's writer stores observations as the view does. */
+    @Test
+    public void testObservationDataWriter_StoresLikeTheView() {
+        // GIVEN the same observations written for one patient through the view and for
+        // another through the writer
+        String[][] observations = {
+            {"e1", NUMERIC_CONCEPT, "38"}, {"e2", NUMERIC_CONCEPT, "38.50"},
+            {"e1", CODED_CONCEPT, ANSWER}, {"e1", TEXT_CONCEPT, "007"}
+        };
+        try (ObservationDataWriter writer = new ObservationDataWriter(mDb)) {
+            for (int i = 0; i < observations.length; i++) {
+                String[] obs = observations[i];
+                insert(mDb, "view" + i, PATIENT_1, obs[0], 1000 * i, obs[1], obs[2]);
+                writer.upsert("writer" + i, PATIENT_2, obs[0], 1000 * i, obs[1], null, obs[2]);
+            }
+        }
+        // WHEN both patients' observations are read through the view
+        // THEN they are the same
+        assertEquals(getObservations(mDb, PATIENT_1), getObservations(mDb, PATIENT_2));
+        for (String concept : Arrays.asList(NUMERIC_CONCEPT, CODED_CONCEPT, TEXT_CONCEPT)) {
+            assertEquals(getLatestValue(PATIENT_1, concept), getLatestValue(PATIENT_2, concept));
+        }
+    }
+
+    /** Tests that upgrading from version 32 keeps every observation and the latest ones. */
+    @Test
+    public void testUpgradeFrom32_KeepsObservations() {
+        // GIVEN a version 32 database with observations, one of them voided
+        mDatabase.close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        SQLiteDatabase old = SQLiteDatabase.openOrCreateDatabase(
+            mContext.getDatabasePath(Database.DATABASE_FILENAME), null);
+        for (String sql : VERSION_32_OBSERVATIONS) {
+            old.execSQL(sql);
+        }
+        addConcepts(old);
+        insert(old, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(old, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "38.5");
+        insert(old, "o3", PATIENT_1, "e3", 3000, NUMERIC_CONCEPT, "39");
+        insert(old, "o4", PATIENT_1, "e1", 1000, CODED_CONCEPT, ANSWER);
+        insert(old, "o5", PATIENT_2, "e4", 4000, TEXT_CONCEPT, "note");
+        old.execSQL("UPDATE observations SET voided = 1 WHERE uuid = 'o3'");
+        List<List<String>> before = getObservations(old, null);
+        old.setVersion(32);
+        old.close();
+
+        // WHEN the app opens it
+        open();
+
+        // THEN every observation reads back the same through the view
+        assertEquals(before, getObservations(mDb, null));
+        // AND the latest observations are rebuilt, skipping the voided one
+        assertEquals("o2", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+        assertEquals("o4", getLatestUuid(PATIENT_1, CODED_CONCEPT));
+        assertEquals("o5", getLatestUuid(PATIENT_2, TEXT_CONCEPT));
+        // AND the view can be written
+        insert(mDb, "o6", PATIENT_1, "e5", 5000, NUMERIC_CONCEPT, "40");
+        assertEquals("o6", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+    }
+
+    /**
+     * Tests that upgrading from version 29 through every migration yields the same schema as a
+     * new database, and keeps the data of every table.
+     */
+    @Test
+    public void testUpgradeFrom29_MatchesNewSchemaAndKeepsData() {
+        // GIVEN a version 29 database with rows in its tables
+        mDatabase.close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        SQLiteDatabase old = SQLiteDatabase.openOrCreateDatabase(
+            mContext.getDatabasePath(Database.DATABASE_FILENAME), null);
+        for (String sql : VERSION_29) {
+            old.execSQL(sql);
+        }
+        addConcepts(old);
+        insert(old, "o1", PATIENT_1, "e1", 1000, NUMERIC_CONCEPT, "38");
+        insert(old, "o2", PATIENT_1, "e2", 2000, NUMERIC_CONCEPT, "39");
+        insert(old, "o3", PATIENT_2, "e3", 3000, CODED_CONCEPT, ANSWER);
+        old.execSQL("INSERT INTO patients (uuid, id, given_name, family_name, location_uuid)"
+            + " VALUES ('" + PATIENT_1 + "', 'P1', 'Ada', 'Lovelace', 'ward-1')");
+        old.execSQL("INSERT INTO orders (uuid, patient_uuid, instructions, start_millis)"
+            + " VALUES ('order-1', '" + PATIENT_1 + "', 'Paracetamol', 1000)");
+        old.execSQL("INSERT INTO chart_items (rowid, chart_uuid, weight, label)"
+            + " VALUES (1, 'chart-1', 10, 'Temperature')");
+        old.execSQL("INSERT INTO sync_tokens (table_name, sync_token)"
+            + " VALUES ('patients', 'token-1')");
+        List<List<String>> observations = getObservations(old, null);
+        List<List<String>> patients = getRows(old, "patients");
+        List<List<String>> orders = getRows(old, "orders");
+        List<List<String>> chartItems = getRows(old, "chart_items");
+        List<List<String>> syncTokens = getRows(old, "sync_tokens");
+        old.setVersion(29);
+        old.close();
+
+        // WHEN the app opens it
+        open();
+
+        // THEN it has the same tables, views, indexes, triggers, and columns as a new database
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            mDatabase.onConfigure(fresh);
+            mDatabase.onCreate(fresh);
+            assertEquals(getSchema(fresh), getSchema(mDb));
+        } finally {
+            fresh.close();
+        }
+        // AND every row is kept
+        assertEquals(observations, getObservations(mDb, null));
+        assertEquals(patients, getRows(mDb, "patients"));
+        assertEquals(orders, getRows(mDb, "orders"));
+        assertEquals(chartItems, getRows(mDb, "chart_items"));
+        assertEquals(syncTokens, getRows(mDb, "sync_tokens"));
+        // AND the latest observations are built from the kept ones
+        assertEquals("o2", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+        assertEquals("o3", getLatestUuid(PATIENT_2, CODED_CONCEPT));
+        // AND the tables added since version 29 are ready for use
+        assertEquals(0, count(Table.OUTBOX_ITEMS));
+        insert(mDb, "o4", PATIENT_1, "e4", 4000, NUMERIC_CONCEPT, "40");
+        assertEquals("o4", getLatestUuid(PATIENT_1, NUMERIC_CONCEPT));
+    }
+
+    private void open() {
+        mDatabase = new Database(mContext);
+        mDb = mDatabase.getWritableDatabase();
+    }
+
+    private static void addConcepts(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO concepts (uuid, xform_id, concept_type) VALUES"
+            + " ('" + NUMERIC_CONCEPT + "', 1, 'NUMERIC'),"
+            + " ('" + CODED_CONCEPT + "', 2, 'CODED'),"
+            + " ('" + TEXT_CONCEPT + "', 3, 'TEXT')");
+    }
+
+    /** Inserts or replaces an observation in the observations view or table. */
+    private static void insert(SQLiteDatabase db, String uuid, String patientUuid,
+                               String encounterUuid, long millis, String conceptUuid,
+                               String value) {
+        ContentValues values = new ContentValues();
+        values.put(Observations.UUID, uuid);
+        values.put(Observations.PATIENT_UUID, patientUuid);
+        values.put(Observations.ENCOUNTER_UUID, encounterUuid);
+        values.put(Observations.ENCOUNTER_MILLIS, millis);
+        values.put(Observations.CONCEPT_UUID, conceptUuid);
+        values.put(Observations.VALUE, value);
+        db.insertWithOnConflict(Table.OBSERVATIONS.name, null, values,
+            SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Gets the observations of a patient, or of all patients if patientUuid is null, as lists
+     * of the encounter, time, concept, value, and voided flag, in order of time and concept.
+     */
+    private static List<List<String>> getObservations(SQLiteDatabase db, String patientUuid) {
+        List<List<String>> rows = new ArrayList<>();
+        try (Cursor c = db.query(Table.OBSERVATIONS.name, new String[] {
+                Observations.ENCOUNTER_UUID, Observations.ENCOUNTER_MILLIS,
+                Observations.CONCEPT_UUID, Observations.VALUE, Observations.VOIDED},
+            patientUuid == null ? null : Observations.PATIENT_UUID + " = ?",
+            patientUuid == null ? null : new String[] {patientUuid}, null, null,
+            Observations.ENCOUNTER_MILLIS + ", " + Observations.CONCEPT_UUID)) {
+            while (c.moveToNext()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    row.add(c.getString(i));
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Describes a database schema as a sorted list of the type and name of each table, view,
+     * index, and trigger, each table or view followed by its sorted column names.
+     */
+    private static List<String> getSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT type, name FROM sqlite_master"
+            + " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null)) {
+            while (c.moveToNext()) {
+                String type = c.getString(0);
+                String name = c.getString(1);
+                List<String> columns = new ArrayList<>();
+                if (type.equals("table") || type.equals("view")) {
+                    try (Cursor info = db.rawQuery("PRAGMA table_info(" + name + ")", null)) {
+                        while (info.moveToNext()) {
+                            columns.add(info.getString(info.getColumnIndex("name")));
+                        }
+                    }
+                }
+                Collections.sort(columns);
+                schema.add(type + " " + name + " " + columns);
+            }
+        }
+        Collections.sort(schema);
+        return schema;
+    }
+
+    /** Gets every row of a table, in rowid order, as lists of strings. */
+    private static List<List<String>> getRows(SQLiteDatabase db, String table) {
+        List<List<String>> rows = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT * FROM " + table + " ORDER BY rowid", null)) {
+            while (c.moveToNext()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    row.add(c.getString(i));
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private long getId(String uuid) {
+        try (Cursor c = mDb.rawQuery(
+            "SELECT _id FROM observations WHERE uuid = ?", new String[] {uuid})) {
+            c.moveToFirst();
+            return c.getLong(0);
+        }
+    }
+
+    private String getValue(String uuid) {
+        try (Cursor c = mDb.rawQuery(
+            "SELECT value FROM observations WHERE uuid = ?", new String[] {uuid})) {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+    }
+
+    private String getLatestUuid(String patientUuid, String conceptUuid) {
+        return getLatest("uuid", patientUuid, conceptUuid);
+    }
+
+    private String getLatestValue(String patientUuid, String conceptUuid) {
+        return getLatest("value", patientUuid, conceptUuid);
+    }
+
+    private String getLatest(String column, String patientUuid, String conceptUuid) {
+        try (Cursor c = mDb.rawQuery("SELECT " + column + " FROM latest_observations"
+                + " WHERE patient_uuid = ? AND concept_uuid = ?",
+            new String[] {patientUuid, conceptUuid})) {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+    }
+
+    private int count(Table table) {
+        try (Cursor c = mDb.rawQuery("SELECT COUNT(*) FROM " + table, null)) {
+            c.moveToFirst();
+            return c.getInt(0);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.projectbuendia.client.models.Obs;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.ConceptNames;
+import org.projectbuendia.client.providers.Contracts.Observations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/** Tests for {@link LatestObsCache}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class LatestObsCacheTest {
+
+    private static final List<String> PATIENT_UUIDS = Arrays.asList("p1", "p2", "p3");
+
+    private ContentResolver mMockResolver;
+    private FakeChartDataHelper mHelper;
+    private LatestObsCache mCache;
+    private ContentObserver mObserver;
+
+    /**
+     * Records each read of latest observations: null for a read of all patients, or else the
+     * patients that were read.
+     */
+    private static class FakeChartDataHelper extends ChartDataHelper {
+        final List<Set<String>> reads = new ArrayList<>();
+
+        FakeChartDataHelper(ContentResolver resolver) {
+            super(resolver);
+        }
+
+        @Override public Map<String, Map<String, Obs>> getLatestObservations(
+            Collection<String> conceptUuids, Collection<String> patientUuids, String locale) {
+            // The cache clears its set of stale patients after reading, so keep a copy.
+            reads.add(patientUuids == null ? null : new HashSet<>(patientUuids));
+            Map<String, Map<String, Obs>> result = new HashMap<>();
+            for (String uuid : patientUuids == null ? PATIENT_UUIDS : patientUuids) {
+                result.put(uuid, new HashMap<String, Obs>());
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mMockResolver = mock(ContentResolver.class);
+        mHelper = new FakeChartDataHelper(mMockResolver);
+        mCache = new LatestObsCache(mMockResolver, mHelper, Arrays.asList("concept"), "en");
+
+        // The same observer is registered for observations and for concept names.
+        ArgumentCaptor<ContentObserver> observer = ArgumentCaptor.forClass(ContentObserver.class);
+        verify(mMockResolver, times(2)).registerContentObserver(
+            any(Uri.class), anyBoolean(), observer.capture());
+        mObserver = observer.getValue();
+
+        // Fill the cache, so that each test starts with nothing stale.
+        mCache.get(PATIENT_UUIDS);
+        mHelper.reads.clear();
+    }
+
+    /** Tests that reading an up-to-date cache doesn't read the database. */
+    @Test
+    public void testGet_NothingChanged_DoesNotRead() {
+        // GIVEN a filled cache with no changes since
+        // WHEN the cache is read
+        Map<String, Map<String, Obs>> result = mCache.get(PATIENT_UUIDS);
+        // THEN the database is not read, and every patient is still there
+        assertTrue(mHelper.reads.isEmpty());
+        assertEquals(new HashSet<>(PATIENT_UUIDS), result.keySet());
+    }
+
+    /** Tests that a change to one patient's observations reads only that patient again. */
+    @Test
+    public void testGet_AfterPatientChange_ReadsOnlyThatPatient() {
+        // GIVEN a change to one patient's observations
+        notifyChange(Contracts.getPatientChangeUri(Observations.CONTENT_URI, "p2"));
+        // WHEN the cache is read
+        Map<String, Map<String, Obs>> result = mCache.get(PATIENT_UUIDS);
+        // THEN only that patient is read again, and the others are kept
+        assertEquals(1, mHelper.reads.size());
+        assertEquals(ImmutableSet.of("p2"), mHelper.reads.get(0));
+        assertEquals(new HashSet<>(PATIENT_UUIDS), result.keySet());
+    }
+
+    /** Tests that a change to the whole observations table reads all patients again. */
+    @Test
+    public void testGet_AfterTableChange_ReadsAllPatients() {
+        // GIVEN a change that is not specific to one patient
+        notifyChange(Observations.CONTENT_URI);
+        // WHEN the cache is read
+        mCache.get(PATIENT_UUIDS);
+        // THEN all patients are read again, in one query
+        assertEquals(1, mHelper.reads.size());
+        assertNull(mHelper.reads.get(0));
+    }
+
+    /** Tests that a change to concept names reads all patients again. */
+    @Test
+    public void testGet_AfterConceptNamesChange_ReadsAllPatients() {
+        // GIVEN a change to concept names, which are used to localize coded values
+        notifyChange(ConceptNames.CONTENT_URI);
+        // WHEN the cache is read
+        mCache.get(PATIENT_UUIDS);
+        // THEN all patients are read again, in one query
+        assertEquals(1, mHelper.reads.size());
+        assertNull(mHelper.reads.get(0));
+    }
+
+    /** Tests that up to 50 changed patients are read individually. */
+    @Test
+    public void testGet_After50PatientChanges_ReadsThosePatients() {
+        // GIVEN changes to 50 patients' observations
+        Set<String> changed = notifyPatientChanges(50);
+        // WHEN the cache is read
+        mCache.get(PATIENT_UUIDS);
+        // THEN just those patients are read again
+        assertEquals(1, mHelper.reads.size());
+        assertEquals(changed, mHelper.reads.get(0));
+    }
+
+    /** Tests that more than 50 changed patients cause all patients to be read in one query. */
+    @Test
+    public void testGet_After51PatientChanges_ReadsAllPatients() {
+        // GIVEN changes to 51 patients' observations
+        notifyPatientChanges(51);
+        // WHEN the cache is read
+        mCache.get(PATIENT_UUIDS);
+        // THEN all patients are read again, in one query
+        assertEquals(1, mHelper.reads.size());
+        assertNull(mHelper.reads.get(0));
+    }
+
+    private void notifyChange(Uri uri) {
+        mObserver.onChange(false, uri);
+    }
+
+    private Set<String> notifyPatientChanges(int count) {
+        Set<String> uuids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String uuid = "changed" + i;
+            uuids.add(uuid);
+            notifyChange(Contracts.getPatientChangeUri(Observations.CONTENT_URI, uuid));
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Times writing a first sync's worth of observations into the version 32 observations table,
+ * through the observations view, and through the {@link ObservationDataWriter} that the sync
+ * uses.  All three timings are logged; the comparison with version 32 depends on the device,
+ * so only the writer's advantage over the view's triggers is asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public final class ObservationIngestTimingTest {
+
+    private static final Logger LOG = Logger.create();
+
+    private static final int PATIENTS = 50;
+    private static final int ENCOUNTERS = 500;
+    private static final int CONCEPTS_PER_TYPE = 5;
+    private static final String[] TYPES = {"NUMERIC", "CODED", "TEXT"};
+
+    /** An observation as {uuid, patient, encounter, millis, concept, value}. */
+    private final List<String[]> mObservations = new ArrayList<>();
+
+    /** Tests that the sync's writer stores observations faster than the view does. */
+    @Test
+    public void testWriteFirstSync_WriterFasterThanView() {
+        // GIVEN a first sync's worth of observations of numeric, coded, and text concepts
+        for (int e = 0; e < ENCOUNTERS; e++) {
+            for (int t = 0; t < TYPES.length; t++) {
+                for (int c = 0; c < CONCEPTS_PER_TYPE; c++) {
+                    String value = t == 0 ? String.valueOf(36 + (e + c) % 5)
+                        : t == 1 ? "answer-" + (e + c) % 3 : "note " + e;
+                    mObservations.add(new String[] {
+                        "obs-" + mObservations.size(), "patient-" + e % PATIENTS,
+                        "encounter-" + e, String.valueOf(1000L * e), getConcept(t, c), value});
+                }
+            }
+        }
+
+        // WHEN they are written into each layout, each in one transaction
+        SQLiteDatabase version32 = SQLiteDatabase.create(null);
+        for (String sql : DatabaseTest.VERSION_32_OBSERVATIONS) {
+            version32.execSQL(sql);
+        }
+        long version32Nanos = time(version32, false);
+        long viewNanos = time(createDatabase(), false);
+        long writerNanos = time(createDatabase(), true);
+
+        // THEN the writer is faster than the view
+        int n = mObservations.size();
+        LOG.i("Wrote %d observations: version 32 table %d us/obs, view %d us/obs, "
+                + "ObservationDataWriter %d us/obs", n, version32Nanos / 1000 / n,
+            viewNanos / 1000 / n, writerNanos / 1000 / n);
+        assertTrue(writerNanos < viewNanos);
+    }
+
+    private static String getConcept(int type, int index) {
+        return "concept-" + TYPES[type].toLowerCase() + "-" + index;
+    }
+
+    /** Creates an empty in-memory database with the current schema. */
+    private static SQLiteDatabase createDatabase() {
+        Database helper = new Database(getInstrumentation().getTargetContext());
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        helper.onConfigure(db);
+        helper.onCreate(db);
+        return db;
+    }
+
+    /** Adds the concepts, then times writing all the observations; closes the database. */
+    private long time(SQLiteDatabase db, boolean useWriter) {
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int c = 0; c < CONCEPTS_PER_TYPE; c++) {
+                db.execSQL("INSERT INTO concepts (uuid, xform_id, concept_type) VALUES (?, ?, ?)",
+                    new Object[] {getConcept(t, c), t * CONCEPTS_PER_TYPE + c, TYPES[t]});
+            }
+        }
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            if (useWriter) {
+                try (ObservationDataWriter writer = new ObservationDataWriter(db)) {
+                    for (String[] obs : mObservations) {
+                        writer.upsert(obs[0], obs[1], obs[2], Long.parseLong(obs[3]), obs[4],
+                            null, obs[5]);
+                    }
+                }
+            } else {
+                // This is how the sync wrote observations before ObservationDataWriter.
+                SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO observations"
+                    + " (uuid, patient_uuid, encounter_uuid, encounter_millis, concept_uuid, value)"
+                    + " VALUES (?, ?, ?, ?, ?, ?)");
+                for (String[] obs : mObservations) {
+                    insert.bindAllArgsAsStrings(obs);
+                    insert.bindLong(4, Long.parseLong(obs[3]));
+                    insert.executeInsert();
+                }
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long nanos = System.nanoTime() - start;
+        db.close();
+        return nanos;
+    }
+}
@@ -0,0 +1,516 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.google.common.base.Optional;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.projectbuendia.client.events.data.OutboxItemFailedEvent;
+import org.projectbuendia.client.json.JsonEncounter;
+import org.projectbuendia.client.json.JsonOrder;
+import org.projectbuendia.client.json.JsonPatient;
+import org.projectbuendia.client.models.AppModel;
+import org.projectbuendia.client.models.Encounter;
+import org.projectbuendia.client.models.Order;
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.models.PatientDelta;
+import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.providers.Contracts.OutboxItems;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.ui.FakeEventBus;
+
+import java.util.Collections;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/** Tests for {@link Outbox}, against a provider with its own database. */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+@SuppressWarnings("unchecked")
+public final class OutboxTest {
+
+    private static final String PATIENT_UUID = "outbox-test-patient";
+    private static final String CONCEPT_UUID = "outbox-test-concept";
+    private static final String SERVER_PATIENT_UUID = "server-patient";
+    private static final String SERVER_ENCOUNTER_UUID = "server-encounter";
+    private static final String SERVER_ORDER_UUID = "server-order";
+    private static final DateTime TIMESTAMP = new DateTime(2015, 1, 2, 3, 4);
+
+    private Context mContext;
+    private BuendiaProvider mProvider;
+    private MockContentResolver mResolver;
+    private FakeEventBus mFakeEventBus;
+    @Mock private Server mMockServer;
+    private Outbox mOutbox;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        mProvider = new BuendiaProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = Contracts.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+        mResolver = new MockContentResolver(mContext);
+        mResolver.addProvider(Contracts.CONTENT_AUTHORITY, mProvider);
+        mFakeEventBus = new FakeEventBus();
+        mOutbox = new Outbox(mResolver, mMockServer, mFakeEventBus);
+
+        mResolver.insert(Patients.CONTENT_URI, Patient.builder()
+            .setUuid(PATIENT_UUID)
+            .setId("T1")
+            .setGivenName("Given")
+            .setFamilyName("Family")
+            .build()
+            .toContentValues());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mOutbox.shutdown();
+        mProvider.getWritableDatabase().close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that queued items are sent in the order they were made. */
+    @Test
+    public void testFlush_sendsItemsInOrder() throws Exception {
+        // GIVEN a server that accepts everything, and a patient edit, an encounter and a new
+        // order queued in that order
+        acceptEncounters();
+        acceptOrders();
+        acceptPatientUpdates();
+        mOutbox.updatePatient(PATIENT_UUID, newNameDelta("Renamed"));
+        mOutbox.addEncounter(newEncounter());
+        mOutbox.saveOrder(newOrder());
+        // WHEN the outbox is flushed
+        mOutbox.flushNow();
+        // THEN the items are sent in the same order, and none is left pending
+        InOrder inOrder = inOrder(mMockServer);
+        inOrder.verify(mMockServer).updatePatient(
+            eq(PATIENT_UUID), any(PatientDelta.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        inOrder.verify(mMockServer).addEncounter(
+            any(Patient.class), any(Encounter.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        inOrder.verify(mMockServer).saveOrder(
+            any(Order.class), anyString(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(0, countItems(Outbox.STATE_PENDING));
+    }
+
+    /** Tests that a rejected encounter is kept locally, reported, and not sent again. */
+    @Test
+    public void testFlush_keepsAndReportsRejectedEncounter() throws Exception {
+        // GIVEN a server that rejects encounters, and a queued encounter
+        failEncounters(new VolleyError(
+            new NetworkResponse(400, new byte[0], Collections.<String, String>emptyMap(), false)));
+        String localUuid = mOutbox.addEncounter(newEncounter());
+        // WHEN the outbox is flushed twice
+        mOutbox.flushNow();
+        mOutbox.flushNow();
+        // THEN the encounter was sent once and its item is marked as failed
+        verify(mMockServer, times(1)).addEncounter(
+            any(Patient.class), any(Encounter.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(Outbox.STATE_FAILED, getItemState(localUuid));
+        // AND its temporary observation is still there
+        assertEquals(1, countObservations(Observations.ENCOUNTER_UUID + " = ?", localUuid));
+        // AND the failure was reported
+        assertTrue(wasFailureReported(Outbox.TYPE_ENCOUNTER));
+    }
+
+    /** Tests that an encounter is retried after a timeout, under the same client UUID. */
+    @Test
+    public void testFlush_retriesWithSameClientUuid() throws Exception {
+        // GIVEN a server that has echoed a client UUID, and then times out once before
+        // accepting the next encounter
+        doAnswer(respondWithEncounter())
+            .doAnswer(respondWithError(new TimeoutError()))
+            .doAnswer(respondWithEncounter())
+            .when(mMockServer).addEncounter(
+                any(Patient.class), any(Encounter.class),
+                any(Response.Listener.class), any(Response.ErrorListener.class));
+        mOutbox.addEncounter(newEncounter());
+        mOutbox.flushNow();
+        String localUuid = mOutbox.addEncounter(newEncounter());
+        // WHEN the outbox is flushed
+        mOutbox.flushNow();
+        // THEN the item stays pending, to be retried later
+        assertEquals(Outbox.STATE_PENDING, getItemState(localUuid));
+        // WHEN the retry is due and the outbox is flushed again
+        makeRetriesDue();
+        mOutbox.flushNow();
+        // THEN both attempts carried the same client UUID, and the encounter is confirmed
+        ArgumentCaptor<Encounter> sent = ArgumentCaptor.forClass(Encounter.class);
+        verify(mMockServer, times(3)).addEncounter(
+            any(Patient.class), sent.capture(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        String clientUuid = sent.getAllValues().get(1).encounterUuid;
+        assertNotNull(clientUuid);
+        assertFalse(clientUuid.startsWith(Outbox.LOCAL_UUID_PREFIX));
+        assertEquals(clientUuid, sent.getAllValues().get(2).encounterUuid);
+        assertEquals(Outbox.STATE_CONFIRMED, getItemState(localUuid));
+        assertEquals(2, countObservations(
+            Observations.ENCOUNTER_UUID + " = ?", SERVER_ENCOUNTER_UUID));
+    }
+
+    /**
+     * Tests that a new order that timed out is given up on, not sent again, while the server
+     * hasn't shown that it recognizes client UUIDs.
+     */
+    @Test
+    public void testFlush_givesUpOnTimedOutCreateWithoutClientUuidEcho() throws Exception {
+        // GIVEN a server that has never echoed a client UUID and times out on a new order
+        doAnswer(respondWithError(new TimeoutError())).when(mMockServer).saveOrder(
+            any(Order.class), anyString(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        String localUuid = mOutbox.saveOrder(newOrder());
+        // WHEN the outbox is flushed, and flushed again after any retry would be due
+        mOutbox.flushNow();
+        makeRetriesDue();
+        mOutbox.flushNow();
+        // THEN the order was sent once, and its item is marked as failed and reported
+        verify(mMockServer, times(1)).saveOrder(
+            any(Order.class), anyString(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(Outbox.STATE_FAILED, getItemState(localUuid));
+        assertTrue(wasFailureReported(Outbox.TYPE_ORDER));
+        // AND the local order is kept
+        assertEquals(1, countOrders(localUuid));
+    }
+
+    /** Tests that a confirmation that couldn't be written is written before anything is resent. */
+    @Test
+    public void testFlush_replaysUnrecordedConfirmation() throws Exception {
+        // GIVEN a server that accepts encounters, and a database that refuses to confirm items
+        acceptEncounters();
+        SQLiteDatabase db = mProvider.getWritableDatabase();
+        db.execSQL("CREATE TRIGGER refuse_confirmation BEFORE UPDATE ON " + Table.OUTBOX_ITEMS
+            + " WHEN NEW." + OutboxItems.STATE + " = '" + Outbox.STATE_CONFIRMED + "'"
+            + " BEGIN SELECT RAISE(ABORT, 'refused'); END");
+        String localUuid = mOutbox.addEncounter(newEncounter());
+        // WHEN the outbox is flushed
+        mOutbox.flushNow();
+        // THEN the encounter was accepted but its item is still pending
+        assertEquals(Outbox.STATE_PENDING, getItemState(localUuid));
+        // WHEN the database recovers and the outbox is flushed again
+        db.execSQL("DROP TRIGGER refuse_confirmation");
+        makeRetriesDue();
+        mOutbox.flushNow();
+        // THEN the confirmation is written without sending the encounter again
+        verify(mMockServer, times(1)).addEncounter(
+            any(Patient.class), any(Encounter.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(Outbox.STATE_CONFIRMED, getItemState(localUuid));
+        assertEquals(1, countObservations(
+            Observations.ENCOUNTER_UUID + " = ?", SERVER_ENCOUNTER_UUID));
+    }
+
+    /** Tests that a new patient's provisional UUID is replaced everywhere once it is confirmed. */
+    @Test
+    public void testFlush_rewritesProvisionalPatientUuid() throws Exception {
+        // GIVEN a new patient, and an encounter for the patient queued under its provisional UUID
+        acceptPatients();
+        acceptEncounters();
+        PatientDelta delta = newNameDelta("New");
+        delta.id = Optional.of("T2");
+        String localPatientUuid = mOutbox.addPatient(delta);
+        assertTrue(localPatientUuid.startsWith(Outbox.LOCAL_UUID_PREFIX));
+        assertEquals(1, countPatients(localPatientUuid));
+        mOutbox.addEncounter(new Encounter(localPatientUuid, null, TIMESTAMP,
+            new Encounter.Observation[] {
+                new Encounter.Observation(CONCEPT_UUID, "42", Encounter.Observation.Type.NON_DATE)
+            }, null));
+        // WHEN the outbox is flushed
+        mOutbox.flushNow();
+        // THEN the patient was sent with its client UUID
+        verify(mMockServer).addPatient(
+            any(PatientDelta.class),
+            eq(localPatientUuid.substring(Outbox.LOCAL_UUID_PREFIX.length())),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        // AND the encounter was sent for the server's UUID for the patient
+        ArgumentCaptor<Encounter> sent = ArgumentCaptor.forClass(Encounter.class);
+        verify(mMockServer).addEncounter(
+            any(Patient.class), sent.capture(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(SERVER_PATIENT_UUID, sent.getValue().patientUuid);
+        // AND the local patient and its observation now use the server's UUID
+        assertEquals(0, countPatients(localPatientUuid));
+        assertEquals(1, countPatients(SERVER_PATIENT_UUID));
+        assertEquals(0, countObservations(Observations.PATIENT_UUID + " = ?", localPatientUuid));
+        assertEquals(1, countObservations(
+            Observations.PATIENT_UUID + " = ?", SERVER_PATIENT_UUID));
+        assertEquals(0, countItems(Outbox.STATE_PENDING));
+    }
+
+    /** Tests that a new order's provisional UUID is replaced everywhere once it is confirmed. */
+    @Test
+    public void testFlush_rewritesProvisionalOrderUuid() throws Exception {
+        // GIVEN a new order, and an execution of it queued under its provisional UUID
+        acceptOrders();
+        acceptEncounters();
+        String localOrderUuid = mOutbox.saveOrder(newOrder());
+        assertTrue(localOrderUuid.startsWith(Outbox.LOCAL_UUID_PREFIX));
+        mOutbox.addEncounter(new Encounter(
+            PATIENT_UUID, null, TIMESTAMP, null, new String[] {localOrderUuid}));
+        // WHEN the outbox is flushed
+        mOutbox.flushNow();
+        // THEN the order was sent with its client UUID
+        verify(mMockServer).saveOrder(
+            any(Order.class), eq(localOrderUuid.substring(Outbox.LOCAL_UUID_PREFIX.length())),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        // AND the execution was sent with the server's UUID for the order
+        ArgumentCaptor<Encounter> sent = ArgumentCaptor.forClass(Encounter.class);
+        verify(mMockServer).addEncounter(
+            any(Patient.class), sent.capture(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+        assertEquals(SERVER_ORDER_UUID, sent.getValue().orderUuids[0]);
+        // AND the local order and its execution now use the server's UUID
+        assertEquals(0, countOrders(localOrderUuid));
+        assertEquals(1, countOrders(SERVER_ORDER_UUID));
+        assertEquals(1, countObservations(
+            Observations.CONCEPT_UUID + " = ? AND " + Observations.VALUE + " = ?",
+            AppModel.ORDER_EXECUTED_CONCEPT_UUID, SERVER_ORDER_UUID));
+    }
+
+    /** Tests that a patient edit still waiting to be sent survives a patients sync. */
+    @Test
+    public void testReapplyPendingItems_restoresPatientEditAfterSync() throws Exception {
+        // GIVEN a queued patient edit that can't be sent yet
+        failPatientUpdates(new TimeoutError());
+        mOutbox.updatePatient(PATIENT_UUID, newNameDelta("Edited"));
+        // AND a sync that overwrites the patient with the server's copy
+        ContentValues values = new ContentValues();
+        values.put(Patients.GIVEN_NAME, "Given");
+        mResolver.update(Patients.CONTENT_URI, values,
+            Patients.UUID + " = ?", new String[] {PATIENT_UUID});
+        // WHEN the pending patient edits are reapplied
+        ContentProviderClient client =
+            mResolver.acquireContentProviderClient(Contracts.CONTENT_AUTHORITY);
+        try {
+            Outbox.reapplyPendingItems(client, Outbox.TYPE_PATIENT_UPDATE);
+        } finally {
+            client.release();
+        }
+        // THEN the patient shows the edit again
+        try (Cursor c = mResolver.query(Patients.CONTENT_URI,
+            new String[] {Patients.GIVEN_NAME},
+            Patients.UUID + " = ?", new String[] {PATIENT_UUID}, null)) {
+            assertTrue(c.moveToFirst());
+            assertEquals("Edited", c.getString(0));
+        }
+    }
+
+    private static Encounter newEncounter() {
+        return new Encounter(PATIENT_UUID, null, TIMESTAMP, new Encounter.Observation[] {
+            new Encounter.Observation(CONCEPT_UUID, "42", Encounter.Observation.Type.NON_DATE)
+        }, null);
+    }
+
+    private static Order newOrder() {
+        return new Order(null, PATIENT_UUID, "Paracetamol 500mg 3x daily", TIMESTAMP, null);
+    }
+
+    private static PatientDelta newNameDelta(String givenName) {
+        PatientDelta delta = new PatientDelta();
+        delta.givenName = Optional.of(givenName);
+        return delta;
+    }
+
+    private void acceptEncounters() {
+        doAnswer(respondWithEncounter()).when(mMockServer).addEncounter(
+            any(Patient.class), any(Encounter.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private void failEncounters(VolleyError error) {
+        doAnswer(respondWithError(error)).when(mMockServer).addEncounter(
+            any(Patient.class), any(Encounter.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private void acceptOrders() {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) {
+                Order order = (Order) invocation.getArguments()[0];
+                JsonOrder json = new JsonOrder();
+                json.uuid = SERVER_ORDER_UUID;
+                json.client_uuid = (String) invocation.getArguments()[1];
+                json.patient_uuid = order.patientUuid;
+                json.instructions = order.instructions;
+                json.start_millis = order.start.getMillis();
+                ((Response.Listener<JsonOrder>) invocation.getArguments()[2]).onResponse(json);
+                return null;
+            }
+        }).when(mMockServer).saveOrder(
+            any(Order.class), anyString(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private void acceptPatients() {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) {
+                PatientDelta delta = (PatientDelta) invocation.getArguments()[0];
+                JsonPatient json = new JsonPatient();
+                json.uuid = SERVER_PATIENT_UUID;
+                json.id = delta.id.orNull();
+                json.given_name = delta.givenName.orNull();
+                json.client_uuid = (String) invocation.getArguments()[1];
+                ((Response.Listener<JsonPatient>) invocation.getArguments()[2]).onResponse(json);
+                return null;
+            }
+        }).when(mMockServer).addPatient(
+            any(PatientDelta.class), anyString(),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private void acceptPatientUpdates() {
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) {
+                ((Response.Listener<JsonPatient>) invocation.getArguments()[2])
+                    .onResponse(new JsonPatient());
+                return null;
+            }
+        }).when(mMockServer).updatePatient(
+            anyString(), any(PatientDelta.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private void failPatientUpdates(VolleyError error) {
+        doAnswer(respondWithError(error)).when(mMockServer).updatePatient(
+            anyString(), any(PatientDelta.class),
+            any(Response.Listener.class), any(Response.ErrorListener.class));
+    }
+
+    private static Answer<Void> respondWithEncounter() {
+        return new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) {
+                JsonEncounter json = new JsonEncounter();
+                json.uuid = SERVER_ENCOUNTER_UUID;
+                json.client_uuid = ((Encounter) invocation.getArguments()[1]).encounterUuid;
+                ((Response.Listener<JsonEncounter>) invocation.getArguments()[2])
+                    .onResponse(json);
+                return null;
+            }
+        };
+    }
+
+    private static Answer<Void> respondWithError(final VolleyError error) {
+        return new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) {
+                ((Response.ErrorListener) invocation.getArguments()[3]).onErrorResponse(error);
+                return null;
+            }
+        };
+    }
+
+    /** Makes every pending item due to be sent at once. */
+    private void makeRetriesDue() {
+        ContentValues values = new ContentValues();
+        values.put(OutboxItems.NEXT_ATTEMPT_MILLIS, 0);
+        mResolver.update(OutboxItems.CONTENT_URI, values, null, null);
+    }
+
+    private boolean wasFailureReported(String type) {
+        for (Object event : mFakeEventBus.getEventLog()) {
+            if (event instanceof OutboxItemFailedEvent
+                && type.equals(((OutboxItemFailedEvent) event).type)) {
+                assertEquals(PATIENT_UUID, ((OutboxItemFailedEvent) event).patientUuid);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Finds an item by its provisional UUID or the UUID assigned by the server. */
+    private String getItemState(String uuid) {
+        try (Cursor c = mResolver.query(OutboxItems.CONTENT_URI,
+            new String[] {OutboxItems.STATE},
+            OutboxItems.LOCAL_UUID + " = ? OR " + OutboxItems.SERVER_UUID + " = ?",
+            new String[] {uuid, uuid}, null)) {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        }
+    }
+
+    private int countItems(String state) {
+        try (Cursor c = mResolver.query(OutboxItems.CONTENT_URI,
+            new String[] {OutboxItems.ID},
+            OutboxItems.STATE + " = ?", new String[] {state}, null)) {
+            return c.getCount();
+        }
+    }
+
+    private int countObservations(String selection, String... selectionArgs) {
+        try (Cursor c = mResolver.query(Observations.CONTENT_URI,
+            new String[] {Observations.CONCEPT_UUID}, selection, selectionArgs, null)) {
+            return c.getCount();
+        }
+    }
+
+    private int countPatients(String uuid) {
+        try (Cursor c = mResolver.query(Patients.CONTENT_URI,
+            new String[] {Patients.UUID}, Patients.UUID + " = ?", new String[] {uuid}, null)) {
+            return c.getCount();
+        }
+    }
+
+    private int countOrders(String uuid) {
+        try (Cursor c = mResolver.query(Orders.CONTENT_URI,
+            new String[] {Orders.UUID}, Orders.UUID + " = ?", new String[] {uuid}, null)) {
+            return c.getCount();
+        }
+    }
+}
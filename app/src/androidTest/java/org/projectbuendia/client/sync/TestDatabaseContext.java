@@ -0,0 +1,46 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+/** Keeps the test's database apart from the app's, by giving it a different file name. */
+public final class TestDatabaseContext extends ContextWrapper {
+    private static final String PREFIX = "test.";
+
+    public TestDatabaseContext(Context base) {
+        super(base);
+    }
+
+    @Override public File getDatabasePath(String name) {
+        return super.getDatabasePath(PREFIX + name);
+    }
+
+    @Override public SQLiteDatabase openOrCreateDatabase(
+        String name, int mode, SQLiteDatabase.CursorFactory factory) {
+        return super.openOrCreateDatabase(PREFIX + name, mode, factory);
+    }
+
+    @Override public SQLiteDatabase openOrCreateDatabase(String name, int mode,
+        SQLiteDatabase.CursorFactory factory, DatabaseErrorHandler errorHandler) {
+        return super.openOrCreateDatabase(PREFIX + name, mode, factory, errorHandler);
+    }
+
+    @Override public boolean deleteDatabase(String name) {
+        return super.deleteDatabase(PREFIX + name);
+    }
+}
@@ -0,0 +1,207 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.content.pm.ProviderInfo;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+
+import com.google.gson.Gson;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.SyncAdapter;
+import org.projectbuendia.client.sync.TestDatabaseContext;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import javax.annotation.Nullable;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/** Tests for {@link ConditionalSyncPhaseRunnable}, with canned responses in place of a server. */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public final class ConditionalSyncPhaseRunnableTest {
+
+    // The validator of the fake phase is stored under this table's name.
+    private static final Table VALIDATOR_TABLE = Table.LOCATIONS;
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private Context mContext;
+    private BuendiaProvider mProvider;
+    private ContentProviderClient mClient;
+    private FakePhase mPhase;
+
+    @Before
+    public void setUp() {
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        mProvider = new BuendiaProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = Contracts.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+        MockContentResolver resolver = new MockContentResolver(mContext);
+        resolver.addProvider(Contracts.CONTENT_AUTHORITY, mProvider);
+        mClient = resolver.acquireContentProviderClient(Contracts.CONTENT_AUTHORITY);
+        mPhase = new FakePhase();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+        mProvider.getWritableDatabase().close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that a stored ETag is sent back and that a 304 skips all writes. */
+    @Test
+    public void testSync_WithETag_NotModifiedSkipsWrites() throws Throwable {
+        // GIVEN a resource that was synced with an ETag
+        mPhase.respond(200, "\"v1\"", "{\"a\": 1}");
+        sync();
+        assertEquals("\"v1\"", getValidator());
+        assertEquals(1, mPhase.applied.size());
+        // WHEN it is synced again and the server answers 304
+        mPhase.respond(304, null, "");
+        sync();
+        // THEN the ETag was sent in If-None-Match, and nothing was written
+        assertEquals("\"v1\"", mPhase.requests.get(1).header("If-None-Match"));
+        assertEquals(1, mPhase.applied.size());
+        assertEquals(1, mPhase.unchangedCount);
+        assertEquals("\"v1\"", getValidator());
+    }
+
+    /** Tests that a resource with a new ETag is written and its ETag stored. */
+    @Test
+    public void testSync_WithNewETag_WritesChanges() throws Throwable {
+        // GIVEN a resource that was synced with an ETag
+        mPhase.respond(200, "\"v1\"", "{\"a\": 1}");
+        sync();
+        // WHEN it has changed by the next sync
+        mPhase.respond(200, "\"v2\"", "{\"a\": 2}");
+        sync();
+        // THEN the new body is written and the new ETag stored
+        assertEquals(2, mPhase.applied.size());
+        assertEquals("{\"a\": 2}", mPhase.applied.get(1));
+        assertEquals(0, mPhase.unchangedCount);
+        assertEquals("\"v2\"", getValidator());
+    }
+
+    /** Tests that without an ETag, a hash of the body detects an unchanged resource. */
+    @Test
+    public void testSync_WithoutETag_UnchangedBodySkipsWrites() throws Throwable {
+        // GIVEN a resource that was synced without an ETag
+        mPhase.respond(200, null, "{\"a\": 1}");
+        sync();
+        String validator = getValidator();
+        assertTrue(validator.startsWith("sha1:"));
+        // WHEN the same body is returned by the next sync
+        mPhase.respond(200, null, "{\"a\": 1}");
+        sync();
+        // THEN the hash was not sent as an ETag, and nothing was written
+        assertNull(mPhase.requests.get(1).header("If-None-Match"));
+        assertEquals(1, mPhase.applied.size());
+        assertEquals(1, mPhase.unchangedCount);
+        assertEquals(validator, getValidator());
+    }
+
+    /** Tests that without an ETag, a changed body is written and its hash stored. */
+    @Test
+    public void testSync_WithoutETag_ChangedBodyWritesChanges() throws Throwable {
+        // GIVEN a resource that was synced without an ETag
+        mPhase.respond(200, null, "{\"a\": 1}");
+        sync();
+        String validator = getValidator();
+        // WHEN a different body is returned by the next sync
+        mPhase.respond(200, null, "{\"a\": 2}");
+        sync();
+        // THEN the new body is written and a different hash stored
+        assertEquals(2, mPhase.applied.size());
+        assertEquals(0, mPhase.unchangedCount);
+        assertTrue(getValidator().startsWith("sha1:"));
+        assertFalse(validator.equals(getValidator()));
+    }
+
+    private void sync() throws Throwable {
+        mPhase.sync(null, new SyncResult(), mClient);
+    }
+
+    private @Nullable String getValidator() throws Exception {
+        return SyncAdapter.getLastSyncToken(mClient, VALIDATOR_TABLE);
+    }
+
+    /** A phase that keeps each body it is asked to write. */
+    private static class FakePhase extends ConditionalSyncPhaseRunnable<String> {
+        final List<Request> requests = new ArrayList<>();
+        final List<String> applied = new ArrayList<>();
+        int unchangedCount;
+        private final Queue<Response.Builder> mResponses = new LinkedList<>();
+
+        FakePhase() {
+            super("/fake", VALIDATOR_TABLE);
+        }
+
+        void respond(int code, @Nullable String etag, String body) {
+            Response.Builder response = new Response.Builder()
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .body(ResponseBody.create(JSON, body));
+            if (etag != null) {
+                response.header("ETag", etag);
+            }
+            mResponses.add(response);
+        }
+
+        @Override protected Response execute(Request request) {
+            requests.add(request);
+            return mResponses.remove().request(request).build();
+        }
+
+        @Override protected String parse(Gson gson, String json) {
+            return json;
+        }
+
+        @Override protected void applyChanges(String data, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) {
+            applied.add(data);
+        }
+
+        @Override protected void applyUnchanged(ContentResolver contentResolver) {
+            unchangedCount++;
+        }
+    }
+}
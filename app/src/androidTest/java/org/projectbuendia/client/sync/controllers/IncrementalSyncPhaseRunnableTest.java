@@ -0,0 +1,404 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.content.pm.ProviderInfo;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.preference.PreferenceManager;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+
+import com.google.common.base.Charsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.sync.Database;
+import org.projectbuendia.client.sync.SyncAdapter;
+import org.projectbuendia.client.sync.TestDatabaseContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Tests for the streamed paths of {@link IncrementalSyncPhaseRunnable}, with a fake feed of
+ * pages in place of the server and records written into a table of their own.
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public final class IncrementalSyncPhaseRunnableTest {
+
+    private static final String RESOURCE_TYPE = "fake-records";
+    private static final String RECORDS_TABLE = "fake_records";
+    // The sync token of the fake phase is stored under this table's name.
+    private static final Table TOKEN_TABLE = Table.PATIENTS;
+    private static final String PIPELINED_SYNC_KEY = "pipelined_sync";
+
+    private Context mContext;
+    private BuendiaProvider mProvider;
+    private ContentProviderClient mClient;
+    private SharedPreferences mPrefs;
+    private @Nullable Boolean mSavedPipelinedSync;
+
+    /** The record type of the fake phase. */
+    public static class FakeRecord {
+        public String uuid;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = new TestDatabaseContext(getInstrumentation().getTargetContext());
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+        mProvider = new BuendiaProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = Contracts.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, info);
+        MockContentResolver resolver = new MockContentResolver(mContext);
+        resolver.addProvider(Contracts.CONTENT_AUTHORITY, mProvider);
+        mClient = resolver.acquireContentProviderClient(Contracts.CONTENT_AUTHORITY);
+        mProvider.getWritableDatabase().execSQL(
+            "CREATE TABLE " + RECORDS_TABLE + " (uuid TEXT PRIMARY KEY)");
+
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(
+            getInstrumentation().getTargetContext());
+        mSavedPipelinedSync = mPrefs.contains(PIPELINED_SYNC_KEY)
+            ? mPrefs.getBoolean(PIPELINED_SYNC_KEY, true) : null;
+    }
+
+    @After
+    public void tearDown() {
+        if (mSavedPipelinedSync == null) {
+            mPrefs.edit().remove(PIPELINED_SYNC_KEY).commit();
+        } else {
+            mPrefs.edit().putBoolean(PIPELINED_SYNC_KEY, mSavedPipelinedSync).commit();
+        }
+        mClient.release();
+        mProvider.getWritableDatabase().close();
+        mContext.deleteDatabase(Database.DATABASE_FILENAME);
+    }
+
+    /** Tests that every page is written and the last page's sync token is stored. */
+    @Test
+    public void testSync_Pipelined_WritesAllPages() throws Throwable {
+        checkWritesAllPages(true);
+    }
+
+    /** Tests that every page is written and the last page's sync token is stored. */
+    @Test
+    public void testSync_NotPipelined_WritesAllPages() throws Throwable {
+        checkWritesAllPages(false);
+    }
+
+    /** Tests that an error midway through a page keeps only the pages before it. */
+    @Test
+    public void testSync_Pipelined_ErrorMidwayThroughStream_KeepsEarlierPages() throws Throwable {
+        checkErrorMidwayThroughStream(true);
+    }
+
+    /** Tests that an error midway through a page keeps only the pages before it. */
+    @Test
+    public void testSync_NotPipelined_ErrorMidwayThroughStream_KeepsEarlierPages()
+        throws Throwable {
+        checkErrorMidwayThroughStream(false);
+    }
+
+    /** Tests that a sync after a failed page starts from the last stored sync token. */
+    @Test
+    public void testSync_AfterFailedPage_ResumesFromStoredToken() throws Throwable {
+        // GIVEN a feed whose second page can't be fetched, and a sync that failed on it
+        setPipelined(true);
+        FakeFeed feed = newThreePageFeed();
+        feed.failingToken = "t1";
+        feed.failAtByte = 0;
+        syncExpectingFailure(new FakeSyncPhase(feed));
+        assertEquals("t1", getSyncToken());
+        assertEquals(10, countRecords());
+        // WHEN the feed recovers and the phase is synced again
+        feed.failingToken = null;
+        feed.requestedTokens.clear();
+        new FakeSyncPhase(feed).sync(null, new SyncResult(), mClient);
+        // THEN the sync asked only for the pages after the stored token
+        assertEquals(2, feed.requestedTokens.size());
+        assertEquals("t1", feed.requestedTokens.get(0));
+        assertEquals("t2", feed.requestedTokens.get(1));
+        // AND every record and the last token are stored
+        assertEquals(30, countRecords());
+        assertEquals("t3", getSyncToken());
+        assertNoFetcherThread();
+    }
+
+    /** Tests that canceling a sync while the fetcher is blocked on a full queue stops both. */
+    @Test
+    public void testSync_CanceledWhileQueueFull_StopsFetcherAndRollsBack() throws Throwable {
+        // GIVEN a page far larger than the pipeline holds, and a writer that stalls on its
+        // first record until the sync is canceled
+        setPipelined(true);
+        FakeFeed feed = new FakeFeed();
+        feed.addPage(null, "t1", false, 0, 10000);
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final FakeSyncPhase phase = new FakeSyncPhase(feed);
+        phase.beforeWrite = new Runnable() {
+            @Override public void run() {
+                writeStarted.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Sync canceled", e);
+                }
+            }
+        };
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread syncThread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    phase.sync(null, new SyncResult(), mClient);
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+        syncThread.start();
+        assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+        // AND the fetcher has filled the queue and stopped reading the page
+        int bytesRead = waitUntilStable(feed.bytesRead);
+        assertTrue(bytesRead > 0);
+        assertTrue(bytesRead < feed.getPageLength(null));
+
+        // WHEN the sync is canceled
+        syncThread.interrupt();
+        syncThread.join(5000);
+
+        // THEN the sync and its fetcher have both stopped, and the feed was canceled
+        assertFalse(syncThread.isAlive());
+        assertNotNull(error.get());
+        assertNoFetcherThread();
+        assertTrue(feed.canceled);
+        // AND nothing of the unfinished page was kept
+        assertEquals(0, countRecords());
+        assertNull(getSyncToken());
+    }
+
+    private void checkWritesAllPages(boolean pipelined) throws Throwable {
+        // GIVEN a feed of three pages
+        setPipelined(pipelined);
+        FakeFeed feed = newThreePageFeed();
+        // WHEN the phase is synced
+        new FakeSyncPhase(feed).sync(null, new SyncResult(), mClient);
+        // THEN every record and the last token are stored, and no fetcher is left running
+        assertEquals(30, countRecords());
+        assertEquals("t3", getSyncToken());
+        assertNoFetcherThread();
+    }
+
+    private void checkErrorMidwayThroughStream(boolean pipelined) throws Throwable {
+        // GIVEN a feed whose connection drops halfway through the second page
+        setPipelined(pipelined);
+        FakeFeed feed = newThreePageFeed();
+        feed.failingToken = "t1";
+        feed.failAtByte = feed.getPageLength("t1") / 2;
+        // WHEN the phase is synced
+        syncExpectingFailure(new FakeSyncPhase(feed));
+        // THEN only the first page and its token are stored
+        assertEquals(10, countRecords());
+        assertEquals("t1", getSyncToken());
+        // AND the third page was never requested, and no fetcher is left running
+        assertFalse(feed.requestedTokens.contains("t2"));
+        assertNoFetcherThread();
+    }
+
+    private static FakeFeed newThreePageFeed() {
+        FakeFeed feed = new FakeFeed();
+        feed.addPage(null, "t1", true, 0, 10);
+        feed.addPage("t1", "t2", true, 10, 10);
+        feed.addPage("t2", "t3", false, 20, 10);
+        return feed;
+    }
+
+    private void setPipelined(boolean pipelined) {
+        mPrefs.edit().putBoolean(PIPELINED_SYNC_KEY, pipelined).commit();
+    }
+
+    private void syncExpectingFailure(FakeSyncPhase phase) {
+        try {
+            phase.sync(null, new SyncResult(), mClient);
+            fail("Expected the sync to fail");
+        } catch (Throwable expected) {
+            // The feed's IOException, possibly wrapped.
+        }
+    }
+
+    private @Nullable String getSyncToken() throws Exception {
+        return SyncAdapter.getLastSyncToken(mClient, TOKEN_TABLE);
+    }
+
+    private int countRecords() {
+        SQLiteDatabase db = mProvider.getWritableDatabase();
+        return (int) DatabaseUtils.queryNumEntries(db, RECORDS_TABLE);
+    }
+
+    private static void assertNoFetcherThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("sync-fetch-" + RESOURCE_TYPE) && thread.isAlive()) {
+                fail("The fetcher thread outlived the sync");
+            }
+        }
+    }
+
+    /** Waits until a counter stops changing, and returns its value. */
+    private static int waitUntilStable(AtomicInteger counter) throws InterruptedException {
+        int last = -1;
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(100);
+            int value = counter.get();
+            if (value == last) return value;
+            last = value;
+        }
+        fail("The counter never stopped changing");
+        return last;
+    }
+
+    /** A phase that writes each record's UUID into the records table. */
+    private class FakeSyncPhase extends IncrementalSyncPhaseRunnable<FakeRecord> {
+        private final FakeFeed mFeed;
+        /** Run on the writing thread before each record is written, if set. */
+        @Nullable Runnable beforeWrite;
+
+        FakeSyncPhase(FakeFeed feed) {
+            super(RESOURCE_TYPE, TOKEN_TABLE, FakeRecord.class);
+            mFeed = feed;
+        }
+
+        @Override protected ArrayList<ContentProviderOperation> getUpdateOps(
+            FakeRecord[] list, SyncResult syncResult) {
+            throw new UnsupportedOperationException("Only the streamed paths are tested");
+        }
+
+        @Override protected RecordWriter<FakeRecord> createRecordWriter(
+            final SQLiteDatabase db, ContentResolver contentResolver) {
+            return new RecordWriter<FakeRecord>() {
+                @Override public void write(FakeRecord record, SyncResult syncResult) {
+                    if (beforeWrite != null) {
+                        beforeWrite.run();
+                    }
+                    db.execSQL("INSERT OR REPLACE INTO " + RECORDS_TABLE + " (uuid) VALUES (?)",
+                        new Object[] {record.uuid});
+                }
+
+                @Override public void flush() {}
+
+                @Override public void close() {}
+            };
+        }
+
+        @Override protected PageSource createPageSource() {
+            return mFeed;
+        }
+    }
+
+    /**
+     * Serves pages of records keyed by the sync token they follow, and can drop the connection
+     * partway through one of them.
+     */
+    private static class FakeFeed implements IncrementalSyncPhaseRunnable.PageSource {
+        private final Map<String, byte[]> pages = new HashMap<>();
+        final List<String> requestedTokens = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger bytesRead = new AtomicInteger();
+        volatile @Nullable String failingToken;
+        volatile int failAtByte;
+        volatile boolean canceled;
+
+        void addPage(@Nullable String since, String next, boolean more, int first, int count) {
+            StringBuilder json = new StringBuilder("{\"results\": [");
+            for (int i = first; i < first + count; i++) {
+                json.append(i > first ? ", " : "").append("{\"uuid\": \"r").append(i).append("\"}");
+            }
+            json.append("], \"syncToken\": \"").append(next).append("\", \"more\": ")
+                .append(more).append("}");
+            pages.put(String.valueOf(since), json.toString().getBytes(Charsets.UTF_8));
+        }
+
+        int getPageLength(@Nullable String since) {
+            return pages.get(String.valueOf(since)).length;
+        }
+
+        @Override public InputStream open(@Nullable String syncToken) throws IOException {
+            requestedTokens.add(syncToken);
+            if (canceled) {
+                throw new IOException("Canceled");
+            }
+            byte[] page = pages.get(String.valueOf(syncToken));
+            if (page == null) {
+                throw new IOException("HTTP 404 while fetching " + RESOURCE_TYPE);
+            }
+            boolean failing = syncToken != null && syncToken.equals(failingToken);
+            return new PageStream(page, failing ? failAtByte : -1);
+        }
+
+        @Override public void cancel() {
+            canceled = true;
+        }
+
+        private class PageStream extends InputStream {
+            private final byte[] mBytes;
+            private final int mFailAt;
+            private int mPos;
+
+            PageStream(byte[] bytes, int failAt) {
+                mBytes = bytes;
+                mFailAt = failAt;
+            }
+
+            @Override public int read() throws IOException {
+                if (mPos == mFailAt) {
+                    throw new IOException("Connection reset");
+                }
+                if (mPos >= mBytes.length) {
+                    return -1;
+                }
+                bytesRead.incrementAndGet();
+                return mBytes[mPos++] & 0xff;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.sync.controllers.PrefetchableSyncPhaseRunnable.Prefetch;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+import static org.mockito.Mockito.mock;
+
+/** Tests for {@link PrefetchableSyncPhaseRunnable}. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class PrefetchableSyncPhaseRunnableTest {
+
+    private ExecutorService mExecutor;
+    private ContentProviderClient mMockClient;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mMockClient = mock(ContentProviderClient.class);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    /** Tests that a prefetch is applied with the data that was fetched. */
+    @Test
+    public void testPrefetch_Apply_WritesFetchedData() throws Throwable {
+        // GIVEN a phase whose fetch returns at once
+        FakePhase phase = new FakePhase(null);
+        // WHEN it is prefetched and then applied
+        phase.prefetch(mExecutor, mMockClient).apply(null, new SyncResult(), mMockClient);
+        // THEN the fetched data is written
+        assertEquals("data", phase.applied);
+    }
+
+    /**
+     * Tests that canceling the prefetches when a sync ends stops a running fetch and keeps a
+     * queued one from starting.
+     */
+    @Test
+    public void testPrefetch_CanceledWhenSyncEnds_StopsRunningAndQueuedFetches() throws Throwable {
+        // GIVEN a fetch that is running and blocked, and another queued behind it
+        CountDownLatch neverReleased = new CountDownLatch(1);
+        FakePhase running = new FakePhase(neverReleased);
+        FakePhase queued = new FakePhase(null);
+        Prefetch runningPrefetch = running.prefetch(mExecutor, mMockClient);
+        Prefetch queuedPrefetch = queued.prefetch(mExecutor, mMockClient);
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        // WHEN the sync ends and cancels both
+        runningPrefetch.cancel();
+        queuedPrefetch.cancel();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        // THEN the running fetch was interrupted and the queued one never started
+        assertTrue(running.interrupted);
+        assertEquals(1, queued.started.getCount());
+        // AND neither can be applied
+        assertCanceled(runningPrefetch);
+        assertCanceled(queuedPrefetch);
+        assertNull(running.applied);
+        assertNull(queued.applied);
+    }
+
+    private void assertCanceled(Prefetch prefetch) throws Throwable {
+        try {
+            prefetch.apply(null, new SyncResult(), mMockClient);
+            fail("Expected the canceled prefetch not to be applied");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    /** A phase whose fetch optionally waits on a latch. */
+    private static class FakePhase extends PrefetchableSyncPhaseRunnable<String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final @Nullable CountDownLatch mRelease;
+        volatile boolean interrupted;
+        @Nullable String applied;
+
+        FakePhase(@Nullable CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override protected String fetch(@Nullable String syncToken) throws Exception {
+            started.countDown();
+            if (mRelease != null) {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    throw e;
+                }
+            }
+            return "data";
+        }
+
+        @Override protected void apply(String data, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) {
+            applied = data;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.ui.chart;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import androidx.test.filters.SmallTest;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.projectbuendia.client.models.ObsValue;
+import org.projectbuendia.client.utils.Logger;
+
+import java.text.Format;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link ObsFormat} and its cache of parsed formats. */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ObsFormatTest {
+    private static final Logger LOG = Logger.create();
+
+    // Patterns like those in the chart profile: a cell value, a caption, a CSS class and style.
+    private static final String[] PATTERNS = {
+        "{1,number,##.#}",
+        "{1,number,#} / {2,number,#}",
+        "{1,select,>38:high;>=36:normal;low}",
+        "{1,yes_no,present;absent}"
+    };
+    // A 30-day chart with four cells per day for each of 40 grid rows.
+    private static final int CELLS = 30 * 4 * 40;
+
+    /** Tests that the same pattern yields the same parsed format. */
+    @Test
+    public void testFromPattern_reusesParsedFormats() {
+        assertSame(ObsFormat.fromPattern("{1,number,0.0}"),
+            ObsFormat.fromPattern("{1,number,0.0}"));
+        assertNull(ObsFormat.fromPattern(""));
+        assertNull(ObsFormat.fromPattern(null));
+    }
+
+    /** Tests that a cached format still formats each set of values independently. */
+    @Test
+    public void testFormatValues_cachedFormatGivesSameResults() {
+        Format cached = PebbleExtension.asFormat("{1,number,#} / {2,number,#}");
+        assertEquals("120 / 80", PebbleExtension.formatValues(
+            ImmutableList.of(ObsValue.newNumber(120), ObsValue.newNumber(80)), cached));
+        assertEquals("110 / 70", PebbleExtension.formatValues(
+            ImmutableList.of(ObsValue.newNumber(110), ObsValue.newNumber(70)), cached));
+        assertEquals("110 / 70", PebbleExtension.formatValues(
+            ImmutableList.of(ObsValue.newNumber(110), ObsValue.newNumber(70)),
+            new ObsFormat("{1,number,#} / {2,number,#}")));
+    }
+
+    /** Tests that cached formats give the same results as fresh ones for chart patterns. */
+    @Test
+    public void testFormatValues_cachedMatchesUncachedForChartPatterns() {
+        ImmutableList<ImmutableList<ObsValue>> valueSets = ImmutableList.of(
+            ImmutableList.of(ObsValue.newNumber(37.2), ObsValue.newNumber(80)),
+            ImmutableList.of(ObsValue.newNumber(39), ObsValue.newNumber(120)),
+            ImmutableList.of(ObsValue.newNumber(35.5), ObsValue.newNumber(0)));
+        for (String pattern : PATTERNS) {
+            Format cached = PebbleExtension.asFormat(pattern);
+            for (ImmutableList<ObsValue> values : valueSets) {
+                assertEquals(pattern,
+                    PebbleExtension.formatValues(values, new ObsFormat(pattern)),
+                    PebbleExtension.formatValues(values, cached));
+            }
+        }
+    }
+
+    /**
+     * Compares formatting every cell of a 30-day chart with a freshly parsed format per cell, as
+     * the format_values filter used to do, against formatting with the cached formats.  The
+     * timings are logged; parsing dominates the uncached run, so the cached run must be faster.
+     */
+    @Test
+    public void testFormatValues_benchmarkCachedAgainstUncached() {
+        ImmutableList<ObsValue> values =
+            ImmutableList.of(ObsValue.newNumber(37.2), ObsValue.newNumber(80));
+        // Warm up both paths so that neither timing includes class loading or compilation.
+        formatCells(values, false, CELLS / 10);
+        formatCells(values, true, CELLS / 10);
+
+        long uncachedNanos = formatCells(values, false, CELLS);
+        long cachedNanos = formatCells(values, true, CELLS);
+
+        LOG.i("Formatted %d chart cells: %d ms uncached, %d ms cached", CELLS,
+            uncachedNanos / 1000000, cachedNanos / 1000000);
+        assertTrue(cachedNanos < uncachedNanos);
+    }
+
+    /** Formats the given number of cells with every pattern and returns the time taken. */
+    private static long formatCells(ImmutableList<ObsValue> values, boolean cached, int cells) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cells; i++) {
+            for (String pattern : PATTERNS) {
+                PebbleExtension.formatValues(values,
+                    cached ? PebbleExtension.asFormat(pattern) : new ObsFormat(pattern));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
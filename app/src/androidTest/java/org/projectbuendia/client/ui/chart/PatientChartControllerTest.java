@@ -11,6 +11,7 @@
 
 package org.projectbuendia.client.ui.chart;
 
+import android.database.ContentObserver;
 import android.support.test.annotation.UiThreadTest;
 import android.support.test.runner.AndroidJUnit4;
 
@@ -18,12 +19,17 @@ import androidx.test.filters.SmallTest;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import org.joda.time.LocalDate;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.odk.collect.android.model.Preset;
 import org.projectbuendia.client.R;
 import org.projectbuendia.client.events.CrudEventBus;
 import org.projectbuendia.client.events.FetchXformFailedEvent;
@@ -51,6 +57,10 @@ import java.util.Map;
 
 import static junit.framework.TestCase.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -117,8 +127,7 @@ public final class PatientChartControllerTest {
         // WHEN that patient's details are loaded
         Patient patient = Patient.builder().build();
         mFakeCrudEventBus.post(new ItemFetchedEvent<>(patient));
-        // TODO: When the handler UI updating hack in PatientChartController is removed, this can
-        // also be removed.
+        // Loaded chart data is handed back to the UI through the handler.
         mFakeHandler.runUntilEmpty();
         // THEN the controller puts observations on the UI
         verify(mMockUi).updateTilesAndGrid(
@@ -168,6 +177,61 @@ public final class PatientChartControllerTest {
         verify(mMockUi).showFormLoadingDialog(true);
     }
 
+    /**
+     * Tests that 'add observation' pressed before the chart is drawn reads the latest
+     * observations in the background and then opens the form with them.
+     */
+    @Test
+    @UiThreadTest
+    public void testAddObservation_BeforeChartLoaded_OpensFormAfterLoad() {
+        // GIVEN the patient is pregnant, and the chart data hasn't been handed to the UI yet
+        when(mMockChartHelper.getLatestObservations(PATIENT_UUID_1)).thenReturn(ImmutableMap.of(
+            ConceptUuids.PREGNANCY_UUID, new Obs(
+                0, ConceptUuids.PREGNANCY_UUID, ConceptType.CODED, ConceptUuids.YES_UUID, "")));
+        mController.init();
+        mFakeCrudEventBus.post(new ItemFetchedEvent<>(Patient.builder().build()));
+        // WHEN 'add observation' is pressed
+        mController.onAddObservationPressed();
+        // THEN the form isn't opened until the loaded data reaches the main thread
+        verify(mMockUi, never()).fetchAndShowXform(
+            anyInt(), anyString(), any(org.odk.collect.android.model.Patient.class),
+            any(Preset.class));
+        mFakeHandler.runUntilEmpty();
+        // AND then it is opened with the pregnancy status filled in
+        ArgumentCaptor<Preset> preset = ArgumentCaptor.forClass(Preset.class);
+        verify(mMockUi).fetchAndShowXform(
+            anyInt(), anyString(), any(org.odk.collect.android.model.Patient.class),
+            preset.capture());
+        assertEquals(Preset.YES, preset.getValue().pregnant);
+    }
+
+    /** Tests that a changed chart definition is read in the background and then drawn. */
+    @Test
+    @UiThreadTest
+    public void testChartDefinitionChanged_DrawsNewChartAfterLoad() {
+        // GIVEN a controller showing the patient's chart
+        mController.init();
+        mFakeCrudEventBus.post(new ItemFetchedEvent<>(Patient.builder().build()));
+        mFakeHandler.runUntilEmpty();
+        ArgumentCaptor<ContentObserver> observer = ArgumentCaptor.forClass(ContentObserver.class);
+        verify(mMockChartHelper).registerChartDefinitionObserver(observer.capture());
+        // WHEN the chart definition changes and the chart is redrawn
+        Chart newChart = new Chart(PATIENT_UUID_1, "New Chart");
+        when(mMockChartHelper.getCharts(AppModel.CHART_UUID))
+            .thenReturn(ImmutableList.of(newChart));
+        observer.getValue().onChange(false);
+        mController.setChartIndex(0);
+        // THEN the new chart is drawn only once the definitions reach the main thread
+        verify(mMockUi, never()).updateTilesAndGrid(eq(newChart),
+            Matchers.<Map<String, Obs>> any(), Matchers.<List<Obs>> any(),
+            Matchers.<List<Order>> any(), Matchers.<LocalDate> any(),
+            Matchers.<LocalDate> any());
+        mFakeHandler.runUntilEmpty();
+        verify(mMockUi).updateTilesAndGrid(
+            newChart, ImmutableMap.<String, Obs> of(), ImmutableList.<Obs> of(),
+            ImmutableList.<Order> of(), null, null);
+    }
+
     /** Tests that requesting an xform through clicking on a vital shows loading dialog. */
     @Test
     @UiThreadTest
@@ -287,8 +351,7 @@ public final class PatientChartControllerTest {
         // WHEN an xform submits successfully
         mFakeGlobalEventBus.post(new SubmitXformSucceededEvent());
         // THEN the controller hides the submission dialog
-        // TODO: When the handler UI updating hack in PatientChartController is removed, this can
-        // also be removed.
+        // Loaded chart data is handed back to the UI through the handler.
         mFakeHandler.runUntilEmpty();
         verify(mMockUi).showFormSubmissionDialog(false);
     }
@@ -312,6 +375,7 @@ public final class PatientChartControllerTest {
             PATIENT_UUID_1,
             mMockOdkResultSender,
             mMockChartHelper,
+            new ChartDataCache(mMockChartHelper, MoreExecutors.directExecutor()),
             null,
             mMockSyncManager,
             mFakeHandler);
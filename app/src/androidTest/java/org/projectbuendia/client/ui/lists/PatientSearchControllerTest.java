@@ -19,6 +19,7 @@ import androidx.test.filters.SmallTest;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.projectbuendia.client.FakeAppLocationTreeFactory;
@@ -39,10 +40,12 @@ import org.projectbuendia.client.sync.SyncManager;
 import org.projectbuendia.client.ui.FakeEventBus;
 import org.projectbuendia.client.ui.matchers.SimpleSelectionFilterMatchers;
 
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -266,6 +269,88 @@ public class PatientSearchControllerTest {
             mFakeCrudEventBus, PatientDbFilters.getDefaultFilter(), "foo");
     }
 
+    /** Tests that a query on loaded patients is answered from them, matching IDs. */
+    @Test
+    @UiThreadTest
+    public void testOnQuerySubmitted_filtersLoadedPatientsById() {
+        // GIVEN initialized PatientSearchController with loaded patients
+        mController.loadSearchResults();
+        mFakeCrudEventBus.post(TypedCursorFetchedEventFactory.createEvent(
+            Patient.class, getSearchablePatientCursor()));
+        // WHEN a search term matching part of two IDs is submitted
+        mController.onQuerySubmitted("kh.1");
+        // THEN the activity and fragment UIs are given just those patients
+        assertEquals("KH.12,KH.123", getIds(getLastPatients(mMockUi)));
+        assertEquals("KH.12,KH.123", getIds(getLastPatients(mFragmentMockUi)));
+        // AND the patients are not fetched again
+        verify(mMockAppModel, times(1)).fetchPatients(
+            any(CrudEventBus.class), any(SimpleSelectionFilter.class), anyString());
+    }
+
+    /** Tests that a query on loaded patients is answered from them, matching names. */
+    @Test
+    @UiThreadTest
+    public void testOnQuerySubmitted_filtersLoadedPatientsByName() {
+        // GIVEN initialized PatientSearchController with loaded patients
+        mController.loadSearchResults();
+        mFakeCrudEventBus.post(TypedCursorFetchedEventFactory.createEvent(
+            Patient.class, getSearchablePatientCursor()));
+        // WHEN a search term matching name prefixes is submitted
+        mController.onQuerySubmitted("jo d");
+        // THEN the UIs are given just the patient with those names
+        assertEquals("KH.12", getIds(getLastPatients(mMockUi)));
+        assertEquals("KH.12", getIds(getLastPatients(mFragmentMockUi)));
+        // WHEN the search term is cleared
+        mController.onQuerySubmitted("");
+        // THEN the UIs are given every patient again
+        assertEquals("KH.12,KH.123,45", getIds(getLastPatients(mMockUi)));
+    }
+
+    /** Tests that a query submitted before patients are loaded filters them once they arrive. */
+    @Test
+    @UiThreadTest
+    public void testFilterSubscriber_appliesQuerySubmittedBeforeLoad() {
+        // GIVEN initialized PatientSearchController with a query and no loaded patients
+        mController.onQuerySubmitted("doe");
+        // WHEN patients are retrieved
+        mFakeCrudEventBus.post(TypedCursorFetchedEventFactory.createEvent(
+            Patient.class, getSearchablePatientCursor()));
+        // THEN the UIs are given just the patients matching the query
+        assertEquals("KH.12,45", getIds(getLastPatients(mMockUi)));
+        assertEquals("KH.12,45", getIds(getLastPatients(mFragmentMockUi)));
+    }
+
+    private TypedCursor<Patient> getSearchablePatientCursor() {
+        return new FakeTypedCursor<>(new Patient[] {
+            Patient.builder().setId("KH.12").setGivenName("John").setFamilyName("Doe").build(),
+            Patient.builder().setId("KH.123").setGivenName("Anna").setFamilyName("Smith").build(),
+            Patient.builder().setId("45").setGivenName("Mary").setFamilyName("Doe").build()
+        });
+    }
+
+    /** Returns the patients most recently passed to the given activity UI. */
+    private static TypedCursor<Patient> getLastPatients(PatientSearchController.Ui ui) {
+        ArgumentCaptor<TypedCursor> captor = ArgumentCaptor.forClass(TypedCursor.class);
+        verify(ui, atLeastOnce()).setPatients(captor.capture());
+        return captor.getValue();
+    }
+
+    /** Returns the patients most recently passed to the given fragment UI. */
+    private static TypedCursor<Patient> getLastPatients(PatientSearchController.FragmentUi ui) {
+        ArgumentCaptor<TypedCursor> captor = ArgumentCaptor.forClass(TypedCursor.class);
+        verify(ui, atLeastOnce()).setPatients(captor.capture());
+        return captor.getValue();
+    }
+
+    /** Returns the IDs of the given patients, in order, joined by commas. */
+    private static String getIds(TypedCursor<Patient> patients) {
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < patients.getCount(); i++) {
+            ids.append(i > 0 ? "," : "").append(patients.get(i).id);
+        }
+        return ids.toString();
+    }
+
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
@@ -64,3 +64,28 @@ function getPoints(pointGroups) {
   }
   return Array.prototype.concat.apply([], pointArrays);
 }
+
+/**
+ * Replaces tiles and grid cells with freshly rendered HTML, leaving the rest of
+ * the page and its scroll position alone.  Returns false if the page isn't ready
+ * or any of the elements can't be found, in which case the caller should reload
+ * the whole chart.
+ */
+function updateChart(tilesById, cellsById) {
+  if (document.readyState != 'complete') return false;
+  for (var id in tilesById) {
+    if (!document.getElementById(id)) return false;
+  }
+  for (var id in cellsById) {
+    if (!document.getElementById(id)) return false;
+  }
+  for (var id in tilesById) {
+    $(document.getElementById(id)).replaceWith($(tilesById[id]));
+  }
+  for (var id in cellsById) {
+    // freezeHeader wraps the contents of every grid cell in a div; do the same here.
+    $(document.getElementById(id)).replaceWith($(cellsById[id]).wrapInner('<div>'));
+  }
+  $(window).trigger('resize');  // realigns the frozen headers with the new cell widths
+  return true;
+}
@@ -12,6 +12,7 @@
 package org.projectbuendia.client;
 
 import android.app.Application;
+import android.os.Process;
 import android.preference.PreferenceManager;
 
 import com.facebook.stetho.Stetho;
@@ -20,6 +21,8 @@ import org.odk.collect.android.application.Collect;
 import org.projectbuendia.client.diagnostics.HealthMonitor;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
 import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.sync.Outbox;
+import org.projectbuendia.client.ui.chart.ChartRenderer;
 import org.projectbuendia.client.user.UserManager;
 
 import javax.inject.Inject;
@@ -34,11 +37,14 @@ public class App extends Application {
     private static UserManager sUserManager;
     private static Server sServer;
     private static OpenMrsConnectionDetails sConnectionDetails;
+    private static AppSettings sSettings;
     private ObjectGraph mObjectGraph;
     @Inject UserManager mUserManager;
     @Inject OpenMrsConnectionDetails mOpenMrsConnectionDetails;
     @Inject Server mServer;
     @Inject HealthMonitor mHealthMonitor;
+    @Inject AppSettings mSettings;
+    @Inject Outbox mOutbox;
 
     public static synchronized App getInstance() {
         return sInstance;
@@ -56,6 +62,10 @@ public class App extends Application {
         return sConnectionDetails;
     }
 
+    public static synchronized AppSettings getSettings() {
+        return sSettings;
+    }
+
     @Override public void onCreate() {
         Collect.onCreate(this);
         super.onCreate();
@@ -76,9 +86,21 @@ public class App extends Application {
             sUserManager = mUserManager; // TODO: Remove when Daggered.
             sConnectionDetails = mOpenMrsConnectionDetails; // TODO: Remove when Daggered.
             sServer = mServer; // TODO: Remove when Daggered.
+            sSettings = mSettings; // TODO: Remove when Daggered.
         }
 
         mHealthMonitor.start();
+
+        // Resume sending any local changes that were queued before the app last stopped.
+        mOutbox.flushSoon();
+
+        // Compile the chart templates now, so that opening the first chart doesn't wait for it.
+        new Thread(new Runnable() {
+            @Override public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ChartRenderer.precompileTemplates();
+            }
+        }, "ChartTemplateCompiler").start();
     }
 
     public <T> T get(Class<T> type) {
@@ -92,4 +114,8 @@ public class App extends Application {
     public HealthMonitor getHealthMonitor() {
         return mHealthMonitor;
     }
+
+    public Outbox getOutbox() {
+        return mOutbox;
+    }
 }
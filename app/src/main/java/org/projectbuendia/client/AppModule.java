@@ -25,6 +25,7 @@ import org.projectbuendia.client.sync.SyncManager;
 import org.projectbuendia.client.ui.BaseActivity;
 import org.projectbuendia.client.ui.SettingsActivity;
 import org.projectbuendia.client.ui.UpdateNotificationController;
+import org.projectbuendia.client.ui.chart.ChartDataCache;
 import org.projectbuendia.client.ui.chart.PatientChartActivity;
 import org.projectbuendia.client.ui.dialogs.GoToPatientDialogFragment;
 import org.projectbuendia.client.ui.dialogs.EditPatientDialogFragment;
@@ -41,6 +42,8 @@ import org.projectbuendia.client.updater.UpdateModule;
 import org.projectbuendia.client.user.UserModule;
 import org.projectbuendia.client.utils.UtilsModule;
 
+import java.util.concurrent.Executors;
+
 import javax.inject.Singleton;
 
 import dagger.Module;
@@ -115,4 +118,9 @@ public final class AppModule {
     @Singleton ChartDataHelper provideLocalizedChartHelper(ContentResolver contentResolver) {
         return new ChartDataHelper(contentResolver);
     }
+
+    @Provides
+    @Singleton ChartDataCache provideChartDataCache(ChartDataHelper chartHelper) {
+        return new ChartDataCache(chartHelper, Executors.newSingleThreadExecutor());
+    }
 }
@@ -15,6 +15,8 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.support.annotation.NonNull;
 
+import org.projectbuendia.client.sync.StorageProfile;
+
 /** Type-safe access to application settings. */
 public class AppSettings {
     static final int APK_UPDATE_INTERVAL_DEFAULT = 90; // default to 1.5 minutes.
@@ -107,4 +109,30 @@ public class AppSettings {
         return mSharedPreferences.getBoolean("require_wifi",
             mResources.getBoolean(R.bool.require_wifi_default));
     }
+
+    /**
+     * Gets the flag controlling whether incremental sync fetches the next page
+     * from the server while the current page is being written to the database.
+     */
+    public boolean getPipelinedSync() {
+        return mSharedPreferences.getBoolean("pipelined_sync", true);
+    }
+
+    /**
+     * Gets the flag controlling whether sync commits each page and phase as it
+     * goes, so that an interrupted sync resumes where it stopped, instead of
+     * writing everything in one transaction that is rolled back on failure.
+     */
+    public boolean getResumableSync() {
+        return mSharedPreferences.getBoolean("resumable_sync", true);
+    }
+
+    /**
+     * Gets the SQLite settings to use for the local database.  The database
+     * reads this when it is opened, so a change applies on the next start.
+     */
+    public StorageProfile getStorageProfile() {
+        return StorageProfile.fromName(mSharedPreferences.getString(
+            "storage_profile", StorageProfile.CONCURRENT.name()));
+    }
 }
@@ -0,0 +1,33 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.events.data;
+
+import org.projectbuendia.client.sync.Outbox;
+
+/**
+ * An event bus event indicating that the server rejected a change queued in the {@link Outbox},
+ * so it will not be sent again.  The change stays in the local database, in its failed item.
+ * <p/>
+ * <p>This event is posted on the default event bus, since it can happen long after the screen
+ * that made the change is gone.
+ */
+public class OutboxItemFailedEvent {
+    public final String type;  // one of the Outbox.TYPE_* constants
+    public final String patientUuid;
+    public final Throwable error;
+
+    public OutboxItemFailedEvent(String type, String patientUuid, Throwable error) {
+        this.type = type;
+        this.patientUuid = patientUuid;
+        this.error = error;
+    }
+}
@@ -27,25 +27,12 @@ import org.projectbuendia.client.models.Patient;
  */
 public final class ConceptFilter extends SimpleSelectionFilter<Patient> {
     // WHERE subclause returning only the UUIDs of patients that had a given
-    // concept whose latest observed value was the given value.
+    // concept whose latest observed value was the given value.  The
+    // latest_observations table holds exactly one row per (patient, concept).
     private static final String CONCEPT_SUBQUERY = ""
         + " uuid IN ("
-        + "     SELECT patient_uuid FROM ("
-        + "         SELECT obs.patient_uuid AS patient_uuid,"
-        + "                obs.value AS concept_value"
-        + "         FROM observations AS obs"
-        + "         INNER JOIN ("
-        + "             SELECT concept_uuid, patient_uuid,"
-        + "                    max(encounter_millis) AS max_millis"
-        + "             FROM observations"
-        + "             GROUP BY patient_uuid, concept_uuid"
-        + "         ) max_times"
-        + "         ON obs.encounter_millis = max_times.max_millis AND"
-        + "             obs.concept_uuid = max_times.concept_uuid AND"
-        + "             obs.patient_uuid = max_times.patient_uuid"
-        + "         WHERE obs.concept_uuid = ?"
-        + "         ORDER BY obs.patient_uuid"
-        + "     ) WHERE concept_value = ?"
+        + "     SELECT patient_uuid FROM latest_observations"
+        + "     WHERE concept_uuid = ? AND value = ?"
         + " )";
 
     private final String mConceptUuid;
@@ -46,6 +46,15 @@ public class FilteredCursorWrapper<T> implements TypedCursor<T> {
         }
     }
 
+    /**
+     * Wraps the given {@link TypedCursor}, exposing only the items at the given positions, such as
+     * those found by a search index.
+     */
+    public FilteredCursorWrapper(TypedCursor<T> cursor, List<Integer> indices) {
+        mCursor = cursor;
+        mIndices = indices;
+    }
+
     @Override public Uri getNotificationUri() {
         return mCursor.getNotificationUri();
     }
@@ -0,0 +1,167 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.filter.matchers.patient;
+
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.models.TypedCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index over the IDs and names of the patients in a {@link TypedCursor}, so that a
+ * search does not load or examine every patient.
+ * <p/>
+ * <p>A patient matches a search if the query is a case-insensitive substring of the patient's ID,
+ * or if each word of the query prefix-matches some word of the given or family name, in any
+ * order.  A word made only of dashes, of any kind, matches an unknown name part.
+ * <p/>
+ * <p>The index is built once per cursor.  Name words and all suffixes of each ID are kept in
+ * sorted arrays, each with a list of the cursor positions where it occurs, so that a prefix
+ * lookup is a binary search followed by a scan of the matching keys.  A prefix lookup on ID
+ * suffixes is a substring match on the ID.
+ */
+public final class PatientSearchIndex {
+    private static final Pattern DASH_REGEX = Pattern.compile("^\\p{Pd}*$");
+
+    private final int mCount;
+    private final String[] mIdKeys;
+    private final int[][] mIdPositions;
+    private final String[] mNameKeys;
+    private final int[][] mNamePositions;
+    /** Positions of patients that have at least one word in their name. */
+    private final BitSet mNamed = new BitSet();
+    /** Positions of patients with an unknown name part, i.e. one consisting only of dashes. */
+    private final BitSet mDashNamed = new BitSet();
+
+    /** Indexes every patient in the cursor.  This reads each patient once. */
+    public PatientSearchIndex(TypedCursor<Patient> patients) {
+        Map<String, List<Integer>> idPositions = new HashMap<>();
+        Map<String, List<Integer>> namePositions = new HashMap<>();
+        mCount = patients.getCount();
+        for (int i = 0; i < mCount; i++) {
+            Patient patient = patients.get(i);
+            if (patient == null) continue;
+
+            if (patient.id != null) {
+                String id = patient.id.toLowerCase();
+                for (int start = 0; start <= id.length(); start++) {
+                    addPosition(idPositions, id.substring(start), i);
+                }
+            }
+
+            // Split names on single spaces, as queries are split in search().
+            String givenName = (patient.givenName == null) ? "" : patient.givenName;
+            String familyName = (patient.familyName == null) ? "" : patient.familyName;
+            String fullName = givenName + " " + familyName;
+            for (String namePart : fullName.toLowerCase().split(" ")) {
+                addPosition(namePositions, namePart, i);
+                mNamed.set(i);
+                if (isDash(namePart)) {
+                    mDashNamed.set(i);
+                }
+            }
+        }
+
+        mIdKeys = sortedKeys(idPositions);
+        mIdPositions = positionArrays(mIdKeys, idPositions);
+        mNameKeys = sortedKeys(namePositions);
+        mNamePositions = positionArrays(mNameKeys, namePositions);
+    }
+
+    /** Returns the number of patients in the indexed cursor. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns, in ascending order, the cursor positions of the patients whose ID contains the
+     * given constraint, or whose name has a word starting with each word of the constraint.
+     */
+    public List<Integer> search(CharSequence constraint) {
+        String query = constraint.toString().toLowerCase();
+        BitSet matches = findPrefix(mIdKeys, mIdPositions, query);
+
+        BitSet nameMatches = (BitSet) mNamed.clone();
+        for (String term : query.split(" ")) {
+            if (nameMatches.isEmpty()) break;
+            if (term.isEmpty()) continue;  // every name word starts with the empty string
+            BitSet termMatches = findPrefix(mNameKeys, mNamePositions, term);
+            if (isDash(term)) {
+                // A dash matches an unknown name part, whatever kind of dash it is written with.
+                termMatches.or(mDashNamed);
+            }
+            nameMatches.and(termMatches);
+        }
+        matches.or(nameMatches);
+
+        List<Integer> positions = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            positions.add(i);
+        }
+        return positions;
+    }
+
+    /** Returns the positions listed under all the keys that start with the given prefix. */
+    private static BitSet findPrefix(String[] keys, int[][] positions, String prefix) {
+        BitSet result = new BitSet();
+        int index = Arrays.binarySearch(keys, prefix);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        for (; index < keys.length && keys[index].startsWith(prefix); index++) {
+            for (int position : positions[index]) {
+                result.set(position);
+            }
+        }
+        return result;
+    }
+
+    private static void addPosition(Map<String, List<Integer>> index, String key, int position) {
+        List<Integer> positions = index.get(key);
+        if (positions == null) {
+            positions = new ArrayList<>(1);
+            index.put(key, positions);
+        }
+        // Positions are added in ascending order, so a repeat can only be the last one.
+        if (positions.isEmpty() || positions.get(positions.size() - 1) != position) {
+            positions.add(position);
+        }
+    }
+
+    private static String[] sortedKeys(Map<String, List<Integer>> index) {
+        String[] keys = index.keySet().toArray(new String[index.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static int[][] positionArrays(String[] keys, Map<String, List<Integer>> index) {
+        int[][] result = new int[keys.length][];
+        for (int k = 0; k < keys.length; k++) {
+            List<Integer> positions = index.get(keys[k]);
+            result[k] = new int[positions.size()];
+            for (int i = 0; i < result[k].length; i++) {
+                result[k][i] = positions.get(i);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDash(String str) {
+        return DASH_REGEX.matcher(str).matches();
+    }
+}
@@ -24,4 +24,5 @@ public class JsonEncounter {
     /** A {conceptUuid: value} map, where value can be a number, string, or answer UUID. */
     public Map<Object, Object> observations;
     public String[] order_uuids;  // orders executed during this encounter
+    public String client_uuid;  // echoed by a server that recognizes repeated requests
 }
@@ -18,4 +18,5 @@ public class JsonOrder {
     public String instructions;
     public Long start_millis;
     public Long stop_millis;
+    public String client_uuid;  // echoed by a server that recognizes repeated requests
 }
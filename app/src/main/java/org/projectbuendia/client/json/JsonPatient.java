@@ -31,6 +31,7 @@ public class JsonPatient implements Serializable {
     public String sex; // must be "M" or "F"
     public LocalDate birthdate;
     public JsonLocation assigned_location; // TODO: make this a plain uuid; API change
+    public String client_uuid;  // echoed by a server that recognizes repeated requests
 
     public JsonPatient() {
     }
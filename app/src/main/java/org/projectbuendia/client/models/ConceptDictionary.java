@@ -0,0 +1,275 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.models;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.projectbuendia.client.json.ConceptType;
+import org.projectbuendia.client.json.JsonConcept;
+import org.projectbuendia.client.providers.Contracts.ConceptNames;
+import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory dictionary of concepts, shared by the whole process.  Each concept UUID is
+ * interned to a small integer id, and the concept types, coded value orderings, and names in
+ * each loaded locale are kept in arrays indexed by that id, so looking them up while reading
+ * observations allocates nothing.
+ * <p/>
+ * <p>Types and names are read from the app db the first time they are needed, and afterwards
+ * kept up to date by {@link #update}, which the concept sync calls with the concepts it writes.
+ * <p/>
+ * <p>The arrays are never modified once published; each change builds a new {@link Snapshot}
+ * and swaps it in, so the getters take no lock and never wait for a load or an update.
+ */
+public final class ConceptDictionary {
+    private static final Logger LOG = Logger.create();
+
+    /** Coded values, arranged from least to most severe; other concepts are ordered as 0. */
+    private static final String[] SEVERITY_ORDER = {
+        ConceptUuids.NO_UUID,
+        ConceptUuids.NONE_UUID,
+        ConceptUuids.NORMAL_UUID,
+        ConceptUuids.SOLID_FOOD_UUID,
+        ConceptUuids.MILD_UUID,
+        ConceptUuids.MODERATE_UUID,
+        ConceptUuids.SEVERE_UUID,
+        ConceptUuids.YES_UUID
+    };
+
+    // ConceptType.values() returns a new array on every call, so keep one copy.
+    private static final ConceptType[] TYPES = ConceptType.values();
+    private static final byte NO_TYPE = -1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Declared after the constants above, which the constructor uses.
+    private static final ConceptDictionary INSTANCE = new ConceptDictionary();
+
+    /** The current contents; replaced as a whole, while holding the monitor, on every change. */
+    private volatile Snapshot mSnapshot;
+
+    public static ConceptDictionary getInstance() {
+        return INSTANCE;
+    }
+
+    /** Creates an empty dictionary.  Outside of tests, use {@link #getInstance} instead. */
+    ConceptDictionary() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < SEVERITY_ORDER.length; i++) {
+            snapshot.severities[snapshot.intern(SEVERITY_ORDER[i])] = i;
+        }
+        // Special case: we know this is a date even if it's not in any forms or charts.
+        snapshot.types[snapshot.intern(ConceptUuids.ADMISSION_DATE_UUID)] =
+            (byte) ConceptType.DATE.ordinal();
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Ensures that concept types and the concept names for the given locale are in memory,
+     * reading them from the app db if they have not been read yet.  The db is read without
+     * holding the monitor, so readers and {@link #update} are not held up by the queries.
+     */
+    public void load(ContentResolver resolver, String locale) {
+        while (true) {
+            Snapshot current = mSnapshot;
+            List<String[]> types = null;
+            List<String[]> names = null;
+            if (!current.typesLoaded) {
+                types = query(resolver, Concepts.CONTENT_URI,
+                    new String[] {Concepts.UUID, Concepts.CONCEPT_TYPE}, null, null);
+            }
+            if (!current.namesByLocale.containsKey(locale)) {
+                names = query(resolver, ConceptNames.CONTENT_URI,
+                    new String[] {ConceptNames.CONCEPT_UUID, ConceptNames.NAME},
+                    ConceptNames.LOCALE + " = ?", new String[] {locale});
+            }
+            if (types == null && names == null) return;
+
+            synchronized (this) {
+                // If an update was applied while we were reading, our rows may predate it.
+                if (mSnapshot != current) continue;
+                Snapshot next = new Snapshot(current);
+                if (types != null) {
+                    for (String[] row : types) {
+                        try {
+                            next.setType(next.intern(row[0]), ConceptType.valueOf(row[1]));
+                        } catch (IllegalArgumentException e) { /* bad concept type name */ }
+                    }
+                    next.typesLoaded = true;
+                }
+                if (names != null) {
+                    next.namesByLocale.put(locale, new String[next.uuids.length]);
+                    for (String[] row : names) {
+                        int id = next.intern(row[0]);
+                        // intern() may have grown the arrays, so look the array up again.
+                        next.namesByLocale.get(locale)[id] = row[1];
+                    }
+                    LOG.i("Loaded names of %d concepts for locale %s", next.size, locale);
+                }
+                mSnapshot = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies concepts that have just been written to the app db.  Only the types and the names
+     * in locales already in memory are updated; nothing is read back from the db.  Call this
+     * only once the concepts are committed, so that readers never see uncommitted concepts.
+     */
+    public synchronized void update(JsonConcept[] concepts) {
+        Snapshot next = new Snapshot(mSnapshot);
+        for (JsonConcept concept : concepts) {
+            int id = next.intern(concept.uuid);
+            if (concept.type != null) {
+                next.setType(id, concept.type);
+            }
+            if (concept.names == null) continue;
+            for (Map.Entry<String, String[]> entry : next.namesByLocale.entrySet()) {
+                String name = concept.names.get(entry.getKey());
+                if (name != null) {
+                    entry.getValue()[id] = name;
+                }
+            }
+        }
+        mSnapshot = next;
+    }
+
+    /** Gets the id for a concept UUID, or -1 if the concept is not in the dictionary. */
+    public int getId(@Nullable String uuid) {
+        return mSnapshot.getId(uuid);
+    }
+
+    /** Gets the type of a concept, or null if it is unknown. */
+    public @Nullable ConceptType getType(@Nullable String uuid) {
+        Snapshot snapshot = mSnapshot;
+        int id = snapshot.getId(uuid);
+        return id < 0 || snapshot.types[id] == NO_TYPE ? null : TYPES[snapshot.types[id]];
+    }
+
+    /** Gets the name of a concept in a loaded locale, or null if it has no name there. */
+    public @Nullable String getName(@Nullable String uuid, String locale) {
+        Snapshot snapshot = mSnapshot;
+        int id = snapshot.getId(uuid);
+        String[] names = snapshot.namesByLocale.get(locale);
+        return id < 0 || names == null ? null : names[id];
+    }
+
+    /**
+     * Gets a number specifying the ordering of a coded value.  These are arranged from least to
+     * most severe so that using the Pebble "max" filter will select the most severe value from a
+     * list of values.
+     */
+    public int getSeverity(@Nullable String uuid) {
+        Snapshot snapshot = mSnapshot;
+        int id = snapshot.getId(uuid);
+        return id < 0 ? 0 : snapshot.severities[id];
+    }
+
+    /** Reads all the rows of a query as arrays of strings. */
+    private static List<String[]> query(ContentResolver resolver, Uri uri, String[] projection,
+                                        @Nullable String selection,
+                                        @Nullable String[] selectionArgs) {
+        List<String[]> rows = new ArrayList<>();
+        try (Cursor c = resolver.query(uri, projection, selection, selectionArgs, null)) {
+            while (c.moveToNext()) {
+                String[] row = new String[projection.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = c.getString(i);
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * The contents of the dictionary.  A snapshot is only modified while it is being built, by
+     * the thread that built it, and never after it has been assigned to {@link #mSnapshot}.
+     */
+    private static final class Snapshot {
+        final Map<String, Integer> ids;
+        String[] uuids;
+        byte[] types;
+        int[] severities;
+        final Map<String, String[]> namesByLocale;
+        int size;
+        boolean typesLoaded;
+
+        Snapshot() {
+            ids = new HashMap<>();
+            uuids = new String[INITIAL_CAPACITY];
+            types = new byte[INITIAL_CAPACITY];
+            Arrays.fill(types, NO_TYPE);
+            severities = new int[INITIAL_CAPACITY];
+            namesByLocale = new HashMap<>();
+        }
+
+        /** Makes a copy of another snapshot that can be modified without affecting it. */
+        Snapshot(Snapshot other) {
+            ids = new HashMap<>(other.ids);
+            uuids = other.uuids.clone();
+            types = other.types.clone();
+            severities = other.severities.clone();
+            namesByLocale = new HashMap<>();
+            for (Map.Entry<String, String[]> entry : other.namesByLocale.entrySet()) {
+                namesByLocale.put(entry.getKey(), entry.getValue().clone());
+            }
+            size = other.size;
+            typesLoaded = other.typesLoaded;
+        }
+
+        int getId(@Nullable String uuid) {
+            Integer id = uuid == null ? null : ids.get(uuid);
+            return id == null ? -1 : id;
+        }
+
+        void setType(int id, ConceptType type) {
+            if (!ConceptUuids.ADMISSION_DATE_UUID.equals(uuids[id])) {
+                types[id] = (byte) type.ordinal();
+            }
+        }
+
+        /** Gets the id for a concept UUID, adding the concept if it is new. */
+        int intern(String uuid) {
+            Integer id = ids.get(uuid);
+            if (id != null) return id;
+            if (size == uuids.length) {
+                grow(size * 2);
+            }
+            uuids[size] = uuid;
+            ids.put(uuid, size);
+            return size++;
+        }
+
+        private void grow(int capacity) {
+            int oldCapacity = uuids.length;
+            uuids = Arrays.copyOf(uuids, capacity);
+            types = Arrays.copyOf(types, capacity);
+            Arrays.fill(types, oldCapacity, capacity, NO_TYPE);
+            severities = Arrays.copyOf(severities, capacity);
+            for (Map.Entry<String, String[]> entry : namesByLocale.entrySet()) {
+                entry.setValue(Arrays.copyOf(entry.getValue(), capacity));
+            }
+        }
+    }
+}
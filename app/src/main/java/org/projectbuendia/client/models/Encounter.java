@@ -98,6 +98,10 @@ public class Encounter extends Base<String> {
         JSONObject json = new JSONObject();
         json.put(Server.PATIENT_UUID_KEY, patientUuid);
         json.put(Server.ENCOUNTER_TIMESTAMP, timestamp.getMillis()/1000);
+        if (encounterUuid != null) {
+            // The server creates the encounter under this UUID, or finds it if it already has.
+            json.put(Server.CLIENT_UUID_KEY, encounterUuid);
+        }
         if (observations.length > 0) {
             JSONArray observationsJson = new JSONArray();
             for (Observation obs : observations) {
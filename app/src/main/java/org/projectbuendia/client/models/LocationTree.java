@@ -14,6 +14,8 @@ package org.projectbuendia.client.models;
 import android.database.ContentObserver;
 import android.support.annotation.Nullable;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
@@ -21,8 +23,10 @@ import com.google.common.collect.ImmutableSortedSet;
 import org.projectbuendia.client.utils.Logger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +34,10 @@ import java.util.Map;
 /**
  * A tree containing a hierarchy of {@link Location} objects, where the root is assumed to be a
  * single medical center.
+ * <p/>
+ * <p>The tree is an immutable snapshot: its display order, the locations at each depth, and the
+ * patient count of each subtree are computed when it is built, so that lists can ask for them
+ * once per row without walking the tree.
  */
 public class LocationTree implements Observable {
 
@@ -44,6 +52,67 @@ public class LocationTree implements Observable {
     private final Map<String, Location> mUuidsToParents;
     private final ImmutableSetMultimap<String, Location> mUuidsToChildren;
 
+    // The arrays below are indexed in display order, as given by mOrder.  The tree is immutable,
+    // so all of these are computed once when it is built, keeping lookups from list rows cheap.
+    private final Order mOrder;
+    private final Location[] mLocations;
+    private final int[] mParents;
+    private final int[] mDepths;
+    private final long[] mTotalPatientCounts;
+    private final List<ImmutableSortedSet<Location>> mDescendantsAtDepth;
+    private final Comparator<Location> mComparator = new Comparator<Location>() {
+        @Override public int compare(Location lhs, Location rhs) {
+            int a = getIndex(lhs);
+            int b = getIndex(rhs);
+            // Locations that aren't in this tree go last.
+            if (a < 0) a = Integer.MAX_VALUE;
+            if (b < 0) b = Integer.MAX_VALUE;
+            return a < b ? -1 : a > b ? 1 : 0;
+        }
+    };
+
+    /**
+     * The display order of a set of locations.  It depends only on the names and parents of
+     * the locations, so when the tree is rebuilt because patients have moved, the order of the
+     * previous tree is reused instead of being sorted again.
+     */
+    private static final class Order {
+        final String[] uuids;
+        final String[] parentUuids;
+        final String[] names;
+        final Map<String, Integer> indexes;
+
+        Order(Location[] sorted) {
+            int n = sorted.length;
+            uuids = new String[n];
+            parentUuids = new String[n];
+            names = new String[n];
+            indexes = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                uuids[i] = sorted[i].uuid;
+                parentUuids[i] = sorted[i].parentUuid;
+                names[i] = sorted[i].name;
+                indexes.put(uuids[i], i);
+            }
+        }
+
+        /** Returns true if this is the order of exactly the given locations. */
+        boolean matches(Map<String, Location> uuidsToLocations) {
+            if (uuidsToLocations.size() != uuids.length) return false;
+            for (Location location : uuidsToLocations.values()) {
+                Integer i = indexes.get(location.uuid);
+                if (i == null
+                    || !Objects.equal(parentUuids[i], location.parentUuid)
+                    || !Objects.equal(names[i], location.name)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static Order sLastOrder;
+
     /**
      * Creates a {@link LocationTree} from a {@link TypedCursor} of {@link Location}s.
      * If there are no locations in the local database, the location tree will have a null
@@ -144,26 +213,41 @@ public class LocationTree implements Observable {
      */
     public ImmutableSortedSet<Location> getDescendantsAtDepth(
         Location location, int relativeDepth) {
-        if (location == null) {
+        int index = getIndex(location);
+        if (index < 0 || relativeDepth < 0 || mDepths[index] < 0) {
             return ImmutableSortedSet.of();
         }
-
-        if (relativeDepth == 0) {
-            ImmutableSortedSet.Builder<Location> thisLocationSet =
-                ImmutableSortedSet.orderedBy(new LocationComparator(this));
-            thisLocationSet.add(location);
-            return thisLocationSet.build();
+        int absoluteDepth = mDepths[index] + relativeDepth;
+        if (absoluteDepth >= mDescendantsAtDepth.size()) {
+            return ImmutableSortedSet.of();
         }
-
-        ImmutableSortedSet.Builder<Location> descendants =
-            ImmutableSortedSet.orderedBy(new LocationComparator(this));
-        for (Location child : getChildren(location)) {
-            descendants.addAll(getDescendantsAtDepth(child, relativeDepth - 1));
+        ImmutableSortedSet<Location> atDepth = mDescendantsAtDepth.get(absoluteDepth);
+        if (location == mRoot) {
+            return atDepth;
         }
 
+        // Keep the locations at that depth whose ancestor at this location's depth is this one.
+        ImmutableSortedSet.Builder<Location> descendants = ImmutableSortedSet.orderedBy(mComparator);
+        for (Location descendant : atDepth) {
+            int ancestor = getIndex(descendant);
+            for (int i = 0; i < relativeDepth; i++) {
+                ancestor = mParents[ancestor];
+            }
+            if (ancestor == index) {
+                descendants.add(descendant);
+            }
+        }
         return descendants.build();
     }
 
+    /**
+     * Returns a {@link Comparator} that puts locations in the same order as
+     * {@link LocationComparator}, using the order computed when this tree was built.
+     */
+    public Comparator<Location> getComparator() {
+        return mComparator;
+    }
+
     /**
      * Returns a {@link List} representing a branch of {@link Location}s starting at the root
      * of the location tree and terminating at the given {@link Location}.
@@ -208,15 +292,8 @@ public class LocationTree implements Observable {
 
     /** Returns the total number of patients in this location and its descendant locations. */
     public long getTotalPatientCount(Location location) {
-        if (location == null) {
-            return 0;
-        }
-
-        long count = location.patientCount;
-        for (Location child : getChildren(location)) {
-            count += getTotalPatientCount(child);
-        }
-        return count;
+        int index = getIndex(location);
+        return index < 0 ? 0 : mTotalPatientCounts[index];
     }
 
     @Override public void registerContentObserver(ContentObserver observer) {
@@ -242,6 +319,72 @@ public class LocationTree implements Observable {
         mUuidsToLocations = uuidsToLocations;
         mUuidsToParents = uuidsToParents;
         mUuidsToChildren = uuidsToChildren;
+
+        mOrder = getOrder(this, uuidsToLocations);
+        int n = mOrder.uuids.length;
+        mLocations = new Location[n];
+        mParents = new int[n];
+        mDepths = new int[n];
+        mTotalPatientCounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            mLocations[i] = uuidsToLocations.get(mOrder.uuids[i]);
+            Integer parent = mOrder.indexes.get(mOrder.parentUuids[i]);
+            mParents[i] = parent == null ? -1 : parent;
+        }
+
+        // Depths are relative to the root, and -1 for locations outside the root's subtree.
+        // LocationComparator puts every location after its parent, so one pass in the order of
+        // mLocations sees each parent's depth before its children need it.
+        List<List<Location>> descendantsAtDepth = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int parent = mParents[i];
+            mDepths[i] = mLocations[i] == root ? 0
+                : parent >= 0 && mDepths[parent] >= 0 ? mDepths[parent] + 1 : -1;
+            if (mDepths[i] >= 0) {
+                while (descendantsAtDepth.size() <= mDepths[i]) {
+                    descendantsAtDepth.add(new ArrayList<Location>());
+                }
+                descendantsAtDepth.get(mDepths[i]).add(mLocations[i]);
+            }
+        }
+        ImmutableList.Builder<ImmutableSortedSet<Location>> sets = ImmutableList.builder();
+        for (List<Location> locations : descendantsAtDepth) {
+            sets.add(ImmutableSortedSet.orderedBy(mComparator).addAll(locations).build());
+        }
+        mDescendantsAtDepth = sets.build();
+
+        // Add up patient counts from the leaves upward: every location comes after its parent
+        // in mLocations, so going backward visits all children before their parent.
+        for (int i = 0; i < n; i++) {
+            mTotalPatientCounts[i] = mLocations[i].patientCount;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            if (mParents[i] >= 0) {
+                mTotalPatientCounts[mParents[i]] += mTotalPatientCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Gets the display order for a tree's locations, reusing the order of the last tree built
+     * if the locations' names and parents haven't changed.
+     */
+    private static synchronized Order getOrder(
+        LocationTree tree, Map<String, Location> uuidsToLocations) {
+        if (sLastOrder == null || !sLastOrder.matches(uuidsToLocations)) {
+            Location[] sorted = uuidsToLocations.values().toArray(
+                new Location[uuidsToLocations.size()]);
+            Arrays.sort(sorted, new LocationComparator(tree));
+            sLastOrder = new Order(sorted);
+        }
+        return sLastOrder;
+    }
+
+    /** Gets the position of a location in mLocations, or -1 if it isn't in this tree. */
+    private int getIndex(@Nullable Location location) {
+        if (location == null) return -1;
+        Integer index = mOrder.indexes.get(location.uuid);
+        return index == null ? -1 : index;
     }
 
     private void addChildrenToCollection(Collection<Location> collection, Location root) {
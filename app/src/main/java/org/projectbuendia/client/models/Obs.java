@@ -13,13 +13,10 @@ package org.projectbuendia.client.models;
 
 import android.support.annotation.NonNull;
 
-import com.google.common.collect.ImmutableMap;
-
 import org.joda.time.DateTime;
 import org.projectbuendia.client.json.ConceptType;
 import org.projectbuendia.client.utils.Utils;
 
-import java.util.Map;
 import java.util.Objects;
 
 import javax.annotation.Nullable;
@@ -46,17 +43,34 @@ public final class Obs implements Comparable<Obs> {
     /** The name of the answer concept, if the value is an answer concept. */
     public final @Nullable String valueName;
 
+    /**
+     * The value as a number, if the database already stored it as one.  This is derived from
+     * {@link #value}, so it takes no part in equality; it only saves parsing the value again.
+     */
+    private final @Nullable Double number;
+
     public Obs(
         long millis,
         String conceptUuid,
         ConceptType conceptType,
         @Nullable String value,
         @Nullable String valueName) {
+        this(millis, conceptUuid, conceptType, value, valueName, null);
+    }
+
+    public Obs(
+        long millis,
+        String conceptUuid,
+        ConceptType conceptType,
+        @Nullable String value,
+        @Nullable String valueName,
+        @Nullable Double number) {
         this.time = new DateTime(millis);
         this.conceptUuid = checkNotNull(conceptUuid);
         this.conceptType = conceptType;
         this.value = value;
         this.valueName = valueName;
+        this.number = number;
     }
 
     /** Returns the time and value of this observation as an ObsPoint. */
@@ -72,7 +86,7 @@ public final class Obs implements Comparable<Obs> {
             case CODED:
                 return ObsValue.newCoded(value, valueName);
             case NUMERIC:
-                return ObsValue.newNumber(Double.valueOf(value));
+                return ObsValue.newNumber(getNumber());
             case TEXT:
                 return ObsValue.newText(value);
             case BOOLEAN:
@@ -80,11 +94,16 @@ public final class Obs implements Comparable<Obs> {
             case DATE:
                 return ObsValue.newDate(Utils.toLocalDate(value));
             case DATETIME:
-                return ObsValue.newTime(Long.valueOf(value));
+                return ObsValue.newTime(number != null ? number.longValue() : Long.valueOf(value));
         }
         return null;
     }
 
+    /** Returns the value as a number, parsing it only if it was not stored as a number. */
+    private double getNumber() {
+        return number != null ? number : Double.valueOf(value);
+    }
+
     @Override public String toString() {
         return "Obs(time=" + time
             + ", conceptUuid=" + conceptUuid
@@ -130,19 +149,19 @@ public final class Obs implements Comparable<Obs> {
             return value == other.value ? 0 : value == null ? -1 : 1;
         }
         if (conceptType != other.conceptType) {
-            return getTypeOrdering().compareTo(other.getTypeOrdering());
+            return Integer.compare(getTypeOrdering(), other.getTypeOrdering());
         }
         if (conceptType == ConceptType.NUMERIC) {
-            return Double.valueOf(value).compareTo(Double.valueOf(other.value));
+            return Double.compare(getNumber(), other.getNumber());
         }
         if (conceptType == ConceptType.CODED || conceptType == ConceptType.BOOLEAN) {
-            return getCodedValueOrdering().compareTo(other.getCodedValueOrdering());
+            return Integer.compare(getCodedValueOrdering(), other.getCodedValueOrdering());
         }
         return value.compareTo(other.value);
     }
 
     /** Gets a number specifying the ordering of Values of different types. */
-    public Integer getTypeOrdering() {
+    public int getTypeOrdering() {
         switch (conceptType) {
             case BOOLEAN:
                 return ConceptUuids.YES_UUID.equals(value) ? 5 : 1;
@@ -161,17 +180,7 @@ public final class Obs implements Comparable<Obs> {
      * arranged from least to most severe so that using the Pebble "max" filter
      * will select the most severe value from a list of values.
      */
-    public Integer getCodedValueOrdering() {
-        final Map<String, Integer> CODED_VALUE_ORDERING = new ImmutableMap.Builder<String, Integer>()
-            .put(ConceptUuids.NO_UUID, 0)
-            .put(ConceptUuids.NONE_UUID, 1)
-            .put(ConceptUuids.NORMAL_UUID, 2)
-            .put(ConceptUuids.SOLID_FOOD_UUID, 3)
-            .put(ConceptUuids.MILD_UUID, 4)
-            .put(ConceptUuids.MODERATE_UUID, 5)
-            .put(ConceptUuids.SEVERE_UUID, 6)
-            .put(ConceptUuids.YES_UUID, 7).build();
-        Integer cvo = CODED_VALUE_ORDERING.get(value);
-        return cvo == null ? 0 : cvo;
+    public int getCodedValueOrdering() {
+        return ConceptDictionary.getInstance().getSeverity(value);
     }
 }
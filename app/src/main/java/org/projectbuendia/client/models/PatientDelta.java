@@ -136,6 +136,47 @@ public class PatientDelta {
         }
     }
 
+    /** Reads a delta back from the JSON produced by {@link #toJson}. */
+    public static PatientDelta fromJson(JSONObject json) throws JSONException {
+        PatientDelta delta = new PatientDelta();
+        if (json.has(Server.PATIENT_ID_KEY)) {
+            delta.id = Optional.of(json.getString(Server.PATIENT_ID_KEY));
+        }
+        if (json.has(Server.PATIENT_GIVEN_NAME_KEY)) {
+            delta.givenName = Optional.of(json.getString(Server.PATIENT_GIVEN_NAME_KEY));
+        }
+        if (json.has(Server.PATIENT_FAMILY_NAME_KEY)) {
+            delta.familyName = Optional.of(json.getString(Server.PATIENT_FAMILY_NAME_KEY));
+        }
+        if (json.has(Server.PATIENT_SEX_KEY)) {
+            String sex = json.getString(Server.PATIENT_SEX_KEY);
+            delta.gender = Optional.of(
+                "U".equals(sex) ? JsonPatient.GENDER_UNKNOWN
+                    : "M".equals(sex) ? JsonPatient.GENDER_MALE : JsonPatient.GENDER_FEMALE);
+        }
+        if (json.has(Server.PATIENT_BIRTHDATE_KEY)) {
+            delta.birthdate = Optional.fromNullable(
+                Utils.toLocalDate(json.getString(Server.PATIENT_BIRTHDATE_KEY)));
+        }
+        JSONArray observations = json.optJSONArray(Server.ENCOUNTER_OBSERVATIONS_KEY);
+        for (int i = 0; observations != null && i < observations.length(); i++) {
+            JSONObject observation = observations.getJSONObject(i);
+            String conceptUuid = observation.getString(Server.OBSERVATION_QUESTION_UUID);
+            Optional<LocalDate> date = Optional.fromNullable(
+                Utils.toLocalDate(observation.getString(Server.OBSERVATION_ANSWER_DATE)));
+            if (ConceptUuids.ADMISSION_DATE_UUID.equals(conceptUuid)) {
+                delta.admissionDate = date;
+            } else if (ConceptUuids.FIRST_SYMPTOM_DATE_UUID.equals(conceptUuid)) {
+                delta.firstSymptomDate = date;
+            }
+        }
+        JSONObject location = json.optJSONObject(Server.PATIENT_ASSIGNED_LOCATION);
+        if (location != null) {
+            delta.assignedLocationUuid = Optional.of(location.getString("uuid"));
+        }
+        return delta;
+    }
+
     private static JSONObject getLocationObject(String assignedLocationUuid) throws JSONException {
         JSONObject location = new JSONObject();
         location.put("uuid", assignedLocationUuid);
@@ -12,11 +12,10 @@
 package org.projectbuendia.client.models.tasks;
 
 import android.content.ContentResolver;
-import android.net.Uri;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.os.AsyncTask;
-
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.RequestFuture;
+import android.os.RemoteException;
 
 import org.projectbuendia.client.events.CrudEventBus;
 import org.projectbuendia.client.events.data.ItemCreatedEvent;
@@ -24,23 +23,21 @@ import org.projectbuendia.client.events.data.ItemFetchFailedEvent;
 import org.projectbuendia.client.events.data.ItemFetchedEvent;
 import org.projectbuendia.client.events.data.PatientAddFailedEvent;
 import org.projectbuendia.client.filter.db.patient.UuidFilter;
+import org.projectbuendia.client.models.LoaderSet;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.PatientDelta;
-import org.projectbuendia.client.models.LoaderSet;
-import org.projectbuendia.client.net.Server;
-import org.projectbuendia.client.json.JsonPatient;
-import org.projectbuendia.client.sync.SyncAccountService;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.Outbox;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.concurrent.ExecutionException;
-
 /**
- * An {@link AsyncTask} that adds a patient to a server.
+ * An {@link AsyncTask} that adds a patient, storing it locally at once under a provisional UUID
+ * and queueing it in the {@link Outbox} to be sent to the server.
  * <p/>
  * <p>If the operation succeeds, a {@link ItemCreatedEvent} is posted on the given
  * {@link CrudEventBus} with the added patient. If the operation fails, a
- * {@link PatientAddFailedEvent} is posted instead.
+ * {@link PatientAddFailedEvent} is posted instead.  A patient ID that is already in use locally
+ * is refused here; anything else the server refuses is reported by the outbox later.
  */
 public class AddPatientTask extends AsyncTask<Void, Void, PatientAddFailedEvent> {
 
@@ -48,7 +45,7 @@ public class AddPatientTask extends AsyncTask<Void, Void, PatientAddFailedEvent>
 
     private final TaskFactory mTaskFactory;
     private final LoaderSet mLoaderSet;
-    private final Server mServer;
+    private final Outbox mOutbox;
     private final ContentResolver mContentResolver;
     private final PatientDelta mPatientDelta;
     private final CrudEventBus mBus;
@@ -59,73 +56,38 @@ public class AddPatientTask extends AsyncTask<Void, Void, PatientAddFailedEvent>
     public AddPatientTask(
         TaskFactory taskFactory,
         LoaderSet loaderSet,
-        Server server,
+        Outbox outbox,
         ContentResolver contentResolver,
         PatientDelta patientDelta,
         CrudEventBus bus) {
         mTaskFactory = taskFactory;
         mLoaderSet = loaderSet;
-        mServer = server;
+        mOutbox = outbox;
         mContentResolver = contentResolver;
         mPatientDelta = patientDelta;
         mBus = bus;
     }
 
     @Override protected PatientAddFailedEvent doInBackground(Void... params) {
-        RequestFuture<JsonPatient> future = RequestFuture.newFuture();
-
-        mServer.addPatient(mPatientDelta, future, future);
-        JsonPatient json;
-        try {
-            json = future.get();
-        } catch (InterruptedException e) {
-            return new PatientAddFailedEvent(PatientAddFailedEvent.REASON_INTERRUPTED, e);
-        } catch (ExecutionException e) {
-            int failureReason = PatientAddFailedEvent.REASON_NETWORK;
-            if (e.getCause() != null && e.getCause() instanceof VolleyError) {
-                String message = e.getCause().getMessage();
-                if (message.contains("could not insert: [org.openmrs.PatientIdentifier]")) {
-                    failureReason = PatientAddFailedEvent.REASON_INVALID_ID;
-                } else if (message.contains("already has the ID")) {
-                    failureReason = PatientAddFailedEvent.REASON_DUPLICATE_ID;
-                } else if (isValidationErrorMessageForField(message, "names[0].givenName")) {
-                    failureReason = PatientAddFailedEvent.REASON_INVALID_GIVEN_NAME;
-                } else if (isValidationErrorMessageForField(message, "names[0].familyName")) {
-                    failureReason = PatientAddFailedEvent.REASON_INVALID_FAMILY_NAME;
-                }
-            }
-            return new PatientAddFailedEvent(failureReason, e);
-        }
-
-        if (json.uuid == null) {
-            LOG.e(
-                "Although the server reported a patient successfully added, it did not return "
-                    + "a UUID for that patient. This indicates a server error.");
-
+        if (mPatientDelta.id.isPresent() && isIdInUse(mPatientDelta.id.get())) {
             return new PatientAddFailedEvent(
-                PatientAddFailedEvent.REASON_SERVER, null /*exception*/);
+                PatientAddFailedEvent.REASON_DUPLICATE_ID, null /*exception*/);
         }
-
-        Patient patient = Patient.fromJson(json);
-        Uri uri = mContentResolver.insert(
-            Contracts.Patients.CONTENT_URI, patient.toContentValues());
-
-        // Perform incremental observation sync so we get admission date.
-        SyncAccountService.startObservationsAndOrdersSync();
-
-        if (uri == null || uri.equals(Uri.EMPTY)) {
-            return new PatientAddFailedEvent(
-                PatientAddFailedEvent.REASON_CLIENT, null /*exception*/);
+        try {
+            mUuid = mOutbox.addPatient(mPatientDelta);
+        } catch (RemoteException | OperationApplicationException e) {
+            LOG.e(e, "Unable to store patient locally");
+            return new PatientAddFailedEvent(PatientAddFailedEvent.REASON_CLIENT, e);
         }
-
-        mUuid = json.uuid;
-
         return null;
     }
 
-    private boolean isValidationErrorMessageForField(String message, String fieldName) {
-        return message.contains("'Patient#null' failed to validate with reason: "
-            + fieldName);
+    private boolean isIdInUse(String id) {
+        try (Cursor c = mContentResolver.query(Contracts.Patients.CONTENT_URI,
+            new String[] {Contracts.Patients.UUID},
+            Contracts.Patients.ID + " = ?", new String[] {id}, null)) {
+            return c != null && c.getCount() > 0;
+        }
     }
 
     @Override protected void onPostExecute(PatientAddFailedEvent event) {
@@ -11,34 +11,27 @@
 
 package org.projectbuendia.client.models.tasks;
 
-import android.content.ContentResolver;
-import android.net.Uri;
+import android.content.OperationApplicationException;
 import android.os.AsyncTask;
-
-import com.android.volley.toolbox.RequestFuture;
+import android.os.RemoteException;
 
 import org.projectbuendia.client.events.CrudEventBus;
 import org.projectbuendia.client.events.data.ItemCreatedEvent;
-import org.projectbuendia.client.events.data.ItemFetchFailedEvent;
-import org.projectbuendia.client.events.data.ItemFetchedEvent;
 import org.projectbuendia.client.events.data.ItemUpdatedEvent;
 import org.projectbuendia.client.events.data.OrderSaveFailedEvent;
-import org.projectbuendia.client.filter.db.patient.UuidFilter;
-import org.projectbuendia.client.json.JsonOrder;
 import org.projectbuendia.client.models.LoaderSet;
 import org.projectbuendia.client.models.Order;
-import org.projectbuendia.client.net.Server;
-import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.Outbox;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.concurrent.ExecutionException;
-
 /**
- * An {@link AsyncTask} that adds an order, both on the server and in the local store.
+ * An {@link AsyncTask} that adds or updates an order, storing it locally at once and queueing it
+ * in the {@link Outbox} to be sent to the server.
  * <p/>
- * <p>If the operation succeeds, a {@link ItemCreatedEvent} is posted on the
- * given {@link CrudEventBus} with the added order. If the operation fails, an
- * {@link OrderSaveFailedEvent} is posted instead.
+ * <p>If the operation succeeds, a {@link ItemCreatedEvent} or {@link ItemUpdatedEvent} is posted
+ * on the given {@link CrudEventBus} with the saved order; a new order has a provisional local UUID
+ * until the server confirms it. If the operation fails, an {@link OrderSaveFailedEvent} is posted
+ * instead.
  */
 public class SaveOrderTask extends AsyncTask<Void, Void, OrderSaveFailedEvent> {
 
@@ -46,63 +39,37 @@ public class SaveOrderTask extends AsyncTask<Void, Void, OrderSaveFailedEvent> {
 
     private final TaskFactory mTaskFactory;
     private final LoaderSet mLoaderSet;
-    private final Server mServer;
-    private final ContentResolver mContentResolver;
+    private final Outbox mOutbox;
     private final Order mOrder;
     private final CrudEventBus mBus;
 
-    private String mUuid;
+    private Order mSavedOrder;
 
     /** Creates a new {@link SaveOrderTask}. */
     public SaveOrderTask(
         TaskFactory taskFactory,
         LoaderSet loaderSet,
-        Server server,
-        ContentResolver contentResolver,
+        Outbox outbox,
         Order order,
         CrudEventBus bus) {
         mTaskFactory = taskFactory;
         mLoaderSet = loaderSet;
-        mServer = server;
-        mContentResolver = contentResolver;
+        mOutbox = outbox;
         mOrder = order;
         mBus = bus;
     }
 
-    @SuppressWarnings("unused") // called by reflection from EventBus
-    public void onEventMainThread(ItemFetchedEvent<Order> event) {
-        mBus.post(mOrder.uuid == null ? new ItemCreatedEvent<>(event.item)
-            : new ItemUpdatedEvent<>(mOrder.uuid, event.item));
-        mBus.unregister(this);
-    }
-
-    @SuppressWarnings("unused") // called by reflection from EventBus
-    public void onEventMainThread(ItemFetchFailedEvent event) {
-        mBus.post(new OrderSaveFailedEvent(
-            OrderSaveFailedEvent.Reason.CLIENT_ERROR, new Exception(event.error)));
-        mBus.unregister(this);
-    }
-
     @Override protected OrderSaveFailedEvent doInBackground(Void... params) {
-        RequestFuture<JsonOrder> future = RequestFuture.newFuture();
-        mServer.saveOrder(mOrder, future, future);
-        JsonOrder json;
+        String uuid;
         try {
-            json = future.get();
-        } catch (InterruptedException e) {
-            return new OrderSaveFailedEvent(OrderSaveFailedEvent.Reason.INTERRUPTED, e);
-        } catch (ExecutionException e) {
-            return new OrderSaveFailedEvent(OrderSaveFailedEvent.Reason.UNKNOWN_SERVER_ERROR, e);
-        }
-
-        // insert() is implemented as insert or replace, so we use it for both adding and updating.
-        Uri uri = mContentResolver.insert(
-            Contracts.Orders.CONTENT_URI, Order.fromJson(json).toContentValues());
-        if (uri == null || uri.equals(Uri.EMPTY)) {
-            return new OrderSaveFailedEvent(OrderSaveFailedEvent.Reason.CLIENT_ERROR, null);
+            uuid = mOutbox.saveOrder(mOrder);
+        } catch (RemoteException | OperationApplicationException e) {
+            LOG.e(e, "Unable to store order locally");
+            return new OrderSaveFailedEvent(OrderSaveFailedEvent.Reason.CLIENT_ERROR, e);
         }
 
-        mUuid = json.uuid;
+        mSavedOrder = new Order(
+            uuid, mOrder.patientUuid, mOrder.instructions, mOrder.start, mOrder.stop);
         return null;  // no error means success
     }
 
@@ -112,10 +79,9 @@ public class SaveOrderTask extends AsyncTask<Void, Void, OrderSaveFailedEvent> {
             return;
         }
 
-        // We use the fetch event to trigger UI updates, both for initial load and for this update.
-        mBus.register(this);
-        mTaskFactory.newFetchItemTask(
-            Contracts.Orders.CONTENT_URI, null, new UuidFilter(), mUuid,
-            mLoaderSet.orderLoader, mBus).execute();
+        // The outbox may replace a new order's provisional UUID at any moment, so report the
+        // order as it was stored rather than fetching it back.
+        mBus.post(mOrder.uuid == null ? new ItemCreatedEvent<>(mSavedOrder)
+            : new ItemUpdatedEvent<>(mOrder.uuid, mSavedOrder));
     }
 }
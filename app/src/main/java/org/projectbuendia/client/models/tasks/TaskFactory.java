@@ -27,6 +27,7 @@ import org.projectbuendia.client.models.CursorLoader;
 import org.projectbuendia.client.models.LoaderSet;
 import org.projectbuendia.client.models.VoidObs;
 import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.sync.Outbox;
 
 /**
  * An assisted injection factory that creates {@link AsyncTask}s for performing {@link AppModel}
@@ -36,18 +37,21 @@ public class TaskFactory {
     private final LoaderSet mLoaderSet;
     private final Server mServer;
     private final ContentResolver mContentResolver;
+    private final Outbox mOutbox;
 
     /** Creates a new {@link TaskFactory}. */
     public TaskFactory(
-        LoaderSet loaderSet, Server server, ContentResolver contentResolver) {
+        LoaderSet loaderSet, Server server, ContentResolver contentResolver, Outbox outbox) {
         mLoaderSet = loaderSet;
         mServer = server;
         mContentResolver = contentResolver;
+        mOutbox = outbox;
     }
 
     /** Creates a new {@link AddPatientTask}. */
     public AddPatientTask newAddPatientTask(PatientDelta patientDelta, CrudEventBus bus) {
-        return new AddPatientTask(this, mLoaderSet, mServer, mContentResolver, patientDelta, bus);
+        return new AddPatientTask(
+            this, mLoaderSet, mOutbox, mContentResolver, patientDelta, bus);
     }
 
     public DownloadSinglePatientTask newDownloadSinglePatientTask(
@@ -64,20 +68,18 @@ public class TaskFactory {
     /** Creates a new {@link UpdatePatientTask}. */
     public UpdatePatientTask newUpdatePatientTask(
         String patientUuid, PatientDelta patientDelta, CrudEventBus bus) {
-        return new UpdatePatientTask(
-            this, mLoaderSet, mServer, mContentResolver, patientUuid, patientDelta, bus);
+        return new UpdatePatientTask(this, mLoaderSet, mOutbox, patientUuid, patientDelta, bus);
     }
 
     /** Creates a new {@link AddEncounterTask}. */
     public AddEncounterTask newAddEncounterTask(
         Patient patient, Encounter encounter, CrudEventBus bus) {
-        return new AddEncounterTask(
-            this, mLoaderSet, mServer, mContentResolver, patient, encounter, bus);
+        return new AddEncounterTask(this, mLoaderSet, mOutbox, patient, encounter, bus);
     }
 
     /** Creates a new {@link SaveOrderTask}. */
     public SaveOrderTask newSaveOrderTask(Order order, CrudEventBus bus) {
-        return new SaveOrderTask(this, mLoaderSet, mServer, mContentResolver, order, bus);
+        return new SaveOrderTask(this, mLoaderSet, mOutbox, order, bus);
     }
 
     // DO NOT SUBMIT: work out why there's two of these.
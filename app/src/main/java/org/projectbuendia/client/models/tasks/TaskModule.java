@@ -15,20 +15,29 @@ import android.content.ContentResolver;
 
 import org.projectbuendia.client.models.LoaderSet;
 import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.sync.Outbox;
+import org.projectbuendia.client.utils.EventBusInterface;
 
 import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
 
-/** A Dagger module that provides bindings for a {@link TaskFactory}. */
+/** A Dagger module that provides bindings for a {@link TaskFactory} and its {@link Outbox}. */
 @Module(complete = false, library = true)
 public class TaskModule {
     @Provides
     @Singleton TaskFactory provideAppAsyncTaskFactory(
         Server server,
         ContentResolver contentResolver,
-        LoaderSet loaderSet) {
-        return new TaskFactory(loaderSet, server, contentResolver);
+        LoaderSet loaderSet,
+        Outbox outbox) {
+        return new TaskFactory(loaderSet, server, contentResolver, outbox);
+    }
+
+    @Provides
+    @Singleton Outbox provideOutbox(
+        Server server, ContentResolver contentResolver, EventBusInterface eventBus) {
+        return new Outbox(contentResolver, server, eventBus);
     }
 }
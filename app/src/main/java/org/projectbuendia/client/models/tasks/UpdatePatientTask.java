@@ -11,42 +11,37 @@
 
 package org.projectbuendia.client.models.tasks;
 
-import android.content.ContentResolver;
+import android.content.OperationApplicationException;
 import android.os.AsyncTask;
-
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.RequestFuture;
+import android.os.RemoteException;
 
 import org.projectbuendia.client.events.CrudEventBus;
 import org.projectbuendia.client.events.data.ItemFetchFailedEvent;
 import org.projectbuendia.client.events.data.ItemFetchedEvent;
 import org.projectbuendia.client.events.data.ItemUpdatedEvent;
 import org.projectbuendia.client.events.data.PatientUpdateFailedEvent;
-import org.projectbuendia.client.filter.db.SimpleSelectionFilter;
 import org.projectbuendia.client.filter.db.patient.UuidFilter;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.PatientDelta;
 import org.projectbuendia.client.models.LoaderSet;
-import org.projectbuendia.client.net.Server;
-import org.projectbuendia.client.json.JsonPatient;
 import org.projectbuendia.client.providers.Contracts;
-
-import java.util.concurrent.ExecutionException;
+import org.projectbuendia.client.sync.Outbox;
+import org.projectbuendia.client.utils.Logger;
 
 /**
- * An {@link AsyncTask} that updates a patient on a server.
+ * An {@link AsyncTask} that updates a patient, applying the change locally at once and queueing
+ * it in the {@link Outbox} to be sent to the server.
  * <p/>
  * <p>If the operation succeeds, a {@link ItemUpdatedEvent} is posted on the given
  * {@link CrudEventBus} with both the old and updated patient data. If the operation fails, a
  * {@link PatientUpdateFailedEvent} is posted instead.
  */
 public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailedEvent> {
-    private static final SimpleSelectionFilter FILTER = new UuidFilter();
+    private static final Logger LOG = Logger.create();
 
     private final TaskFactory mTaskFactory;
     private final LoaderSet mLoaderSet;
-    private final Server mServer;
-    private final ContentResolver mContentResolver;
+    private final Outbox mOutbox;
     private final String mUuid;
     private final PatientDelta mPatientDelta;
     private final CrudEventBus mBus;
@@ -54,50 +49,29 @@ public class UpdatePatientTask extends AsyncTask<Void, Void, PatientUpdateFailed
     UpdatePatientTask(
         TaskFactory taskFactory,
         LoaderSet loaderSet,
-        Server server,
-        ContentResolver contentResolver,
+        Outbox outbox,
         String patientUuid,
         PatientDelta patientDelta,
         CrudEventBus bus) {
         mTaskFactory = taskFactory;
         mLoaderSet = loaderSet;
-        mServer = server;
-        mContentResolver = contentResolver;
+        mOutbox = outbox;
         mUuid = patientUuid;
         mPatientDelta = patientDelta;
         mBus = bus;
     }
 
     @Override protected PatientUpdateFailedEvent doInBackground(Void... params) {
-        RequestFuture<JsonPatient> patientFuture = RequestFuture.newFuture();
-
-        mServer.updatePatient(mUuid, mPatientDelta, patientFuture, patientFuture);
         try {
-            patientFuture.get();
-        } catch (InterruptedException e) {
-            return new PatientUpdateFailedEvent(PatientUpdateFailedEvent.REASON_INTERRUPTED, e);
-        } catch (ExecutionException e) {
-            // TODO: Parse the VolleyError to see exactly what kind of error was raised.
-            return new PatientUpdateFailedEvent(
-                PatientUpdateFailedEvent.REASON_NETWORK, (VolleyError) e.getCause());
-        }
-
-        int count = mContentResolver.update(
-            Contracts.Patients.CONTENT_URI,
-            mPatientDelta.toContentValues(),
-            FILTER.getSelectionString(),
-            FILTER.getSelectionArgs(mUuid));
-
-        switch (count) {
-            case 0:
+            if (!mOutbox.updatePatient(mUuid, mPatientDelta)) {
                 return new PatientUpdateFailedEvent(
                     PatientUpdateFailedEvent.REASON_NO_SUCH_PATIENT, null /*exception*/);
-            case 1:
-                return null;
-            default:
-                return new PatientUpdateFailedEvent(
-                    PatientUpdateFailedEvent.REASON_SERVER, null /*exception*/);
+            }
+        } catch (RemoteException | OperationApplicationException | IllegalArgumentException e) {
+            LOG.e(e, "Unable to store patient update locally");
+            return new PatientUpdateFailedEvent(PatientUpdateFailedEvent.REASON_CLIENT, e);
         }
+        return null;
     }
 
     @Override protected void onPostExecute(PatientUpdateFailedEvent event) {
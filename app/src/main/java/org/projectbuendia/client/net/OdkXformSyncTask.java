@@ -23,6 +23,7 @@ import com.android.volley.VolleyError;
 import com.google.common.base.Preconditions;
 
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormDefPool;
 import org.odk.collect.android.provider.FormsProviderAPI;
 import org.odk.collect.android.tasks.DiskSyncTask;
 import org.projectbuendia.client.App;
@@ -102,6 +103,9 @@ public class OdkXformSyncTask extends AsyncTask<OpenMrsXformIndexEntry, Void, Vo
 
             if (!isNew && !usersHaveChanged) {
                 LOG.i("Using form " + formInfo.uuid + " from local cache.");
+                // Parse the form now if it isn't already in memory, so that opening it doesn't
+                // have to.
+                FormDefPool.getInstance().preload(proposedPath);
                 if (mFormWrittenListener != null) {
                     mFormWrittenListener.formWritten(proposedPath, formInfo.uuid);
                 }
@@ -214,6 +218,8 @@ public class OdkXformSyncTask extends AsyncTask<OpenMrsXformIndexEntry, Void, Vo
             } catch (SQLException e) {
                 LOG.i(e, "failed to insert fetched file");
             }
+            // Parse the new form now, so that opening it doesn't have to.
+            FormDefPool.getInstance().preload(proposedPath);
             return proposedPath;
         }
 
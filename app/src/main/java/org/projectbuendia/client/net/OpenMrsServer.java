@@ -21,6 +21,7 @@ import com.google.common.base.Joiner;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
+import org.joda.time.DateTime;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -40,6 +41,7 @@ import org.projectbuendia.client.models.PatientDelta;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -101,12 +103,20 @@ public class OpenMrsServer implements Server {
 
     @Override public void addPatient(
         PatientDelta patientDelta,
+        @Nullable String clientUuid,
         final Response.Listener<JsonPatient> successListener,
         final Response.ErrorListener errorListener) {
         JSONObject json = new JSONObject();
         if (!patientDelta.toJson(json)) {
             throw new IllegalArgumentException("Unable to serialize the patient delta to JSON.");
         }
+        if (clientUuid != null) {
+            try {
+                json.put(Server.CLIENT_UUID_KEY, clientUuid);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Unable to serialize the patient to JSON.", e);
+            }
+        }
 
         LOG.v("Adding patient from JSON: %s", json.toString());
 
@@ -262,6 +272,18 @@ public class OpenMrsServer implements Server {
         mConnectionDetails.getVolley().addToRequestQueue(request);
     }
 
+    @Override public void addXformInstance(@Nullable String patientUuid,
+                                           String entererUuid,
+                                           DateTime dateEntered,
+                                           File instance,
+                                           @Nullable String clientUuid,
+                                           Response.Listener<JSONObject> successListener,
+                                           Response.ErrorListener errorListener) {
+        new OpenMrsXformsConnection(mConnectionDetails).postXformInstance(
+            patientUuid, entererUuid, dateEntered, instance, clientUuid,
+            successListener, wrapErrorListener(errorListener));
+    }
+
     @Override public void deleteObservation(String Uuid,
                                          final Response.ErrorListener errorListener) {
         OpenMrsJsonRequest request = mRequestFactory.newOpenMrsJsonRequest(
@@ -284,11 +306,15 @@ public class OpenMrsServer implements Server {
     }
 
     @Override public void saveOrder(Order order,
+                                    @Nullable String clientUuid,
                                     final Response.Listener<JsonOrder> successListener,
                                     final Response.ErrorListener errorListener) {
         JSONObject json;
         try {
             json = order.toJson();
+            if (order.uuid == null && clientUuid != null) {
+                json.put(Server.CLIENT_UUID_KEY, clientUuid);
+            }
             JsonUser user = App.getUserManager().getActiveUser();
             if (user != null) {
                 json.put("orderer_uuid", user.id);
@@ -11,11 +11,26 @@
 
 package org.projectbuendia.client.net;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
+import com.google.common.base.Charsets;
 import com.google.gson.JsonObject;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.RequestBody;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
@@ -24,11 +39,24 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.projectbuendia.client.utils.Logger;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+import okio.BufferedSink;
+
 /**
  * A connection to the module deployed in OpenMRS to provide xforms (which is part of the Buendia
  * API module). This is not part of OpenMrsServer as it has entirely its own interface, but should
@@ -37,6 +65,7 @@ import javax.annotation.Nullable;
 public class OpenMrsXformsConnection {
 
     private static final Logger LOG = Logger.create();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     private final OpenMrsConnectionDetails mConnectionDetails;
 
@@ -126,52 +155,182 @@ public class OpenMrsXformsConnection {
     }
 
     /**
-     * Send a single Xform to the OpenMRS server.
+     * Send a single Xform to the OpenMRS server.  The instance file is streamed into the request
+     * body, so it is never held in memory as a whole.  The listeners are called on the main
+     * thread, as they would be for a Volley request.
      * @param patientUuid    null if this is to add a new patient, non-null for observation on existing
      *                       patient
+     * @param dateEntered    when the form was filled in
+     * @param instance       the instance XML file
+     * @param clientUuid     a UUID that identifies the submission across repeated requests
      * @param resultListener the listener to be informed of the form asynchronously
      * @param errorListener  a listener to be informed of any errors
      */
     public void postXformInstance(
         @Nullable String patientUuid,
         String entererUuid,
-        String xform,
+        DateTime dateEntered,
+        File instance,
+        @Nullable String clientUuid,
         final Response.Listener<JSONObject> resultListener,
-        Response.ErrorListener errorListener) {
+        final Response.ErrorListener errorListener) {
 
         // The JsonObject members in the API as written at the moment.
         // int "patient_id"
         // int "enterer_id"
         // String "date_entered" in ISO8601 format (1977-01-10T
-        // String "xml" the form.
+        // String "xml" the form, which XformInstanceBody adds.
         JsonObject post = new JsonObject();
-        post.addProperty("xml", xform);
         // Don't add patient property for create new patient
         if (patientUuid != null) {
             post.addProperty("patient_uuid", patientUuid);
         }
         post.addProperty("enterer_uuid", entererUuid);
 
-        post.addProperty("date_entered", ISODateTimeFormat.dateTime().print(new DateTime()));
-        JSONObject postBody = null;
-        try {
-            postBody = new JSONObject(post.toString());
-        } catch (JSONException e) {
-            LOG.e(e, "This should never happen converting one JSON object to another. " + post);
-            errorListener.onErrorResponse(new VolleyError("failed to convert to JSON", e));
+        post.addProperty("date_entered", ISODateTimeFormat.dateTime().print(dateEntered));
+        if (clientUuid != null) {
+            post.addProperty(Server.CLIENT_UUID_KEY, clientUuid);
         }
-        OpenMrsJsonRequest request = new OpenMrsJsonRequest(
-            mConnectionDetails, "/xforminstances",
-            postBody, // non-null implies POST
-            new Response.Listener<JSONObject>() {
-                @Override public void onResponse(JSONObject response) {
-                    resultListener.onResponse(response);
-                }
-            }, errorListener
-        );
+        com.squareup.okhttp.Request request = new com.squareup.okhttp.Request.Builder()
+            .url(mConnectionDetails.getBuendiaApiUrl() + "/xforminstances")
+            .headers(Headers.of(mConnectionDetails.addAuthHeader(new HashMap<String, String>())))
+            .post(new XformInstanceBody(post, instance))
+            .build();
         // Set a permissive timeout.
-        request.setRetryPolicy(new DefaultRetryPolicy(Common.REQUEST_TIMEOUT_MS_MEDIUM, 1, 1f));
-        mConnectionDetails.getVolley().addToRequestQueue(request);
+        OkHttpClient client = mConnectionDetails.getVolley().getHttpClient().clone();
+        client.setConnectTimeout(Common.REQUEST_TIMEOUT_MS_MEDIUM, TimeUnit.MILLISECONDS);
+        client.setWriteTimeout(Common.REQUEST_TIMEOUT_MS_MEDIUM, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(Common.REQUEST_TIMEOUT_MS_MEDIUM, TimeUnit.MILLISECONDS);
+        client.newCall(request).enqueue(new Callback() {
+            @Override public void onFailure(com.squareup.okhttp.Request request, IOException e) {
+                deliverError(errorListener, toVolleyError(e));
+            }
+
+            @Override public void onResponse(com.squareup.okhttp.Response response) {
+                byte[] body;
+                try {
+                    body = response.body().bytes();
+                } catch (IOException e) {
+                    deliverError(errorListener, toVolleyError(e));
+                    return;
+                }
+                if (!response.isSuccessful()) {
+                    deliverError(errorListener, new ServerError(new NetworkResponse(
+                        response.code(), body, getHeaders(response), false)));
+                    return;
+                }
+                final JSONObject json;
+                try {
+                    json = new JSONObject(new String(body, Charsets.UTF_8));
+                } catch (JSONException e) {
+                    deliverError(errorListener, new ParseError(e));
+                    return;
+                }
+                sMainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        resultListener.onResponse(json);
+                    }
+                });
+            }
+        });
+    }
+
+    private static void deliverError(
+        final Response.ErrorListener errorListener, final VolleyError error) {
+        sMainHandler.post(new Runnable() {
+            @Override public void run() {
+                errorListener.onErrorResponse(error);
+            }
+        });
+    }
+
+    /** Classifies a failed request the way Volley would. */
+    private static VolleyError toVolleyError(IOException e) {
+        if (e instanceof SocketTimeoutException) {
+            return new TimeoutError();
+        }
+        if (e instanceof ConnectException || e instanceof UnknownHostException) {
+            return new NoConnectionError(e);
+        }
+        return new NetworkError(e);
     }
 
+    private static Map<String, String> getHeaders(com.squareup.okhttp.Response response) {
+        Map<String, String> headers = new HashMap<>();
+        for (String name : response.headers().names()) {
+            headers.put(name, response.header(name));
+        }
+        return headers;
+    }
+
+    /**
+     * A JSON request body holding the given properties and the contents of an instance file as
+     * its "xml" property.  The file is read and escaped a buffer at a time as the body is
+     * written, and read again if the request has to be written again.
+     */
+    static class XformInstanceBody extends RequestBody {
+        private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+        private static final int BUFFER_SIZE = 8192;
+
+        private final String mProperties;
+        private final File mInstance;
+
+        XformInstanceBody(JsonObject properties, File instance) {
+            // Everything after the opening brace, ready to follow the "xml" property.
+            String json = properties.toString();
+            mProperties = json.equals("{}") ? "}" : "," + json.substring(1);
+            mInstance = instance;
+        }
+
+        @Override public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override public void writeTo(BufferedSink sink) throws IOException {
+            sink.writeUtf8("{\"xml\":\"");
+            char[] buffer = new char[BUFFER_SIZE];
+            StringBuilder escaped = new StringBuilder(BUFFER_SIZE + BUFFER_SIZE / 8);
+            try (Reader reader = new InputStreamReader(
+                new FileInputStream(mInstance), Charsets.UTF_8)) {
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    escaped.setLength(0);
+                    appendEscaped(escaped, buffer, count);
+                    sink.writeUtf8(escaped.toString());
+                }
+            }
+            sink.writeUtf8("\"");
+            sink.writeUtf8(mProperties);
+        }
+
+        /** Appends characters, escaped for use inside a JSON string. */
+        static void appendEscaped(StringBuilder out, char[] chars, int count) {
+            for (int i = 0; i < count; i++) {
+                char c = chars[i];
+                switch (c) {
+                    case '"':
+                        out.append("\\\"");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+        }
+    }
 }
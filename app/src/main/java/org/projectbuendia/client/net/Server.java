@@ -15,6 +15,8 @@ import android.support.annotation.Nullable;
 
 import com.android.volley.Response;
 
+import org.joda.time.DateTime;
+import org.json.JSONObject;
 import org.projectbuendia.client.json.JsonEncounter;
 import org.projectbuendia.client.json.JsonForm;
 import org.projectbuendia.client.json.JsonLocation;
@@ -27,6 +29,7 @@ import org.projectbuendia.client.models.Order;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.PatientDelta;
 
+import java.io.File;
 import java.util.List;
 
 /** An interface abstracting the idea of an RPC to a server. */
@@ -42,6 +45,12 @@ public interface Server {
     public static final String ENCOUNTER_OBSERVATIONS_KEY = "observations";
     public static final String ENCOUNTER_TIMESTAMP = "timestamp";
     public static final String ENCOUNTER_ORDER_UUIDS = "order_uuids";
+    /**
+     * A UUID chosen by the client for a new record and sent with every attempt to create it, so
+     * that the server can recognize a request it has already carried out.  A server that does
+     * this echoes the UUID back under the same key in its response; older servers ignore it.
+     */
+    public static final String CLIENT_UUID_KEY = "client_uuid";
     public static final String OBSERVATION_QUESTION_UUID = "question_uuid";
     public static final String OBSERVATION_ANSWER_DATE = "answer_date";
     public static final String OBSERVATION_ANSWER_UUID = "answer_uuid";
@@ -54,9 +63,13 @@ public interface Server {
      */
     void logToServer(List<String> pairs);
 
-    /** Adds a patient. */
+    /**
+     * Adds a patient.
+     * @param clientUuid a UUID that identifies the new patient across repeated requests
+     */
     void addPatient(
         PatientDelta patientDelta,
+        @Nullable String clientUuid,
         Response.Listener<JsonPatient> successListener,
         Response.ErrorListener errorListener);
 
@@ -87,6 +100,22 @@ public interface Server {
         Response.Listener<JsonEncounter> successListener,
         Response.ErrorListener errorListener);
 
+    /**
+     * Submits a filled-in xform instance, which creates an encounter for the patient, or a new
+     * patient if patientUuid is null.
+     * @param instance   the instance XML file saved by ODK Collect, which is streamed to the
+     *                   server rather than read into memory
+     * @param clientUuid a UUID that identifies the submission across repeated requests
+     */
+    void addXformInstance(
+        @Nullable String patientUuid,
+        String entererUuid,
+        DateTime dateEntered,
+        File instance,
+        @Nullable String clientUuid,
+        Response.Listener<JSONObject> successListener,
+        Response.ErrorListener errorListener);
+
     /**
      * Remove an observation by it's UUID.
      * @param Uuid The observation UUID.
@@ -155,8 +184,12 @@ public interface Server {
     public void listLocations(Response.Listener<List<JsonLocation>> successListener,
                               Response.ErrorListener errorListener);
 
-    /** Adds or updates an order. */
+    /**
+     * Adds or updates an order.
+     * @param clientUuid for a new order, a UUID that identifies it across repeated requests
+     */
     void saveOrder(Order order,
+                   @Nullable String clientUuid,
                    Response.Listener<JsonOrder> successListener,
                    Response.ErrorListener errorListener);
 
@@ -24,6 +24,7 @@ import com.squareup.okhttp.OkHttpClient;
 public class VolleySingleton {
     private static VolleySingleton sInstance;
 
+    private final OkHttpClient mHttpClient;
     private final RequestQueue mRequestQueue;
 
     /**
@@ -51,14 +52,23 @@ public class VolleySingleton {
         return mRequestQueue;
     }
 
+    /**
+     * Gets the HTTP client underlying the request queue, for callers that need to
+     * stream a response body instead of receiving it as a single byte array.
+     * Callers that change timeouts should do so on a clone().
+     */
+    public OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
     private VolleySingleton(Context context) {
         // Let Stetho inspect all our network requests.
-        final OkHttpClient client = new OkHttpClient();
-        client.networkInterceptors().add(new StethoInterceptor());
+        mHttpClient = new OkHttpClient();
+        mHttpClient.networkInterceptors().add(new StethoInterceptor());
 
         // getApplicationContext() is key, it keeps you from leaking the
         // Activity or BroadcastReceiver if someone passes one in.
         mRequestQueue = Volley.newRequestQueue(
-            context.getApplicationContext(), new OkHttpStack(client));
+            context.getApplicationContext(), new OkHttpStack(mHttpClient));
     }
 }
@@ -11,6 +11,8 @@
 
 package org.projectbuendia.client.providers;
 
+import android.database.sqlite.SQLiteDatabase;
+
 import org.projectbuendia.client.sync.Database;
 import org.projectbuendia.client.providers.Contracts.Table;
 
@@ -22,6 +24,15 @@ public class BuendiaProvider extends DelegatingProvider<Database> {
         return new DatabaseTransaction(mDatabaseHelper, name);
     }
 
+    /**
+     * Gets the underlying database, for sync phases that write rows directly
+     * with compiled statements instead of going through ContentProviderOperations.
+     * Such callers are responsible for sending their own change notifications.
+     */
+    public SQLiteDatabase getWritableDatabase() {
+        return mDatabaseHelper.getWritableDatabase();
+    }
+
     @Override protected Database createDatabaseHelper() {
         return new Database(getContext());
     }
@@ -65,17 +76,30 @@ public class BuendiaProvider extends DelegatingProvider<Database> {
             Contracts.Observations.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
                 Contracts.Observations.GROUP_CONTENT_TYPE,
-                Table.OBSERVATIONS));
+                Table.OBSERVATIONS,
+                Contracts.Observations.PATIENT_UUID));
+        registry.registerDelegate(
+            Contracts.LatestObservations.CONTENT_URI.getPath(),
+            new GroupProviderDelegate(
+                Contracts.LatestObservations.GROUP_CONTENT_TYPE,
+                Table.LATEST_OBSERVATIONS));
         registry.registerDelegate(
             Contracts.Orders.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
                 Contracts.Orders.GROUP_CONTENT_TYPE,
-                Table.ORDERS));
+                Table.ORDERS,
+                Contracts.Orders.PATIENT_UUID));
+        registry.registerDelegate(
+            Contracts.OutboxItems.CONTENT_URI.getPath(),
+            new GroupProviderDelegate(
+                Contracts.OutboxItems.GROUP_CONTENT_TYPE,
+                Table.OUTBOX_ITEMS));
         registry.registerDelegate(
             Contracts.Patients.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
                 Contracts.Patients.GROUP_CONTENT_TYPE,
-                Table.PATIENTS));
+                Table.PATIENTS,
+                Contracts.Patients.UUID));
         registry.registerDelegate(
             Contracts.Users.CONTENT_URI.getPath(),
             new GroupProviderDelegate(
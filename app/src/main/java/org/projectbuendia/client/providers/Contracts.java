@@ -29,14 +29,19 @@ public class Contracts {
         CONCEPT_NAMES("concept_names"),
         CONCEPTS("concepts"),
         FORMS("forms"),
+        LATEST_OBSERVATIONS("latest_observations"),
         LOCATION_NAMES("location_names"),
         LOCATIONS("locations"),
         MISC("misc"),
+        OBSERVATION_DATA("observation_data"),
         OBSERVATIONS("observations"),
         ORDERS("orders"),
+        OUTBOX_ITEMS("outbox_items"),
         PATIENTS("patients"),
         USERS("users"),
-        SYNC_TOKENS("sync_tokens");
+        UUIDS("uuids"),
+        SYNC_TOKENS("sync_tokens"),
+        VIEW_CHANGES("view_changes");
 
         public String name;
 
@@ -158,6 +163,10 @@ public class Contracts {
         String SYNC_TOKEN = "sync_token";
     }
 
+    /**
+     * Observations, read and written through a view with these columns.  The rows are stored
+     * more compactly in the observation_data table, with UUIDs replaced by integer ids.
+     */
     public interface Observations {
         Uri CONTENT_URI = buildContentUri("observations");
         String GROUP_CONTENT_TYPE = buildGroupType("observation");
@@ -176,9 +185,29 @@ public class Contracts {
         String CONCEPT_UUID = "concept_uuid";
         String ENTERER_UUID = "enterer_uuid";
         String VALUE = "value";  // concept value or order UUID
+        /** The value as a number, if it is numeric; read-only, derived from VALUE. */
+        String VALUE_NUMBER = "value_number";
         String VOIDED = "voided";
     }
 
+    /**
+     * The latest non-voided observation for each (patient, concept) pair.
+     * This table is derived from the observations table and maintained by
+     * triggers in the database, so it is read-only for clients.
+     */
+    public interface LatestObservations {
+        Uri CONTENT_URI = buildContentUri("latest-observations");
+        String GROUP_CONTENT_TYPE = buildGroupType("latest-observation");
+        String ITEM_CONTENT_TYPE = buildItemType("latest-observation");
+
+        String PATIENT_UUID = "patient_uuid";
+        String CONCEPT_UUID = "concept_uuid";
+        String ENCOUNTER_MILLIS = "encounter_millis";  // milliseconds since epoch
+        String UUID = "uuid";  // UUID of the observation, or null if temporary
+        String VALUE = "value";  // concept value or order UUID
+        String VALUE_NUMBER = "value_number";  // the value as a number, if it is numeric
+    }
+
     public interface Orders {
         Uri CONTENT_URI = buildContentUri("orders");
         String GROUP_CONTENT_TYPE = buildGroupType("order");
@@ -191,6 +220,28 @@ public class Contracts {
         String STOP_MILLIS = "stop_millis";  // milliseconds since epoch
     }
 
+    /**
+     * Local writes waiting to be sent to the server, in the order they were made.  Each item is
+     * written to the local tables at once and sent later by {@link org.projectbuendia.client.sync.Outbox}.
+     */
+    public interface OutboxItems {
+        Uri CONTENT_URI = buildContentUri("outbox-items");
+        String GROUP_CONTENT_TYPE = buildGroupType("outbox-item");
+        String ITEM_CONTENT_TYPE = buildItemType("outbox-item");
+
+        String ID = "id";  // ascending in the order that the items were queued
+        String TYPE = "type";  // one of the Outbox.TYPE_* constants
+        String PATIENT_UUID = "patient_uuid";
+        String LOCAL_UUID = "local_uuid";  // UUID of the item in the local tables until sent
+        String SERVER_UUID = "server_uuid";  // UUID assigned by the server, once confirmed
+        String PAYLOAD = "payload";  // JSON for the item to send
+        String STATE = "state";  // one of the Outbox.STATE_* constants
+        String ATTEMPTS = "attempts";  // number of failed attempts to send the item
+        String NEXT_ATTEMPT_MILLIS = "next_attempt_millis";  // milliseconds since epoch
+        String LAST_ERROR = "last_error";
+        String CREATED_MILLIS = "created_millis";  // milliseconds since epoch
+    }
+
     public interface Patients {
         Uri CONTENT_URI = buildContentUri("patients");
         String GROUP_CONTENT_TYPE = buildGroupType("patient");
@@ -258,5 +309,19 @@ public class Contracts {
             .build();
     }
 
+    /**
+     * Returns the URI on which changes to one patient's rows in a table are notified.  For the
+     * patients table this is the patient's item URI; for tables of per-patient data, such as
+     * observations and orders, it is the table URI followed by "patient" and the patient UUID.
+     * Observers of the whole table are still notified of changes to these URIs.
+     */
+    public static Uri getPatientChangeUri(Uri contentUri, String patientUuid) {
+        Uri.Builder builder = contentUri.buildUpon();
+        if (!contentUri.equals(Patients.CONTENT_URI)) {
+            builder.appendPath("patient");
+        }
+        return builder.appendPath(patientUuid).build();
+    }
+
     private Contracts() { /* prevent instantiation */ }
 }
@@ -11,29 +11,63 @@
 
 package org.projectbuendia.client.providers;
 
+import android.content.ContentResolver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
 
 import org.projectbuendia.client.utils.Logger;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * An AutoCloseable object representing a SQLite transaction.  Instantiating
  * a DatabaseTransaction starts a transaction.  Closing it with close() finishes
  * the transaction, which causes the operations within the transaction to be
  * rolled back if rollback() was called, or committed otherwise.
+ * <p>
+ * Change notifications sent through {@link #notifyChange} while a thread has a
+ * transaction open are held until its outermost transaction finishes, so that
+ * observers hear about each URI once, and only after the changes are committed.
+ * Tasks given to {@link #runAfterCommit} are held in the same way.
  */
 public final class DatabaseTransaction implements AutoCloseable { // @nolint
     private final SQLiteDatabase mDatabase;
     private final String mName;
+    /**
+     * Whether the savepoint has been released.  SQLiteDatabase.inTransaction() only knows about
+     * transactions started with beginTransaction(), not savepoints, so we track our own.
+     */
+    private boolean mReleased;
 
     private static final Logger LOG = Logger.create();
 
+    /** Notifications held back on each thread while it has transactions open. */
+    private static final ThreadLocal<PendingChanges> sPendingChanges =
+        new ThreadLocal<PendingChanges>() {
+            @Override protected PendingChanges initialValue() {
+                return new PendingChanges();
+            }
+        };
+
+    private static class PendingChanges {
+        int depth;
+        boolean rolledBack;
+        ContentResolver resolver;
+        final Set<Uri> uris = new LinkedHashSet<>();
+        final List<Runnable> tasks = new ArrayList<>();
+    }
+
     /** Starts a named transaction by creating a savepoint. */
     public DatabaseTransaction(SQLiteDatabase database, String name) {
         mDatabase = database;
         mName = name;
         LOG.i("Starting transaction with SAVEPOINT " + mName);
         mDatabase.execSQL("SAVEPOINT " + mName);
+        sPendingChanges.get().depth++;
     }
 
     public DatabaseTransaction(SQLiteOpenHelper openHelper, String name) {
@@ -42,12 +76,17 @@ public final class DatabaseTransaction implements AutoCloseable { // @nolint
 
     /** Rolls back a named transaction to the state just after it started. */
     public void rollback() {
-        if (mDatabase.inTransaction()) {
+        if (!mReleased) {
             LOG.i("Rolling back transaction with ROLLBACK TO " + mName);
             mDatabase.execSQL("ROLLBACK TO " + mName);
             LOG.i("Rollback to " + mName + " completed");
+            PendingChanges pending = sPendingChanges.get();
+            if (pending.depth == 1) {
+                // Everything the held notifications describe has been undone.
+                pending.rolledBack = true;
+            }
         } else {
-            LOG.w("There is no current transaction to roll back");
+            LOG.w("Transaction " + mName + " has already finished; there is nothing to roll back");
         }
     }
 
@@ -56,7 +95,83 @@ public final class DatabaseTransaction implements AutoCloseable { // @nolint
      * rollback() was called; otherwise it will be committed.
      */
     @Override public void close() {
-        mDatabase.execSQL("RELEASE " + mName);
-        LOG.i("Finished transaction " + mName);
+        PendingChanges pending = sPendingChanges.get();
+        try {
+            mReleased = true;
+            mDatabase.execSQL("RELEASE " + mName);
+            LOG.i("Finished transaction " + mName);
+        } finally {
+            if (--pending.depth == 0) {
+                if (!pending.rolledBack) {
+                    dispatch(pending);
+                }
+                // Reset before running the tasks, in case one of them throws.
+                List<Runnable> tasks = pending.rolledBack
+                    ? new ArrayList<Runnable>() : new ArrayList<>(pending.tasks);
+                pending.uris.clear();
+                pending.tasks.clear();
+                pending.resolver = null;
+                pending.rolledBack = false;
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies observers of a change to the given URI, or if the calling thread has a
+     * transaction open, holds the notification until its outermost transaction finishes.
+     */
+    public static void notifyChange(ContentResolver resolver, Uri uri) {
+        PendingChanges pending = sPendingChanges.get();
+        if (pending.depth > 0) {
+            pending.resolver = resolver;
+            pending.uris.add(uri);
+        } else {
+            resolver.notifyChange(uri, null, false);
+        }
+    }
+
+    /**
+     * Runs a task now, or if the calling thread has a transaction open, after its outermost
+     * transaction is committed.  The task is dropped if the transaction is rolled back.
+     */
+    public static void runAfterCommit(Runnable task) {
+        PendingChanges pending = sPendingChanges.get();
+        if (pending.depth > 0) {
+            pending.tasks.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private static void dispatch(PendingChanges pending) {
+        int skipped = 0;
+        for (Uri uri : pending.uris) {
+            // Observers of a URI also hear about changes to any ancestor of
+            // that URI, so a change to an ancestor makes this one redundant.
+            if (hasPendingAncestor(pending.uris, uri)) {
+                skipped++;
+            } else {
+                pending.resolver.notifyChange(uri, null, false);
+            }
+        }
+        if (!pending.uris.isEmpty()) {
+            LOG.i("Sent %d change notifications, %d covered by broader ones",
+                pending.uris.size() - skipped, skipped);
+        }
+    }
+
+    private static boolean hasPendingAncestor(Set<Uri> uris, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder ancestor = uri.buildUpon().path("");
+        for (int i = 0; i < segments.size() - 1; i++) {
+            ancestor.appendPath(segments.get(i));
+            if (uris.contains(ancestor.build())) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -22,19 +22,41 @@ import android.database.sqlite.SQLiteStatement;
 import org.projectbuendia.client.sync.Database;
 import org.projectbuendia.client.sync.QueryBuilder;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
 /**
  * A {@link ProviderDelegate} that provides query, insert, delete, and update access to a group or
  * list of items provided directly from the database.
+ * <p>
+ * For tables of per-patient data, inserts, updates, and deletes are notified on the URI of each
+ * affected patient (see {@link Contracts#getPatientChangeUri}) rather than on the whole table, so
+ * that observers of one patient's data are not disturbed by changes to other patients.
  */
 class GroupProviderDelegate implements ProviderDelegate<Database> {
 
     private static final String BULK_INSERT_SAVEPOINT = "GROUP_PROVIDER_DELEGATE_BULK_INSERT";
+    /** Beyond this many affected patients, one notification on the whole table is cheaper. */
+    private static final int MAX_PATIENT_CHANGE_URIS = 20;
     private final String mType;
     private final Contracts.Table mTable;
+    private final @Nullable String mPatientColumn;
 
     public GroupProviderDelegate(String type, Contracts.Table table) {
+        this(type, table, null);
+    }
+
+    /**
+     * Creates a delegate for a table whose rows each belong to the patient identified by
+     * {@code patientColumn}.
+     */
+    public GroupProviderDelegate(
+        String type, Contracts.Table table, @Nullable String patientColumn) {
         mType = type;
         mTable = table;
+        mPatientColumn = patientColumn;
     }
 
     @Override public String getType() {
@@ -55,7 +77,7 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
         Database dbHelper, ContentResolver contentResolver, Uri uri,
         ContentValues values) {
         long id = dbHelper.getWritableDatabase().replaceOrThrow(mTable.name, null, values);
-        contentResolver.notifyChange(uri, null, false);
+        DatabaseTransaction.notifyChange(contentResolver, getChangeUri(uri, values));
         return uri.buildUpon().appendPath(Long.toString(id)).build();
     }
 
@@ -68,6 +90,7 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
         ContentValues first = allValues[0];
         String[] columns = first.keySet().toArray(new String[first.size()]);
+        Set<Uri> changeUris = new LinkedHashSet<>();
         try (DatabaseTransaction tx = new DatabaseTransaction(db, BULK_INSERT_SAVEPOINT)) {
             SQLiteStatement statement = makeInsertStatement(db, mTable.name, columns);
             try {
@@ -91,6 +114,7 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
                         bindings[i] = value;
                     }
                     statement.executeInsert();
+                    changeUris.add(getChangeUri(uri, values));
                 }
             } catch (Throwable t) {
                 // If absolutely anything goes wrong, rollback to the savepoint.
@@ -98,11 +122,19 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
             } finally {
                 statement.close();
             }
+            for (Uri changeUri : changeUris) {
+                DatabaseTransaction.notifyChange(contentResolver, changeUri);
+            }
         }
-        contentResolver.notifyChange(uri, null, false);
         return allValues.length;
     }
 
+    /** Returns the narrowest URI on which to notify an insert of the given values. */
+    private Uri getChangeUri(Uri uri, ContentValues values) {
+        String patientUuid = mPatientColumn == null ? null : values.getAsString(mPatientColumn);
+        return patientUuid == null ? uri : Contracts.getPatientChangeUri(uri, patientUuid);
+    }
+
     private SQLiteStatement makeInsertStatement(
         SQLiteDatabase db, String table, String[] columns) {
         // I kind of hoped this would be provided by SQLiteDatabase or DatabaseHelper,
@@ -134,20 +166,67 @@ class GroupProviderDelegate implements ProviderDelegate<Database> {
     @Override public int delete(
         Database dbHelper, ContentResolver contentResolver, Uri uri,
         String selection, String[] selectionArgs) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Set<Uri> changeUris = getChangeUris(db, uri, selection, selectionArgs);
         int count = new QueryBuilder(mTable)
             .where(selection, selectionArgs)
-            .delete(dbHelper.getWritableDatabase());
-        contentResolver.notifyChange(uri, null, false);
+            .delete(db);
+        if (count > 0) {
+            notifyChanges(contentResolver, changeUris);
+        }
         return count;
     }
 
     @Override public int update(
         Database dbHelper, ContentResolver contentResolver, Uri uri,
         ContentValues values, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Set<Uri> changeUris = getChangeUris(db, uri, selection, selectionArgs);
         int count = new QueryBuilder(mTable)
             .where(selection, selectionArgs)
-            .update(dbHelper.getWritableDatabase(), values);
-        contentResolver.notifyChange(uri, null, false);
+            .update(db, values);
+        if (count > 0) {
+            if (mPatientColumn != null && values.containsKey(mPatientColumn)) {
+                // Rows moved to another patient change that patient's data too.
+                changeUris.add(getChangeUri(uri, values));
+            }
+            notifyChanges(contentResolver, changeUris);
+        }
         return count;
     }
+
+    /**
+     * Returns the narrowest URIs on which to notify an update or delete of the rows matching a
+     * selection: the URI of each patient whose rows match, or just the given URI if the table has
+     * no patient column, the selection covers the whole table, or too many patients are affected.
+     * This must be called before the rows are changed.
+     */
+    private Set<Uri> getChangeUris(
+        SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+        Set<Uri> changeUris = new LinkedHashSet<>();
+        if (mPatientColumn == null || selection == null || selection.isEmpty()) {
+            changeUris.add(uri);
+            return changeUris;
+        }
+        try (Cursor cursor = new QueryBuilder(mTable)
+            .where(selection, selectionArgs)
+            .groupBy(mPatientColumn)
+            .select(db, mPatientColumn)) {
+            if (cursor.getCount() > MAX_PATIENT_CHANGE_URIS) {
+                changeUris.add(uri);
+                return changeUris;
+            }
+            while (cursor.moveToNext()) {
+                changeUris.add(cursor.isNull(0) ? uri
+                    : Contracts.getPatientChangeUri(uri, cursor.getString(0)));
+            }
+        }
+        return changeUris;
+    }
+
+    private static void notifyChanges(ContentResolver contentResolver, Set<Uri> changeUris) {
+        for (Uri changeUri : changeUris) {
+            DatabaseTransaction.notifyChange(contentResolver, changeUri);
+        }
+    }
 }
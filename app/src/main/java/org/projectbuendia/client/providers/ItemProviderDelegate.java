@@ -74,7 +74,9 @@ public class ItemProviderDelegate implements ProviderDelegate<Database> {
             .where(mIdColumn + "=?", uri.getLastPathSegment())
             .where(selection, selectionArgs)
             .delete(dbHelper.getWritableDatabase());
-        contentResolver.notifyChange(uri, null, false);
+        if (count > 0) {
+            DatabaseTransaction.notifyChange(contentResolver, uri);
+        }
         return count;
     }
 
@@ -85,7 +87,9 @@ public class ItemProviderDelegate implements ProviderDelegate<Database> {
             .where(mIdColumn + "=?", uri.getLastPathSegment())
             .where(selection, selectionArgs)
             .update(dbHelper.getWritableDatabase(), values);
-        contentResolver.notifyChange(uri, null, false);
+        if (count > 0) {
+            DatabaseTransaction.notifyChange(contentResolver, uri);
+        }
         return count;
     }
 }
@@ -36,21 +36,27 @@ public class LocalizedLocationsDelegate implements ProviderDelegate<Database> {
      * <li>string location_uuid, the UUID of a location</li>
      * <li>string parent_uuid, the UUID of the location's parent</li>
      * <li>string name, the localized name of the location</li>
+     * <li>int patient_count, the number of patients directly in the location</li>
      * </ul>
+     * <p/>
+     * <p>Patients are counted in a subquery that only scans the patients_location index, rather
+     * than by joining every patient row to its location and grouping the result.
      */
     private static final String QUERY = ""
         + " SELECT"
         + "     locations.uuid AS uuid,"
         + "     locations.parent_uuid AS parent_uuid,"
         + "     location_names.name AS name,"
-        + "     COUNT(patients.location_uuid) AS patient_count"
+        + "     IFNULL(counts.patient_count, 0) AS patient_count"
         + " FROM locations"
         + "     INNER JOIN location_names"
         + "     ON locations.uuid = location_names.location_uuid"
-        + "     LEFT JOIN patients"
-        + "     ON locations.uuid = patients.location_uuid"
-        + " WHERE location_names.locale = ?"
-        + " GROUP BY locations.uuid";
+        + "     LEFT JOIN ("
+        + "         SELECT location_uuid, COUNT(*) AS patient_count"
+        + "         FROM patients GROUP BY location_uuid"
+        + "     ) AS counts"
+        + "     ON locations.uuid = counts.location_uuid"
+        + " WHERE location_names.locale = ?";
 
     @Override public String getType() {
         return Contracts.LocalizedLocations.GROUP_CONTENT_TYPE;
@@ -0,0 +1,169 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.providers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes many rows into one table through compiled statements that are compiled once and reused
+ * for every row, instead of going through the content provider one ContentValues at a time.
+ * <p/>
+ * <p>Bind the values for a row with the {@code bind} methods, using indexes into the columns
+ * given to the constructor, then call {@link #upsert()}; unbound columns are written as NULL.
+ * Changes are recorded with {@link #addChange} and each distinct URI is notified once, through
+ * {@link DatabaseTransaction#notifyChange}, when the writer is closed.  The caller is expected
+ * to hold a {@link DatabaseTransaction} around the whole run of writes.
+ */
+public final class TableWriter implements AutoCloseable {
+    private final SQLiteDatabase mDb;
+    private final ContentResolver mContentResolver;
+    private final Table mTable;
+    private final String[] mColumns;
+    private final SQLiteStatement mUpsert;
+    private final Map<String, SQLiteStatement> mDeletes = new HashMap<>();
+    private final Set<Uri> mChanges = new LinkedHashSet<>();
+
+    /**
+     * @param table   the table to write
+     * @param columns the columns that {@link #upsert()} writes, in binding order
+     */
+    public TableWriter(SQLiteDatabase db, ContentResolver contentResolver,
+                       Table table, String... columns) {
+        mDb = db;
+        mContentResolver = contentResolver;
+        mTable = table;
+        mColumns = columns;
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+            .append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+            params.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(") VALUES (").append(params).append(")");
+        mUpsert = db.compileStatement(sql.toString());
+    }
+
+    /**
+     * Returns the database behind a provider client, or null if the provider is not a
+     * {@link BuendiaProvider} in this process.
+     */
+    public static @Nullable SQLiteDatabase getLocalDatabase(ContentProviderClient client) {
+        return client.getLocalContentProvider() instanceof BuendiaProvider
+            ? ((BuendiaProvider) client.getLocalContentProvider()).getWritableDatabase() : null;
+    }
+
+    public TableWriter bind(int column, @Nullable String value) {
+        if (value == null) {
+            mUpsert.bindNull(column + 1);
+        } else {
+            mUpsert.bindString(column + 1, value);
+        }
+        return this;
+    }
+
+    public TableWriter bind(int column, long value) {
+        mUpsert.bindLong(column + 1, value);
+        return this;
+    }
+
+    public TableWriter bind(int column, @Nullable Long value) {
+        if (value == null) {
+            mUpsert.bindNull(column + 1);
+        } else {
+            mUpsert.bindLong(column + 1, value);
+        }
+        return this;
+    }
+
+    /** Binds the values for the columns of this writer that appear in the given ContentValues. */
+    public TableWriter bind(ContentValues values) {
+        for (int i = 0; i < mColumns.length; i++) {
+            Object value = values.get(mColumns[i]);
+            if (value == null) {
+                mUpsert.bindNull(i + 1);
+            } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+                mUpsert.bindLong(i + 1, ((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                mUpsert.bindDouble(i + 1, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                mUpsert.bindLong(i + 1, (Boolean) value ? 1 : 0);
+            } else {
+                mUpsert.bindString(i + 1, value.toString());
+            }
+        }
+        return this;
+    }
+
+    /** Inserts the bound row, replacing any row that conflicts with it, and clears the bindings. */
+    public void upsert() {
+        mUpsert.executeInsert();
+        mUpsert.clearBindings();
+    }
+
+    /**
+     * Deletes the rows whose value in the given column is the given key.  Returns the number of
+     * rows deleted, except that SQLite reports 0 when the table is a view.
+     */
+    public int delete(String keyColumn, String key) {
+        SQLiteStatement delete = mDeletes.get(keyColumn);
+        if (delete == null) {
+            delete = mDb.compileStatement(
+                "DELETE FROM " + mTable + " WHERE " + keyColumn + " = ?");
+            mDeletes.put(keyColumn, delete);
+        }
+        delete.bindString(1, key);
+        return delete.executeUpdateDelete();
+    }
+
+    /** Deletes every row in the table. */
+    public int deleteAll() {
+        return mDb.delete(mTable.name, "1", null);
+    }
+
+    /** Records a URI to notify when the writer is closed. */
+    public void addChange(Uri uri) {
+        mChanges.add(uri);
+    }
+
+    /** Sends the change notifications recorded so far; the writer remains usable. */
+    public void notifyChanges() {
+        for (Uri uri : mChanges) {
+            DatabaseTransaction.notifyChange(mContentResolver, uri);
+        }
+        mChanges.clear();
+    }
+
+    /** Releases the compiled statements and sends the recorded change notifications. */
+    @Override public void close() {
+        mUpsert.close();
+        for (SQLiteStatement delete : mDeletes.values()) {
+            delete.close();
+        }
+        mDeletes.clear();
+        notifyChanges();
+    }
+}
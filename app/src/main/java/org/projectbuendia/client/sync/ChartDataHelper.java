@@ -12,6 +12,7 @@
 package org.projectbuendia.client.sync;
 
 import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.database.Cursor;
 
 import com.google.common.collect.ImmutableSet;
@@ -20,6 +21,7 @@ import org.projectbuendia.client.json.ConceptType;
 import org.projectbuendia.client.models.Chart;
 import org.projectbuendia.client.models.ChartItem;
 import org.projectbuendia.client.models.ChartSection;
+import org.projectbuendia.client.models.ConceptDictionary;
 import org.projectbuendia.client.models.ConceptUuids;
 import org.projectbuendia.client.models.Form;
 import org.projectbuendia.client.models.Obs;
@@ -29,15 +31,20 @@ import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.ChartItems;
 import org.projectbuendia.client.providers.Contracts.ConceptNames;
 import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.Contracts.LatestObservations;
 import org.projectbuendia.client.providers.Contracts.Observations;
 import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.ui.chart.ObsFormat;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -64,49 +71,49 @@ public class ChartDataHelper {
 
     private static final Logger LOG = Logger.create();
 
-    /** When non-null, sConceptNames and sConceptTypes contain valid data for this locale. */
-    private static Object sLoadingLock = new Object();
-    private static String sLoadedLocale;
+    private static final ConceptDictionary sDictionary = ConceptDictionary.getInstance();
 
-    private static Map<String, String> sConceptNames;
-    private static Map<String, ConceptType> sConceptTypes;
+    /** The most patient UUIDs to pass as query parameters; SQLite allows 999 in all. */
+    private static final int MAX_PATIENT_UUID_ARGS = 500;
 
     public ChartDataHelper(ContentResolver contentResolver) {
         mContentResolver = checkNotNull(contentResolver);
     }
 
-    /** Marks in-memory concept data out of date.  Call this when concepts change in the app db. */
-    public static void invalidateLoadedConceptData() {
-        sLoadedLocale = null;
+    /**
+     * Registers an observer that is notified when the observations or orders for the given
+     * patient change, but not when other patients' data changes.
+     */
+    public void registerPatientDataObserver(String patientUuid, ContentObserver observer) {
+        mContentResolver.registerContentObserver(
+            Contracts.getPatientChangeUri(Observations.CONTENT_URI, patientUuid), false, observer);
+        mContentResolver.registerContentObserver(
+            Contracts.getPatientChangeUri(Orders.CONTENT_URI, patientUuid), false, observer);
     }
 
-    /** Loads concept names and types from the app db into HashMaps in memory. */
+    public void unregisterPatientDataObserver(ContentObserver observer) {
+        mContentResolver.unregisterContentObserver(observer);
+    }
+
+    /** Registers an observer that is notified when concepts or their names are synced. */
+    public void registerConceptDataObserver(ContentObserver observer) {
+        mContentResolver.registerContentObserver(Concepts.CONTENT_URI, false, observer);
+        mContentResolver.registerContentObserver(ConceptNames.CONTENT_URI, false, observer);
+    }
+
+    /** Registers an observer that is notified when chart layouts or forms are synced. */
+    public void registerChartDefinitionObserver(ContentObserver observer) {
+        mContentResolver.registerContentObserver(ChartItems.CONTENT_URI, false, observer);
+        mContentResolver.registerContentObserver(Contracts.Forms.CONTENT_URI, false, observer);
+    }
+
+    public void unregisterChartDefinitionObserver(ContentObserver observer) {
+        mContentResolver.unregisterContentObserver(observer);
+    }
+
+    /** Ensures that concept types and names for the given locale are in memory. */
     public void loadConceptData(String locale) {
-        synchronized (sLoadingLock) {
-            if (!locale.equals(sLoadedLocale)) {
-                sConceptNames = new HashMap<>();
-                try (Cursor c = mContentResolver.query(
-                    ConceptNames.CONTENT_URI, new String[] {ConceptNames.CONCEPT_UUID, ConceptNames.NAME},
-                    ConceptNames.LOCALE + " = ?", new String[] {locale}, null)) {
-                    while (c.moveToNext()) {
-                        sConceptNames.put(c.getString(0), c.getString(1));
-                    }
-                }
-                sConceptTypes = new HashMap<>();
-                try (Cursor c = mContentResolver.query(
-                    Concepts.CONTENT_URI, new String[] {Concepts.UUID, Concepts.CONCEPT_TYPE},
-                    null, null, null)) {
-                    while (c.moveToNext()) {
-                        try {
-                            sConceptTypes.put(c.getString(0), ConceptType.valueOf(c.getString(1)));
-                        } catch (IllegalArgumentException e) { /* bad concept type name */ }
-                    }
-                }
-                // Special case: we know this is a date even if it's not in any forms or charts.
-                sConceptTypes.put(ConceptUuids.ADMISSION_DATE_UUID, ConceptType.DATE);
-                sLoadedLocale = locale;
-            }
-        }
+        sDictionary.load(mContentResolver, locale);
     }
 
     /** Gets all the orders for a given patient. */
@@ -134,29 +141,34 @@ public class ChartDataHelper {
         return getObservations(patientUuid, ENGLISH_LOCALE);
     }
 
-    private Obs obsFromCursor(Cursor c) {
-        long millis = c.getLong(c.getColumnIndex(Observations.ENCOUNTER_MILLIS));
-        String conceptUuid = c.getString(c.getColumnIndex(Observations.CONCEPT_UUID));
-        ConceptType conceptType = sConceptTypes.get(conceptUuid);
-        String value = c.getString(c.getColumnIndex(Observations.VALUE));
+    /**
+     * Reads an Obs from a cursor on either the observations or latest_observations table,
+     * localized for the given locale, which must already be loaded.
+     */
+    private Obs obsFromCursor(Cursor c, ObsColumns cols, String locale) {
+        long millis = c.getLong(cols.millis);
+        String conceptUuid = c.getString(cols.conceptUuid);
+        ConceptType conceptType = sDictionary.getType(conceptUuid);
+        String value = c.getString(cols.value);
         String localizedValue = value;
         if (ConceptType.CODED.equals(conceptType)) {
-            localizedValue = sConceptNames.get(value);
+            localizedValue = sDictionary.getName(value, locale);
         }
-        return new Obs(millis, conceptUuid, conceptType, value, localizedValue);
+        Double number = cols.number < 0 || c.isNull(cols.number) ? null : c.getDouble(cols.number);
+        return new Obs(millis, conceptUuid, conceptType, value, localizedValue, number);
     }
 
-    private @Nullable ObsRow obsrowFromCursor(Cursor c) {
-        String uuid = c.getString(c.getColumnIndex(Observations.UUID));
-        long millis = c.getLong(c.getColumnIndex(Observations.ENCOUNTER_MILLIS));
-        String conceptUuid = c.getString(c.getColumnIndex(Observations.CONCEPT_UUID));
-        ConceptType conceptType = sConceptTypes.get(conceptUuid);
-        String value = c.getString(c.getColumnIndex(Observations.VALUE));
+    private @Nullable ObsRow obsrowFromCursor(Cursor c, ObsColumns cols) {
+        String uuid = c.getString(cols.uuid);
+        long millis = c.getLong(cols.millis);
+        String conceptUuid = c.getString(cols.conceptUuid);
+        ConceptType conceptType = sDictionary.getType(conceptUuid);
+        String value = c.getString(cols.value);
         String localizedValue = value;
         if (ConceptType.CODED.equals(conceptType)) {
-            localizedValue = sConceptNames.get(value);
+            localizedValue = sDictionary.getName(value, ENGLISH_LOCALE);
         }
-        String conceptName = sConceptNames.get(conceptUuid);
+        String conceptName = sDictionary.getName(conceptUuid, ENGLISH_LOCALE);
         if (conceptName == null){
             return null;
         }
@@ -176,8 +188,9 @@ public class ChartDataHelper {
             Observations.PATIENT_UUID + " = ? and "
                     + Observations.VOIDED + " IS NOT ?",
             new String[] {patientUuid,"1"},null)) {
+            ObsColumns cols = new ObsColumns(c);
             while (c.moveToNext()) {
-                results.add(obsFromCursor(c));
+                results.add(obsFromCursor(c, cols, locale));
             }
         }
         return results;
@@ -196,8 +209,9 @@ public class ChartDataHelper {
                 new String[] {"1",patientUuid,conceptUuid},
                 Observations.ENCOUNTER_MILLIS + " ASC"
         )) {
+            ObsColumns cols = new ObsColumns(c);
             while (c.moveToNext()) {
-                ObsRow row = obsrowFromCursor(c);
+                ObsRow row = obsrowFromCursor(c, cols);
                 if (row !=null){results.add(row);}
             }
         }
@@ -217,8 +231,9 @@ public class ChartDataHelper {
 
         try(Cursor c = mContentResolver.query(Observations.CONTENT_URI,null,conditions,values, order))
         {
+            ObsColumns cols = new ObsColumns(c);
             while (c.moveToNext()) {
-                ObsRow row = obsrowFromCursor(c);
+                ObsRow row = obsrowFromCursor(c, cols);
                 if (row !=null){results.add(row);}
             }
         }
@@ -239,8 +254,9 @@ public class ChartDataHelper {
 
         try(Cursor c = mContentResolver.query(Observations.CONTENT_URI,null,conditions,values, order))
         {
+            ObsColumns cols = new ObsColumns(c);
             while (c.moveToNext()) {
-                ObsRow row = obsrowFromCursor(c);
+                ObsRow row = obsrowFromCursor(c, cols);
                 if (row !=null){results.add(row);}
             }
         }
@@ -257,38 +273,85 @@ public class ChartDataHelper {
     /** Gets the latest observation of each concept for a given patient from the app db. */
     // TODO/cleanup: Have this return a Map<String, ObsPoint>.
     public Map<String, Obs> getLatestObservations(String patientUuid, String locale) {
+        loadConceptData(locale);
         Map<String, Obs> result = new HashMap<>();
-        for (Obs obs : getObservations(patientUuid, locale)) {
-            Obs existing = result.get(obs.conceptUuid);
-            if (existing == null || obs.time.isAfter(existing.time)) {
+        try (Cursor c = mContentResolver.query(
+            LatestObservations.CONTENT_URI, null,
+            LatestObservations.PATIENT_UUID + " = ?", new String[] {patientUuid}, null)) {
+            ObsColumns cols = new ObsColumns(c);
+            while (c.moveToNext()) {
+                Obs obs = obsFromCursor(c, cols, locale);
                 result.put(obs.conceptUuid, obs);
             }
         }
         return result;
     }
 
-    /** Gets the latest observation of the specified concept for all patients. */
-    // TODO/cleanup: Have this return a Map<String, ObsPoint>.
-    public Map<String, Obs> getLatestObservationsForConcept(
-        String conceptUuid, String locale) {
+    /**
+     * Gets the latest observations of several concepts for a set of patients, keyed by patient
+     * UUID and then by concept UUID.  All the concepts are read in one query on
+     * latest_observations, which holds one row per patient and concept, so the cost of this
+     * doesn't grow with the number of observations ever recorded.
+     * @param conceptUuids the concepts to get observations of
+     * @param patientUuids the patients to get observations for, or null for all patients
+     * @param locale       the locale in which to localize coded values
+     */
+    public Map<String, Map<String, Obs>> getLatestObservations(
+        Collection<String> conceptUuids, @Nullable Collection<String> patientUuids, String locale) {
         loadConceptData(locale);
+        Map<String, Map<String, Obs>> result = new HashMap<>();
+        if (conceptUuids.isEmpty() || (patientUuids != null && patientUuids.isEmpty())) {
+            return result;
+        }
+
+        List<String> args = new ArrayList<>(conceptUuids);
+        String selection = LatestObservations.CONCEPT_UUID
+            + " IN (" + getPlaceholders(conceptUuids.size()) + ")";
+        // A long list of patients would exceed SQLite's limit on query parameters, so
+        // beyond a certain size the patients are filtered here instead.
+        Set<String> patientFilter = null;
+        if (patientUuids != null) {
+            if (patientUuids.size() <= MAX_PATIENT_UUID_ARGS) {
+                selection += " AND " + LatestObservations.PATIENT_UUID
+                    + " IN (" + getPlaceholders(patientUuids.size()) + ")";
+                args.addAll(patientUuids);
+            } else {
+                patientFilter = new HashSet<>(patientUuids);
+            }
+        }
+
         try (Cursor c = mContentResolver.query(
-            Observations.CONTENT_URI, null,
-                Observations.VOIDED + " IS NOT ? and "
-                    + Observations.CONCEPT_UUID + " = ?",
-                new String[] {"1",conceptUuid},
-            Observations.ENCOUNTER_MILLIS + " DESC")) {
-            Map<String, Obs> result = new HashMap<>();
+            LatestObservations.CONTENT_URI, null,
+            selection, args.toArray(new String[args.size()]), null)) {
+            ObsColumns cols = new ObsColumns(c);
+            int patientUuidIndex = c.getColumnIndex(LatestObservations.PATIENT_UUID);
             while (c.moveToNext()) {
-                String patientUuid = Utils.getString(c, Observations.PATIENT_UUID);
-                if (result.containsKey(patientUuid)) continue;
-                result.put(patientUuid, obsFromCursor(c));
+                String patientUuid = c.getString(patientUuidIndex);
+                if (patientFilter != null && !patientFilter.contains(patientUuid)) continue;
+                Map<String, Obs> patientObs = result.get(patientUuid);
+                if (patientObs == null) {
+                    patientObs = new HashMap<>();
+                    result.put(patientUuid, patientObs);
+                }
+                Obs obs = obsFromCursor(c, cols, locale);
+                patientObs.put(obs.conceptUuid, obs);
             }
-            return result;
         }
+        return result;
+    }
+
+    private static String getPlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i > 0 ? ", ?" : "?");
+        }
+        return placeholders.toString();
     }
 
-    /** Retrieves and assembles a Chart from the local datastore. */
+    /**
+     * Retrieves and assembles a Chart from the local datastore.  Building the chart items also
+     * parses their format patterns, which {@link ObsFormat} caches for rendering.
+     */
     public List<Chart> getCharts(String uuid) {
         Map<Long, ChartSection> tileGroupsById = new HashMap<>();
         Map<Long, ChartSection> rowGroupsById = new HashMap<>();
@@ -354,6 +417,26 @@ public class ChartDataHelper {
         return Charts;
     }
 
+    /**
+     * Column indexes for reading observations, looked up once per cursor rather than once per
+     * row.  The UUID and VALUE_NUMBER columns are -1 on tables that lack them.
+     */
+    private static class ObsColumns {
+        final int uuid;
+        final int millis;
+        final int conceptUuid;
+        final int value;
+        final int number;
+
+        ObsColumns(Cursor c) {
+            uuid = c.getColumnIndex(Observations.UUID);
+            millis = c.getColumnIndex(Observations.ENCOUNTER_MILLIS);
+            conceptUuid = c.getColumnIndex(Observations.CONCEPT_UUID);
+            value = c.getColumnIndex(Observations.VALUE);
+            number = c.getColumnIndex(Observations.VALUE_NUMBER);
+        }
+    }
+
     public List<Form> getForms() {
         Cursor cursor = mContentResolver.query(
             Contracts.Forms.CONTENT_URI, null, null, null, null);
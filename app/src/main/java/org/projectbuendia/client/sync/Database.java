@@ -12,14 +12,18 @@
 package org.projectbuendia.client.sync;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
 
+import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.providers.Contracts.Table;
 import org.projectbuendia.client.utils.Logger;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -31,12 +35,19 @@ public class Database extends SQLiteOpenHelper {
     private static final Logger LOG = Logger.create();
 
     /** Schema version. */
-    public static final int DATABASE_VERSION = 29;
+    public static final int DATABASE_VERSION = 33;
+
+    /**
+     * The oldest schema version that can be migrated in place.  Databases
+     * older than this are cleared and rebuilt from the server by a full sync.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 29;
 
     /** Filename for SQLite file. */
     public static final String DATABASE_FILENAME = "buendia.db";
 
     File file;
+    final StorageProfile profile;
 
     /**
      * A map of SQL table schemas, with one entry per table.  The values should
@@ -81,20 +92,44 @@ public class Database extends SQLiteOpenHelper {
             + "name TEXT,"
             + "UNIQUE (location_uuid, locale)");
 
-        SCHEMAS.put(Table.OBSERVATIONS, ""
+        // Every patient, encounter, concept, and user UUID that an observation
+        // refers to is stored once here, and referred to by its integer id.
+        SCHEMAS.put(Table.UUIDS, ""
+            + "id INTEGER PRIMARY KEY NOT NULL,"
+            + "uuid TEXT UNIQUE NOT NULL");
+
+        // The storage behind the observations view (see VIEWS).  Each value is
+        // stored in exactly one of the value_ columns: answers to coded and
+        // boolean concepts as the uuids id of the answer, numbers and times as
+        // numbers whenever that preserves their exact text, and all others as text.
+        SCHEMAS.put(Table.OBSERVATION_DATA, ""
+            + "id INTEGER PRIMARY KEY NOT NULL,"
             // uuid intentionally allows null values, because temporary observations inserted
-            // locally after submitting a form don't have UUIDs. Note that PRIMARY KEY in SQLite
+            // locally after submitting a form don't have UUIDs. Note that UNIQUE in SQLite
             // (and many other databases) treats all NULL values as different from all other values,
             // so it's still ok to insert multiple records with a NULL UUID.
-            + "uuid TEXT PRIMARY KEY,"
-            + "patient_uuid TEXT,"
-            + "encounter_uuid TEXT,"
+            + "uuid TEXT UNIQUE,"
+            + "patient_id INTEGER,"
+            + "encounter_id INTEGER,"
             + "encounter_millis INTEGER,"
-            + "concept_uuid TEXT,"
-            + "enterer_uuid TEXT,"
-            + "value STRING,"
+            + "concept_id INTEGER,"
+            + "enterer_id INTEGER,"
+            + "value_number NUMERIC,"
+            + "value_coded_id INTEGER,"
+            + "value_text TEXT,"
             + "voided INTEGER,"
-            + "UNIQUE (patient_uuid, encounter_uuid, concept_uuid)");
+            + "UNIQUE (patient_id, encounter_id, concept_id)");
+
+        // A materialized view of the latest non-voided observation for each
+        // (patient, concept) pair, maintained by the triggers in TRIGGERS.
+        SCHEMAS.put(Table.LATEST_OBSERVATIONS, ""
+            + "patient_uuid TEXT NOT NULL,"
+            + "concept_uuid TEXT NOT NULL,"
+            + "encounter_millis INTEGER,"
+            + "uuid TEXT,"
+            + "value STRING,"
+            + "value_number NUMERIC,"
+            + "PRIMARY KEY (patient_uuid, concept_uuid)");
 
         SCHEMAS.put(Table.ORDERS, ""
             + "uuid TEXT PRIMARY KEY NOT NULL,"
@@ -103,6 +138,20 @@ public class Database extends SQLiteOpenHelper {
             + "start_millis INTEGER,"
             + "stop_millis INTEGER");
 
+        // Unlike the other tables, this one holds data that is not yet on the server.
+        SCHEMAS.put(Table.OUTBOX_ITEMS, ""
+            + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "type TEXT NOT NULL,"
+            + "patient_uuid TEXT,"
+            + "local_uuid TEXT,"
+            + "server_uuid TEXT,"
+            + "payload TEXT NOT NULL,"
+            + "state TEXT NOT NULL,"
+            + "attempts INTEGER NOT NULL DEFAULT 0,"
+            + "next_attempt_millis INTEGER NOT NULL DEFAULT 0,"
+            + "last_error TEXT,"
+            + "created_millis INTEGER");
+
         SCHEMAS.put(Table.CHART_ITEMS, ""
             + "rowid INTEGER PRIMARY KEY NOT NULL,"
             + "chart_uuid TEXT,"
@@ -132,23 +181,437 @@ public class Database extends SQLiteOpenHelper {
         SCHEMAS.put(Table.SYNC_TOKENS, ""
             + "table_name TEXT PRIMARY KEY NOT NULL,"
             + "sync_token TEXT NOT NULL");
+
+        // SQLite does not count the rows of a view that an UPDATE or DELETE
+        // changes through INSTEAD OF triggers, so those triggers count them
+        // here instead, for QueryBuilder to read; one row per view.
+        SCHEMAS.put(Table.VIEW_CHANGES, ""
+            + "view_name TEXT PRIMARY KEY NOT NULL,"
+            + "count INTEGER NOT NULL");
+    }
+
+    /**
+     * A map of SQL views, with one entry per view.  The values should be strings
+     * that take the place of X in a "CREATE VIEW foo AS X" statement.  Tables
+     * listed here have no entry in SCHEMAS.
+     */
+    static final Map<Table, String> VIEWS = new HashMap<>();
+
+    static {
+        // The observations as clients see them, with UUIDs and text values, as
+        // they were stored before observation_data existed.  Observations without
+        // a patient or concept are not stored.  Writes go through the triggers
+        // named observations_instead_of_* below; the sync writes observation_data
+        // directly, through ObservationDataWriter.  _id is the id of the row in
+        // observation_data, and patient_id and concept_id are for the triggers.
+        VIEWS.put(Table.OBSERVATIONS, ""
+            + "SELECT o.id AS _id,"
+            + " o.uuid AS uuid,"
+            + " p.uuid AS patient_uuid,"
+            + " e.uuid AS encounter_uuid,"
+            + " o.encounter_millis AS encounter_millis,"
+            + " c.uuid AS concept_uuid,"
+            + " u.uuid AS enterer_uuid,"
+            + " COALESCE(v.uuid, CAST(o.value_number AS TEXT), o.value_text) AS value,"
+            + " o.value_number AS value_number,"
+            + " o.voided AS voided,"
+            + " o.patient_id AS patient_id,"
+            + " o.concept_id AS concept_id"
+            + " FROM observation_data o"
+            + " JOIN uuids p ON p.id = o.patient_id"
+            + " JOIN uuids c ON c.id = o.concept_id"
+            + " LEFT JOIN uuids e ON e.id = o.encounter_id"
+            + " LEFT JOIN uuids u ON u.id = o.enterer_id"
+            + " LEFT JOIN uuids v ON v.id = o.value_coded_id");
+    }
+
+    /**
+     * A map of secondary indexes, keyed by index name.  The values should be
+     * strings that take the place of X in a "CREATE INDEX name ON X" statement.
+     * Each index is chosen to match the WHERE and ORDER BY clauses of an actual
+     * query; see the comments for the queries that each one serves.
+     */
+    static final Map<String, String> INDEXES = new LinkedHashMap<>();
+
+    static {
+        // ChartDataHelper.getPatientObservationsByConcept and ...ByConceptMillis
+        // (equality on patient and concept, range and sort on time), and the
+        // refresh of latest_observations by the triggers below.  Queries on the
+        // observations view look up the patient and concept ids in uuids first.
+        INDEXES.put("observation_data_patient_concept_millis",
+            "observation_data (patient_id, concept_id, encounter_millis)");
+
+        // ChartDataHelper.getObservations and getPatientObservationsByMillis
+        // (equality on patient, range and sort on time).
+        INDEXES.put("observation_data_patient_millis",
+            "observation_data (patient_id, encounter_millis)");
+
+        // Observations of one concept across patients (equality on concept,
+        // sort on time descending).
+        INDEXES.put("observation_data_concept_millis",
+            "observation_data (concept_id, encounter_millis)");
+
+        // ChartDataHelper.getOrders (equality on patient, sort on start time).
+        INDEXES.put("orders_patient_start",
+            "orders (patient_uuid, start_millis)");
+
+        // PatientCountsDelegate, LocalizedLocationsDelegate, and LocationUuidFilter.
+        INDEXES.put("patients_location", "patients (location_uuid)");
+
+        // ChartDataHelper.getCharts (equality on chart, sort on weight).
+        INDEXES.put("chart_items_chart_weight", "chart_items (chart_uuid, weight)");
+
+        // ConceptFilter (equality on concept and value) and the multi-concept
+        // ChartDataHelper.getLatestObservations (equality on concept).
+        INDEXES.put("latest_observations_concept_value",
+            "latest_observations (concept_uuid, value)");
+    }
+
+    /** Gets an expression for the UUID with a uuids id given by an expression. */
+    private static String getUuidSql(String id) {
+        return "(SELECT uuid FROM uuids WHERE id = " + id + ")";
+    }
+
+    /**
+     * Gets an expression for the text value of a row of observation_data, as
+     * in the value column of the observations view.  The row is given by a
+     * prefix such as "NEW".
+     */
+    private static String getObsValueSql(String row) {
+        return "COALESCE(" + getUuidSql(row + ".value_coded_id") + ","
+            + " CAST(" + row + ".value_number AS TEXT), " + row + ".value_text)";
+    }
+
+    /**
+     * Replaces the latest_observations row for one (patient, concept) pair with
+     * the newest non-voided observation of that pair, or removes it if there is
+     * none.  The lookup is served by observation_data_patient_concept_millis,
+     * and only the chosen row's UUIDs are looked up.  The pair is given by
+     * expressions such as "OLD.patient_id".
+     */
+    private static String getRefreshLatestObsSql(String patientId, String conceptId) {
+        return ""
+            + " DELETE FROM latest_observations"
+            + "     WHERE patient_uuid = " + getUuidSql(patientId)
+            + "     AND concept_uuid = " + getUuidSql(conceptId) + ";"
+            + " INSERT INTO latest_observations"
+            + "     (patient_uuid, concept_uuid, encounter_millis, uuid, value, value_number)"
+            + "     SELECT " + getUuidSql(patientId) + ", " + getUuidSql(conceptId) + ","
+            + "     o.encounter_millis, o.uuid, " + getObsValueSql("o") + ", o.value_number"
+            + "     FROM observation_data o"
+            + "     WHERE o.patient_id = " + patientId
+            + "     AND o.concept_id = " + conceptId
+            + "     AND o.voided IS NOT 1"
+            + "     ORDER BY o.encounter_millis DESC LIMIT 1;";
+    }
+
+    /**
+     * Makes the NEW row of observation_data the latest observation of its
+     * (patient, concept) pair, unless the current latest one is newer.  Only
+     * an insertion can make this change, because any row that an insertion
+     * replaces has already been removed by observation_data_delete_latest.
+     * A null time sorts before all others, as in getRefreshLatestObsSql.
+     * Every writer of observation_data inserts plainly or with OR REPLACE,
+     * neither of which overrides the OR REPLACE here.
+     */
+    private static String getAddLatestObsSql() {
+        return ""
+            + " INSERT OR REPLACE INTO latest_observations"
+            + "     (patient_uuid, concept_uuid, encounter_millis, uuid, value, value_number)"
+            + "     SELECT p.uuid, c.uuid, NEW.encounter_millis, NEW.uuid,"
+            + "     " + getObsValueSql("NEW") + ", NEW.value_number"
+            + "     FROM uuids p, uuids c"
+            + "     WHERE p.id = NEW.patient_id AND c.id = NEW.concept_id"
+            + "     AND NOT EXISTS (SELECT 1 FROM latest_observations l"
+            + "         WHERE l.patient_uuid = p.uuid AND l.concept_uuid = c.uuid"
+            + "         AND l.encounter_millis IS NOT NULL AND (NEW.encounter_millis IS NULL"
+            + "             OR l.encounter_millis > NEW.encounter_millis));";
+    }
+
+    /** Counts one row of the given view as changed; see Table.VIEW_CHANGES. */
+    private static String getCountViewChangeSql(Table view) {
+        return " UPDATE " + Table.VIEW_CHANGES + " SET count = count + 1"
+            + "     WHERE view_name = '" + view + "';";
+    }
+
+    /**
+     * Adds a UUID, given by an expression such as "NEW.patient_uuid", to the
+     * uuids table if it is not null and not already there.  This never hits a
+     * conflict, so that the INSERT OR REPLACE of a caller cannot renumber a UUID.
+     */
+    private static String getInternUuidSql(String uuid, String condition) {
+        return ""
+            + " INSERT INTO uuids (uuid) SELECT " + uuid
+            + "     WHERE " + uuid + " IS NOT NULL AND " + condition
+            + "     AND NOT EXISTS (SELECT 1 FROM uuids WHERE uuid = " + uuid + ");";
+    }
+
+    /** Gets an expression for the uuids id of a UUID given by an expression. */
+    private static String getUuidIdSql(String uuid) {
+        return "(SELECT id FROM uuids WHERE uuid = " + uuid + ")";
+    }
+
+    /** An expression for the type of the concept of the observation being written. */
+    private static final String NEW_CONCEPT_TYPE =
+        "(SELECT concept_type FROM concepts WHERE uuid = NEW.concept_uuid)";
+
+    /** A condition that is true when the new value is an answer concept UUID. */
+    private static final String NEW_VALUE_IS_CODED =
+        NEW_CONCEPT_TYPE + " IN ('CODED', 'BOOLEAN')";
+
+    /**
+     * A condition that is true when the new value can be stored as a number
+     * and read back as exactly the same text, so that "38" and "38.5" are
+     * stored as numbers, but "38.50" and "1e2" are kept as text.  The value
+     * may already be a number, as in the STRING column of schema version 32.
+     */
+    private static final String NEW_VALUE_IS_NUMBER =
+        NEW_CONCEPT_TYPE + " IN ('NUMERIC', 'DATETIME')"
+            + " AND CAST(CAST(NEW.value AS NUMERIC) AS TEXT) = CAST(NEW.value AS TEXT)";
+
+    /** Adds the UUIDs of the NEW row of the observations view to uuids. */
+    private static String getInternObsUuidsSql() {
+        return ""
+            + getInternUuidSql("NEW.patient_uuid", "1")
+            + getInternUuidSql("NEW.encounter_uuid", "1")
+            + getInternUuidSql("NEW.concept_uuid", "1")
+            + getInternUuidSql("NEW.enterer_uuid", "1")
+            + getInternUuidSql("NEW.value", NEW_VALUE_IS_CODED);
+    }
+
+    /** An expression for value_number of the NEW row of the observations view. */
+    private static final String NEW_VALUE_NUMBER =
+        "CASE WHEN " + NEW_VALUE_IS_NUMBER + " THEN CAST(NEW.value AS NUMERIC) END";
+
+    /** An expression for value_coded_id of the NEW row of the observations view. */
+    private static final String NEW_VALUE_CODED_ID =
+        "CASE WHEN " + NEW_VALUE_IS_CODED + " THEN " + getUuidIdSql("NEW.value") + " END";
+
+    /** An expression for value_text of the NEW row of the observations view. */
+    private static final String NEW_VALUE_TEXT =
+        "CASE WHEN " + NEW_VALUE_IS_CODED + " OR " + NEW_VALUE_IS_NUMBER
+            + " THEN NULL ELSE NEW.value END";
+
+    /**
+     * Stores the NEW row of the observations view in observation_data.  The
+     * caller's conflict handling applies, so INSERT OR REPLACE on the view
+     * replaces the row that has the same uuid or (patient, encounter, concept).
+     */
+    private static String getInsertObsDataSql() {
+        return ""
+            + getInternObsUuidsSql()
+            + " INSERT INTO observation_data"
+            + "     (uuid, patient_id, encounter_id, encounter_millis, concept_id,"
+            + "     enterer_id, value_number, value_coded_id, value_text, voided)"
+            + "     SELECT NEW.uuid,"
+            + "     " + getUuidIdSql("NEW.patient_uuid") + ","
+            + "     " + getUuidIdSql("NEW.encounter_uuid") + ","
+            + "     NEW.encounter_millis,"
+            + "     " + getUuidIdSql("NEW.concept_uuid") + ","
+            + "     " + getUuidIdSql("NEW.enterer_uuid") + ","
+            + "     " + NEW_VALUE_NUMBER + ","
+            + "     " + NEW_VALUE_CODED_ID + ","
+            + "     " + NEW_VALUE_TEXT + ","
+            + "     NEW.voided"
+            + "     WHERE NEW.patient_uuid IS NOT NULL AND NEW.concept_uuid IS NOT NULL;";
+    }
+
+    /**
+     * Stores the NEW row of the observations view in the row of observation_data
+     * that the OLD row came from, so that the row keeps its id.  An observation
+     * that loses its patient or concept is deleted, as it could not be inserted.
+     */
+    private static String getUpdateObsDataSql() {
+        return ""
+            + getInternObsUuidsSql()
+            + " DELETE FROM observation_data WHERE id = OLD._id"
+            + "     AND (NEW.patient_uuid IS NULL OR NEW.concept_uuid IS NULL);"
+            + " UPDATE observation_data SET"
+            + "     uuid = NEW.uuid,"
+            + "     patient_id = " + getUuidIdSql("NEW.patient_uuid") + ","
+            + "     encounter_id = " + getUuidIdSql("NEW.encounter_uuid") + ","
+            + "     encounter_millis = NEW.encounter_millis,"
+            + "     concept_id = " + getUuidIdSql("NEW.concept_uuid") + ","
+            + "     enterer_id = " + getUuidIdSql("NEW.enterer_uuid") + ","
+            + "     value_number = " + NEW_VALUE_NUMBER + ","
+            + "     value_coded_id = " + NEW_VALUE_CODED_ID + ","
+            + "     value_text = " + NEW_VALUE_TEXT + ","
+            + "     voided = NEW.voided"
+            + "     WHERE id = OLD._id;";
+    }
+
+    /**
+     * A map of triggers, keyed by trigger name.  The values should be strings
+     * that take the place of X in a "CREATE TRIGGER name X" statement.
+     */
+    static final Map<String, String> TRIGGERS = new LinkedHashMap<>();
+
+    static {
+        // These make the observations view writable.  An update changes the
+        // row of observation_data in place, so _id stays the same.  Updates and
+        // deletions are counted in view_changes; insertions need no count.
+        TRIGGERS.put("observations_instead_of_insert",
+            "INSTEAD OF INSERT ON observations BEGIN"
+                + getInsertObsDataSql()
+                + " END");
+        TRIGGERS.put("observations_instead_of_delete",
+            "INSTEAD OF DELETE ON observations BEGIN"
+                + " DELETE FROM observation_data WHERE id = OLD._id;"
+                + getCountViewChangeSql(Table.OBSERVATIONS)
+                + " END");
+        TRIGGERS.put("observations_instead_of_update",
+            "INSTEAD OF UPDATE ON observations BEGIN"
+                + getUpdateObsDataSql()
+                + getCountViewChangeSql(Table.OBSERVATIONS)
+                + " END");
+
+        // These keep latest_observations current for every writer of
+        // observation_data: sync, locally cached form results, and voiding.
+        // Rows that INSERT OR REPLACE removes fire the delete trigger because
+        // onConfigure turns on recursive_triggers, so a replacement that moves
+        // a uuid to another (patient, concept) pair refreshes the old pair too.
+        // An insertion only compares the new row with the current latest one.
+        TRIGGERS.put("observation_data_insert_latest",
+            "AFTER INSERT ON observation_data"
+                + " WHEN NEW.voided IS NOT 1 AND NEW.patient_id IS NOT NULL"
+                + " AND NEW.concept_id IS NOT NULL BEGIN"
+                + getAddLatestObsSql()
+                + " END");
+        TRIGGERS.put("observation_data_delete_latest",
+            "AFTER DELETE ON observation_data BEGIN"
+                + getRefreshLatestObsSql("OLD.patient_id", "OLD.concept_id")
+                + " END");
+        TRIGGERS.put("observation_data_update_latest",
+            "AFTER UPDATE ON observation_data BEGIN"
+                + getRefreshLatestObsSql("OLD.patient_id", "OLD.concept_id")
+                + " END");
+        TRIGGERS.put("observation_data_move_latest",
+            "AFTER UPDATE OF patient_id, concept_id ON observation_data"
+                + " WHEN NEW.patient_id IS NOT OLD.patient_id"
+                + " OR NEW.concept_id IS NOT OLD.concept_id BEGIN"
+                + getRefreshLatestObsSql("NEW.patient_id", "NEW.concept_id")
+                + " END");
+    }
+
+    /**
+     * A map of in-place schema migrations, keyed by the version they upgrade
+     * to.  Each value is a list of SQL statements that takes a database at the
+     * preceding version to the keyed version without discarding any data.
+     * Every increment of DATABASE_VERSION should come with an entry here;
+     * otherwise, upgrading falls back to clearing the database.
+     */
+    static final Map<Integer, String[]> MIGRATIONS = new HashMap<>();
+
+    static {
+        // The observations indexes that version 30 added are left out: version
+        // 33 replaces that table, and its indexes with it.
+        MIGRATIONS.put(30, new String[] {
+            getCreateIndexSql("orders_patient_start"),
+            getCreateIndexSql("patients_location"),
+            getCreateIndexSql("chart_items_chart_weight")
+        });
+        // The table is created with its version 31 columns, since version 33
+        // adds value_number.  It is filled in by version 33, which rebuilds it
+        // from the observations copied into the new layout; the triggers that
+        // version 31 put on the old observations table would be dropped there.
+        MIGRATIONS.put(31, new String[] {
+            "CREATE TABLE " + Table.LATEST_OBSERVATIONS + " ("
+                + "patient_uuid TEXT NOT NULL,"
+                + "concept_uuid TEXT NOT NULL,"
+                + "encounter_millis INTEGER,"
+                + "uuid TEXT,"
+                + "value STRING,"
+                + "PRIMARY KEY (patient_uuid, concept_uuid));",
+            getCreateIndexSql("latest_observations_concept_value")
+        });
+        MIGRATIONS.put(32, new String[] {
+            "CREATE TABLE " + Table.OUTBOX_ITEMS
+                + " (" + SCHEMAS.get(Table.OUTBOX_ITEMS) + ");"
+        });
+        MIGRATIONS.put(33, new String[] {
+            "DROP TRIGGER IF EXISTS observations_insert_latest;",
+            "DROP TRIGGER IF EXISTS observations_delete_latest;",
+            "DROP TRIGGER IF EXISTS observations_update_latest;",
+            "ALTER TABLE observations RENAME TO observations_v32;",
+            "ALTER TABLE latest_observations ADD COLUMN value_number NUMERIC;",
+            "DELETE FROM latest_observations;",
+            getCreateTableSql(Table.UUIDS),
+            getCreateTableSql(Table.OBSERVATION_DATA),
+            getCreateTableSql(Table.VIEW_CHANGES),
+            getCreateViewSql(Table.OBSERVATIONS),
+            getCreateIndexSql("observation_data_patient_concept_millis"),
+            getCreateIndexSql("observation_data_patient_millis"),
+            getCreateIndexSql("observation_data_concept_millis"),
+            getCreateTriggerSql("observations_instead_of_insert"),
+            getCreateTriggerSql("observations_instead_of_delete"),
+            getCreateTriggerSql("observations_instead_of_update"),
+            getCreateTriggerSql("observation_data_insert_latest"),
+            getCreateTriggerSql("observation_data_delete_latest"),
+            getCreateTriggerSql("observation_data_update_latest"),
+            getCreateTriggerSql("observation_data_move_latest"),
+            // Copying through the view converts each row to the new layout, and
+            // the triggers rebuild latest_observations along the way.
+            "INSERT INTO observations"
+                + " (uuid, patient_uuid, encounter_uuid, encounter_millis,"
+                + " concept_uuid, enterer_uuid, value, voided)"
+                + " SELECT uuid, patient_uuid, encounter_uuid, encounter_millis,"
+                + " concept_uuid, enterer_uuid, value, voided"
+                + " FROM observations_v32;",
+            "DROP TABLE observations_v32;"
+        });
     }
 
     public Database(Context context) {
         super(context, DATABASE_FILENAME, null, DATABASE_VERSION);
         file = context.getDatabasePath(DATABASE_FILENAME);
+        // The provider can be created before App.onCreate() has set up the
+        // settings, so read the profile straight from the shared preferences.
+        profile = new AppSettings(PreferenceManager.getDefaultSharedPreferences(context),
+            context.getResources()).getStorageProfile();
+        setWriteAheadLoggingEnabled(profile.writeAheadLogging);
+    }
+
+    @Override public void onConfigure(SQLiteDatabase db) {
+        profile.applyTo(db);
+        // Makes the rows that INSERT OR REPLACE removes fire DELETE triggers,
+        // which keep latest_observations current; see TRIGGERS.  All writes
+        // go through this connection, the one that onConfigure is given.
+        db.execSQL("PRAGMA recursive_triggers = ON");
     }
 
     @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache of data on the server, so its upgrade
-        // policy is to discard all the data and start over.
-        clear(db);
+        // This database is only a cache of data on the server, so if we don't
+        // know how to migrate it in place, we discard all the data and start over.
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            LOG.i("No migration from version %d; clearing database.", oldVersion);
+            clear(db);
+            return;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            if (!MIGRATIONS.containsKey(version)) {
+                LOG.w("No migration to version %d; clearing database.", version);
+                clear(db);
+                return;
+            }
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            LOG.i("Migrating database to version %d", version);
+            for (String sql : MIGRATIONS.get(version)) {
+                db.execSQL(sql);
+            }
+        }
     }
 
     public void clear(SQLiteDatabase db) {
         LOG.i("Clearing database.");
         for (Table table : Table.values()) {
-            db.execSQL("DROP TABLE IF EXISTS " + table);
+            // A name may belong to a table in an old schema and a view in this one.
+            try (Cursor c = db.rawQuery(
+                "SELECT type FROM sqlite_master WHERE name = ?", new String[] {table.name})) {
+                if (c.moveToFirst()) {
+                    db.execSQL("DROP " + c.getString(0).toUpperCase() + " IF EXISTS " + table);
+                }
+            }
         }
         onCreate(db);
     }
@@ -156,8 +619,39 @@ public class Database extends SQLiteOpenHelper {
     @Override public void onCreate(SQLiteDatabase db) {
         LOG.i("Initializing database");
         for (Table table : Table.values()) {
-            db.execSQL("CREATE TABLE " + table + " (" + SCHEMAS.get(table) + ");");
+            if (!VIEWS.containsKey(table)) {
+                db.execSQL(getCreateTableSql(table));
+            }
+        }
+        for (Table table : VIEWS.keySet()) {
+            db.execSQL(getCreateViewSql(table));
+        }
+        for (String name : INDEXES.keySet()) {
+            db.execSQL(getCreateIndexSql(name));
         }
+        for (String name : TRIGGERS.keySet()) {
+            db.execSQL(getCreateTriggerSql(name));
+        }
+    }
+
+    /** Gets the SQL statement that creates a table from SCHEMAS. */
+    static String getCreateTableSql(Table table) {
+        return "CREATE TABLE " + table + " (" + SCHEMAS.get(table) + ");";
+    }
+
+    /** Gets the SQL statement that creates a view from VIEWS. */
+    static String getCreateViewSql(Table table) {
+        return "CREATE VIEW " + table + " AS " + VIEWS.get(table) + ";";
+    }
+
+    /** Gets the SQL statement that creates the named index from INDEXES. */
+    static String getCreateIndexSql(String name) {
+        return "CREATE INDEX IF NOT EXISTS " + name + " ON " + INDEXES.get(name) + ";";
+    }
+
+    /** Gets the SQL statement that creates the named trigger from TRIGGERS. */
+    static String getCreateTriggerSql(String name) {
+        return "CREATE TRIGGER IF NOT EXISTS " + name + " " + TRIGGERS.get(name) + ";";
     }
 
     public void clear() {
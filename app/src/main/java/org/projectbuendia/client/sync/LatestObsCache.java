@@ -0,0 +1,137 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.google.common.collect.ImmutableList;
+
+import org.projectbuendia.client.models.Obs;
+import org.projectbuendia.client.providers.Contracts.ConceptNames;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.utils.Logger;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the latest observations of a fixed set of concepts for every patient, such as the
+ * concepts shown as badges in patient lists.  Everything is read in one query the first time it
+ * is needed; afterwards, a change to a patient's observations only causes that patient's
+ * observations to be read again, so refreshing a list costs no more than the changes since the
+ * last refresh.
+ */
+public class LatestObsCache {
+    private static final Logger LOG = Logger.create();
+
+    /** Beyond this many changed patients, it's faster to read everything again in one query. */
+    private static final int MAX_PATIENTS_TO_REFRESH = 50;
+
+    private final ChartDataHelper mHelper;
+    private final ImmutableList<String> mConceptUuids;
+    private final String mLocale;
+    private final Map<String, Map<String, Obs>> mObsByPatient = new HashMap<>();
+    private final Set<String> mStalePatientUuids = new HashSet<>();
+    private boolean mAllStale = true;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override public void onChange(boolean selfChange, Uri uri) {
+            String patientUuid = getPatientUuid(uri);
+            synchronized (LatestObsCache.this) {
+                if (patientUuid == null) {
+                    mAllStale = true;
+                } else {
+                    mStalePatientUuids.add(patientUuid);
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a cache of the latest observations of the given concepts, with coded values
+     * localized for the given locale, and starts watching for changes to observations.
+     * The cache keeps watching for as long as the process lives, so it should be shared
+     * rather than created for each screen.
+     */
+    public LatestObsCache(ContentResolver resolver, Collection<String> conceptUuids, String locale) {
+        this(resolver, new ChartDataHelper(resolver), conceptUuids, locale);
+    }
+
+    /** Creates a cache that reads observations through the given helper, for tests. */
+    LatestObsCache(ContentResolver resolver, ChartDataHelper helper,
+                   Collection<String> conceptUuids, String locale) {
+        mHelper = helper;
+        mConceptUuids = ImmutableList.copyOf(conceptUuids);
+        mLocale = locale;
+        resolver.registerContentObserver(Observations.CONTENT_URI, true, mObserver);
+        // Coded values are localized with concept names, which a concept sync can change.
+        resolver.registerContentObserver(ConceptNames.CONTENT_URI, false, mObserver);
+    }
+
+    /**
+     * Gets the latest observations of the cached concepts for the given patients, keyed by
+     * patient UUID and then by concept UUID.  Patients with none of the concepts are omitted.
+     */
+    public synchronized Map<String, Map<String, Obs>> get(Collection<String> patientUuids) {
+        refresh();
+        Map<String, Map<String, Obs>> result = new HashMap<>();
+        for (String uuid : patientUuids) {
+            Map<String, Obs> patientObs = mObsByPatient.get(uuid);
+            if (patientObs != null) {
+                result.put(uuid, patientObs);
+            }
+        }
+        return result;
+    }
+
+    /** Brings the cache up to date with any changes reported since it was last read. */
+    private void refresh() {
+        if (mAllStale || mStalePatientUuids.size() > MAX_PATIENTS_TO_REFRESH) {
+            long start = System.currentTimeMillis();
+            mObsByPatient.clear();
+            mObsByPatient.putAll(mHelper.getLatestObservations(mConceptUuids, null, mLocale));
+            LOG.i("Read latest observations for %d patients in %d ms",
+                mObsByPatient.size(), System.currentTimeMillis() - start);
+        } else if (!mStalePatientUuids.isEmpty()) {
+            for (String uuid : mStalePatientUuids) {
+                mObsByPatient.remove(uuid);
+            }
+            mObsByPatient.putAll(
+                mHelper.getLatestObservations(mConceptUuids, mStalePatientUuids, mLocale));
+        }
+        mAllStale = false;
+        mStalePatientUuids.clear();
+    }
+
+    /**
+     * Gets the patient UUID from a URI made by {@link
+     * org.projectbuendia.client.providers.Contracts#getPatientChangeUri}, or null if the URI
+     * is not specific to one patient's observations.
+     */
+    private static @Nullable String getPatientUuid(@Nullable Uri uri) {
+        if (uri == null) return null;
+        List<String> segments = uri.getPathSegments();
+        int n = segments.size();
+        List<String> tableSegments = Observations.CONTENT_URI.getPathSegments();
+        return n == tableSegments.size() + 2
+            && segments.subList(0, tableSegments.size()).equals(tableSegments)
+            && "patient".equals(segments.get(n - 2)) ? segments.get(n - 1) : null;
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+
+import org.projectbuendia.client.json.ConceptType;
+import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.Contracts.Table;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes observations straight into observation_data, for the sync.  Writing through the
+ * observations view does the same work in its INSTEAD OF triggers, but for every row those
+ * triggers look up five UUIDs and the concept type several times over in SQL; this writer looks
+ * up each UUID once and keeps recently used ones, and reads the concept types once.
+ * <p/>
+ * <p>Values are stored as the observations_instead_of_insert trigger in {@link Database} stores
+ * them, and latest_observations is kept current by the triggers on observation_data.  The
+ * caller is expected to hold a {@link org.projectbuendia.client.providers.DatabaseTransaction}
+ * around the writes and to close this writer before that transaction could be rolled back,
+ * because the ids it keeps for UUIDs that it added would then no longer exist.
+ */
+public final class ObservationDataWriter implements AutoCloseable {
+    /** Enough for the patients, concepts, users, and recent encounters of a sync. */
+    private static final int MAX_CACHED_UUIDS = 2000;
+
+    /** Matches the NEW_VALUE_IS_NUMBER condition of {@link Database}, with ?7 as the value. */
+    private static final String VALUE_IS_NUMBER =
+        "?8 AND CAST(CAST(?7 AS NUMERIC) AS TEXT) = CAST(?7 AS TEXT)";
+
+    private final SQLiteStatement mAddUuid;
+    private final SQLiteStatement mFindUuid;
+    private final SQLiteStatement mUpsert;
+    private final SQLiteStatement mDelete;
+    private final Map<String, String> mConceptTypes = new HashMap<>();
+    private final Map<String, Long> mUuidIds =
+        new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_CACHED_UUIDS;
+            }
+        };
+
+    public ObservationDataWriter(SQLiteDatabase db) {
+        mAddUuid = db.compileStatement(
+            "INSERT OR IGNORE INTO " + Table.UUIDS + " (uuid) VALUES (?)");
+        mFindUuid = db.compileStatement(
+            "SELECT id FROM " + Table.UUIDS + " WHERE uuid = ?");
+        // ?1 to ?6 are the uuid and the ids and time, ?7 is the value, ?8 is 1 for
+        // numeric and time concepts, and ?9 is the id of a coded value.
+        mUpsert = db.compileStatement(
+            "INSERT OR REPLACE INTO " + Table.OBSERVATION_DATA
+                + " (uuid, patient_id, encounter_id, encounter_millis, concept_id, enterer_id,"
+                + " value_number, value_coded_id, value_text)"
+                + " VALUES (?1, ?2, ?3, ?4, ?5, ?6,"
+                + " CASE WHEN " + VALUE_IS_NUMBER + " THEN CAST(?7 AS NUMERIC) END,"
+                + " ?9,"
+                + " CASE WHEN ?9 IS NULL AND NOT (" + VALUE_IS_NUMBER + ") THEN ?7 END)");
+        mDelete = db.compileStatement(
+            "DELETE FROM " + Table.OBSERVATION_DATA + " WHERE uuid = ?");
+        try (Cursor c = db.query(Table.CONCEPTS.name,
+            new String[] {Concepts.UUID, Concepts.CONCEPT_TYPE}, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                mConceptTypes.put(c.getString(0), c.getString(1));
+            }
+        }
+    }
+
+    /**
+     * Inserts an observation, replacing any with the same UUID or the same patient, encounter,
+     * and concept.  As with the observations view, one without a patient or concept is not stored.
+     */
+    public void upsert(@Nullable String uuid, @Nullable String patientUuid,
+                       @Nullable String encounterUuid, long encounterMillis,
+                       @Nullable String conceptUuid, @Nullable String entererUuid,
+                       @Nullable String value) {
+        if (patientUuid == null || conceptUuid == null) return;
+        String type = mConceptTypes.get(conceptUuid);
+        boolean coded = ConceptType.CODED.name().equals(type)
+            || ConceptType.BOOLEAN.name().equals(type);
+        boolean numeric = ConceptType.NUMERIC.name().equals(type)
+            || ConceptType.DATETIME.name().equals(type);
+
+        bind(1, uuid);
+        mUpsert.bindLong(2, getUuidId(patientUuid));
+        bind(3, encounterUuid == null ? null : getUuidId(encounterUuid));
+        mUpsert.bindLong(4, encounterMillis);
+        mUpsert.bindLong(5, getUuidId(conceptUuid));
+        bind(6, entererUuid == null ? null : getUuidId(entererUuid));
+        bind(7, value);
+        mUpsert.bindLong(8, numeric ? 1 : 0);
+        bind(9, coded && value != null ? getUuidId(value) : null);
+        mUpsert.executeInsert();
+        mUpsert.clearBindings();
+    }
+
+    /** Deletes the observation with the given UUID, returning the number of rows deleted. */
+    public int delete(String uuid) {
+        mDelete.bindString(1, uuid);
+        return mDelete.executeUpdateDelete();
+    }
+
+    @Override public void close() {
+        mAddUuid.close();
+        mFindUuid.close();
+        mUpsert.close();
+        mDelete.close();
+        mUuidIds.clear();
+    }
+
+    /** Gets the id of a UUID in the uuids table, adding the UUID if it isn't there. */
+    private long getUuidId(String uuid) {
+        Long id = mUuidIds.get(uuid);
+        if (id == null) {
+            mAddUuid.bindString(1, uuid);
+            id = mAddUuid.executeInsert();
+            if (id == -1) {
+                // The UUID was already there, so the insertion was ignored.
+                mFindUuid.bindString(1, uuid);
+                id = mFindUuid.simpleQueryForLong();
+            }
+            mUuidIds.put(uuid, id);
+        }
+        return id;
+    }
+
+    private void bind(int index, @Nullable String value) {
+        if (value == null) {
+            mUpsert.bindNull(index);
+        } else {
+            mUpsert.bindString(index, value);
+        }
+    }
+
+    private void bind(int index, @Nullable Long value) {
+        if (value == null) {
+            mUpsert.bindNull(index);
+        } else {
+            mUpsert.bindLong(index, value);
+        }
+    }
+}
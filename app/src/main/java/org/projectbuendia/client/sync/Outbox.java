@@ -0,0 +1,906 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.RequestFuture;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.joda.time.DateTime;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.projectbuendia.client.events.data.OutboxItemFailedEvent;
+import org.projectbuendia.client.json.JsonEncounter;
+import org.projectbuendia.client.json.JsonOrder;
+import org.projectbuendia.client.json.JsonPatient;
+import org.projectbuendia.client.json.Serializers;
+import org.projectbuendia.client.models.AppModel;
+import org.projectbuendia.client.models.Encounter;
+import org.projectbuendia.client.models.Order;
+import org.projectbuendia.client.models.Patient;
+import org.projectbuendia.client.models.PatientDelta;
+import org.projectbuendia.client.net.Common;
+import org.projectbuendia.client.net.Server;
+import org.projectbuendia.client.providers.BuendiaProvider;
+import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.providers.Contracts.OutboxItems;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.Contracts.Table;
+import org.projectbuendia.client.providers.DatabaseTransaction;
+import org.projectbuendia.client.utils.EventBusInterface;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A durable queue of local writes waiting to be sent to the server.  Adding a patient or an
+ * encounter, submitting a form, saving an order, or editing a patient writes the change to the
+ * local tables and queues it in the outbox_items table in a single transaction, so the change
+ * shows up in the UI at once and survives the app being killed.  The outbox then sends queued
+ * items to the server in the order they were made, on its own thread, retrying with exponential
+ * backoff while the server can't be reached.  An item the server rejects is marked as failed
+ * and an {@link OutboxItemFailedEvent} is posted; its local records and payload are kept, so
+ * nothing that was entered is lost.
+ * <p/>
+ * <p>Each item that creates a record is sent with a client UUID that stays the same on every
+ * attempt, so that the server can recognize a request it has already carried out, such as one
+ * whose response was lost; patient edits and edits to existing orders are idempotent by
+ * themselves.  Older servers ignore the client UUID, so it is only relied on once the server has
+ * echoed one back.  Until then, an item whose request may have been carried out, such as one
+ * that timed out, is given up on and reported rather than sent again, so that it can't be
+ * created twice.
+ * <p/>
+ * <p>Until an item is confirmed, the records it creates locally carry a provisional UUID starting
+ * with {@link #LOCAL_UUID_PREFIX}.  When the server assigns the real UUID, the local records and
+ * any later queued items that refer to the provisional UUID are rewritten to use it.
+ */
+public class Outbox {
+    private static final Logger LOG = Logger.create();
+
+    public static final String TYPE_PATIENT = "patient";
+    public static final String TYPE_ENCOUNTER = "encounter";
+    public static final String TYPE_XFORM = "xform";
+    public static final String TYPE_ORDER = "order";
+    public static final String TYPE_PATIENT_UPDATE = "patient_update";
+
+    /** The item is waiting to be sent. */
+    public static final String STATE_PENDING = "pending";
+    /**
+     * The server has accepted the item, but its local records are still temporary; an encounter
+     * stays in this state until its observations are replaced by synced ones.
+     */
+    public static final String STATE_CONFIRMED = "confirmed";
+    /** The server rejected the item, so it will never be sent again.  Its local records stay. */
+    public static final String STATE_FAILED = "failed";
+
+    /** Prefix of the provisional UUIDs given to records created before the server confirms them. */
+    public static final String LOCAL_UUID_PREFIX = "local-";
+
+    private static final String SAVEPOINT_NAME = "OUTBOX";
+    private static final long MIN_RETRY_DELAY_MILLIS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 10 * 60 * 1000;
+    // Volley applies its own, shorter timeouts; this only guards against a lost callback.
+    private static final long REQUEST_TIMEOUT_MILLIS = Common.REQUEST_TIMEOUT_MS_VERY_LONG;
+
+    private static final String[] ITEM_PROJECTION = new String[] {
+        OutboxItems.ID,
+        OutboxItems.TYPE,
+        OutboxItems.PATIENT_UUID,
+        OutboxItems.LOCAL_UUID,
+        OutboxItems.PAYLOAD,
+        OutboxItems.ATTEMPTS,
+        OutboxItems.NEXT_ATTEMPT_MILLIS
+    };
+
+    private final ContentResolver mContentResolver;
+    private final Server mServer;
+    private final EventBusInterface mEventBus;
+    private final Gson mGson;
+    private final ScheduledExecutorService mExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    private @Nullable ScheduledFuture<?> mScheduledFlush;  // guarded by this
+    // Set, on the executor thread only, once the server echoes back a client UUID.
+    private boolean mServerRecognizesClientUuids;
+    // Accessed on the executor thread only: the record of a confirmation from the server that
+    // couldn't be written, which has to be written before anything else is sent.
+    private @Nullable ArrayList<ContentProviderOperation> mUnrecordedConfirmation;
+
+    public Outbox(ContentResolver contentResolver, Server server, EventBusInterface eventBus) {
+        mContentResolver = contentResolver;
+        mServer = server;
+        mEventBus = eventBus;
+        mGson = newGson();
+    }
+
+    /**
+     * Stores a new patient locally under a provisional UUID and queues the patient to be sent.
+     * Returns the provisional UUID.
+     */
+    public String addPatient(PatientDelta delta)
+        throws RemoteException, OperationApplicationException {
+        JSONObject json = new JSONObject();
+        if (!delta.toJson(json)) {
+            throw new IllegalArgumentException("Unable to serialize the patient delta to JSON.");
+        }
+        String localUuid = newLocalUuid();
+        ContentValues values = delta.toContentValues();
+        values.put(Patients.UUID, localUuid);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(ContentProviderOperation.newInsert(Patients.CONTENT_URI)
+            .withValues(values).build());
+        ops.add(newItemInsert(TYPE_PATIENT, localUuid, localUuid, json.toString()));
+        apply(ops);
+        flushSoon();
+        return localUuid;
+    }
+
+    /**
+     * Stores an encounter's observations locally as temporary observations and queues the
+     * encounter to be sent.  Returns the provisional UUID of the local encounter.
+     */
+    public String addEncounter(Encounter encounter)
+        throws RemoteException, OperationApplicationException {
+        String localUuid = newLocalUuid();
+        Encounter local = new Encounter(encounter.patientUuid, localUuid,
+            encounter.timestamp, encounter.observations, encounter.orderUuids);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (ContentValues values : local.toContentValuesArray()) {
+            ops.add(ContentProviderOperation.newInsert(Observations.CONTENT_URI)
+                .withValues(values).build());
+        }
+        ops.add(newItemInsert(TYPE_ENCOUNTER, encounter.patientUuid, localUuid,
+            mGson.toJson(encounter)));
+        apply(ops);
+        flushSoon();
+        return localUuid;
+    }
+
+    /**
+     * Queues a form instance saved by ODK Collect to be submitted, and stores the observations
+     * read from it locally as temporary observations.  The instance file is read when the item is
+     * sent, so it has to stay in place until then; the instance is deleted once the server has
+     * accepted it, if instanceIdToDelete is given.  Returns the provisional UUID under which the
+     * observations are stored.
+     * @param patientUuid  the patient the form is about, or null if it adds a new patient
+     * @param observations the temporary observations, without an encounter UUID, or null
+     */
+    public String addXformInstance(@Nullable String patientUuid, String entererUuid,
+                                   String instancePath, @Nullable Long instanceIdToDelete,
+                                   @Nullable ContentValues[] observations)
+        throws RemoteException, OperationApplicationException {
+        String localUuid = newLocalUuid();
+        XformSubmission submission = new XformSubmission();
+        submission.patient_uuid = patientUuid;
+        submission.enterer_uuid = entererUuid;
+        submission.path = instancePath;
+        submission.entered_millis = System.currentTimeMillis();
+        submission.instance_id = instanceIdToDelete;
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        if (observations != null) {
+            for (ContentValues values : observations) {
+                ContentValues local = new ContentValues(values);
+                local.put(Observations.ENCOUNTER_UUID, localUuid);
+                ops.add(ContentProviderOperation.newInsert(Observations.CONTENT_URI)
+                    .withValues(local).build());
+            }
+        }
+        ops.add(newItemInsert(TYPE_XFORM, patientUuid, localUuid, mGson.toJson(submission)));
+        apply(ops);
+        flushSoon();
+        return localUuid;
+    }
+
+    /**
+     * Stores a new or edited order locally and queues it to be sent.  Returns the UUID of the
+     * local order, which is provisional if the order is new.
+     */
+    public String saveOrder(Order order) throws RemoteException, OperationApplicationException {
+        String localUuid = order.uuid != null ? order.uuid : newLocalUuid();
+        Order local = new Order(
+            localUuid, order.patientUuid, order.instructions, order.start, order.stop);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        // Inserting into the orders table replaces any existing row with the same UUID.
+        ops.add(ContentProviderOperation.newInsert(Orders.CONTENT_URI)
+            .withValues(local.toContentValues()).build());
+        ops.add(newItemInsert(TYPE_ORDER, order.patientUuid, localUuid, mGson.toJson(order)));
+        apply(ops);
+        flushSoon();
+        return localUuid;
+    }
+
+    /**
+     * Applies a patient delta locally and queues it to be sent.
+     * @return false if there is no such patient in the local database
+     */
+    public boolean updatePatient(String patientUuid, PatientDelta delta)
+        throws RemoteException, OperationApplicationException {
+        JSONObject json = new JSONObject();
+        if (!delta.toJson(json)) {
+            throw new IllegalArgumentException("Unable to serialize the patient delta to JSON.");
+        }
+        if (!patientExists(patientUuid)) {
+            return false;
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ContentValues values = delta.toContentValues();
+        if (values.size() > 0) {
+            ops.add(ContentProviderOperation.newUpdate(Patients.CONTENT_URI)
+                .withSelection(Patients.UUID + " = ?", new String[] {patientUuid})
+                .withValues(values).build());
+        }
+        ops.add(newItemInsert(TYPE_PATIENT_UPDATE, patientUuid, null, json.toString()));
+        apply(ops);
+        flushSoon();
+        return true;
+    }
+
+    /** Starts sending queued items, unless a send is already due sooner. */
+    public void flushSoon() {
+        scheduleFlush(0);
+    }
+
+    /** Sends the items that are due now, on the outbox thread, and waits until that is done. */
+    void flushNow() throws InterruptedException, ExecutionException {
+        mExecutor.submit(new Runnable() {
+            @Override public void run() {
+                flush();
+            }
+        }).get();
+    }
+
+    /** Stops the outbox thread, interrupting any send under way; queued items stay queued. */
+    void shutdown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cleans up after the observations sync: deletes confirmed encounter items whose temporary
+     * observations have been replaced by synced ones, then deletes temporary observations that
+     * belong to no queued or confirmed encounter.  Called within the sync transaction.
+     */
+    public static void reconcileObservations(ContentProviderClient client)
+        throws RemoteException {
+        Set<String> confirmed = new HashSet<>();
+        try (Cursor c = client.query(OutboxItems.CONTENT_URI,
+            new String[] {OutboxItems.SERVER_UUID},
+            OutboxItems.TYPE + " = ? AND " + OutboxItems.STATE + " = ?",
+            new String[] {TYPE_ENCOUNTER, STATE_CONFIRMED}, null)) {
+            while (c.moveToNext()) {
+                confirmed.add(c.getString(0));
+            }
+        }
+        // The observations sync replaces a temporary observation when it receives the real one,
+        // since both have the same patient, encounter and concept.
+        for (String serverUuid : confirmed) {
+            try (Cursor c = client.query(Observations.CONTENT_URI,
+                new String[] {Observations.CONCEPT_UUID},
+                Observations.ENCOUNTER_UUID + " = ? AND " + Observations.UUID + " IS NULL",
+                new String[] {serverUuid}, null)) {
+                if (c.getCount() > 0) continue;
+            }
+            client.delete(OutboxItems.CONTENT_URI,
+                OutboxItems.SERVER_UUID + " = ? AND " + OutboxItems.STATE + " = ?",
+                new String[] {serverUuid, STATE_CONFIRMED});
+        }
+
+        int deleted = client.delete(Observations.CONTENT_URI,
+            Observations.UUID + " IS NULL AND (" + Observations.ENCOUNTER_UUID + " IS NULL"
+                + " OR " + Observations.ENCOUNTER_UUID + " NOT IN ("
+                + "SELECT " + OutboxItems.LOCAL_UUID + " FROM " + Table.OUTBOX_ITEMS
+                + " WHERE " + OutboxItems.LOCAL_UUID + " IS NOT NULL"
+                + " UNION SELECT " + OutboxItems.SERVER_UUID + " FROM " + Table.OUTBOX_ITEMS
+                + " WHERE " + OutboxItems.SERVER_UUID + " IS NOT NULL))",
+            new String[0]);
+        if (deleted > 0) {
+            LOG.i("Removed %d temporary observations with no outbox item", deleted);
+        }
+    }
+
+    /**
+     * Writes pending patient edits or orders back over the rows that the patients or orders sync
+     * has just replaced with the server's copies, so that changes not yet sent stay in effect
+     * locally.  Called after the sync phase for the given item type.
+     */
+    public static void reapplyPendingItems(ContentProviderClient client, String type)
+        throws RemoteException {
+        Gson gson = newGson();
+        int reapplied = 0;
+        try (Cursor c = client.query(OutboxItems.CONTENT_URI, ITEM_PROJECTION,
+            OutboxItems.TYPE + " = ? AND " + OutboxItems.STATE + " = ?",
+            new String[] {type, STATE_PENDING}, OutboxItems.ID)) {
+            while (c.moveToNext()) {
+                Item item = new Item(c);
+                try {
+                    if (TYPE_ORDER.equals(type)) {
+                        Order order = gson.fromJson(item.payload, Order.class);
+                        client.insert(Orders.CONTENT_URI, new Order(item.localUuid,
+                            order.patientUuid, order.instructions, order.start, order.stop)
+                            .toContentValues());
+                    } else if (TYPE_PATIENT_UPDATE.equals(type)) {
+                        ContentValues values =
+                            PatientDelta.fromJson(new JSONObject(item.payload)).toContentValues();
+                        if (values.size() == 0) continue;
+                        client.update(Patients.CONTENT_URI, values,
+                            Patients.UUID + " = ?", new String[] {item.patientUuid});
+                    }
+                    reapplied++;
+                } catch (JSONException | RuntimeException e) {
+                    // The outbox marks the item as failed when it comes to send it.
+                    LOG.w("Unable to read outbox item %d: %s", item.id, e);
+                }
+            }
+        }
+        if (reapplied > 0) {
+            LOG.i("Reapplied %d pending outbox items of type %s", reapplied, type);
+        }
+    }
+
+    private static Gson newGson() {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        Serializers.registerTo(gsonBuilder);
+        return gsonBuilder.create();
+    }
+
+    private synchronized void scheduleFlush(long delayMillis) {
+        if (mScheduledFlush != null) {
+            if (mScheduledFlush.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) return;
+            mScheduledFlush.cancel(false);
+        }
+        mScheduledFlush = mExecutor.schedule(new Runnable() {
+            @Override public void run() {
+                flush();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends due items in order, stopping at the first one that has to wait for a retry. */
+    private void flush() {
+        synchronized (this) {
+            // Any item queued from now on needs another pass.
+            mScheduledFlush = null;
+        }
+        int sent = 0;
+        try {
+            if (mUnrecordedConfirmation != null) {
+                apply(mUnrecordedConfirmation);
+                mUnrecordedConfirmation = null;
+            }
+            Item item;
+            while ((item = getNextPendingItem()) != null) {
+                long waitMillis = item.nextAttemptMillis - System.currentTimeMillis();
+                if (waitMillis > 0) {
+                    scheduleFlush(waitMillis);
+                    break;
+                }
+                if (!send(item)) break;
+                sent++;
+            }
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            LOG.e(e, "Unable to update the outbox; trying again later");
+            scheduleFlush(MIN_RETRY_DELAY_MILLIS);
+        }
+        if (sent > 0) {
+            LOG.i("Sent %d outbox items", sent);
+        }
+    }
+
+    /**
+     * Sends one item and records the outcome.
+     * @return true if the item is finished with, or false if it has to be retried later
+     */
+    private boolean send(Item item) {
+        Object payload;
+        try {
+            payload = parsePayload(item);
+        } catch (JSONException | RuntimeException e) {
+            // The payload can't be read, so retrying won't help.
+            markFailed(item, e);
+            return true;
+        }
+        try {
+            switch (item.type) {
+                case TYPE_PATIENT:
+                    return sendPatient(item, (PatientDelta) payload);
+                case TYPE_ENCOUNTER:
+                    return sendEncounter(item, (Encounter) payload);
+                case TYPE_XFORM:
+                    return sendXform(item, (XformSubmission) payload);
+                case TYPE_ORDER:
+                    return sendOrder(item, (Order) payload);
+                default:  // parsePayload accepts no other type
+                    return sendPatientUpdate(item, (PatientDelta) payload);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (isRejection(e.getCause())) {
+                markFailed(item, e.getCause());
+                return true;
+            }
+            return retryOrGiveUp(item, e.getCause());
+        } catch (TimeoutException | RemoteException | RuntimeException e) {
+            // The server may have carried out the request even if its response was lost or
+            // unusable.
+            return retryOrGiveUp(item, e);
+        }
+    }
+
+    /**
+     * Schedules another attempt at an item after an error, unless sending it again could create
+     * its record a second time.  That is the case when the request may already have been carried
+     * out and the server has not shown that it recognizes client UUIDs; the item is then given up
+     * on, and the user can check whether the record arrived in the next sync.
+     * @return true if the item is finished with, or false if it has to be retried later
+     */
+    private boolean retryOrGiveUp(Item item, Throwable error) {
+        if (getClientUuid(item) != null && !mServerRecognizesClientUuids
+            && mayHaveBeenCarriedOut(error)) {
+            markFailed(item, new IllegalStateException("The server may already have saved this"
+                + " item and can't recognize it if it is sent again", error));
+            return true;
+        }
+        scheduleRetry(item, error);
+        return false;
+    }
+
+    /** Notes whether the server echoed back the client UUID that was sent with a request. */
+    private void checkClientUuidEcho(Item item, @Nullable String echoedUuid) {
+        String clientUuid = getClientUuid(item);
+        if (clientUuid != null) {
+            boolean recognized = clientUuid.equals(echoedUuid);
+            if (recognized != mServerRecognizesClientUuids) {
+                LOG.i(recognized ? "The server recognizes repeated requests by client UUID"
+                    : "The server doesn't echo client UUIDs; requests that may have been carried"
+                    + " out will not be sent again");
+            }
+            mServerRecognizesClientUuids = recognized;
+        }
+    }
+
+    private Object parsePayload(Item item) throws JSONException {
+        switch (item.type) {
+            case TYPE_PATIENT:
+                return PatientDelta.fromJson(new JSONObject(item.payload));
+            case TYPE_ENCOUNTER:
+                return mGson.fromJson(item.payload, Encounter.class);
+            case TYPE_XFORM:
+                return mGson.fromJson(item.payload, XformSubmission.class);
+            case TYPE_ORDER:
+                return mGson.fromJson(item.payload, Order.class);
+            case TYPE_PATIENT_UPDATE:
+                return PatientDelta.fromJson(new JSONObject(item.payload));
+            default:
+                throw new IllegalArgumentException("Unknown outbox item type " + item.type);
+        }
+    }
+
+    private boolean sendPatient(Item item, PatientDelta delta) throws InterruptedException,
+        ExecutionException, TimeoutException, RemoteException {
+        RequestFuture<JsonPatient> future = RequestFuture.newFuture();
+        mServer.addPatient(delta, getClientUuid(item), future, future);
+        JsonPatient json = future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (json.uuid == null) {
+            throw new IllegalStateException("The server returned no UUID for the patient");
+        }
+        checkClientUuidEcho(item, json.client_uuid);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(ContentProviderOperation.newDelete(Patients.CONTENT_URI)
+            .withSelection(Patients.UUID + " = ?", new String[] {item.localUuid})
+            .build());
+        ops.add(ContentProviderOperation.newInsert(Patients.CONTENT_URI)
+            .withValues(Patient.fromJson(json).toContentValues()).build());
+        // Encounters, forms, and orders for the new patient may have been made in the meantime.
+        ops.add(ContentProviderOperation.newUpdate(Observations.CONTENT_URI)
+            .withSelection(Observations.PATIENT_UUID + " = ?", new String[] {item.localUuid})
+            .withValue(Observations.PATIENT_UUID, json.uuid)
+            .build());
+        ops.add(ContentProviderOperation.newUpdate(Orders.CONTENT_URI)
+            .withSelection(Orders.PATIENT_UUID + " = ?", new String[] {item.localUuid})
+            .withValue(Orders.PATIENT_UUID, json.uuid)
+            .build());
+        for (Item other : queryItems(
+            OutboxItems.STATE + " = ? AND (" + OutboxItems.PATIENT_UUID + " = ? OR "
+                + OutboxItems.PAYLOAD + " LIKE ?)",
+            new String[] {STATE_PENDING, item.localUuid, "%" + item.localUuid + "%"})) {
+            if (other.id == item.id) continue;
+            ContentProviderOperation.Builder update = newItemUpdate(other.id)
+                .withValue(OutboxItems.PAYLOAD, other.payload.replace(item.localUuid, json.uuid));
+            if (item.localUuid.equals(other.patientUuid)) {
+                update.withValue(OutboxItems.PATIENT_UUID, json.uuid);
+            }
+            ops.add(update.build());
+        }
+        ops.add(newItemDelete(item.id));
+        if (!recordConfirmation(ops)) return false;
+
+        // The server records the admission and first symptom dates as observations.
+        SyncAccountService.startObservationsAndOrdersSync();
+        return true;
+    }
+
+    private boolean sendEncounter(Item item, Encounter encounter) throws InterruptedException,
+        ExecutionException, TimeoutException {
+        Patient patient = Patient.builder().setUuid(encounter.patientUuid).build();
+        RequestFuture<JsonEncounter> future = RequestFuture.newFuture();
+        mServer.addEncounter(patient, withClientUuid(item, encounter), future, future);
+        JsonEncounter json = future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (json.uuid == null) {
+            throw new IllegalStateException("The server returned no UUID for the encounter");
+        }
+        checkClientUuidEcho(item, json.client_uuid);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        addEncounterConfirmationOps(ops, item, json.uuid);
+        return recordConfirmation(ops);
+    }
+
+    private boolean sendXform(Item item, XformSubmission submission) throws InterruptedException,
+        ExecutionException, TimeoutException {
+        File instance = new File(submission.path);
+        if (!instance.isFile()) {
+            // The instance is gone, so retrying won't help.
+            markFailed(item, new IllegalStateException(
+                "Unable to read the form instance " + submission.path));
+            return true;
+        }
+        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+        mServer.addXformInstance(submission.patient_uuid, submission.enterer_uuid,
+            new DateTime(submission.entered_millis), instance,
+            getClientUuid(item), future, future);
+        JSONObject json = future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        checkClientUuidEcho(item, json.optString(Server.CLIENT_UUID_KEY, null));
+
+        // The server doesn't say which encounter it created, so the temporary observations keep
+        // the provisional UUID; once the item is gone, the next observations sync replaces them.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(newItemDelete(item.id));
+        if (!recordConfirmation(ops)) return false;
+
+        if (submission.instance_id != null) {
+            try {
+                mContentResolver.delete(ContentUris.withAppendedId(
+                    InstanceColumns.CONTENT_URI, submission.instance_id), null, null);
+            } catch (RuntimeException e) {
+                LOG.w("Unable to delete form instance %d: %s", submission.instance_id, e);
+            }
+        }
+        return true;
+    }
+
+    /** Returns the encounter to send for an item, under the item's client UUID. */
+    private static Encounter withClientUuid(Item item, Encounter encounter) {
+        return new Encounter(encounter.patientUuid, getClientUuid(item),
+            encounter.timestamp, encounter.observations, encounter.orderUuids);
+    }
+
+    /**
+     * Moves an encounter's temporary observations to the encounter UUID assigned by the server
+     * and marks its item as confirmed.  The observations stay temporary until the real ones
+     * arrive in the next sync, which replaces them because they now share the encounter UUID.
+     */
+    private static void addEncounterConfirmationOps(
+        List<ContentProviderOperation> ops, Item item, String serverUuid) {
+        ops.add(ContentProviderOperation.newUpdate(Observations.CONTENT_URI)
+            .withSelection(
+                Observations.ENCOUNTER_UUID + " = ? AND " + Observations.UUID + " IS NULL",
+                new String[] {item.localUuid})
+            .withValue(Observations.ENCOUNTER_UUID, serverUuid)
+            .build());
+        ops.add(newItemUpdate(item.id)
+            .withValue(OutboxItems.STATE, STATE_CONFIRMED)
+            .withValue(OutboxItems.SERVER_UUID, serverUuid)
+            .build());
+    }
+
+    private boolean sendOrder(Item item, Order order) throws InterruptedException,
+        ExecutionException, TimeoutException, RemoteException {
+        RequestFuture<JsonOrder> future = RequestFuture.newFuture();
+        mServer.saveOrder(order, getClientUuid(item), future, future);
+        JsonOrder json = future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (json.uuid == null) {
+            throw new IllegalStateException("The server returned no UUID for the order");
+        }
+        checkClientUuidEcho(item, json.client_uuid);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        if (!json.uuid.equals(item.localUuid)) {
+            ops.add(ContentProviderOperation.newDelete(Orders.CONTENT_URI)
+                .withSelection(Orders.UUID + " = ?", new String[] {item.localUuid})
+                .build());
+            ops.add(ContentProviderOperation.newUpdate(Observations.CONTENT_URI)
+                .withSelection(Observations.CONCEPT_UUID + " = ? AND " + Observations.VALUE + " = ?",
+                    new String[] {AppModel.ORDER_EXECUTED_CONCEPT_UUID, item.localUuid})
+                .withValue(Observations.VALUE, json.uuid)
+                .build());
+            // Later edits and executions of this order were queued under its provisional UUID.
+            for (Item other : queryItems(
+                OutboxItems.STATE + " = ? AND " + OutboxItems.PAYLOAD + " LIKE ?",
+                new String[] {STATE_PENDING, "%" + item.localUuid + "%"})) {
+                ContentProviderOperation.Builder update = newItemUpdate(other.id)
+                    .withValue(OutboxItems.PAYLOAD,
+                        other.payload.replace(item.localUuid, json.uuid));
+                if (item.localUuid.equals(other.localUuid)) {
+                    update.withValue(OutboxItems.LOCAL_UUID, json.uuid);
+                }
+                ops.add(update.build());
+            }
+        }
+        ops.add(ContentProviderOperation.newInsert(Orders.CONTENT_URI)
+            .withValues(Order.fromJson(json).toContentValues()).build());
+        ops.add(newItemDelete(item.id));
+        return recordConfirmation(ops);
+    }
+
+    private boolean sendPatientUpdate(Item item, PatientDelta delta) throws InterruptedException,
+        ExecutionException, TimeoutException {
+        RequestFuture<JsonPatient> future = RequestFuture.newFuture();
+        mServer.updatePatient(item.patientUuid, delta, future, future);
+        future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(newItemDelete(item.id));
+        return recordConfirmation(ops);
+    }
+
+    /**
+     * Writes the local changes that follow from the server accepting some items.  If the write
+     * fails, it is tried again before anything else is sent, instead of the items being sent
+     * again; if the app stops first, the items are resent, which the server recognizes.
+     * @return true if the changes were written
+     */
+    private boolean recordConfirmation(ArrayList<ContentProviderOperation> ops) {
+        try {
+            apply(ops);
+            return true;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            LOG.e(e, "Unable to record a confirmation from the server; trying again later");
+            mUnrecordedConfirmation = ops;
+            scheduleFlush(MIN_RETRY_DELAY_MILLIS);
+            return false;
+        }
+    }
+
+    /**
+     * Gives up on an item and tells the UI.  The records it created locally and its payload are
+     * kept, so that nothing that was entered is lost; edits to patients and existing orders are
+     * replaced by the server's data in the next sync.
+     */
+    private void markFailed(Item item, Throwable error) {
+        LOG.e(error, "Outbox item %d (%s) was rejected; it will not be sent again",
+            item.id, item.type);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(newItemUpdate(item.id)
+            .withValue(OutboxItems.STATE, STATE_FAILED)
+            .withValue(OutboxItems.LAST_ERROR, String.valueOf(error))
+            .build());
+        try {
+            apply(ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            LOG.e(e, "Unable to mark outbox item %d as failed", item.id);
+        }
+        mEventBus.post(new OutboxItemFailedEvent(item.type, item.patientUuid, error));
+    }
+
+    private void scheduleRetry(Item item, Throwable error) {
+        int attempts = item.attempts + 1;
+        long delayMillis = Math.min(MAX_RETRY_DELAY_MILLIS,
+            MIN_RETRY_DELAY_MILLIS << Math.min(attempts - 1, 16));
+        LOG.w("Unable to send outbox item %d (%s) on attempt %d; retrying in %d s: %s",
+            item.id, item.type, attempts, delayMillis/1000, error);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        ops.add(newItemUpdate(item.id)
+            .withValue(OutboxItems.ATTEMPTS, attempts)
+            .withValue(OutboxItems.NEXT_ATTEMPT_MILLIS, System.currentTimeMillis() + delayMillis)
+            .withValue(OutboxItems.LAST_ERROR, String.valueOf(error))
+            .build());
+        try {
+            apply(ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            LOG.e(e, "Unable to record a failed attempt for outbox item %d", item.id);
+        }
+        scheduleFlush(delayMillis);
+    }
+
+    /**
+     * Returns true if the server definitely refused the request, as opposed to failing in a way
+     * that might go away if the request is tried again.
+     */
+    private static boolean isRejection(Throwable error) {
+        NetworkResponse response = getNetworkResponse(error);
+        return response != null && isRejectionStatus(response.statusCode);
+    }
+
+    private static boolean isRejectionStatus(int status) {
+        return status >= 400 && status < 500
+            && status != 401 && status != 403 && status != 408 && status != 429;
+    }
+
+    /**
+     * Returns true unless the request certainly wasn't carried out: the server couldn't be
+     * reached, or it refused the request before handling it.
+     */
+    private static boolean mayHaveBeenCarriedOut(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof NoConnectionError) return false;
+        }
+        NetworkResponse response = getNetworkResponse(error);
+        return response == null || response.statusCode >= 500;
+    }
+
+    private static @Nullable NetworkResponse getNetworkResponse(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof VolleyError && ((VolleyError) t).networkResponse != null) {
+                return ((VolleyError) t).networkResponse;
+            }
+        }
+        return null;
+    }
+
+    private boolean patientExists(String patientUuid) throws RemoteException {
+        ContentProviderClient client = mContentResolver.acquireContentProviderClient(
+            Patients.CONTENT_URI);
+        try (Cursor c = client.query(Patients.CONTENT_URI, new String[] {Patients.UUID},
+            Patients.UUID + " = ?", new String[] {patientUuid}, null)) {
+            return c.getCount() > 0;
+        } finally {
+            client.release();
+        }
+    }
+
+    private @Nullable Item getNextPendingItem() throws RemoteException {
+        List<Item> items = queryItems(
+            OutboxItems.STATE + " = ?", new String[] {STATE_PENDING});
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /** Returns the matching items, oldest first. */
+    private List<Item> queryItems(String selection, String[] selectionArgs)
+        throws RemoteException {
+        List<Item> items = new ArrayList<>();
+        ContentProviderClient client = mContentResolver.acquireContentProviderClient(
+            OutboxItems.CONTENT_URI);
+        try (Cursor c = client.query(OutboxItems.CONTENT_URI, ITEM_PROJECTION,
+            selection, selectionArgs, OutboxItems.ID)) {
+            while (c.moveToNext()) {
+                items.add(new Item(c));
+            }
+        } finally {
+            client.release();
+        }
+        return items;
+    }
+
+    /** Applies a batch of operations in one transaction, so that all or none take effect. */
+    private void apply(ArrayList<ContentProviderOperation> ops)
+        throws RemoteException, OperationApplicationException {
+        ContentProviderClient client = mContentResolver.acquireContentProviderClient(
+            OutboxItems.CONTENT_URI);
+        try {
+            BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
+            try (DatabaseTransaction tx = provider.startTransaction(SAVEPOINT_NAME)) {
+                try {
+                    client.applyBatch(ops);
+                } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                    tx.rollback();
+                    throw e;
+                }
+            }
+        } finally {
+            client.release();
+        }
+    }
+
+    private static ContentProviderOperation newItemInsert(
+        String type, String patientUuid, @Nullable String localUuid, String payload) {
+        return ContentProviderOperation.newInsert(OutboxItems.CONTENT_URI)
+            .withValue(OutboxItems.TYPE, type)
+            .withValue(OutboxItems.PATIENT_UUID, patientUuid)
+            .withValue(OutboxItems.LOCAL_UUID, localUuid)
+            .withValue(OutboxItems.PAYLOAD, payload)
+            .withValue(OutboxItems.STATE, STATE_PENDING)
+            .withValue(OutboxItems.CREATED_MILLIS, System.currentTimeMillis())
+            .build();
+    }
+
+    private static ContentProviderOperation.Builder newItemUpdate(long id) {
+        return ContentProviderOperation.newUpdate(OutboxItems.CONTENT_URI)
+            .withSelection(OutboxItems.ID + " = ?", new String[] {String.valueOf(id)});
+    }
+
+    private static ContentProviderOperation newItemDelete(long id) {
+        return ContentProviderOperation.newDelete(OutboxItems.CONTENT_URI)
+            .withSelection(OutboxItems.ID + " = ?", new String[] {String.valueOf(id)})
+            .build();
+    }
+
+    private static String newLocalUuid() {
+        return LOCAL_UUID_PREFIX + UUID.randomUUID();
+    }
+
+    private static boolean isLocalUuid(@Nullable String uuid) {
+        return uuid != null && uuid.startsWith(LOCAL_UUID_PREFIX);
+    }
+
+    /**
+     * Returns the client UUID sent with every attempt to create an item's record, or null if the
+     * item doesn't create a record.  It is the item's provisional UUID without the prefix.
+     */
+    private static @Nullable String getClientUuid(Item item) {
+        return isLocalUuid(item.localUuid)
+            ? item.localUuid.substring(LOCAL_UUID_PREFIX.length()) : null;
+    }
+
+    /** The payload of an xform item. */
+    private static class XformSubmission {
+        @Nullable String patient_uuid;  // null if the form adds a new patient
+        String enterer_uuid;
+        String path;  // the instance file saved by ODK Collect
+        long entered_millis;
+        @Nullable Long instance_id;  // the ODK instance to delete once sent, if any
+    }
+
+    /** A row of the outbox_items table. */
+    private static class Item {
+        final long id;
+        final String type;
+        final String patientUuid;
+        final @Nullable String localUuid;
+        final String payload;
+        final int attempts;
+        final long nextAttemptMillis;
+
+        Item(Cursor c) {
+            id = c.getLong(c.getColumnIndex(OutboxItems.ID));
+            type = c.getString(c.getColumnIndex(OutboxItems.TYPE));
+            patientUuid = c.getString(c.getColumnIndex(OutboxItems.PATIENT_UUID));
+            localUuid = c.getString(c.getColumnIndex(OutboxItems.LOCAL_UUID));
+            payload = c.getString(c.getColumnIndex(OutboxItems.PAYLOAD));
+            attempts = c.getInt(c.getColumnIndex(OutboxItems.ATTEMPTS));
+            nextAttemptMillis = c.getLong(c.getColumnIndex(OutboxItems.NEXT_ATTEMPT_MILLIS));
+        }
+    }
+}
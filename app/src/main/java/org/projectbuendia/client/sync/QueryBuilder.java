@@ -13,6 +13,7 @@ package org.projectbuendia.client.sync;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 
 import com.google.common.collect.ObjectArrays;
 
@@ -65,11 +66,36 @@ public class QueryBuilder {
 
     /** Executes an UPDATE query. */
     public int update(SQLiteDatabase db, ContentValues values) {
-        return db.update(mTable.name, values, mCondition, mArgs);
+        resetViewChanges(db);
+        int changed = db.update(mTable.name, values, mCondition, mArgs);
+        return isView() ? getViewChanges(db) : changed;
     }
 
     /** Executes a DELETE query. */
     public int delete(SQLiteDatabase db) {
-        return db.delete(mTable.name, mCondition, mArgs);
+        resetViewChanges(db);
+        int changed = db.delete(mTable.name, mCondition, mArgs);
+        return isView() ? getViewChanges(db) : changed;
+    }
+
+    private boolean isView() {
+        return Database.VIEWS.containsKey(mTable);
+    }
+
+    /**
+     * SQLite does not count the rows of a view that are changed by its INSTEAD OF triggers,
+     * so those triggers count them in the view_changes table; this starts the count at zero.
+     */
+    private void resetViewChanges(SQLiteDatabase db) {
+        if (isView()) {
+            db.execSQL("INSERT OR REPLACE INTO " + Contracts.Table.VIEW_CHANGES
+                + " (view_name, count) VALUES (?, 0)", new Object[] {mTable.name});
+        }
+    }
+
+    /** Gets the number of rows of the view counted since {@link #resetViewChanges}. */
+    private int getViewChanges(SQLiteDatabase db) {
+        return (int) DatabaseUtils.longForQuery(db, "SELECT count FROM "
+            + Contracts.Table.VIEW_CHANGES + " WHERE view_name = ?", new String[] {mTable.name});
     }
 }
@@ -0,0 +1,107 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.sync;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.projectbuendia.client.utils.Logger;
+
+/**
+ * SQLite settings for the app's database.  The profile is chosen in {@link
+ * org.projectbuendia.client.AppSettings} and applied by {@link Database} when the database is
+ * opened, so a change takes effect the next time the app starts.
+ */
+public enum StorageProfile {
+    /** SQLite's defaults: a rollback journal, so readers wait while a sync is writing. */
+    COMPATIBLE(false, 0, 0, null, null, 0),
+
+    /**
+     * Write-ahead logging, so that the patient list and charts can read the last committed
+     * data while a sync is writing.  Synchronous mode stays FULL, because queued outbox items
+     * and temporary observations exist only on this device until they are sent; a commit that
+     * has returned must survive a power failure.  The larger page cache, memory-mapped reads,
+     * and in-memory temporary tables speed up the sync's long write transactions.
+     */
+    CONCURRENT(true, 8 * 1024, 32 * 1024 * 1024, "FULL", "MEMORY", 4 * 1024 * 1024);
+
+    private static final Logger LOG = Logger.create();
+
+    /** Whether to use write-ahead logging instead of a rollback journal. */
+    public final boolean writeAheadLogging;
+    /** Page cache size in KiB, or 0 to leave it at SQLite's default. */
+    public final int cacheSizeKib;
+    /** Maximum number of bytes of the file to memory-map, or 0 to leave it unmapped. */
+    public final long mmapSizeBytes;
+    /** Value for PRAGMA synchronous, or null to leave it at the default. */
+    public final String synchronous;
+    /** Value for PRAGMA temp_store, or null to leave it at the default. */
+    public final String tempStore;
+    /** Size in bytes to which the journal is truncated after a checkpoint, or 0 for no limit. */
+    public final long journalSizeLimitBytes;
+
+    StorageProfile(boolean writeAheadLogging, int cacheSizeKib, long mmapSizeBytes,
+                   String synchronous, String tempStore, long journalSizeLimitBytes) {
+        this.writeAheadLogging = writeAheadLogging;
+        this.cacheSizeKib = cacheSizeKib;
+        this.mmapSizeBytes = mmapSizeBytes;
+        this.synchronous = synchronous;
+        this.tempStore = tempStore;
+        this.journalSizeLimitBytes = journalSizeLimitBytes;
+    }
+
+    /** Gets the profile with the given name, or the default profile if there is none. */
+    public static StorageProfile fromName(String name) {
+        for (StorageProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name)) return profile;
+        }
+        return CONCURRENT;
+    }
+
+    /**
+     * Applies the settings to the database's primary connection, which is the one {@link
+     * android.database.sqlite.SQLiteOpenHelper#onConfigure} is given and the one that does all
+     * writing: the sync, the outbox, and migrations.  The page cache size, memory mapping, and
+     * temporary storage are per-connection settings, and the pooled read connections that
+     * Android opens under write-ahead logging keep SQLite's defaults for them, because this
+     * version of the platform offers no hook that runs on each connection.  Journal mode is not
+     * set here; it is set through {@link android.database.sqlite.SQLiteOpenHelper} so that
+     * Android opens the pool of read connections alongside the write connection.
+     */
+    void applyTo(SQLiteDatabase db) {
+        if (cacheSizeKib > 0) {
+            // A negative cache_size is a size in KiB rather than a number of pages.
+            db.execSQL("PRAGMA cache_size = " + (-cacheSizeKib));
+        }
+        if (synchronous != null) {
+            db.execSQL("PRAGMA synchronous = " + synchronous);
+        }
+        if (tempStore != null) {
+            db.execSQL("PRAGMA temp_store = " + tempStore);
+        }
+        // These pragmas return a row, which execSQL() refuses, so they go through rawQuery().
+        // SQLite versions without mmap support ignore mmap_size.
+        if (mmapSizeBytes > 0) {
+            runPragmaQuery(db, "PRAGMA mmap_size = " + mmapSizeBytes);
+        }
+        if (journalSizeLimitBytes > 0) {
+            runPragmaQuery(db, "PRAGMA journal_size_limit = " + journalSizeLimitBytes);
+        }
+        LOG.i("Applied storage profile %s", this);
+    }
+
+    private static void runPragmaQuery(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            cursor.moveToFirst();
+        }
+    }
+}
@@ -38,18 +38,25 @@ import org.projectbuendia.client.providers.DatabaseTransaction;
 import org.projectbuendia.client.sync.controllers.ChartsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.ConceptsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.FormsSyncPhaseRunnable;
+import org.projectbuendia.client.sync.controllers.IncrementalSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.LocationsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.ObservationsSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.OrdersSyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.PatientsSyncPhaseRunnable;
+import org.projectbuendia.client.sync.controllers.PrefetchableSyncPhaseRunnable;
+import org.projectbuendia.client.sync.controllers.PrefetchableSyncPhaseRunnable.Prefetch;
 import org.projectbuendia.client.sync.controllers.SyncPhaseRunnable;
 import org.projectbuendia.client.sync.controllers.UsersSyncPhaseRunnable;
 import org.projectbuendia.client.utils.Logger;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Global sync adapter for syncing all client side database caches. */
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
@@ -59,6 +66,12 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     /** Named used during the sync process for SQL savepoints. */
     private static final String SYNC_SAVEPOINT_NAME = "SYNC_SAVEPOINT";
 
+    /** Name used for the SQL savepoint around each phase in resumable mode. */
+    private static final String PHASE_SAVEPOINT_NAME = "SYNC_PHASE";
+
+    /** Number of threads used to fetch independent sync phases concurrently. */
+    private static final int NUM_FETCH_THREADS = 3;
+
     /** Content resolver, for performing database operations. */
     private final ContentResolver mContentResolver;
     /** Tracks whether the sync has been canceled. */
@@ -163,13 +176,32 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         broadcastSyncProgress(0, R.string.sync_in_progress);
         TimingLogger timings = new TimingLogger(LOG.tag, "onPerformSync");
 
+        // In resumable mode, each phase and each page of an incremental phase is
+        // committed as it finishes, instead of the whole sync in one transaction.
+        boolean resumable = App.getSettings().getResumableSync();
         BuendiaProvider buendiaProvider = (BuendiaProvider) provider.getLocalContentProvider();
-        try (DatabaseTransaction tx = buendiaProvider.startTransaction(SYNC_SAVEPOINT_NAME)) {
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(NUM_FETCH_THREADS);
+        Map<SyncPhase, Prefetch> prefetches = new HashMap<>();
+        try (DatabaseTransaction tx = resumable
+            ? null : buendiaProvider.startTransaction(SYNC_SAVEPOINT_NAME)) {
             try {
                 if (fullSync) {
                     storeFullSyncStartTime(provider, Instant.now());
                 }
 
+                // Phases whose server data doesn't depend on the local database
+                // start fetching right away, so their network requests overlap.
+                // Database writes still happen one phase at a time, in order.
+                if (phases.size() > 1) {
+                    for (SyncPhase phase : SyncPhase.values()) {
+                        if (phases.contains(phase)
+                            && phase.runnable instanceof PrefetchableSyncPhaseRunnable) {
+                            prefetches.put(phase, ((PrefetchableSyncPhaseRunnable<?>)
+                                phase.runnable).prefetch(fetchExecutor, provider));
+                        }
+                    }
+                }
+
                 float progressIncrement = 100.0f/phases.size();
                 int completedPhases = 0;
                 for (SyncPhase phase : SyncPhase.values()) {
@@ -177,7 +209,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                         LOG.i("--- Begin %s ---", phase);
                         checkCancellation("before " + phase);
                         broadcastSyncProgress((int) (completedPhases * progressIncrement), phase.message);
-                        phase.runnable.sync(mContentResolver, syncResult, provider);
+                        runPhase(phase, prefetches.get(phase), resumable ? buendiaProvider : null,
+                            syncResult, provider);
                         timings.addSplit(phase.name() + " phase completed");
                         completedPhases++;
                     }
@@ -189,29 +222,62 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 }
             } catch (CancellationException e) {
                 LOG.i(e, "Sync canceled");
-                tx.rollback();
+                if (tx != null) tx.rollback();
                 // Reset canceled state so that it doesn't interfere with next sync.
                 broadcastSyncStatus(SyncManager.CANCELED);
                 return;
             } catch (OperationApplicationException e) {
                 LOG.e(e, "Error updating database during sync");
-                tx.rollback();
+                if (tx != null) tx.rollback();
                 syncResult.databaseError = true;
                 broadcastSyncStatus(SyncManager.FAILED);
                 return;
             } catch (Throwable e) {
                 LOG.e(e, "Error during sync");
-                tx.rollback();
+                if (tx != null) tx.rollback();
                 syncResult.stats.numIoExceptions++;
                 broadcastSyncStatus(SyncManager.FAILED);
                 return;
             }
+        } finally {
+            // Abandons any fetches still running or queued after a failure or cancellation;
+            // fetches that have already been applied are unaffected.
+            for (Prefetch prefetch : prefetches.values()) {
+                prefetch.cancel();
+            }
+            fetchExecutor.shutdownNow();
         }
         timings.dumpToLog();
         broadcastSyncStatus(SyncManager.COMPLETED);
         LOG.i("onPerformSync completed");
     }
 
+    /**
+     * Runs one phase, or applies its prefetched data if it has been prefetched.  If a provider
+     * is given, a phase that does not commit its own pages is run in a transaction of its own,
+     * which is committed when the phase finishes or rolled back if it fails.
+     */
+    private void runPhase(SyncPhase phase, @Nullable Prefetch prefetch,
+        @Nullable BuendiaProvider phaseTxProvider, SyncResult syncResult,
+        ContentProviderClient provider) throws Throwable {
+        DatabaseTransaction tx = null;
+        if (phaseTxProvider != null && !(phase.runnable instanceof IncrementalSyncPhaseRunnable)) {
+            tx = phaseTxProvider.startTransaction(PHASE_SAVEPOINT_NAME);
+        }
+        try {
+            if (prefetch != null) {
+                prefetch.apply(mContentResolver, syncResult, provider);
+            } else {
+                phase.runnable.sync(mContentResolver, syncResult, provider);
+            }
+        } catch (Throwable t) {
+            if (tx != null) tx.rollback();
+            throw t;
+        } finally {
+            if (tx != null) tx.close();
+        }
+    }
+
     /**
      * Enforces sync cancellation, throwing a {@link CancellationException} if the sync has been
      * canceled. It is the responsibility of the caller to perform any actual cancellation
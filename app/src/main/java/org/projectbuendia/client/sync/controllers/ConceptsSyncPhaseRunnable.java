@@ -2,71 +2,80 @@ package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
 
-import com.android.volley.toolbox.RequestFuture;
+import com.google.gson.Gson;
 
-import org.projectbuendia.client.App;
 import org.projectbuendia.client.json.JsonConcept;
 import org.projectbuendia.client.json.JsonConceptResponse;
-import org.projectbuendia.client.net.OpenMrsChartServer;
+import org.projectbuendia.client.models.ConceptDictionary;
 import org.projectbuendia.client.providers.Contracts;
-import org.projectbuendia.client.sync.ChartDataHelper;
+import org.projectbuendia.client.providers.Contracts.ConceptNames;
+import org.projectbuendia.client.providers.Contracts.Concepts;
+import org.projectbuendia.client.providers.DatabaseTransaction;
+import org.projectbuendia.client.providers.TableWriter;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
 import java.util.Map;
 
 /**
  * Handles syncing concepts. All concepts are fetched everytime. This is okay because concepts are
- * not a particularly huge data set.
+ * not a particularly huge data set, and the local tables are only rewritten when they change.
  */
-public class ConceptsSyncPhaseRunnable implements SyncPhaseRunnable {
+public class ConceptsSyncPhaseRunnable extends ConditionalSyncPhaseRunnable<JsonConceptResponse> {
     private static final Logger LOG = Logger.create();
 
+    public ConceptsSyncPhaseRunnable() {
+        super("/concepts", Contracts.Table.CONCEPTS);
+    }
+
+    @Override
+    protected JsonConceptResponse parse(Gson gson, String json) {
+        return gson.fromJson(json, JsonConceptResponse.class);
+    }
+
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult,
-            ContentProviderClient providerClient)
+    protected void applyChanges(JsonConceptResponse response, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient)
             throws Throwable {
-        OpenMrsChartServer chartServer = new OpenMrsChartServer(App.getConnectionDetails());
-        RequestFuture<JsonConceptResponse> future = RequestFuture.newFuture();
-        chartServer.getConcepts(future, future); // errors handled by caller
-        ArrayList<ContentValues> conceptInserts = new ArrayList<>();
-        ArrayList<ContentValues> conceptNameInserts = new ArrayList<>();
-        for (JsonConcept concept : future.get().results) {
-            // This is safe because we have implemented insert on the content provider
-            // with replace.
-            ContentValues conceptInsert = new ContentValues();
-            conceptInsert.put(Contracts.Concepts.UUID, concept.uuid);
-            conceptInsert.put(Contracts.Concepts.XFORM_ID, concept.xform_id);
-            conceptInsert.put(Contracts.Concepts.CONCEPT_TYPE, concept.type.name());
-            conceptInserts.add(conceptInsert);
-            syncResult.stats.numInserts++;
-            for (Map.Entry<String, String> entry : concept.names.entrySet()) {
-                String locale = entry.getKey();
-                if (locale == null) {
-                    LOG.e("null locale in concept name rpc for " + concept);
-                    continue;
-                }
-                String name = entry.getValue();
-                if (name == null) {
-                    LOG.e("null name in concept name rpc for " + concept);
-                    continue;
-                }
-                ContentValues conceptNameInsert = new ContentValues();
-                conceptNameInsert.put(Contracts.ConceptNames.CONCEPT_UUID, concept.uuid);
-                conceptNameInsert.put(Contracts.ConceptNames.LOCALE, locale);
-                conceptNameInsert.put(Contracts.ConceptNames.NAME, name);
-                conceptNameInserts.add(conceptNameInsert);
+        SQLiteDatabase db = getDatabase(providerClient);
+        // Each concept and concept name replaces any existing row with the same key.
+        try (TableWriter concepts = new TableWriter(db, contentResolver, Contracts.Table.CONCEPTS,
+                Concepts.UUID, Concepts.XFORM_ID, Concepts.CONCEPT_TYPE);
+             TableWriter names = new TableWriter(db, contentResolver, Contracts.Table.CONCEPT_NAMES,
+                ConceptNames.CONCEPT_UUID, ConceptNames.LOCALE, ConceptNames.NAME)) {
+            for (JsonConcept concept : response.results) {
+                concepts.bind(0, concept.uuid)
+                        .bind(1, concept.xform_id == null ? null : Long.valueOf(concept.xform_id))
+                        .bind(2, concept.type.name())
+                        .upsert();
                 syncResult.stats.numInserts++;
+                for (Map.Entry<String, String> entry : concept.names.entrySet()) {
+                    String locale = entry.getKey();
+                    if (locale == null) {
+                        LOG.e("null locale in concept name rpc for " + concept);
+                        continue;
+                    }
+                    String name = entry.getValue();
+                    if (name == null) {
+                        LOG.e("null name in concept name rpc for " + concept);
+                        continue;
+                    }
+                    names.bind(0, concept.uuid).bind(1, locale).bind(2, name).upsert();
+                    syncResult.stats.numInserts++;
+                }
             }
+            concepts.addChange(Concepts.CONTENT_URI);
+            names.addChange(ConceptNames.CONTENT_URI);
         }
-        providerClient.bulkInsert(Contracts.Concepts.CONTENT_URI,
-                conceptInserts.toArray(new ContentValues[conceptInserts.size()]));
-        providerClient.bulkInsert(Contracts.ConceptNames.CONTENT_URI,
-                conceptNameInserts.toArray(new ContentValues[conceptNameInserts.size()]));
 
-        ChartDataHelper.invalidateLoadedConceptData();
+        // The in-memory dictionary must not show concepts that might yet be rolled back.
+        final JsonConcept[] concepts = response.results;
+        DatabaseTransaction.runAfterCommit(new Runnable() {
+            @Override public void run() {
+                ConceptDictionary.getInstance().update(concepts);
+            }
+        });
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.projectbuendia.client.App;
+import org.projectbuendia.client.json.Serializers;
+import org.projectbuendia.client.net.Common;
+import org.projectbuendia.client.net.OpenMrsConnectionDetails;
+import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.SyncAdapter;
+import org.projectbuendia.client.utils.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sync phase that fetches a whole, fairly small resource from the server on every sync, but
+ * only rewrites the local tables when the resource has actually changed.  The server's ETag, or
+ * failing that a hash of the response body, is kept in the sync_tokens table.  The stored ETag
+ * is sent back in an If-None-Match header so that an unchanged resource costs only a 304, and
+ * an unchanged body hash skips all database writes even when the server sends no ETag.
+ */
+public abstract class ConditionalSyncPhaseRunnable<T>
+        extends PrefetchableSyncPhaseRunnable<ConditionalSyncPhaseRunnable.Result<T>> {
+    private static final Logger LOG = Logger.create();
+
+    /** Prefix that marks a stored validator as a body hash rather than a server ETag. */
+    private static final String HASH_PREFIX = "sha1:";
+
+    /** The outcome of a conditional fetch. */
+    static class Result<T> {
+        /** The decoded resource, or null if it has not changed since the last sync. */
+        final @Nullable T data;
+        final @Nullable String validator;
+
+        Result(@Nullable T data, @Nullable String validator) {
+            this.data = data;
+            this.validator = validator;
+        }
+    }
+
+    private final String mPath;
+    private final Contracts.Table mTable;
+
+    /**
+     * @param path  the resource path, relative to the Buendia API URL
+     * @param table the table under which the validator for this resource is stored
+     */
+    protected ConditionalSyncPhaseRunnable(String path, Contracts.Table table) {
+        mPath = path;
+        mTable = table;
+    }
+
+    /** Decodes the response body. */
+    protected abstract T parse(Gson gson, String json);
+
+    /** Writes a resource that has changed since the last sync into the local database. */
+    protected abstract void applyChanges(T data, ContentResolver contentResolver,
+        SyncResult syncResult, ContentProviderClient providerClient) throws Throwable;
+
+    /** Called instead of {@link #applyChanges} when the resource has not changed. */
+    protected void applyUnchanged(ContentResolver contentResolver) throws Throwable { }
+
+    @Override protected @Nullable String readSyncToken(ContentProviderClient providerClient)
+        throws Exception {
+        return SyncAdapter.getLastSyncToken(providerClient, mTable);
+    }
+
+    @Override protected Result<T> fetch(@Nullable String lastValidator) throws Exception {
+        OpenMrsConnectionDetails connectionDetails = App.getConnectionDetails();
+        Request.Builder request = new Request.Builder()
+            .url(connectionDetails.getBuendiaApiUrl() + mPath)
+            .headers(Headers.of(connectionDetails.addAuthHeader(new HashMap<String, String>())));
+        if (lastValidator != null && !lastValidator.startsWith(HASH_PREFIX)) {
+            request.header("If-None-Match", lastValidator);
+        }
+        Response response = execute(request.build());
+        if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.body().close();
+            return new Result<>(null, lastValidator);
+        }
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException(String.format(
+                "HTTP %d while fetching %s", response.code(), mPath));
+        }
+
+        byte[] body = response.body().bytes();
+        String validator = response.header("ETag");
+        if (validator == null) {
+            validator = HASH_PREFIX + Hashing.sha1().hashBytes(body).toString();
+        }
+        if (validator.equals(lastValidator)) {
+            return new Result<>(null, lastValidator);
+        }
+
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        Serializers.registerTo(gsonBuilder);
+        return new Result<>(
+            parse(gsonBuilder.create(), new String(body, Charsets.UTF_8)), validator);
+    }
+
+    /** Sends a request; a subclass may override this to supply its own responses. */
+    protected Response execute(Request request) throws IOException {
+        OkHttpClient client = App.getConnectionDetails().getVolley().getHttpClient().clone();
+        client.setConnectTimeout(Common.REQUEST_TIMEOUT_MS_LONG, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(Common.REQUEST_TIMEOUT_MS_LONG, TimeUnit.MILLISECONDS);
+        return client.newCall(request).execute();
+    }
+
+    @Override protected final void apply(Result<T> result, ContentResolver contentResolver,
+        SyncResult syncResult, ContentProviderClient providerClient) throws Throwable {
+        if (result.data == null) {
+            LOG.i("%s unchanged since last sync; skipping database writes", mPath);
+            applyUnchanged(contentResolver);
+            return;
+        }
+        applyChanges(result.data, contentResolver, syncResult, providerClient);
+        SyncAdapter.storeSyncToken(providerClient, mTable, result.validator);
+    }
+
+    /**
+     * Returns the database for writing changes with a {@link TableWriter}.  Sync always runs in
+     * the same process as the provider, so the database is directly available.
+     */
+    protected static SQLiteDatabase getDatabase(ContentProviderClient providerClient) {
+        SQLiteDatabase db = TableWriter.getLocalDatabase(providerClient);
+        if (db == null) {
+            throw new IllegalStateException("Sync requires the provider to be in this process");
+        }
+        return db;
+    }
+
+    /** Decodes the "results" array of a list response, as returned by /locations or /xforms. */
+    protected static <E> List<E> parseResults(Gson gson, String json, Class<E[]> arrayClass) {
+        JsonObject response = gson.fromJson(json, JsonObject.class);
+        return Arrays.asList(gson.fromJson(response.getAsJsonArray("results"), arrayClass));
+    }
+}
@@ -17,27 +17,49 @@ import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.Response;
 import com.android.volley.toolbox.RequestFuture;
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
 
 import org.projectbuendia.client.App;
+import org.projectbuendia.client.AppSettings;
 import org.projectbuendia.client.json.IncrementalSyncResponse;
 import org.projectbuendia.client.json.Serializers;
 import org.projectbuendia.client.net.Common;
 import org.projectbuendia.client.net.GsonRequest;
 import org.projectbuendia.client.net.OpenMrsConnectionDetails;
+import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.DatabaseTransaction;
 import org.projectbuendia.client.sync.SyncAdapter;
 import org.projectbuendia.client.utils.Logger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
 
@@ -52,11 +74,34 @@ import static org.projectbuendia.client.net.OpenMrsServer.wrapErrorListener;
  * provided for this. See {@link #beforeSyncStarted(ContentResolver, SyncResult,
  * ContentProviderClient)} and {@link #afterSyncFinished(ContentResolver, SyncResult,
  * ContentProviderClient)}.
+ * <p>
+ * Subclasses that can write records directly into the database should also implement
+ * {@link #createRecordWriter(SQLiteDatabase, ContentResolver)}.  The response is then read with a streaming JSON
+ * parser straight off the HTTP body, and each record is written as soon as it has been parsed,
+ * so that memory use stays flat no matter how large a page the server sends.
+ * <p>
+ * When {@link AppSettings#getPipelinedSync()} is set, fetching and decoding the next records
+ * overlaps with writing the current ones, so that a long sync takes roughly the larger of the
+ * network time and the database time rather than their sum.
+ * <p>
+ * The records of each page are written in their own transaction, which also stores the sync
+ * token for that page.  When the sync is not wrapped in an outer transaction (see
+ * {@link AppSettings#getResumableSync()}), each page is committed as soon as it is written, and
+ * a sync that is interrupted resumes after the last committed page.
  */
 public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnable {
 
     private static final Logger LOG = Logger.create();
 
+    /** Maximum number of decoded batches waiting to be written in pipelined mode. */
+    private static final int PIPELINE_DEPTH = 8;
+
+    /** Number of records per batch in pipelined mode. */
+    private static final int PIPELINE_BATCH_SIZE = 200;
+
+    /** Name used for the SQL savepoint around each page of records. */
+    private static final String PAGE_SAVEPOINT_NAME = "SYNC_PAGE";
+
     private final String resourceType;
     private final Contracts.Table dbTable;
     private final Class<T> clazz;
@@ -90,25 +135,350 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
         String syncToken = SyncAdapter.getLastSyncToken(providerClient, dbTable);
         LOG.i("Using sync token `%s`", syncToken);
 
-        IncrementalSyncResponse<T> response;
+        // The streaming path needs direct access to the database, which is
+        // only available when the provider is in the same process.
+        BuendiaProvider provider = null;
+        RecordWriter<T> writer = null;
+        if (providerClient.getLocalContentProvider() instanceof BuendiaProvider) {
+            provider = (BuendiaProvider) providerClient.getLocalContentProvider();
+            writer = createRecordWriter(provider.getWritableDatabase(), contentResolver);
+        }
+        boolean pipelined = App.getSettings().getPipelinedSync();
+        if (writer != null) {
+            PageWriter pages = new PageWriter(provider, providerClient, writer);
+            try {
+                PageSource source = createPageSource();
+                if (pipelined) {
+                    syncStreamingPipelined(syncToken, source, pages, syncResult);
+                } else {
+                    syncStreaming(syncToken, source, pages, syncResult);
+                }
+            } finally {
+                pages.abandon();
+                writer.close();
+            }
+        } else {
+            syncPages(syncToken, pipelined, syncResult, providerClient);
+        }
+
+        afterSyncFinished(contentResolver, syncResult, providerClient);
+    }
+
+    /**
+     * Fetches all remaining pages as decoded arrays and applies each one with
+     * {@link #getUpdateOps}, storing the sync token after each page.  If {@code pipelined} is
+     * true, the request for the next page is sent before the current page is applied, so that
+     * at most one decoded page waits in memory.
+     */
+    private void syncPages(
+            @Nullable String syncToken, boolean pipelined, SyncResult syncResult,
+            ContentProviderClient providerClient) throws Throwable {
+        RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
+        createRequest(syncToken, future, future);
+        while (future != null) {
+            IncrementalSyncResponse<T> response = future.get();
+            future = null;
+            RequestFuture<IncrementalSyncResponse<T>> next = null;
+            if (response.more && pipelined) {
+                next = RequestFuture.newFuture();
+                createRequest(response.syncToken, next, next);
+            }
+            try {
+                ArrayList<ContentProviderOperation> ops =
+                        getUpdateOps(response.results, syncResult);
+                providerClient.applyBatch(ops);
+                LOG.i("Updated page of %s (%d db ops)", resourceType, ops.size());
+
+                // Update sync token
+                syncToken = response.syncToken;
+                LOG.i("Saving new sync token `%s`", syncToken);
+                SyncAdapter.storeSyncToken(providerClient, dbTable, syncToken);
+            } catch (Throwable t) {
+                if (next != null) next.cancel(true);
+                throw t;
+            }
 
+            if (response.more) {
+                future = next;
+                if (future == null) {
+                    future = RequestFuture.newFuture();
+                    createRequest(syncToken, future, future);
+                }
+            }
+        }
+    }
+
+    /** Fetches all remaining pages, passing each record to the writer as soon as it is parsed. */
+    private void syncStreaming(
+            @Nullable String syncToken, PageSource source, final PageWriter pages,
+            final SyncResult syncResult) throws Exception {
+        fetchStreaming(syncToken, source, new RecordSink<T>() {
+            @Override public void onRecord(T record) {
+                pages.write(record, syncResult);
+            }
+
+            @Override public void onPageEnd(String pageSyncToken) throws RemoteException {
+                pages.commit(pageSyncToken);
+            }
+        });
+    }
+
+    /**
+     * Fetches and decodes all remaining pages on a separate thread, while the calling thread
+     * writes the decoded records.  The two threads exchange records in batches through a bounded
+     * queue, so network time and database time overlap while memory use stays bounded.  All
+     * writes stay on the calling thread, which is the one holding the page transactions, and the
+     * sync token for each page is only stored once every record of the page has been written.
+     */
+    private void syncStreamingPipelined(
+            @Nullable final String syncToken, final PageSource source, PageWriter pages,
+            SyncResult syncResult) throws Throwable {
+        final BlockingQueue<RecordBatch<T>> queue = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        Thread fetcher = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    // A one-element array, so that the sink below can replace the batch.
+                    @SuppressWarnings("unchecked")
+                    final RecordBatch<T>[] batch = new RecordBatch[] {new RecordBatch<T>()};
+                    fetchStreaming(syncToken, source, new RecordSink<T>() {
+                        @Override public void onRecord(T record) throws InterruptedException {
+                            batch[0].records.add(record);
+                            if (batch[0].records.size() >= PIPELINE_BATCH_SIZE) {
+                                queue.put(batch[0]);
+                                batch[0] = new RecordBatch<>();
+                            }
+                        }
+
+                        @Override public void onPageEnd(String pageSyncToken)
+                                throws InterruptedException {
+                            batch[0].pageEnd = true;
+                            batch[0].syncToken = pageSyncToken;
+                            queue.put(batch[0]);
+                            batch[0] = new RecordBatch<>();
+                        }
+                    });
+                    batch[0].done = true;
+                    queue.put(batch[0]);
+                } catch (InterruptedException e) {
+                    LOG.i("Stopped fetching %s because the writer has stopped", resourceType);
+                } catch (Throwable t) {
+                    RecordBatch<T> failure = new RecordBatch<>();
+                    failure.error = t;
+                    try {
+                        queue.put(failure);
+                    } catch (InterruptedException e) { /* writer has stopped */ }
+                }
+            }
+        }, "sync-fetch-" + resourceType);
+        fetcher.start();
+        try {
+            while (true) {
+                RecordBatch<T> batch = queue.take();
+                if (batch.error != null) {
+                    throw batch.error;
+                }
+                for (T record : batch.records) {
+                    pages.write(record, syncResult);
+                }
+                if (batch.pageEnd) {
+                    pages.commit(batch.syncToken);
+                }
+                if (batch.done) {
+                    return;
+                }
+            }
+        } finally {
+            // If the writer failed or the sync was canceled, stop the fetcher and wait for it,
+            // so that it never outlives the sync.  An interrupt only unblocks the queue, so the
+            // request in progress is canceled too, which ends a blocked read.
+            fetcher.interrupt();
+            source.cancel();
+            joinUninterruptibly(fetcher);
+        }
+    }
+
+    /** Waits for a thread to finish, keeping the current thread's interrupt for later. */
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Fetches all remaining pages, streaming their records to the sink as they are parsed. */
+    private void fetchStreaming(@Nullable String syncToken, PageSource source, RecordSink<T> sink)
+            throws Exception {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        Serializers.registerTo(gsonBuilder);
+        Gson gson = gsonBuilder.create();
+
+        boolean more;
         do {
-            RequestFuture<IncrementalSyncResponse<T>> future = RequestFuture.newFuture();
-            createRequest(syncToken, future, future);
-            response = future.get();
-            ArrayList<ContentProviderOperation> ops =
-                    getUpdateOps(response.results, syncResult);
-            providerClient.applyBatch(ops);
-            LOG.i("Updated page of %s (%d db ops)", resourceType, ops.size());
+            // The fields of the IncrementalSyncResponse may arrive in any order.
+            String nextSyncToken = null;
+            int count = 0;
+            more = false;
+            try (JsonReader reader = new JsonReader(
+                    new InputStreamReader(source.open(syncToken), Charsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else if (name.equals("results")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            T record = gson.fromJson(reader, clazz);
+                            sink.onRecord(record);
+                            count++;
+                        }
+                        reader.endArray();
+                    } else if (name.equals("syncToken")) {
+                        nextSyncToken = reader.nextString();
+                    } else if (name.equals("more")) {
+                        more = reader.nextBoolean();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            LOG.i("Streamed page of %s (%d records)", resourceType, count);
 
             // Update sync token
-            syncToken = response.syncToken;
-        } while (response.more);
+            syncToken = nextSyncToken;
+            sink.onPageEnd(syncToken);
+        } while (more);
+    }
 
-        LOG.i("Saving new sync token `%s`", syncToken);
-        SyncAdapter.storeSyncToken(providerClient, dbTable, response.syncToken);
+    /**
+     * Supplies the pages of a streamed sync.  {@link #cancel} may be called from another thread,
+     * after interrupting the one that is reading, to end a read that is blocked.
+     */
+    protected interface PageSource {
+        /** Requests the page that follows the given sync token and returns its JSON body. */
+        InputStream open(@Nullable String syncToken) throws Exception;
 
-        afterSyncFinished(contentResolver, syncResult, providerClient);
+        /** Cancels the request in progress, if any; later requests fail. */
+        void cancel();
+    }
+
+    /** Fetches pages from the server. */
+    private class HttpPageSource implements PageSource {
+        private final OpenMrsConnectionDetails mConnectionDetails = App.getConnectionDetails();
+        private final OkHttpClient mClient;
+        private final AtomicReference<Call> mCurrentCall = new AtomicReference<>();
+        private volatile boolean mCanceled;
+
+        HttpPageSource() {
+            mClient = mConnectionDetails.getVolley().getHttpClient().clone();
+            mClient.setConnectTimeout(Common.REQUEST_TIMEOUT_MS_MEDIUM, TimeUnit.MILLISECONDS);
+            mClient.setReadTimeout(Common.REQUEST_TIMEOUT_MS_MEDIUM, TimeUnit.MILLISECONDS);
+        }
+
+        @Override public InputStream open(@Nullable String syncToken) throws Exception {
+            Request request = new Request.Builder()
+                    .url(buildUrl(syncToken))
+                    .headers(Headers.of(
+                            mConnectionDetails.addAuthHeader(new HashMap<String, String>())))
+                    .build();
+            Call call = mClient.newCall(request);
+            mCurrentCall.set(call);
+            // Checked after publishing the call, so that a cancel that came before the call
+            // was visible still stops this thread before it blocks on the request.
+            if (mCanceled || Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            com.squareup.okhttp.Response response = call.execute();
+            if (!response.isSuccessful()) {
+                response.body().close();
+                throw new IOException(String.format(
+                        "HTTP %d while fetching %s", response.code(), resourceType));
+            }
+            return response.body().byteStream();
+        }
+
+        @Override public void cancel() {
+            mCanceled = true;
+            Call call = mCurrentCall.get();
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    /** Receives records and page boundaries from {@link #fetchStreaming}. */
+    private interface RecordSink<T> {
+        void onRecord(T record) throws Exception;
+
+        void onPageEnd(String syncToken) throws Exception;
+    }
+
+    /**
+     * Passes records to a {@link RecordWriter} inside a transaction per page, and commits each
+     * page together with its sync token.  All methods must be called on the sync thread.
+     */
+    private class PageWriter {
+        private final BuendiaProvider mProvider;
+        private final ContentProviderClient mProviderClient;
+        private final RecordWriter<T> mWriter;
+        private @Nullable DatabaseTransaction mTx;
+
+        PageWriter(BuendiaProvider provider, ContentProviderClient providerClient,
+                   RecordWriter<T> writer) {
+            mProvider = provider;
+            mProviderClient = providerClient;
+            mWriter = writer;
+        }
+
+        void write(T record, SyncResult syncResult) {
+            if (mTx == null) {
+                mTx = mProvider.startTransaction(PAGE_SAVEPOINT_NAME);
+            }
+            mWriter.write(record, syncResult);
+        }
+
+        /** Stores the sync token that follows the current page, then commits the page. */
+        void commit(String syncToken) throws RemoteException {
+            if (mTx == null) {
+                mTx = mProvider.startTransaction(PAGE_SAVEPOINT_NAME);
+            }
+            LOG.i("Saving new sync token `%s`", syncToken);
+            SyncAdapter.storeSyncToken(mProviderClient, dbTable, syncToken);
+            mWriter.flush();
+            DatabaseTransaction tx = mTx;
+            mTx = null;
+            tx.close();
+        }
+
+        /** Rolls back the records of a page that was not committed, if there are any. */
+        void abandon() {
+            if (mTx != null) {
+                DatabaseTransaction tx = mTx;
+                mTx = null;
+                tx.rollback();
+                tx.close();
+            }
+        }
+    }
+
+    /** A batch of decoded records passed from the fetching thread to the writing thread. */
+    private static class RecordBatch<T> {
+        final List<T> records = new ArrayList<>(PIPELINE_BATCH_SIZE);
+        /** True for the last batch of each page, which carries the page's sync token. */
+        boolean pageEnd;
+        /** True for the last batch, after the last page. */
+        boolean done;
+        String syncToken;
+        /** Set instead of records if fetching or decoding failed. */
+        Throwable error;
     }
 
     // Mandatory callback
@@ -121,6 +491,23 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
 
     // Optional callbacks
 
+    /**
+     * Creates a writer that stores records directly into the given database as they are streamed
+     * from the server.  The default implementation returns null, which causes each page to be
+     * fully decoded and then applied as the list of operations from {@link #getUpdateOps}.
+     * The writer is closed when all pages have been written.  Since it bypasses the content
+     * provider, the writer must send its own change notifications to the given resolver.
+     */
+    protected @Nullable RecordWriter<T> createRecordWriter(
+            SQLiteDatabase db, ContentResolver contentResolver) {
+        return null;
+    }
+
+    /** Creates the source of the pages for a streamed sync; by default, the server. */
+    protected PageSource createPageSource() {
+        return new HttpPageSource();
+    }
+
     /** Called before any records have been synced from the server. */
     protected void beforeSyncStarted(
             ContentResolver contentResolver,
@@ -141,13 +528,8 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
             Response.Listener<IncrementalSyncResponse<T>> successListener,
             final Response.ErrorListener errorListener) {
         OpenMrsConnectionDetails connectionDetails = App.getConnectionDetails();
-        Uri.Builder url = Uri.parse(connectionDetails.getBuendiaApiUrl()).buildUpon();
-        url.appendPath(resourceType);
-        if (lastSyncToken != null) {
-            url.appendQueryParameter("since", lastSyncToken);
-        }
         GsonRequest<IncrementalSyncResponse<T>> request = new GsonRequest<>(
-                url.build().toString(),
+                buildUrl(lastSyncToken),
                 new IncrementalSyncResponseType(clazz),
                 connectionDetails.addAuthHeader(new HashMap<String, String>()),
                 successListener,
@@ -158,6 +540,15 @@ public abstract class IncrementalSyncPhaseRunnable<T> implements SyncPhaseRunnab
         connectionDetails.getVolley().addToRequestQueue(request);
     }
 
+    private String buildUrl(@Nullable String lastSyncToken) {
+        Uri.Builder url = Uri.parse(App.getConnectionDetails().getBuendiaApiUrl()).buildUpon();
+        url.appendPath(resourceType);
+        if (lastSyncToken != null) {
+            url.appendQueryParameter("since", lastSyncToken);
+        }
+        return url.build().toString();
+    }
+
     private static class IncrementalSyncResponseType implements ParameterizedType {
 
         private final Type[] typeArgs;
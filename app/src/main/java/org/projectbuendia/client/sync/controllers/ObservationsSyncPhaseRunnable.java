@@ -18,15 +18,21 @@ import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.RemoteException;
 
 import org.projectbuendia.client.json.JsonObservation;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Observations;
+import org.projectbuendia.client.providers.DatabaseTransaction;
+import org.projectbuendia.client.sync.ObservationDataWriter;
+import org.projectbuendia.client.sync.Outbox;
 import org.projectbuendia.client.utils.Logger;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Handles syncing observations. Uses an incremental sync mechanism - see
@@ -65,6 +71,61 @@ public class ObservationsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<
         return ops;
     }
 
+    @Override
+    protected RecordWriter<JsonObservation> createRecordWriter(
+            SQLiteDatabase db, ContentResolver contentResolver) {
+        return new ObservationWriter(db, contentResolver);
+    }
+
+    /**
+     * Writes observations through an {@link ObservationDataWriter}, which stores them without
+     * the per-row work of the observations view's triggers.
+     */
+    private static class ObservationWriter implements RecordWriter<JsonObservation> {
+        private final ObservationDataWriter mWriter;
+        private final ContentResolver mContentResolver;
+        private final Set<Uri> mChanges = new LinkedHashSet<>();
+
+        ObservationWriter(SQLiteDatabase db, ContentResolver contentResolver) {
+            mWriter = new ObservationDataWriter(db);
+            mContentResolver = contentResolver;
+        }
+
+        @Override public void write(JsonObservation observation, SyncResult syncResult) {
+            if (observation.voided) {
+                mWriter.delete(observation.uuid);
+                syncResult.stats.numDeletes++;
+            } else {
+                mWriter.upsert(
+                        observation.uuid,
+                        observation.patient_uuid,
+                        observation.encounter_uuid,
+                        observation.timestamp.getMillis(),
+                        observation.concept_uuid,
+                        observation.enterer_uuid,
+                        observation.value);
+                syncResult.stats.numInserts++;
+            }
+            // Each patient is notified once per page, when the page is flushed.
+            mChanges.add(observation.patient_uuid == null
+                    ? Observations.CONTENT_URI
+                    : Contracts.getPatientChangeUri(
+                            Observations.CONTENT_URI, observation.patient_uuid));
+        }
+
+        @Override public void flush() {
+            for (Uri uri : mChanges) {
+                DatabaseTransaction.notifyChange(mContentResolver, uri);
+            }
+            mChanges.clear();
+        }
+
+        @Override public void close() {
+            mWriter.close();
+            flush();
+        }
+    }
+
     /** Converts an encounter data response into appropriate inserts in the encounters table. */
     public static ContentValues getObsValuesToInsert(
             JsonObservation observation) {
@@ -85,9 +146,8 @@ public class ObservationsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<
             ContentResolver contentResolver,
             SyncResult syncResult,
             ContentProviderClient providerClient) throws RemoteException {
-        // Remove all temporary observations now we have the real ones
-        providerClient.delete(Observations.CONTENT_URI,
-                Observations.UUID + " IS NULL",
-                new String[0]);
+        // Remove the temporary observations that the real ones have replaced, keeping those
+        // of encounters that are still waiting in the outbox.
+        Outbox.reconcileObservations(providerClient);
     }
 }
@@ -4,11 +4,15 @@ import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.projectbuendia.client.json.JsonOrder;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Orders;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.Outbox;
 import org.projectbuendia.client.utils.Logger;
 
 import java.util.ArrayList;
@@ -48,6 +52,53 @@ public class OrdersSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<JsonOr
         return ops;
     }
 
+    @Override
+    protected RecordWriter<JsonOrder> createRecordWriter(
+            SQLiteDatabase db, ContentResolver contentResolver) {
+        return new OrderWriter(db, contentResolver);
+    }
+
+    /** Writes orders through a {@link TableWriter}. */
+    private static class OrderWriter implements RecordWriter<JsonOrder> {
+        private final TableWriter mWriter;
+
+        OrderWriter(SQLiteDatabase db, ContentResolver contentResolver) {
+            mWriter = new TableWriter(db, contentResolver, Contracts.Table.ORDERS,
+                    Orders.UUID,
+                    Orders.PATIENT_UUID,
+                    Orders.INSTRUCTIONS,
+                    Orders.START_MILLIS,
+                    Orders.STOP_MILLIS);
+        }
+
+        @Override public void write(JsonOrder order, SyncResult syncResult) {
+            if (order.voided) {
+                mWriter.delete(Orders.UUID, order.uuid);
+                syncResult.stats.numDeletes++;
+            } else {
+                mWriter.bind(0, order.uuid)
+                        .bind(1, order.patient_uuid)
+                        .bind(2, order.instructions)
+                        .bind(3, order.start_millis)
+                        .bind(4, order.stop_millis)
+                        .upsert();
+                syncResult.stats.numInserts++;
+            }
+            // Each patient is notified once per page, when the page is flushed.
+            mWriter.addChange(order.patient_uuid == null
+                    ? Orders.CONTENT_URI
+                    : Contracts.getPatientChangeUri(Orders.CONTENT_URI, order.patient_uuid));
+        }
+
+        @Override public void flush() {
+            mWriter.notifyChanges();
+        }
+
+        @Override public void close() {
+            mWriter.close();
+        }
+    }
+
     private static ContentProviderOperation insertOrReplaceOrder(JsonOrder order) {
         return ContentProviderOperation.newInsert(Orders.CONTENT_URI)
                 .withValue(Orders.UUID, order.uuid)
@@ -58,16 +109,17 @@ public class OrdersSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<JsonOr
                 .build();
     }
 
-    private static ContentProviderOperation deleteOrderWithUuid(String uuid) {
-        Uri uri = Orders.CONTENT_URI.buildUpon().appendPath(uuid).build();
-        return ContentProviderOperation.newDelete(uri).build();
-    }
-
     @Override
     protected void afterSyncFinished(
             ContentResolver contentResolver,
             SyncResult syncResult,
-            ContentProviderClient providerClient) throws Throwable {
-        contentResolver.notifyChange(Orders.CONTENT_URI, null, false);
+            ContentProviderClient providerClient) throws RemoteException {
+        // The server's copies have replaced any new and edited orders still waiting in the outbox.
+        Outbox.reapplyPendingItems(providerClient, Outbox.TYPE_ORDER);
+    }
+
+    private static ContentProviderOperation deleteOrderWithUuid(String uuid) {
+        Uri uri = Orders.CONTENT_URI.buildUpon().appendPath(uuid).build();
+        return ContentProviderOperation.newDelete(uri).build();
     }
 }
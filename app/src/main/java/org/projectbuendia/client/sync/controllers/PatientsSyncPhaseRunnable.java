@@ -17,11 +17,16 @@ import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.SyncResult;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.RemoteException;
 
 import org.projectbuendia.client.json.JsonPatient;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.providers.Contracts.Patients;
+import org.projectbuendia.client.providers.TableWriter;
+import org.projectbuendia.client.sync.Outbox;
 
 import java.util.ArrayList;
 
@@ -55,21 +60,64 @@ public class PatientsSyncPhaseRunnable extends IncrementalSyncPhaseRunnable<Json
         return ops;
     }
 
+    @Override
+    protected RecordWriter<JsonPatient> createRecordWriter(
+            SQLiteDatabase db, ContentResolver contentResolver) {
+        return new PatientWriter(db, contentResolver);
+    }
+
+    /** Writes patients through a {@link TableWriter}. */
+    private static class PatientWriter implements RecordWriter<JsonPatient> {
+        private final TableWriter mWriter;
+
+        PatientWriter(SQLiteDatabase db, ContentResolver contentResolver) {
+            mWriter = new TableWriter(db, contentResolver, Contracts.Table.PATIENTS,
+                    Patients.UUID,
+                    Patients.ID,
+                    Patients.GIVEN_NAME,
+                    Patients.FAMILY_NAME,
+                    Patients.GENDER,
+                    Patients.BIRTHDATE,
+                    Patients.LOCATION_UUID);
+        }
+
+        @Override public void write(JsonPatient patient, SyncResult syncResult) {
+            if (patient.voided) {
+                mWriter.delete(Patients.UUID, patient.uuid);
+                syncResult.stats.numDeletes++;
+            } else {
+                // Patients are few, so reusing the model's conversion is cheap enough.
+                mWriter.bind(Patient.fromJson(patient).toContentValues()).upsert();
+                syncResult.stats.numInserts++;
+            }
+            mWriter.addChange(Contracts.getPatientChangeUri(Patients.CONTENT_URI, patient.uuid));
+        }
+
+        @Override public void flush() {
+            mWriter.notifyChanges();
+        }
+
+        @Override public void close() {
+            mWriter.close();
+        }
+    }
+
     private static ContentProviderOperation makeInsertOpForPatient(JsonPatient patient) {
         return ContentProviderOperation.newInsert(Contracts.Patients.CONTENT_URI)
                 .withValues(Patient.fromJson(patient).toContentValues()).build();
     }
 
-    private static ContentProviderOperation makeDeleteOpForPatientUuid(String uuid) {
-        Uri uri = Contracts.Patients.CONTENT_URI.buildUpon().appendPath(uuid).build();
-        return ContentProviderOperation.newDelete(uri).build();
-    }
-
     @Override
     protected void afterSyncFinished(
             ContentResolver contentResolver,
             SyncResult syncResult,
-            ContentProviderClient providerClient) throws Throwable {
-        contentResolver.notifyChange(Contracts.Patients.CONTENT_URI, null, false);
+            ContentProviderClient providerClient) throws RemoteException {
+        // The server's copies have replaced any patient edits still waiting in the outbox.
+        Outbox.reapplyPendingItems(providerClient, Outbox.TYPE_PATIENT_UPDATE);
+    }
+
+    private static ContentProviderOperation makeDeleteOpForPatientUuid(String uuid) {
+        Uri uri = Contracts.Patients.CONTENT_URI.buildUpon().appendPath(uuid).build();
+        return ContentProviderOperation.newDelete(uri).build();
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.SyncResult;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A sync phase whose server data does not depend on anything in the local database, so that it
+ * can be fetched before earlier phases have finished, concurrently with other phases.  The work
+ * is split into {@link #fetch}, which may run on any thread and must not touch the database,
+ * and {@link #apply}, which writes the fetched data and always runs on the sync thread.  Any
+ * local state that the fetch depends on, such as a sync token, is read beforehand on the sync
+ * thread by {@link #readSyncToken}.
+ */
+public abstract class PrefetchableSyncPhaseRunnable<T> implements SyncPhaseRunnable {
+
+    /** A fetch that has been started in the background, waiting to be applied. */
+    public interface Prefetch {
+        /** Waits for the fetch to finish, then writes its data to the database. */
+        void apply(ContentResolver contentResolver, SyncResult syncResult,
+            ContentProviderClient providerClient) throws Throwable;
+
+        /** Abandons the fetch, if it is still running. */
+        void cancel();
+    }
+
+    /**
+     * Reads the stored sync token that {@link #fetch} should send to the server, if any.
+     * This is called on the sync thread.  The default implementation returns null.
+     */
+    protected @Nullable String readSyncToken(ContentProviderClient providerClient)
+        throws Exception {
+        return null;
+    }
+
+    /** Fetches the data for this phase from the server, given the token from readSyncToken. */
+    protected abstract T fetch(@Nullable String syncToken) throws Exception;
+
+    /** Writes data obtained from {@link #fetch} into the local database. */
+    protected abstract void apply(T data, ContentResolver contentResolver,
+        SyncResult syncResult, ContentProviderClient providerClient) throws Throwable;
+
+    @Override public final void sync(ContentResolver contentResolver, SyncResult syncResult,
+        ContentProviderClient providerClient) throws Throwable {
+        apply(fetch(readSyncToken(providerClient)), contentResolver, syncResult, providerClient);
+    }
+
+    /**
+     * Starts fetching on the given executor and returns a handle for applying the result.
+     * This must be called on the sync thread.
+     */
+    public final Prefetch prefetch(ExecutorService executor, ContentProviderClient providerClient)
+        throws Exception {
+        final String syncToken = readSyncToken(providerClient);
+        final Future<T> future = executor.submit(new Callable<T>() {
+            @Override public T call() throws Exception {
+                return fetch(syncToken);
+            }
+        });
+        return new Prefetch() {
+            @Override public void apply(ContentResolver contentResolver, SyncResult syncResult,
+                ContentProviderClient providerClient) throws Throwable {
+                T data;
+                try {
+                    data = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+                PrefetchableSyncPhaseRunnable.this.apply(
+                    data, contentResolver, syncResult, providerClient);
+            }
+
+            @Override public void cancel() {
+                future.cancel(true);
+            }
+        };
+    }
+}
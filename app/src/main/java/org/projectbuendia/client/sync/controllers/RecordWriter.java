@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 The Project Buendia Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at: http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distrib-
+ * uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.projectbuendia.client.sync.controllers;
+
+import android.content.SyncResult;
+
+/**
+ * Writes records of type {@code T} into the local database one at a time, as they are read from
+ * a streamed sync response.  Implementations typically hold a
+ * {@link org.projectbuendia.client.providers.TableWriter}, which must be released, and its change
+ * notifications sent, by calling {@link #close()} when the sync phase is done with the writer.
+ */
+public interface RecordWriter<T> extends AutoCloseable {
+    /** Inserts, replaces, or deletes the local row corresponding to one record. */
+    void write(T record, SyncResult syncResult);
+
+    /**
+     * Sends the change notifications for the records written so far.  This is called after each
+     * page, just before the page is committed.
+     */
+    void flush();
+
+    /** Releases any resources held by this writer. */
+    @Override void close();
+}
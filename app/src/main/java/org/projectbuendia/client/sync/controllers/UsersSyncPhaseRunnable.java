@@ -2,24 +2,27 @@ package org.projectbuendia.client.sync.controllers;
 
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.OperationApplicationException;
 import android.content.SyncResult;
-import android.os.RemoteException;
+import android.support.annotation.Nullable;
 
 import org.projectbuendia.client.App;
-import org.projectbuendia.client.user.UserManager;
+import org.projectbuendia.client.json.JsonUser;
 
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
 
 /**
  * Handles syncing users. This logic always fetches all users, which is okay because the set of
  * users is fairly small.
  */
-public class UsersSyncPhaseRunnable implements SyncPhaseRunnable {
+public class UsersSyncPhaseRunnable extends PrefetchableSyncPhaseRunnable<Set<JsonUser>> {
     @Override
-    public void sync(ContentResolver contentResolver, SyncResult syncResult, ContentProviderClient providerClient)
-            throws InterruptedException, ExecutionException, UserManager.UserSyncException,
-            RemoteException, OperationApplicationException {
-        App.getUserManager().syncKnownUsersSynchronously();
+    protected Set<JsonUser> fetch(@Nullable String syncToken) throws Exception {
+        return App.getUserManager().fetchKnownUsersSynchronously();
+    }
+
+    @Override
+    protected void apply(Set<JsonUser> users, ContentResolver contentResolver,
+            SyncResult syncResult, ContentProviderClient providerClient) throws Throwable {
+        App.getUserManager().storeKnownUsersSynchronously(users);
     }
 }
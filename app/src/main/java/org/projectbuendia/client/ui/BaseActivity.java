@@ -35,6 +35,7 @@ import org.projectbuendia.client.App;
 import org.projectbuendia.client.R;
 import org.projectbuendia.client.diagnostics.HealthIssue;
 import org.projectbuendia.client.diagnostics.TroubleshootingAction;
+import org.projectbuendia.client.events.data.OutboxItemFailedEvent;
 import org.projectbuendia.client.events.diagnostics.TroubleshootingActionsChangedEvent;
 import org.projectbuendia.client.updater.AvailableUpdateInfo;
 import org.projectbuendia.client.updater.DownloadedUpdateInfo;
@@ -214,6 +215,11 @@ public abstract class BaseActivity extends FragmentActivity {
         mInnerContent.addView(view, params);
     }
 
+    /** Called when the server rejects a change that was queued to be sent to it. */
+    public void onEventMainThread(OutboxItemFailedEvent event) {
+        snackBar(R.string.outbox_item_failed);
+    }
+
     /** Called when the set of troubleshooting actions changes. */
     public void onEventMainThread(TroubleshootingActionsChangedEvent event) {
         if (event.solvedIssue != null) {
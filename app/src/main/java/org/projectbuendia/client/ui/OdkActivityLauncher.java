@@ -17,13 +17,14 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.RemoteException;
 
 import com.android.volley.Response;
-import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 
 import org.javarosa.core.model.data.IAnswerData;
@@ -31,12 +32,9 @@ import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.xform.parse.XFormParser;
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
-import org.json.JSONObject;
 import org.odk.collect.android.activities.FormEntryActivity;
-import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.model.Preset;
 import org.odk.collect.android.provider.FormsProviderAPI;
-import org.odk.collect.android.tasks.DeleteInstancesTask;
 import org.odk.collect.android.utilities.FileUtils;
 import org.projectbuendia.client.App;
 import org.projectbuendia.client.AppSettings;
@@ -50,13 +48,12 @@ import org.projectbuendia.client.net.OdkXformSyncTask;
 import org.projectbuendia.client.net.OpenMrsXformIndexEntry;
 import org.projectbuendia.client.net.OpenMrsXformsConnection;
 import org.projectbuendia.client.providers.Contracts;
+import org.projectbuendia.client.sync.Outbox;
+import org.projectbuendia.client.utils.AsyncTaskRunner;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -65,7 +62,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 
 import javax.annotation.Nullable;
 
@@ -277,7 +273,10 @@ public class OdkActivityLauncher {
     }
 
     /**
-     * Convenient shared code for handling an ODK activity result.
+     * Convenient shared code for handling an ODK activity result.  The saved form instance is
+     * looked up, read, and (for an existing patient) turned into observations on a background
+     * thread; then it is queued in the {@link Outbox}, which sends it to the server, and the
+     * observations are stored locally until the server's copies arrive.
      * @param context           the application context
      * @param settings          the application settings
      * @param patientUuid       the patient to add an observation to, or null to create a new patient
@@ -293,57 +292,89 @@ public class OdkActivityLauncher {
 
         if(isActivityCanceled(resultCode, data)) return;
 
-        try {
-            final Uri uri = data.getData();
-            if(!validateContentUriType(context, uri, CONTENT_ITEM_TYPE)) {
-                throw new ValidationException("Tried to load a content URI of the wrong type: "
-                    + uri);
-            }
+        AsyncTaskRunner.DEFAULT.runTask(new SubmitFormTask(
+            context.getContentResolver(), settings, patientUuid, data.getData()));
+    }
 
-            final String filePath = getFormFilePath(context, uri);
-            if(!validateFilePath(filePath, uri)) {
-                throw new ValidationException("No file path for form instance: " + uri);
-            }
+    /**
+     * Reads a saved form instance and, for an existing patient, the observations in it, then
+     * queues the instance in the {@link Outbox} to be submitted and stores the observations
+     * locally until the server's copies arrive.
+     */
+    private static class SubmitFormTask extends AsyncTask<Void, Void, Boolean> {
+        private final ContentResolver mResolver;
+        private final AppSettings mSettings;
+        private final @Nullable String mPatientUuid;
+        private final Uri mUri;
+
+        SubmitFormTask(ContentResolver resolver, AppSettings settings,
+                       @Nullable String patientUuid, Uri uri) {
+            mResolver = resolver;
+            mSettings = settings;
+            mPatientUuid = patientUuid;
+            mUri = uri;
+        }
 
-            final Long formIdToDelete = getIdToDeleteAfterUpload(context, uri);
-            if(!validateIdToDeleteAfterUpload(formIdToDelete, uri)) {
-                throw new ValidationException("No id to delete for after upload: " + uri);
-            }
+        @Override protected Boolean doInBackground(Void... params) {
+            try {
+                if(!validateContentUriType(mResolver, mUri, CONTENT_ITEM_TYPE)) {
+                    throw new ValidationException("Tried to load a content URI of the wrong type: "
+                        + mUri);
+                }
+
+                String filePath = null;
+                Long formIdToDelete = null;
+                Cursor instanceCursor = getCursorAtRightPosition(mResolver, mUri);
+                if (instanceCursor != null) {
+                    try {
+                        filePath = instanceCursor.getString(
+                            instanceCursor.getColumnIndex(INSTANCE_FILE_PATH));
+                        int columnIndex = instanceCursor.getColumnIndex(_ID);
+                        if (columnIndex != -1) {
+                            formIdToDelete = instanceCursor.getLong(columnIndex);
+                        }
+                    } finally {
+                        instanceCursor.close();
+                    }
+                }
+                if(!validateFilePath(filePath, mUri)) {
+                    throw new ValidationException("No file path for form instance: " + mUri);
+                }
+                if(!validateIdToDeleteAfterUpload(formIdToDelete, mUri)) {
+                    throw new ValidationException("No id to delete for after upload: " + mUri);
+                }
 
-            // Temporary code for messing about with xform instance, reading values.
-            byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
+                byte[] fileBytes = FileUtils.getFileAsBytes(new File(filePath));
+                if(!validateXml(fileBytes)) {
+                    throw new ValidationException("Xml form is not valid for uri: " + mUri);
+                }
 
-            // get the root of the saved and template instances
-            final TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+                // Only locally cache new observations, not new patients.
+                ContentValues[] observations = null;
+                if (mPatientUuid != null) {
+                    TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+                    observations = getObservationsToCache(mPatientUuid, savedRoot, mResolver);
+                }
 
-            final String xml = readFromPath(filePath);
-            if(!validateXml(xml)) {
-                throw new ValidationException("Xml form is not valid for uri: " + uri);
+                // The outbox reads the instance again when it sends it, and then deletes it.
+                JsonUser activeUser = App.getUserManager().getActiveUser();
+                App.getInstance().getOutbox().addXformInstance(
+                    mPatientUuid, activeUser.id, filePath,
+                    mSettings.getKeepFormInstancesLocally() ? null : formIdToDelete,
+                    observations);
+                return true;
+            } catch(ValidationException ve) {
+                LOG.e(ve.getMessage());
+                return false;
+            } catch (RemoteException | OperationApplicationException e) {
+                LOG.e(e, "Unable to queue the form instance");
+                return false;
             }
+        }
 
-            sendFormToServer(patientUuid, xml,
-                new Response.Listener<JSONObject>() {
-                    @Override public void onResponse(JSONObject response) {
-                        LOG.i("Created new encounter successfully on server" + response.toString());
-                        // Only locally cache new observations, not new patients.
-                        if (patientUuid != null) {
-                            updateObservationCache(patientUuid, savedRoot, context.getContentResolver());
-                        }
-                        if (!settings.getKeepFormInstancesLocally()) {
-                            deleteLocalFormInstances(formIdToDelete);
-                        }
-                        EventBus.getDefault().post(new SubmitXformSucceededEvent());
-                    }
-                }, new Response.ErrorListener() {
-                    @Override public void onErrorResponse(VolleyError error) {
-                        LOG.e(error, "Error submitting form to server");
-                        handleSubmitError(error);
-                    }
-                });
-        } catch(ValidationException ve) {
-            LOG.e(ve.getMessage());
-            EventBus.getDefault().post(
-                new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
+        @Override protected void onPostExecute(Boolean queued) {
+            EventBus.getDefault().post(queued ? new SubmitXformSucceededEvent()
+                : new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
         }
     }
 
@@ -358,13 +389,13 @@ public class OdkActivityLauncher {
     }
 
     /** Checks if the URI has a valid type. If so, returns {@code true}. Otherwise,  returns {@code false}
-     * @param context           the application context
+     * @param resolver          the content resolver
      * @param uri               the URI to be checked
      * @param validType         the accepted type for URI
      */
-    private static boolean validateContentUriType(final Context context, final Uri uri,
+    private static boolean validateContentUriType(final ContentResolver resolver, final Uri uri,
                                                   final String validType) {
-        return context.getContentResolver().getType(uri).equals(validType);
+        return validType.equals(resolver.getType(uri));
     }
 
     /**
@@ -380,71 +411,20 @@ public class OdkActivityLauncher {
     /**
      * Validates the xml. Returns {@code true} if it is valid. Otherwise, returns {@code false}
      */
-    private static boolean validateXml(String xml) {
+    private static boolean validateXml(byte[] xml) {
         return xml != null;
     }
 
-    private static void deleteLocalFormInstances(Long formIdToDelete) {
-        //Code largely copied from InstanceUploaderTask to delete on upload
-        DeleteInstancesTask dit = new DeleteInstancesTask();
-        dit.setContentResolver(
-            Collect.getInstance().getApplication()
-                .getContentResolver());
-        dit.execute(formIdToDelete);
-    }
-
-    /**
-     * Returns the form file path queried from the given {@link Uri}. If no file path was found,
-     * it returns <code>null</code>.
-     * @param context           the application context
-     * @param uri               the URI containing the form file path
-     */
-    private static String getFormFilePath(final Context context, final Uri uri) {
-        Cursor instanceCursor = null;
-        try {
-            instanceCursor = getCursorAtRightPosition(context, uri);
-            if(instanceCursor == null) return null;
-
-            return instanceCursor.getString(instanceCursor.getColumnIndex(INSTANCE_FILE_PATH));
-        } finally {
-            if (instanceCursor != null) {
-                instanceCursor.close();
-            }
-        }
-    }
-
-    /**
-     * Returns the id to be deleted after the form upload, which was queried from the given
-     * {@link Uri}. If no id was found, it returns <code>null</code>.
-     * @param context           the application context
-     * @param uri               the URI containing the id to be deleted
-     */
-    private static Long getIdToDeleteAfterUpload(final Context context, final Uri uri) {
-        Cursor instanceCursor = null;
-        try {
-            instanceCursor = getCursorAtRightPosition(context, uri);
-            if(instanceCursor == null) return null;
-
-            int columnIndex = instanceCursor.getColumnIndex(_ID);
-            if (columnIndex == -1) return  null;
-
-           return instanceCursor.getLong(columnIndex);
-        } finally {
-            if (instanceCursor != null) {
-                instanceCursor.close();
-            }
-        }
-    }
-
     /**
      * Returns the form {@link Cursor} ready to be used. If no form was found, it triggers a
      * {@link SubmitXformFailedEvent} event and returns <code>null</code>.
-     * @param context           the application context
+     * @param resolver          the content resolver
      * @param uri               the URI to be queried
      */
-    private static Cursor getCursorAtRightPosition(final Context context, final Uri uri) {
-        Cursor instanceCursor = context.getContentResolver().query(uri, null, null, null, null);
+    private static Cursor getCursorAtRightPosition(final ContentResolver resolver, final Uri uri) {
+        Cursor instanceCursor = resolver.query(uri, null, null, null, null);
         if (instanceCursor.getCount() != 1) {
+            instanceCursor.close();
             LOG.e("The form that we tried to load did not exist: " + uri);
             EventBus.getDefault().post(
                 new SubmitXformFailedEvent(SubmitXformFailedEvent.Reason.CLIENT_ERROR));
@@ -469,48 +449,6 @@ public class OdkActivityLauncher {
         return false;
     }
 
-    private static void sendFormToServer(String patientUuid, String xml,
-                                         Response.Listener<JSONObject> successListener,
-                                         Response.ErrorListener errorListener) {
-        OpenMrsXformsConnection connection =
-            new OpenMrsXformsConnection(App.getConnectionDetails());
-        JsonUser activeUser = App.getUserManager().getActiveUser();
-        connection.postXformInstance(
-                patientUuid, activeUser.id, xml, successListener, errorListener);
-    }
-
-    private static void handleSubmitError(VolleyError error) {
-        SubmitXformFailedEvent.Reason reason =  SubmitXformFailedEvent.Reason.UNKNOWN;
-
-        if (error instanceof TimeoutError) {
-            reason = SubmitXformFailedEvent.Reason.SERVER_TIMEOUT;
-        } else if (error.networkResponse != null) {
-            switch (error.networkResponse.statusCode) {
-                case HttpURLConnection.HTTP_UNAUTHORIZED:
-                case HttpURLConnection.HTTP_FORBIDDEN:
-                    reason = SubmitXformFailedEvent.Reason.SERVER_AUTH;
-                    break;
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    reason = SubmitXformFailedEvent.Reason.SERVER_BAD_ENDPOINT;
-                    break;
-                case HttpURLConnection.HTTP_INTERNAL_ERROR:
-                    if (error.networkResponse.data == null) {
-                        LOG.e("Server error, but no internal error stack trace available.");
-                    } else {
-                        LOG.e(new String(error.networkResponse.data, Charsets.UTF_8));
-                        LOG.e("Server error. Internal error stack trace:\n");
-                    }
-                    reason = SubmitXformFailedEvent.Reason.SERVER_ERROR;
-                    break;
-                default:
-                    reason = SubmitXformFailedEvent.Reason.SERVER_ERROR;
-                    break;
-            }
-        }
-
-        EventBus.getDefault().post(new SubmitXformFailedEvent(reason, error));
-    }
-
     private static void handleFetchError(VolleyError error) {
         FetchXformFailedEvent.Reason reason =
             FetchXformFailedEvent.Reason.SERVER_UNKNOWN;
@@ -532,30 +470,11 @@ public class OdkActivityLauncher {
     }
 
     /**
-     * Returns the xml form as a String from the path. If for any reason, the file couldn't be read,
-     * it returns <code>null</code>
-     * @param path      the path to be read
-     */
-    private static String readFromPath(String path) {
-        try {
-            StringBuilder sb = new StringBuilder();
-            BufferedReader reader = new BufferedReader(new FileReader(path));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        } catch (IOException e) {
-            LOG.e(e, format("Failed to read xml form into a String. FilePath=  ", path));
-            return null;
-        }
-    }
-
-    /**
-     * Caches the observation changes locally for a given patient.
+     * Gets the observations to cache locally for a given patient from a saved form instance,
+     * or null if there are none.
      */
-    private static void updateObservationCache(String patientUuid, TreeElement savedRoot,
-                                               ContentResolver resolver) {
+    private static @Nullable ContentValues[] getObservationsToCache(
+        String patientUuid, TreeElement savedRoot, ContentResolver resolver) {
         ContentValues common = new ContentValues();
         // It's critical that UUID is {@code null} for temporary observations, so we make it
         // explicit here. See {@link Contracts.Observations.UUID} for details.
@@ -563,9 +482,8 @@ public class OdkActivityLauncher {
         common.put(Contracts.Observations.PATIENT_UUID, patientUuid);
 
         final DateTime encounterTime = getEncounterAnswerDateTime(savedRoot);
-        if(encounterTime == null) return;
+        if(encounterTime == null) return null;
         common.put(Contracts.Observations.ENCOUNTER_MILLIS, encounterTime.getMillis());
-        common.put(Contracts.Observations.ENCOUNTER_UUID, UUID.randomUUID().toString());
 
         Set<Integer> xformConceptIds = new HashSet<>();
         List<ContentValues> toInsert = getAnsweredObservations(common, savedRoot, xformConceptIds);
@@ -580,8 +498,7 @@ public class OdkActivityLauncher {
             mapIdToUuid(xformIdToUuid, values, Contracts.Observations.VALUE);
         }
 
-        resolver.bulkInsert(Contracts.Observations.CONTENT_URI,
-            toInsert.toArray(new ContentValues[toInsert.size()]));
+        return toInsert.toArray(new ContentValues[toInsert.size()]);
     }
 
     /** Get a map from XForm ids to UUIDs from our local concept database. */
@@ -21,15 +21,17 @@ import android.widget.ExpandableListView;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.google.common.collect.ImmutableList;
+
 import org.projectbuendia.client.R;
 import org.projectbuendia.client.models.ConceptUuids;
 import org.projectbuendia.client.models.Location;
-import org.projectbuendia.client.models.LocationComparator;
 import org.projectbuendia.client.models.LocationTree;
 import org.projectbuendia.client.models.Patient;
 import org.projectbuendia.client.models.TypedCursor;
 import org.projectbuendia.client.resolvables.ResStatus;
 import org.projectbuendia.client.sync.ChartDataHelper;
+import org.projectbuendia.client.sync.LatestObsCache;
 import org.projectbuendia.client.models.Obs;
 import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.PatientCountDisplay;
@@ -55,13 +57,16 @@ public class PatientListTypedCursorAdapter extends BaseExpandableListAdapter {
 
     private final HashMap<Location, List<Patient>> mPatientsByLocation;
     private final LocationTree mLocationTree;
-    private final ChartDataHelper mChartDataHelper;
     private static final Logger LOG = Logger.create();
     private static final String EN_DASH = "\u2013";
 
+    /** Concepts whose latest values are shown on each patient's row. */
+    private static final ImmutableList<String> BADGE_CONCEPT_UUIDS = ImmutableList.of(
+        ConceptUuids.PREGNANCY_UUID, ConceptUuids.GENERAL_CONDITION_UUID);
+    private static LatestObsCache sBadgeObsCache;
+
     private Location[] mLocations;
-    private Map<String, Obs> mPregnancyObs = new HashMap<>();
-    private Map<String, Obs> mConditionObs = new HashMap<>();
+    private Map<String, Map<String, Obs>> mBadgeObs = new HashMap<>();
 
     /**
      * Creates a {@link PatientListTypedCursorAdapter}.
@@ -73,7 +78,13 @@ public class PatientListTypedCursorAdapter extends BaseExpandableListAdapter {
         mPatientsByLocation = new HashMap<Location, List<Patient>>();
 
         mLocationTree = locationTree;
-        mChartDataHelper = new ChartDataHelper(context.getContentResolver());
+        synchronized (PatientListTypedCursorAdapter.class) {
+            if (sBadgeObsCache == null) {
+                sBadgeObsCache = new LatestObsCache(
+                    context.getApplicationContext().getContentResolver(),
+                    BADGE_CONCEPT_UUIDS, ChartDataHelper.ENGLISH_LOCALE);
+            }
+        }
     }
 
     @Override public int getGroupCount() {
@@ -139,10 +150,11 @@ public class PatientListTypedCursorAdapter extends BaseExpandableListAdapter {
         Patient patient = (Patient) getChild(groupPosition, childPosition);
 
         // Show pregnancy status and condition, if the data for these has been loaded.
-        Obs obs = mPregnancyObs.get(patient.uuid);
+        Map<String, Obs> badgeObs = mBadgeObs.get(patient.uuid);
+        Obs obs = badgeObs == null ? null : badgeObs.get(ConceptUuids.PREGNANCY_UUID);
         boolean pregnant = obs != null && ConceptUuids.YES_UUID.equals(obs.value);
 
-        obs = mConditionObs.get(patient.uuid);
+        obs = badgeObs == null ? null : badgeObs.get(ConceptUuids.GENERAL_CONDITION_UUID);
         String condition = obs == null ? null : obs.value;
 
         if (convertView == null) {
@@ -226,7 +238,7 @@ public class PatientListTypedCursorAdapter extends BaseExpandableListAdapter {
         // Produce a sorted list of all the locations that have patients.
         mLocations = new Location[mPatientsByLocation.size()];
         mPatientsByLocation.keySet().toArray(mLocations);
-        Arrays.sort(mLocations, new LocationComparator(mLocationTree));
+        Arrays.sort(mLocations, mLocationTree.getComparator());
 
         // Sort the patient lists within each location using the default comparator.
         for (List<Patient> patients : mPatientsByLocation.values()) {
@@ -248,14 +260,24 @@ public class PatientListTypedCursorAdapter extends BaseExpandableListAdapter {
         }
     }
 
-    private class FetchObservationsTask extends AsyncTask<String, Void, Void> {
-        @Override protected Void doInBackground(String... params) {
-            mPregnancyObs = mChartDataHelper.getLatestObservationsForConcept(ConceptUuids.PREGNANCY_UUID, "en");
-            mConditionObs = mChartDataHelper.getLatestObservationsForConcept(ConceptUuids.GENERAL_CONDITION_UUID, "en");
-            return null;
+    private class FetchObservationsTask
+        extends AsyncTask<Void, Void, Map<String, Map<String, Obs>>> {
+        private final List<String> mPatientUuids = new ArrayList<>();
+
+        FetchObservationsTask() {
+            for (List<Patient> patients : mPatientsByLocation.values()) {
+                for (Patient patient : patients) {
+                    mPatientUuids.add(patient.uuid);
+                }
+            }
+        }
+
+        @Override protected Map<String, Map<String, Obs>> doInBackground(Void... params) {
+            return sBadgeObsCache.get(mPatientUuids);
         }
 
-        @Override protected void onPostExecute(Void result) {
+        @Override protected void onPostExecute(Map<String, Map<String, Obs>> result) {
+            mBadgeObs = result;
             notifyDataSetChanged();
         }
     }
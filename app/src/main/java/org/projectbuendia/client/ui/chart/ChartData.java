@@ -0,0 +1,90 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.ui.chart;
+
+import org.projectbuendia.client.models.Obs;
+import org.projectbuendia.client.models.Order;
+import org.projectbuendia.client.sync.ChartDataHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of everything the patient chart shows for one patient: the patient's
+ * observations, sorted by time and bucketed by concept, and the patient's orders.
+ */
+public final class ChartData {
+    private static final Comparator<Obs> BY_TIME = new Comparator<Obs>() {
+        @Override public int compare(Obs a, Obs b) {
+            return a.time.compareTo(b.time);
+        }
+    };
+
+    public final String patientUuid;
+
+    /** All the patient's observations, in chronological order. */
+    public final List<Obs> observations;
+
+    /** The patient's observations keyed by concept UUID, each list in chronological order. */
+    public final Map<String, List<Obs>> observationsByConcept;
+
+    /** The latest observation of each concept, keyed by concept UUID. */
+    public final Map<String, Obs> latestObservations;
+
+    /** The patient's orders, in order of start time. */
+    public final List<Order> orders;
+
+    public final Map<String, Order> ordersByUuid;
+
+    private ChartData(String patientUuid, List<Obs> observations,
+                      Map<String, Obs> latestObservations, List<Order> orders) {
+        List<Obs> sorted = new ArrayList<>(observations);
+        Collections.sort(sorted, BY_TIME);  // stable, so ties keep their database order
+        Map<String, List<Obs>> byConcept = new HashMap<>();
+        for (Obs obs : sorted) {
+            List<Obs> bucket = byConcept.get(obs.conceptUuid);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                byConcept.put(obs.conceptUuid, bucket);
+            }
+            bucket.add(obs);
+        }
+        for (Map.Entry<String, List<Obs>> entry : byConcept.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        Map<String, Order> byUuid = new HashMap<>();
+        for (Order order : orders) {
+            byUuid.put(order.uuid, order);
+        }
+
+        this.patientUuid = patientUuid;
+        this.observations = Collections.unmodifiableList(sorted);
+        this.observationsByConcept = Collections.unmodifiableMap(byConcept);
+        this.latestObservations =
+            Collections.unmodifiableMap(new HashMap<>(latestObservations));
+        this.orders = Collections.unmodifiableList(new ArrayList<>(orders));
+        this.ordersByUuid = Collections.unmodifiableMap(byUuid);
+    }
+
+    /** Reads a patient's chart data from the local database.  Don't call this on the UI thread. */
+    static ChartData load(ChartDataHelper chartHelper, String patientUuid) {
+        return new ChartData(
+            patientUuid,
+            chartHelper.getObservations(patientUuid),
+            chartHelper.getLatestObservations(patientUuid),
+            chartHelper.getOrders(patientUuid));
+    }
+}
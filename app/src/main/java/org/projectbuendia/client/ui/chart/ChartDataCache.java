@@ -0,0 +1,223 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.ui.chart;
+
+import android.database.ContentObserver;
+
+import org.projectbuendia.client.models.Chart;
+import org.projectbuendia.client.sync.ChartDataHelper;
+import org.projectbuendia.client.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An in-memory cache of {@link ChartData} for recently viewed patients, so that opening a chart
+ * again, or switching its zoom level or tab, doesn't have to go back to the database.  Data is
+ * always read from the database on the given executor, never on the calling thread.  A patient's
+ * entry is dropped whenever that patient's observations or orders change, and all entries are
+ * dropped when concepts change, since the cached values are localized using concept names.
+ * <p/>
+ * <p>All methods may be called from any thread.
+ */
+public class ChartDataCache {
+    private static final Logger LOG = Logger.create();
+
+    /** Number of patients kept in the cache, not counting patients with listeners. */
+    private static final int MAX_PATIENTS = 8;
+
+    /** Receives data loaded by {@link #load}.  Called on the executor thread. */
+    public interface Callback {
+        void onLoaded(ChartData data);
+    }
+
+    /** Receives chart definitions loaded by {@link #loadCharts}.  Called on the executor thread. */
+    public interface ChartsCallback {
+        void onChartsLoaded(List<Chart> charts);
+    }
+
+    /** Notified when a patient's data changes in the database.  Called on any thread. */
+    public interface Listener {
+        void onPatientDataChanged(String patientUuid);
+    }
+
+    private final ChartDataHelper mChartHelper;
+    private final Executor mExecutor;
+    // In access order, so that the least recently used patient comes first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ContentObserver mConceptObserver = new ContentObserver(null) {
+        @Override public void onChange(boolean selfChange) {
+            clear();
+        }
+    };
+
+    public ChartDataCache(ChartDataHelper chartHelper, Executor executor) {
+        mChartHelper = checkNotNull(chartHelper);
+        mExecutor = checkNotNull(executor);
+        mChartHelper.registerConceptDataObserver(mConceptObserver);
+    }
+
+    /** Returns the cached data for a patient, or null if it has to be loaded. */
+    public synchronized @Nullable ChartData getIfPresent(String patientUuid) {
+        Entry entry = mEntries.get(patientUuid);
+        return entry == null ? null : entry.data;
+    }
+
+    /**
+     * Gets the data for a patient on the executor thread, reading it from the database if it
+     * isn't cached, and passes it to the callback on that thread.
+     */
+    public void load(final String patientUuid, final Callback callback) {
+        final Entry entry;
+        final int version;
+        synchronized (this) {
+            entry = getOrCreateEntry(patientUuid);
+            version = entry.version;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                ChartData data;
+                synchronized (ChartDataCache.this) {
+                    data = entry.data;
+                }
+                if (data == null) {
+                    long startMillis = System.currentTimeMillis();
+                    data = ChartData.load(mChartHelper, patientUuid);
+                    long elapsedMillis = System.currentTimeMillis() - startMillis;
+                    ChartRenderTimings.record(ChartRenderTimings.Stage.DATA_LOAD, elapsedMillis);
+                    LOG.d("Loaded %d observations and %d orders for %s in %d ms",
+                        data.observations.size(), data.orders.size(), patientUuid,
+                        elapsedMillis);
+                    store(entry, version, data);
+                }
+                callback.onLoaded(data);
+            }
+        });
+    }
+
+    /**
+     * Reads the chart definitions with the given UUID on the executor thread and passes them to
+     * the callback on that thread.  Definitions are not cached; they change only with a sync.
+     */
+    public void loadCharts(final String chartUuid, final ChartsCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                callback.onChartsLoaded(mChartHelper.getCharts(chartUuid));
+            }
+        });
+    }
+
+    /**
+     * Starts watching a patient's data.  While a patient has listeners, that patient's entry is
+     * never evicted, and the listeners are told whenever the entry is invalidated.
+     */
+    public synchronized void addListener(String patientUuid, Listener listener) {
+        getOrCreateEntry(patientUuid).listeners.add(listener);
+    }
+
+    public synchronized void removeListener(String patientUuid, Listener listener) {
+        Entry entry = mEntries.get(patientUuid);
+        if (entry != null) {
+            entry.listeners.remove(listener);
+            if (entry.listeners.isEmpty() && entry.data == null) {
+                remove(entry);
+            }
+            trim();
+        }
+    }
+
+    /** Discards the cached data for a patient, so that the next load reads the database. */
+    public void invalidate(String patientUuid) {
+        List<Listener> listeners;
+        synchronized (this) {
+            Entry entry = mEntries.get(patientUuid);
+            if (entry == null) return;
+            entry.data = null;
+            entry.version++;
+            listeners = new ArrayList<>(entry.listeners);
+        }
+        for (Listener listener : listeners) {
+            listener.onPatientDataChanged(patientUuid);
+        }
+    }
+
+    /** Discards the cached data for all patients. */
+    public void clear() {
+        List<String> patientUuids;
+        synchronized (this) {
+            patientUuids = new ArrayList<>(mEntries.keySet());
+        }
+        for (String patientUuid : patientUuids) {
+            invalidate(patientUuid);
+        }
+    }
+
+    private synchronized void store(Entry entry, int version, ChartData data) {
+        // Drop the data if the entry was evicted or invalidated while the data was being read.
+        if (mEntries.get(entry.patientUuid) == entry && entry.version == version) {
+            entry.data = data;
+            trim();
+        }
+    }
+
+    private Entry getOrCreateEntry(String patientUuid) {
+        Entry entry = mEntries.get(patientUuid);
+        if (entry == null) {
+            entry = new Entry(patientUuid);
+            mEntries.put(patientUuid, entry);
+            mChartHelper.registerPatientDataObserver(patientUuid, entry.observer);
+        }
+        return entry;
+    }
+
+    /** Evicts least recently used entries that have no listeners, down to MAX_PATIENTS. */
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mEntries.size() > MAX_PATIENTS && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.listeners.isEmpty()) {
+                it.remove();
+                mChartHelper.unregisterPatientDataObserver(entry.observer);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.patientUuid);
+        mChartHelper.unregisterPatientDataObserver(entry.observer);
+    }
+
+    private class Entry {
+        final String patientUuid;
+        final Set<Listener> listeners = new LinkedHashSet<>();
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override public void onChange(boolean selfChange) {
+                invalidate(patientUuid);
+            }
+        };
+        @Nullable ChartData data;
+        int version;
+
+        Entry(String patientUuid) {
+            this.patientUuid = patientUuid;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.projectbuendia.client.ui.chart;
+
+import org.projectbuendia.client.utils.Logger;
+
+/**
+ * Durations of the stages of showing a patient chart, from reading the patient's data to the
+ * WebView finishing loading the page.  The latest and average duration of each stage are kept
+ * for the life of the process and logged after each render, so that a regression in the time
+ * it takes to open a chart shows which stage it is in.
+ */
+public final class ChartRenderTimings {
+    private static final Logger LOG = Logger.create();
+
+    public enum Stage {
+        /** Reading observations and orders from the database. */
+        DATA_LOAD,
+        /** Arranging the data into tiles, rows and columns. */
+        GRID_BUILD,
+        /** Writing out the data used by chart scripts as JSON. */
+        JSON_DUMP,
+        /** Evaluating the Pebble templates into HTML. */
+        TEMPLATE_EVAL,
+        /** Generating the script that updates an already loaded page in place. */
+        UPDATE_SCRIPT,
+        /** Loading the HTML into the WebView, until the page has finished loading. */
+        WEBVIEW_LOAD
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final long[] sLastMillis = new long[STAGES.length];
+    private static final long[] sTotalMillis = new long[STAGES.length];
+    private static final int[] sCounts = new int[STAGES.length];
+
+    private ChartRenderTimings() { }
+
+    /** Records one measurement of a stage. */
+    public static synchronized void record(Stage stage, long millis) {
+        int i = stage.ordinal();
+        sLastMillis[i] = millis;
+        sTotalMillis[i] += millis;
+        sCounts[i]++;
+    }
+
+    /** Gets the most recently recorded duration of a stage, or 0 if it was never recorded. */
+    public static synchronized long getLastMillis(Stage stage) {
+        return sLastMillis[stage.ordinal()];
+    }
+
+    /** Gets the average recorded duration of a stage, or 0 if it was never recorded. */
+    public static synchronized long getAverageMillis(Stage stage) {
+        int i = stage.ordinal();
+        return sCounts[i] == 0 ? 0 : sTotalMillis[i] / sCounts[i];
+    }
+
+    /** Logs the latest and average duration of every stage. */
+    public static synchronized void log() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : STAGES) {
+            int i = stage.ordinal();
+            summary.append(i > 0 ? ", " : "").append(stage).append(" ")
+                .append(sLastMillis[i]).append(" (avg ").append(getAverageMillis(stage)).append(")");
+        }
+        LOG.i("Chart timings in ms: %s", summary);
+    }
+}
@@ -3,9 +3,11 @@ package org.projectbuendia.client.ui.chart;
 import android.content.res.Resources;
 import android.support.v4.util.Pair;
 import android.util.DisplayMetrics;
+import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebView;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import com.mitchellbosecke.pebble.PebbleEngine;
 
@@ -31,6 +33,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -41,12 +44,24 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import javax.annotation.Nullable;
+
 import static org.projectbuendia.client.utils.Utils.HOUR;
 
-/** Renders a patient's chart to HTML displayed in a WebView. */
+/**
+ * Renders a patient's chart to HTML displayed in a WebView.  When only the values in some tiles
+ * or grid cells have changed since the last render, just those elements are re-rendered and
+ * swapped into the page that is already loaded, which keeps the scroll position and avoids
+ * reloading the whole WebView.
+ */
 public class ChartRenderer {
-    static PebbleEngine sEngine;
     private static final Logger LOG = Logger.create();
+    private static final String PAGE_TEMPLATE = "assets/chart.html";
+    private static final String TILE_TEMPLATE = "assets/chart_tile.html";
+    private static final String CELL_TEMPLATE = "assets/chart_cell.html";
+
+    private static PebbleEngine sEngine;
+    private static int sPageCapacity = 64 * 1024;  // initial buffer size for a rendered page
     public static ZoomLevel[] ZOOM_LEVELS = new ZoomLevel[] {
         new ZoomLevel(R.string.zoom_day, 0),
         new ZoomLevel(R.string.zoom_half, 0, 12*HOUR),
@@ -63,6 +78,8 @@ public class ChartRenderer {
     private List<Order> mLastRenderedOrders;  // last set of orders rendered
     private int mLastRenderedZoomIndex;  // last zoom level index rendered
     private String mLastChartName = "";
+    private Chart mLastChart;  // last chart rendered
+    private GridHtmlGenerator mLastGenerator;  // the grid that the loaded page shows
 
     public interface GridJsInterface {
         @android.webkit.JavascriptInterface
@@ -80,6 +97,8 @@ public class ChartRenderer {
         void onPageUnload(int scrollX, int scrollY);
     }
 
+    private long mPageLoadStartMillis;  // when the page now loading was handed to the WebView
+
     public ChartRenderer(WebView view, Resources resources, AppSettings settings) {
         mView = view;
         mResources = resources;
@@ -94,6 +113,7 @@ public class ChartRenderer {
                        GridJsInterface controllerInterface) {
         if (chart == null) {
             mView.loadUrl("file:///android_asset/no_chart.html");
+            mLastGenerator = null;
             return;
         }
         if (mLastChartName.equals(chart.name) &&
@@ -103,29 +123,102 @@ public class ChartRenderer {
             return;  // nothing has changed; no need to render again
         }
 
-        // setDefaultFontSize is supposed to take a size in sp, but in practice
-        // the fonts don't change size when the user font size preference changes.
-        // So, we apply the scaling factor explicitly, defining 1 em to be 10 sp.
-        DisplayMetrics metrics = mResources.getDisplayMetrics();
-        float defaultFontSize = 10*metrics.scaledDensity/metrics.density;
-        mView.getSettings().setDefaultFontSize((int) defaultFontSize);
-
-        mView.getSettings().setJavaScriptEnabled(true);
-        mView.addJavascriptInterface(controllerInterface, "controller");
-        mView.setWebChromeClient(new WebChromeClient());
-        String html = new GridHtmlGenerator(
+        long startMillis = System.currentTimeMillis();
+        final GridHtmlGenerator generator = new GridHtmlGenerator(
             chart, latestObservations, observations, orders,
-            admissionDate, firstSymptomsDate).getHtml();
-        mView.loadDataWithBaseURL(
-            "file:///android_asset/", html, "text/html; charset=utf-8", "utf-8", null);
-        mView.setWebContentsDebuggingEnabled(true);
+            admissionDate, firstSymptomsDate);
+        ChartRenderTimings.record(
+            ChartRenderTimings.Stage.GRID_BUILD, System.currentTimeMillis() - startMillis);
+        String script = null;
+        if (chart == mLastChart && mLastGenerator != null &&
+            mLastRenderedZoomIndex == mSettings.getChartZoomIndex() &&
+            generator.hasSameLayoutAs(mLastGenerator)) {
+            startMillis = System.currentTimeMillis();
+            script = generator.getUpdateScript(mLastGenerator);
+            if (script != null) {
+                ChartRenderTimings.record(ChartRenderTimings.Stage.UPDATE_SCRIPT,
+                    System.currentTimeMillis() - startMillis);
+                ChartRenderTimings.log();
+            }
+        }
+        if (script != null) {
+            LOG.i("Updating chart in place");
+            mView.evaluateJavascript(script, new ValueCallback<String>() {
+                @Override public void onReceiveValue(String result) {
+                    if (!"true".equals(result)) {
+                        LOG.w("Chart page could not be updated in place; reloading it");
+                        loadPage(generator);
+                    }
+                }
+            });
+        } else {
+            // setDefaultFontSize is supposed to take a size in sp, but in practice
+            // the fonts don't change size when the user font size preference changes.
+            // So, we apply the scaling factor explicitly, defining 1 em to be 10 sp.
+            DisplayMetrics metrics = mResources.getDisplayMetrics();
+            float defaultFontSize = 10*metrics.scaledDensity/metrics.density;
+            mView.getSettings().setDefaultFontSize((int) defaultFontSize);
+
+            mView.getSettings().setJavaScriptEnabled(true);
+            mView.addJavascriptInterface(controllerInterface, "controller");
+            mView.setWebChromeClient(new WebChromeClient());
+            loadPage(generator);
+            mView.setWebContentsDebuggingEnabled(true);
+        }
 
         mLastChartName = chart.name;
+        mLastChart = chart;
+        mLastGenerator = generator;
         mLastRenderedZoomIndex = mSettings.getChartZoomIndex();
         mLastRenderedObs = observations;
         mLastRenderedOrders = orders;
     }
 
+    private void loadPage(GridHtmlGenerator generator) {
+        String html = generator.getHtml();
+        mPageLoadStartMillis = System.currentTimeMillis();
+        mView.loadDataWithBaseURL(
+            "file:///android_asset/", html, "text/html; charset=utf-8", "utf-8", null);
+    }
+
+    /** Records how long the page took to load.  Call this when the WebView finishes a page. */
+    public void onPageFinished() {
+        if (mPageLoadStartMillis > 0) {
+            ChartRenderTimings.record(ChartRenderTimings.Stage.WEBVIEW_LOAD,
+                System.currentTimeMillis() - mPageLoadStartMillis);
+            mPageLoadStartMillis = 0;
+            ChartRenderTimings.log();
+        }
+    }
+
+    /**
+     * Creates the template engine and compiles the chart templates, so that the first chart
+     * opened doesn't have to.  This takes a while, so call it on a background thread.
+     */
+    public static void precompileTemplates() {
+        long startMillis = System.currentTimeMillis();
+        try {
+            PebbleEngine engine = getEngine();
+            engine.getTemplate(PAGE_TEMPLATE);
+            engine.getTemplate(TILE_TEMPLATE);
+            engine.getTemplate(CELL_TEMPLATE);
+            LOG.i("Compiled chart templates in %d ms", System.currentTimeMillis() - startMillis);
+        } catch (Exception e) {
+            // The error will show up again, on the page, when a chart is rendered.
+            LOG.w(e, "Could not compile chart templates");
+        }
+    }
+
+    private static synchronized PebbleEngine getEngine() {
+        if (sEngine == null) {
+            // PebbleEngine caches compiled templates by filename, so as long as we keep using the
+            // same engine instance, it's okay to call getTemplate(filename) on each render.
+            sEngine = new PebbleEngine();
+            sEngine.addExtension(new PebbleExtension());
+        }
+        return sEngine;
+    }
+
     /** Gets the starting times (in ms) of the segments into which the day is divided. */
     public int[] getSegmentStartTimes() {
         int index = mSettings.getChartZoomIndex();
@@ -315,8 +408,101 @@ public class ChartRenderer {
             context.put("nowColumnStart", mNowColumn.start);
             context.put("nowDate", mNow.toLocalDate());
             context.put("orders", mOrders);
+            long startMillis = System.currentTimeMillis();
             context.put("dataCellsByConceptId", getJsonDataDump());
-            return renderTemplate("assets/chart.html", context);
+            ChartRenderTimings.record(
+                ChartRenderTimings.Stage.JSON_DUMP, System.currentTimeMillis() - startMillis);
+
+            startMillis = System.currentTimeMillis();
+            String html = renderTemplate(PAGE_TEMPLATE, context, sPageCapacity);
+            ChartRenderTimings.record(
+                ChartRenderTimings.Stage.TEMPLATE_EVAL, System.currentTimeMillis() - startMillis);
+            // Size the next page's buffer to hold this one without having to grow.
+            sPageCapacity = Math.max(sPageCapacity, html.length() + html.length() / 8);
+            return html;
+        }
+
+        /**
+         * Returns true if this grid has the same columns, headings, and orders as another grid
+         * of the same chart, so that the two can differ only in the contents of tiles and cells.
+         */
+        boolean hasSameLayoutAs(GridHtmlGenerator other) {
+            if (!mColumnsByStartMillis.keySet().equals(other.mColumnsByStartMillis.keySet())
+                || !mNowColumn.start.equals(other.mNowColumn.start)
+                || !mNow.toLocalDate().equals(other.mNow.toLocalDate())
+                || !Objects.equal(mAdmissionDate, other.mAdmissionDate)
+                || !mOrders.equals(other.mOrders)) {
+                return false;
+            }
+            for (Column column : mColumnsByStartMillis.values()) {
+                Column otherColumn = other.mColumnsByStartMillis.get(column.start.getMillis());
+                if (!column.executionCountsByOrderUuid.equals(
+                    otherColumn.executionCountsByOrderUuid)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns a JavaScript statement that turns the page rendered from a previous grid with
+         * the same layout into the page for this grid, by replacing only the tiles and cells
+         * whose values differ.  Returns null if the page has to be reloaded instead, which is
+         * the case when a changed value is used by a chart script.
+         */
+        @Nullable String getUpdateScript(GridHtmlGenerator previous) {
+            JSONObject tilesById = new JSONObject();
+            JSONObject cellsById = new JSONObject();
+            try {
+                for (int r = 0; r < mTileRows.size(); r++) {
+                    List<Tile> tileRow = mTileRows.get(r);
+                    for (int t = 0; t < tileRow.size(); t++) {
+                        Tile tile = tileRow.get(t);
+                        if (Arrays.equals(tile.points, previous.mTileRows.get(r).get(t).points)) {
+                            continue;
+                        }
+                        if (!Collections.disjoint(
+                            mConceptsToDump, Arrays.asList(tile.item.conceptUuids))) {
+                            return null;
+                        }
+                        Map<String, Object> context = new HashMap<>();
+                        context.put("tile", tile);
+                        context.put("tileRow", tileRow);
+                        tilesById.put("tile-" + tile.item.conceptIds.get(0),
+                            evaluateTemplate(TILE_TEMPLATE, context, 0).trim());
+                    }
+                }
+                for (Row row : mRows) {
+                    String uuid = row.item.conceptUuids[0];
+                    for (Column column : mColumnsByStartMillis.values()) {
+                        Column prevColumn =
+                            previous.mColumnsByStartMillis.get(column.start.getMillis());
+                        if (Objects.equal(getPoints(column, uuid), getPoints(prevColumn, uuid))) {
+                            continue;
+                        }
+                        if (mConceptsToDump.contains(uuid)) {
+                            return null;
+                        }
+                        Map<String, Object> context = new HashMap<>();
+                        context.put("row", row);
+                        context.put("column", column);
+                        context.put("nowColumnStart", mNowColumn.start);
+                        cellsById.put(
+                            "cell-" + row.item.conceptIds.get(0) + "-" + column.start.getMillis(),
+                            evaluateTemplate(CELL_TEMPLATE, context, 0).trim());
+                    }
+                }
+            } catch (Exception e) {
+                LOG.e(e, "Could not render chart update");
+                return null;
+            }
+            return "updateChart(" + tilesById + ", " + cellsById + ");";
+        }
+
+        /** Gets the points for a concept in a column, treating a missing set as empty. */
+        SortedSet<ObsPoint> getPoints(Column column, String conceptUuid) {
+            SortedSet<ObsPoint> points = column.pointSetByConceptUuid.get(conceptUuid);
+            return points == null ? new TreeSet<ObsPoint>() : points;
         }
 
         /**
@@ -340,24 +526,27 @@ public class ChartRenderer {
             }
         }
 
-        /** Renders a Pebble template. */
-        String renderTemplate(String filename, Map<String, Object> context) {
-            if (sEngine == null) {
-                // PebbleEngine caches compiled templates by filename, so as long as we keep using the
-                // same engine instance, it's okay to call getTemplate(filename) on each render.
-                sEngine = new PebbleEngine();
-                sEngine.addExtension(new PebbleExtension());
-            }
+        /** Renders a Pebble template, or a description of the error if rendering fails. */
+        String renderTemplate(String filename, Map<String, Object> context, int capacity) {
             try {
-                StringWriter writer = new StringWriter();
-                sEngine.getTemplate(filename).evaluate(writer, context);
-                return writer.toString();
+                return evaluateTemplate(filename, context, capacity);
             } catch (Exception e) {
                 StringWriter writer = new StringWriter();
                 e.printStackTrace(new PrintWriter(writer));
                 return "<div style=\"font-size: 150%\">" + writer.toString().replace("&", "&amp;").replace("<", "&lt;").replace("\n", "<br>");
             }
         }
+
+        /**
+         * Renders a Pebble template.  The capacity is the expected length of the output, or 0
+         * to start with a small buffer.
+         */
+        String evaluateTemplate(String filename, Map<String, Object> context, int capacity)
+            throws Exception {
+            StringWriter writer = capacity > 0 ? new StringWriter(capacity) : new StringWriter();
+            getEngine().getTemplate(filename).evaluate(writer, context);
+            return writer.toString();
+        }
     }
 
     public static class ZoomLevel {
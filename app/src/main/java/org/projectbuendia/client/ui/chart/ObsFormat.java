@@ -1,5 +1,7 @@
 package org.projectbuendia.client.ui.chart;
 
+import android.support.v4.util.LruCache;
+
 import com.google.common.base.Objects;
 
 import org.apache.commons.text.ExtendedMessageFormat;
@@ -65,6 +67,9 @@ public class ObsFormat extends Format {
     public static final String EN_DASH = "\u2013";  // an en-dash to mean "nothing has been observed"
     public static final String TYPE_ERROR = "?";  // shown for a type mismatch (e.g. non-ObsValue)
 
+    /** Parsed formats by pattern; see {@link #fromPattern}. */
+    private static final LruCache<String, ObsFormat> sCache = new LruCache<>(256);
+
     private String mPattern;
     private Format mFormat;
 
@@ -119,10 +124,20 @@ public class ObsFormat extends Format {
         return mPattern;
     }
 
-    /** Returns an ObsFormat for the given pattern, or null for a null or empty pattern. */
+    /**
+     * Returns an ObsFormat for the given pattern, or null for a null or empty pattern.  Parsing
+     * a pattern is slow, and charts reuse a few dozen patterns for thousands of cells, so the
+     * parsed formats are cached by pattern.  The cache is filled with the patterns of every
+     * chart item by {@link org.projectbuendia.client.sync.ChartDataHelper#getCharts}.
+     */
     public static @Nullable ObsFormat fromPattern(@Nullable String pattern) {
-        // TODO/speed: If creating ObsFormats is slow, we could cache instances here by pattern.
-        return Utils.isEmpty(pattern) ? null : new ObsFormat(pattern);
+        if (Utils.isEmpty(pattern)) return null;
+        ObsFormat format = sCache.get(pattern);
+        if (format == null) {
+            format = new ObsFormat(pattern);
+            sCache.put(pattern, format);
+        }
+        return format;
     }
 
     public Object[] getCurrentArgs() {
@@ -132,8 +147,12 @@ public class ObsFormat extends Format {
     @Override public StringBuffer format(Object obj, @Nonnull StringBuffer buf,
                                          @Nonnull FieldPosition pos) {
         if (obj instanceof ObsValue[]) {
-            mCurrentArgs = (ObsValue[]) obj;
-            return mFormat.format(obj, buf, pos);
+            // Cached formats are shared between threads, and the arguments being formatted are
+            // held in the root format, so only one thread at a time may use a format tree.
+            synchronized (mRootObsFormat) {
+                mCurrentArgs = (ObsValue[]) obj;
+                return mFormat.format(obj, buf, pos);
+            }
         } else {
             buf.append(TYPE_ERROR);
             return buf;
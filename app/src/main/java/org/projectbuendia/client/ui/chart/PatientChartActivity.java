@@ -109,6 +109,7 @@ public final class PatientChartActivity extends BaseLoggedInActivity {
     @Inject Provider<CrudEventBus> mCrudEventBusProvider;
     @Inject SyncManager mSyncManager;
     @Inject ChartDataHelper mChartDataHelper;
+    @Inject ChartDataCache mChartDataCache;
     @Inject AppSettings mSettings;
     @InjectView(R.id.patient_chart_root) ViewGroup mRootView;
     @InjectView(R.id.attribute_location) PatientAttributeView mPatientLocationView;
@@ -240,6 +241,7 @@ public final class PatientChartActivity extends BaseLoggedInActivity {
         // Remembering scroll position and applying it after the chart finished loading.
         mGridWebView.setWebViewClient(new WebViewClient() {
             public void onPageFinished(WebView view, String url) {
+                mChartRenderer.onPageFinished();
                 Point scrollPosition = mController.getLastScrollPosition();
                 if (scrollPosition != null) {
                     view.loadUrl("javascript:$('#grid-scroller').scrollLeft(" + scrollPosition.x + ");");
@@ -272,6 +274,7 @@ public final class PatientChartActivity extends BaseLoggedInActivity {
             getIntent().getStringExtra("uuid"),
             odkResultSender,
             mChartDataHelper,
+            mChartDataCache,
             controllerState,
             mSyncManager,
             minimalHandler);
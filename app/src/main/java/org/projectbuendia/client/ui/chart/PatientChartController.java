@@ -14,6 +14,7 @@ package org.projectbuendia.client.ui.chart;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.graphics.Point;
 import android.os.Bundle;
 import android.os.Handler;
@@ -65,7 +66,6 @@ import org.projectbuendia.client.utils.Logger;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -105,8 +105,8 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
     private Patient mPatient = Patient.builder().build();
     private LocationTree mLocationTree;
     private String mPatientUuid = "";
-    private Map<String, Order> mOrdersByUuid;
-    private List<Obs> mObservations;
+    // The chart data most recently shown, or null if none has been loaded yet.
+    private @Nullable ChartData mChartData;
 
     // This value is incremented whenever the controller is activated or suspended.
     // A "phase" is a period of time between such transition points.
@@ -116,11 +116,34 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
     private final OdkResultSender mOdkResultSender;
     private final Ui mUi;
     private final ChartDataHelper mChartHelper;
+    private final ChartDataCache mChartDataCache;
     private final AppModel mAppModel;
     private final AppSettings mSettings;
     private final EventSubscriber mEventBusSubscriber = new EventSubscriber();
     private final SyncManager mSyncManager;
     private final MinimalHandler mMainThreadHandler;
+    // Set when this patient's observations or orders, or the concept names, chart layouts or
+    // forms used to show them, change in the local database, and cleared when the chart is
+    // redrawn, so that syncs that bring nothing new for this patient are cheap.
+    private volatile boolean mPatientDataChanged = true;
+    // Set when the chart layouts or forms change, so that the next redraw reads the charts again.
+    private volatile boolean mChartDefinitionChanged = false;
+    private final ContentObserver mChartDefinitionObserver = new ContentObserver(null) {
+        @Override public void onChange(boolean selfChange) {
+            mChartDefinitionChanged = true;
+            mPatientDataChanged = true;
+        }
+    };
+    private final ChartDataCache.Listener mPatientDataListener = new ChartDataCache.Listener() {
+        @Override public void onPatientDataChanged(String patientUuid) {
+            mPatientDataChanged = true;
+            mMainThreadHandler.post(new Runnable() {
+                @Override public void run() {
+                    updatePatientObsUiIfChanged();
+                }
+            });
+        }
+    };
     private AssignLocationDialog mAssignLocationDialog;
     private AssignGeneralConditionDialog mAssignGeneralConditionDialog;
 
@@ -217,6 +240,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         String patientUuid,
         OdkResultSender odkResultSender,
         ChartDataHelper chartHelper,
+        ChartDataCache chartDataCache,
         @Nullable Bundle savedState,
         SyncManager syncManager,
         MinimalHandler mainThreadHandler) {
@@ -228,6 +252,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         mPatientUuid = patientUuid;
         mOdkResultSender = odkResultSender;
         mChartHelper = chartHelper;
+        mChartDataCache = chartDataCache;
         if (savedState != null) {
             mPatientUuids = savedState.getStringArray(KEY_PENDING_UUIDS);
         } else {
@@ -258,6 +283,8 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
 
         mDefaultEventBus.register(mEventBusSubscriber);
         mCrudEventBus.register(mEventBusSubscriber);
+        mChartDataCache.addListener(mPatientUuid, mPatientDataListener);
+        mChartHelper.registerChartDefinitionObserver(mChartDefinitionObserver);
         mAppModel.fetchSinglePatient(mCrudEventBus, mPatientUuid);
         mAppModel.fetchLocationTree(mCrudEventBus, LocaleSelector.getCurrentLocale().toString());
 
@@ -292,6 +319,8 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
 
         mCrudEventBus.unregister(mEventBusSubscriber);
         mDefaultEventBus.unregister(mEventBusSubscriber);
+        mChartDataCache.removeListener(mPatientUuid, mPatientDataListener);
+        mChartHelper.unregisterChartDefinitionObserver(mChartDefinitionObserver);
         if (mLocationTree != null) {
             mLocationTree.close();
         }
@@ -334,7 +363,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         // Don't acknowledge this action if a dialog is showing
         if (dialogShowing()) return;
 
-        Preset preset = new Preset();
+        final Preset preset = new Preset();
         preset.locationName = "Triage"; // TODO/i18n: Several occurrences of "Triage" in this file.
 
         JsonUser user = App.getUserManager().getActiveUser();
@@ -345,9 +374,32 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             preset.clinicianName = user.fullName;
         }
 
-        Map<String, Obs> observations =
-            mChartHelper.getLatestObservations(mPatientUuid);
+        preset.targetGroup = targetGroup;
 
+        mUi.showFormLoadingDialog(true);
+        if (mChartData != null) {
+            showObservationForm(preset, mChartData.latestObservations);
+            return;
+        }
+        // The chart hasn't been drawn yet, so read its data in the background first.
+        final int phaseId = mCurrentPhaseId;
+        mChartDataCache.load(mPatientUuid, new ChartDataCache.Callback() {
+            @Override public void onLoaded(final ChartData data) {
+                mMainThreadHandler.post(new Runnable() {
+                    @Override public void run() {
+                        if (mCurrentPhaseId == phaseId) {
+                            showObservationForm(preset, data.latestObservations);
+                        } else {
+                            mUi.showFormLoadingDialog(false);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Fills in the pregnancy and IV status from the observations, then opens the form. */
+    private void showObservationForm(Preset preset, Map<String, Obs> observations) {
         if (observations.containsKey(ConceptUuids.PREGNANCY_UUID)
             && ConceptUuids.YES_UUID.equals(observations.get(ConceptUuids.PREGNANCY_UUID).value)) {
             preset.pregnant = Preset.YES;
@@ -358,9 +410,6 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             preset.ivFitted = Preset.YES;
         }
 
-        preset.targetGroup = targetGroup;
-
-        mUi.showFormLoadingDialog(true);
         FormRequest request = newFormRequest(OBSERVATION_FORM_UUID, mPatientUuid);
         mUi.fetchAndShowXform(
                 request.requestIndex, request.formUuid,
@@ -451,19 +500,24 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
 
     @android.webkit.JavascriptInterface
     public void onOrderHeadingPressed(String orderUuid) {
-        mUi.showOrderDialog(mPatientUuid, mOrdersByUuid.get(orderUuid));
+        if (mChartData == null) return;
+        mUi.showOrderDialog(mPatientUuid, mChartData.ordersByUuid.get(orderUuid));
     }
 
     @android.webkit.JavascriptInterface
     public void onOrderCellPressed(String orderUuid, long startMillis) {
-        Order order = mOrdersByUuid.get(orderUuid);
+        ChartData data = mChartData;
+        if (data == null) return;
+        Order order = data.ordersByUuid.get(orderUuid);
         DateTime start = new DateTime(startMillis);
         Interval interval = new Interval(start, start.plusDays(1));
         List<DateTime> executionTimes = new ArrayList<>();
-        for (Obs obs : mObservations) {
-            if (AppModel.ORDER_EXECUTED_CONCEPT_UUID.equals(obs.conceptUuid) &&
-                order.uuid.equals(obs.value)) {
-                executionTimes.add(obs.time);
+        List<Obs> executions = data.observationsByConcept.get(AppModel.ORDER_EXECUTED_CONCEPT_UUID);
+        if (executions != null) {
+            for (Obs obs : executions) {
+                if (order.uuid.equals(obs.value)) {
+                    executionTimes.add(obs.time);
+                }
             }
         }
         mUi.showOrderExecutionDialog(order, interval, executionTimes);
@@ -556,20 +610,78 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         updatePatientObsUi();
     }
 
-    /** Gets the latest observation values and displays them on the UI. */
-    public synchronized void updatePatientObsUi() {
-        // Get the observations and orders
-        // TODO: Background thread this, or make this call async-like.
-        mObservations = mChartHelper.getObservations(mPatientUuid);
-        Map<String, Obs> latestObservations =
-            new HashMap<>(mChartHelper.getLatestObservations(mPatientUuid));
-        List<Order> orders = mChartHelper.getOrders(mPatientUuid);
-        mOrdersByUuid = new HashMap<>();
-        for (Order order : orders) {
-            mOrdersByUuid.put(order.uuid, order);
+    /** Redraws the observations and orders, if they have changed since they were last drawn. */
+    private void updatePatientObsUiIfChanged() {
+        if (mPatientDataChanged) {
+            updatePatientObsUi();
         }
-        LOG.d("Showing " + mObservations.size() + " observations and "
-            + orders.size() + " orders");
+    }
+
+    /**
+     * Displays the patient's observations and orders.  If they aren't in the cache, they are
+     * loaded in the background and displayed once loaded; this never reads the database on the
+     * calling thread.
+     */
+    public void updatePatientObsUi() {
+        mPatientDataChanged = false;
+        final int phaseId = mCurrentPhaseId;
+        if (mChartDefinitionChanged) {
+            mChartDefinitionChanged = false;
+            mChartDataCache.loadCharts(AppModel.CHART_UUID, new ChartDataCache.ChartsCallback() {
+                @Override public void onChartsLoaded(final List<Chart> charts) {
+                    mMainThreadHandler.post(new Runnable() {
+                        @Override public void run() {
+                            if (mCurrentPhaseId == phaseId) {
+                                mCharts = charts;
+                                if (mChartIndex >= mCharts.size()) {
+                                    mChartIndex = 0;
+                                }
+                                showPatientObs(phaseId);
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        }
+        showPatientObs(phaseId);
+    }
+
+    /** Displays the patient's observations and orders from the cache, or once they are loaded. */
+    private void showPatientObs(final int phaseId) {
+        ChartData data = mChartDataCache.getIfPresent(mPatientUuid);
+        if (data != null) {
+            showChartData(data);
+            return;
+        }
+        mChartDataCache.load(mPatientUuid, new ChartDataCache.Callback() {
+            @Override public void onLoaded(final ChartData data) {
+                mMainThreadHandler.post(new Runnable() {
+                    @Override public void run() {
+                        // Drop data that arrives after the controller has been suspended.
+                        if (mCurrentPhaseId == phaseId) {
+                            showChartData(data);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reloads and displays the patient's observations and orders after this controller has
+     * changed them, without waiting for the database change notification to arrive.
+     */
+    private void reloadPatientObsUi() {
+        mChartDataCache.invalidate(mPatientUuid);
+        updatePatientObsUi();
+    }
+
+    private void showChartData(ChartData data) {
+        mChartData = data;
+        Map<String, Obs> latestObservations = data.latestObservations;
+        LOG.d("Showing %d observations and %d orders",
+            data.observations.size(), data.orders.size());
 
         LocalDate admissionDate = getObservedDate(
             latestObservations, ConceptUuids.ADMISSION_DATE_UUID);
@@ -581,7 +693,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         if (!mCharts.isEmpty()) {
             mUi.updateTilesAndGrid(
                 mCharts.get(mChartIndex),
-                latestObservations, mObservations, orders,
+                latestObservations, data.observations, data.orders,
                 admissionDate, firstSymptomsDate);
         }
     }
@@ -628,7 +740,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
         }
 
         public void onEventMainThread(SyncSucceededEvent event) {
-            updatePatientObsUi();
+            updatePatientObsUiIfChanged();
         }
 
         public void onEventMainThread(EncounterAddFailedEvent event) {
@@ -652,20 +764,21 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             } else if (event.item instanceof Encounter) {
                 mUi.hideWaitDialog();
 
-                // We don't need to update the UI here because updatePatientObsUi()
+                // We don't need to update the UI here because reloadPatientObsUi()
                 // below updates all the parts of the UI that use observation data.
             }
 
-            // TODO: Displaying the observations part of the UI takes a lot of main-thread time.
-            // This delays rendering of the rest of UI. To allow the rest of the UI to be displayed
-            // before we attempt to populate the observations, we delay the observation update
-            // slightly. We need this hack because we load observations on the main thread. We
-            // should change this to use a background thread. Either an async task or using
-            // CrudEventBus events.
+            // Rendering the chart still takes a lot of main-thread time, so we let the rest
+            // of the UI be displayed before populating the observations.
+            final boolean patientLoaded = event.item instanceof Patient;
             mMainThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    updatePatientObsUi();
+                    if (patientLoaded) {
+                        updatePatientObsUi();
+                    } else {
+                        reloadPatientObsUi();
+                    }
                 }
             });
         }
@@ -674,7 +787,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             mMainThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    updatePatientObsUi();
+                    reloadPatientObsUi();
                 }
             });
         }
@@ -689,7 +802,7 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             mMainThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    updatePatientObsUi();
+                    reloadPatientObsUi();
                     mUi.showFormSubmissionDialog(false);
                 }
             });
@@ -770,11 +883,11 @@ final class PatientChartController implements ChartRenderer.GridJsInterface {
             for (String uuid : event.Uuids) {
                 mAppModel.VoidObservation(mCrudEventBus, new VoidObs(uuid));
             }
-            updatePatientObsUi();
+            reloadPatientObsUi();
         }
 
         public void onEventMainThread(OrderExecutionSaveRequestedEvent event) {
-            Order order = mOrdersByUuid.get(event.orderUuid);
+            Order order = mChartData == null ? null : mChartData.ordersByUuid.get(event.orderUuid);
             if (order != null) {
                 mAppModel.addOrderExecutedEncounter(mCrudEventBus, mPatient, order.uuid);
             }
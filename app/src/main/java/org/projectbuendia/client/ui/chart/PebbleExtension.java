@@ -201,7 +201,8 @@ public class PebbleExtension extends AbstractExtension {
     }
 
     static Format asFormat(Object arg) {
-        return arg instanceof Format ? (Format) arg : arg == null ? null : new ObsFormat("" + arg);
+        return arg instanceof Format ? (Format) arg
+            : arg == null ? null : ObsFormat.fromPattern("" + arg);
     }
 
     static String formatValues(List<ObsValue> values, Format format) {
@@ -26,10 +26,7 @@ import org.projectbuendia.client.filter.db.SimpleSelectionFilterGroup;
 import org.projectbuendia.client.filter.db.patient.LocationUuidFilter;
 import org.projectbuendia.client.filter.db.patient.PatientDbFilters;
 import org.projectbuendia.client.filter.matchers.FilteredCursorWrapper;
-import org.projectbuendia.client.filter.matchers.MatchingFilter;
-import org.projectbuendia.client.filter.matchers.MatchingFilterGroup;
-import org.projectbuendia.client.filter.matchers.patient.IdFilter;
-import org.projectbuendia.client.filter.matchers.patient.NameFilter;
+import org.projectbuendia.client.filter.matchers.patient.PatientSearchIndex;
 import org.projectbuendia.client.models.AppModel;
 import org.projectbuendia.client.models.LocationTree;
 import org.projectbuendia.client.models.Patient;
@@ -39,12 +36,11 @@ import org.projectbuendia.client.utils.EventBusRegistrationInterface;
 import org.projectbuendia.client.utils.Utils;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
-import static org.projectbuendia.client.filter.matchers.MatchingFilterGroup.FilterType.OR;
-
 /** Controller for {@link BaseSearchablePatientListActivity}. */
 public class PatientSearchController {
 
@@ -65,9 +61,9 @@ public class PatientSearchController {
     private final Object mFilterSubscriberLock = new Object();
     private final LocationTreeUpdatedSubscriber mLocationTreeUpdatedSubscriber;
     private boolean mWaitingOnLocationTree = false;
-    private final MatchingFilter<Patient> mSearchFilter =
-        new MatchingFilterGroup<Patient>(OR, new IdFilter(), new NameFilter());
     private TypedCursor<Patient> mPatientsCursor;
+    // Index over the IDs and names in mPatientsCursor, rebuilt whenever the cursor is replaced.
+    private PatientSearchIndex mSearchIndex;
     private final SyncSubscriber mSyncSubscriber;
     private final CreationSubscriber mCreationSubscriber;
 
@@ -157,10 +153,7 @@ public class PatientSearchController {
         }
 
         if (mPatientsCursor != null) {
-            FilteredCursorWrapper<Patient> filteredCursorWrapper =
-                new FilteredCursorWrapper<Patient>(
-                    mPatientsCursor, mSearchFilter, mFilterQueryTerm);
-            fragmentUi.setPatients(filteredCursorWrapper);
+            fragmentUi.setPatients(getSearchResults());
         }
 
         // If all data is loaded, no need for a spinner.
@@ -208,10 +201,20 @@ public class PatientSearchController {
         loadSearchResults(true); // By default, show spinner.
     }
 
+    private FilteredCursorWrapper<Patient> getSearchResults() {
+        long startNanos = System.nanoTime();
+        List<Integer> positions = mSearchIndex.search(mFilterQueryTerm);
+        if (DEBUG) {
+            // The query holds patient names and IDs, so only its length is logged.
+            Log.d(TAG, String.format("Search for %d characters matched %d of %d patients in %d us",
+                mFilterQueryTerm.length(), positions.size(), mSearchIndex.getCount(),
+                (System.nanoTime() - startNanos) / 1000));
+        }
+        return new FilteredCursorWrapper<>(mPatientsCursor, positions);
+    }
+
     private void updatePatients() {
-        FilteredCursorWrapper<Patient> filteredCursorWrapper =
-            new FilteredCursorWrapper<Patient>(
-                mPatientsCursor, mSearchFilter, mFilterQueryTerm);
+        FilteredCursorWrapper<Patient> filteredCursorWrapper = getSearchResults();
         mUi.setPatients(filteredCursorWrapper);
         for (FragmentUi fragmentUi : mFragmentUis) {
             fragmentUi.setPatients(filteredCursorWrapper);
@@ -344,8 +347,10 @@ public class PatientSearchController {
                 mPatientsCursor.close();
             }
 
-            // Replace the patient cursor with the newly-fetched results.
+            // Replace the patient cursor with the newly-fetched results, and index them once
+            // here so that each keystroke in the search box doesn't have to scan them all.
             mPatientsCursor = event.cursor;
+            mSearchIndex = new PatientSearchIndex(mPatientsCursor);
             updatePatients();
         }
     }
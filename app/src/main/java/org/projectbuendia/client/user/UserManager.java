@@ -136,6 +136,22 @@ public class UserManager {
         onUsersSynced(mUserStore.syncKnownUsers());
     }
 
+    /**
+     * Fetches the known users from the server without storing them.  Together with
+     * {@link #storeKnownUsersSynchronously}, this lets the network request run on another thread.
+     */
+    public Set<JsonUser> fetchKnownUsersSynchronously()
+        throws InterruptedException, ExecutionException {
+        return mUserStore.fetchKnownUsers();
+    }
+
+    /** Stores a set of users obtained from {@link #fetchKnownUsersSynchronously}. */
+    public void storeKnownUsersSynchronously(Set<JsonUser> users)
+        throws RemoteException, OperationApplicationException, UserSyncException {
+        mUserStore.storeKnownUsers(users);
+        onUsersSynced(users);
+    }
+
     /**
      * Called when users are retrieved from the server, in order to send events and update user
      * state as necessary.
@@ -12,10 +12,8 @@
 package org.projectbuendia.client.user;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
-import android.content.SyncResult;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.RemoteException;
@@ -32,9 +30,9 @@ import org.projectbuendia.client.providers.BuendiaProvider;
 import org.projectbuendia.client.providers.Contracts;
 import org.projectbuendia.client.providers.Contracts.Users;
 import org.projectbuendia.client.providers.DatabaseTransaction;
+import org.projectbuendia.client.providers.TableWriter;
 import org.projectbuendia.client.utils.Logger;
 
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -73,6 +71,17 @@ public class UserStore {
         return users;
     }
 
+    /** Fetches the known users from the server, without updating the local store. */
+    public Set<JsonUser> fetchKnownUsers() throws ExecutionException, InterruptedException {
+        return getUsersFromServer();
+    }
+
+    /** Replaces the users in the local store with the given set. */
+    public void storeKnownUsers(Set<JsonUser> users)
+        throws RemoteException, OperationApplicationException {
+        updateDatabase(users);
+    }
+
     /** Adds a new user, both locally and on the server. */
     public JsonUser addUser(JsonNewUser user) throws VolleyError {
         JsonUser newUser = addUserOnServer(user);
@@ -138,15 +147,23 @@ public class UserStore {
         return  result.user;
     }
 
+    /** Replaces the current set of users in the local database with the given set. */
     private void  updateDatabase(Set<JsonUser> users) throws RemoteException, OperationApplicationException {
         LOG.i("Updating local database with %d users", users.size());
         ContentProviderClient client = App.getInstance().getContentResolver()
             .acquireContentProviderClient(Users.CONTENT_URI);
         BuendiaProvider provider = (BuendiaProvider) client.getLocalContentProvider();
         try (DatabaseTransaction tx = provider.startTransaction(USER_SYNC_SAVEPOINT_NAME)) {
-            try {
-                client.applyBatch(getUserUpdateOps(users, new SyncResult()));
-            } catch (RemoteException | OperationApplicationException e) {
+            try (TableWriter writer = new TableWriter(provider.getWritableDatabase(),
+                App.getInstance().getContentResolver(), Contracts.Table.USERS,
+                Users.UUID, Users.FULL_NAME)) {
+                // Delete all users before inserting.
+                writer.deleteAll();
+                for (JsonUser user : users) {
+                    writer.bind(0, user.id).bind(1, user.fullName).upsert();
+                }
+                writer.addChange(Users.CONTENT_URI);
+            } catch (RuntimeException e) {
                 tx.rollback();
                 throw e;
             } finally {
@@ -207,21 +224,4 @@ public class UserStore {
             }
         }
     }
-
-    /** Given a set of users, replaces the current set of users with users from that set. */
-    private static ArrayList<ContentProviderOperation> getUserUpdateOps(
-            Set<JsonUser> response, SyncResult syncResult) {
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        // Delete all users before inserting.
-        ops.add(ContentProviderOperation.newDelete(Contracts.Users.CONTENT_URI).build());
-        // TODO: Update syncResult delete counts.
-        for (JsonUser user : response) {
-            ops.add(ContentProviderOperation.newInsert(Contracts.Users.CONTENT_URI)
-                    .withValue(Contracts.Users.UUID, user.id)
-                    .withValue(Contracts.Users.FULL_NAME, user.fullName)
-                    .build());
-            syncResult.stats.numInserts++;
-        }
-        return ops;
-    }
 }
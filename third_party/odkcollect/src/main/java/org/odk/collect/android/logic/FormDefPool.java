@@ -0,0 +1,204 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.logic;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xform.util.XFormUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps recently used forms in memory, so that opening a form again doesn't have to hash its
+ * XML file and then deserialize the cached .formdef or parse the XML.
+ * <p>
+ * A {@link FormDef} is filled in as the form is used, so the pool never hands out the same
+ * instance twice.  For each form file it keeps the serialized bytes of an untouched FormDef as
+ * a prototype, plus one spare instance that was deserialized from the prototype ahead of time.
+ * {@link #take} returns the spare and deserializes its replacement in the background.
+ * <p>
+ * Entries are keyed by the path of the form file and are only used while the file's size and
+ * modification time are unchanged, so a form rewritten by a sync is loaded from disk again.
+ * The forms sync preloads every form it brings in, so even the first open of a form after the
+ * app starts finds it ready.
+ */
+public class FormDefPool {
+    private final static String t = "FormDefPool";
+    // Room for every form a forms sync brings in (about ten), so that all of them can be warm.
+    private static final int MAX_FORMS = 16;
+
+    private static final FormDefPool sInstance = new FormDefPool();
+
+    private final Map<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(MAX_FORMS, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_FORMS;
+            }
+        };
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final byte[] prototype;
+        FormDef spare;
+
+        Entry(File formXml, byte[] prototype) {
+            this.length = formXml.length();
+            this.lastModified = formXml.lastModified();
+            this.prototype = prototype;
+        }
+
+        boolean isCurrent(File formXml) {
+            return formXml.length() == length && formXml.lastModified() == lastModified;
+        }
+    }
+
+    public static FormDefPool getInstance() {
+        return sInstance;
+    }
+
+    private FormDefPool() {
+    }
+
+    /**
+     * Parses a form file into the pool in the background, unless the pool already has the
+     * current version of it.  Call this when a form is about to be used.
+     */
+    public void preload(final File formXml) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                if (getEntry(formXml) != null) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                FileInputStream fis = null;
+                try {
+                    fis = new FileInputStream(formXml);
+                    FormDef fd = XFormUtils.getFormFromInputStream(fis);
+                    if (fd != null) {
+                        put(formXml, fd);
+                        Log.i(t, "Preloaded " + formXml.getName() + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                    }
+                } catch (Exception e) {
+                    Log.w(t, "Could not preload " + formXml.getName(), e);
+                } finally {
+                    IOUtils.closeQuietly(fis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a form to the pool.  The FormDef must be freshly parsed or deserialized, before it
+     * has been initialized or given an evaluation context; the caller may go on using it.
+     */
+    public void put(File formXml, FormDef fd) {
+        byte[] prototype = serialize(fd);
+        if (prototype == null) {
+            return;
+        }
+        Entry entry = new Entry(formXml, prototype);
+        synchronized (this) {
+            mEntries.put(formXml.getAbsolutePath(), entry);
+        }
+        refill(entry);
+    }
+
+    /**
+     * Returns a new, uninitialized FormDef for the given form file, or null if the pool does
+     * not have the current version of the file.
+     */
+    public FormDef take(File formXml) {
+        Entry entry = getEntry(formXml);
+        if (entry == null) {
+            return null;
+        }
+        FormDef fd;
+        synchronized (this) {
+            fd = entry.spare;
+            entry.spare = null;
+        }
+        if (fd == null) {
+            fd = deserialize(entry.prototype);
+        }
+        refill(entry);
+        return fd;
+    }
+
+    private synchronized Entry getEntry(File formXml) {
+        Entry entry = mEntries.get(formXml.getAbsolutePath());
+        if (entry != null && !entry.isCurrent(formXml)) {
+            mEntries.remove(formXml.getAbsolutePath());
+            entry = null;
+        }
+        return entry;
+    }
+
+    /** Deserializes a spare instance for an entry in the background, if it lacks one. */
+    private void refill(final Entry entry) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                synchronized (FormDefPool.this) {
+                    if (entry.spare != null) {
+                        return;
+                    }
+                }
+                FormDef fd = deserialize(entry.prototype);
+                synchronized (FormDefPool.this) {
+                    if (entry.spare == null) {
+                        entry.spare = fd;
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte[] serialize(FormDef fd) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bytes);
+            fd.writeExternal(dos);
+            dos.close();
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            Log.w(t, "Could not serialize form", e);
+            return null;
+        }
+    }
+
+    private static FormDef deserialize(byte[] prototype) {
+        try {
+            FormDef fd = new FormDef();
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(prototype));
+            fd.readExternal(dis, ExtUtil.defaultPrototypes());
+            dis.close();
+            return fd;
+        } catch (Exception e) {
+            Log.w(t, "Could not deserialize form", e);
+            return null;
+        }
+    }
+}
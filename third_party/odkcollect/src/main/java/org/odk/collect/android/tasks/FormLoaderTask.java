@@ -50,6 +50,7 @@ import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormDefPool;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.ZipUtils;
 
@@ -128,54 +129,22 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     protected FECWrapper doInBackground(String... path) {
         FormEntryController fec = null;
         FormDef fd = null;
-        FileInputStream fis = null;
         mErrorMsg = null;
 
         String formPath = path[0];
 
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.getInstance().getCachePath() + File.separator + formHash + ".formdef");
 
         publishProgress(Collect.getInstance().getApplication().getString(R.string.survey_loading_reading_form_message));
 
-        if (formBin.exists()) {
-            // if we have binary, deserialize binary
-            Log.i(
-                t,
-                "Attempting to load " + formXml.getName() + " from cached file: "
-                        + formBin.getAbsolutePath());
-            fd = deserializeFormDef(formBin);
-            if (fd == null) {
-                // some error occured with deserialization. Remove the file, and make a new .formdef
-                // from xml
-                Log.w(t,
-                    "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
-                formBin.delete();
-            }
-        }
-        if (fd == null) {
-            // no binary, read from xml
-            try {
-                Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
-                fis = new FileInputStream(formXml);
-                fd = XFormUtils.getFormFromInputStream(fis);
-                if (fd == null) {
-                    mErrorMsg = "Error reading XForm file";
-                } else {
-                    serializeFormDef(fd, formPath);
-                }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                mErrorMsg = e.getMessage();
-            } catch (XFormParseException e) {
-                mErrorMsg = e.getMessage();
-                e.printStackTrace();
-            } catch (Exception e) {
-                mErrorMsg = e.getMessage();
-                e.printStackTrace();
-            } finally {
-                IOUtils.closeQuietly(fis);
+        // A pooled copy of the form needs no hashing, parsing, or disk reads.
+        fd = FormDefPool.getInstance().take(formXml);
+        if (fd != null) {
+            Log.i(t, "Using pooled form definition for " + formXml.getName());
+        } else {
+            fd = loadFormDef(formXml);
+            if (fd != null) {
+                FormDefPool.getInstance().put(formXml, fd);
             }
         }
 
@@ -324,9 +293,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             new RootTranslator("jr://video/", "jr://file/forms/" + formFileName + "-media/"));
 
         // clean up vars
-        fis = null;
         fd = null;
-        formBin = null;
         formXml = null;
         formPath = null;
 
@@ -345,6 +312,58 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
     }
 
+    /**
+     * Reads a form's {@link FormDef} from its cached .formdef, or else parses the XML and
+     * caches the result as a .formdef.  Returns null and sets mErrorMsg on failure.
+     */
+    private FormDef loadFormDef(File formXml) {
+        FormDef fd = null;
+        FileInputStream fis = null;
+        String formHash = FileUtils.getMd5Hash(formXml);
+        File formBin = new File(Collect.getInstance().getCachePath() + File.separator + formHash + ".formdef");
+
+        if (formBin.exists()) {
+            // if we have binary, deserialize binary
+            Log.i(
+                t,
+                "Attempting to load " + formXml.getName() + " from cached file: "
+                        + formBin.getAbsolutePath());
+            fd = deserializeFormDef(formBin);
+            if (fd == null) {
+                // some error occured with deserialization. Remove the file, and make a new .formdef
+                // from xml
+                Log.w(t,
+                    "Deserialization FAILED!  Deleting cache file: " + formBin.getAbsolutePath());
+                formBin.delete();
+            }
+        }
+        if (fd == null) {
+            // no binary, read from xml
+            try {
+                Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
+                fis = new FileInputStream(formXml);
+                fd = XFormUtils.getFormFromInputStream(fis);
+                if (fd == null) {
+                    mErrorMsg = "Error reading XForm file";
+                } else {
+                    writeFormDef(fd, formBin);
+                }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                mErrorMsg = e.getMessage();
+            } catch (XFormParseException e) {
+                mErrorMsg = e.getMessage();
+                e.printStackTrace();
+            } catch (Exception e) {
+                mErrorMsg = e.getMessage();
+                e.printStackTrace();
+            } finally {
+                IOUtils.closeQuietly(fis);
+            }
+        }
+        return fd;
+    }
+
     @SuppressWarnings("unchecked")
     private void loadExternalData(File mediaFolder) {
         //SCTO-594
@@ -496,8 +515,11 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     public void serializeFormDef(FormDef fd, String filepath) {
         // calculate unique md5 identifier
         String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.getInstance().getCachePath() + File.separator + hash + ".formdef");
+        writeFormDef(fd, new File(Collect.getInstance().getCachePath() + File.separator + hash + ".formdef"));
+    }
 
+    /** Writes the FormDef to the given .formdef file, unless the file already exists. */
+    private void writeFormDef(FormDef fd, File formDef) {
         // formdef does not exist, create one.
         if (!formDef.exists()) {
             FileOutputStream fos;
@@ -20,6 +20,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
@@ -36,9 +37,12 @@ import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformatio
 import org.odk.collect.android.utilities.FileUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Background task for savig a form to disk.
@@ -48,6 +52,7 @@ import java.io.RandomAccessFile;
  */
 public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     private final static String t = "SaveToDiskTask";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
     private FormSavedListener mSavedListener;
     private Boolean mSave;
@@ -320,15 +325,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 	        	// in the InstanceUploader task.  Leftover plaintext media
 	        	// files are handled during form deletion.
 
-	            // delete the restore Xml file.
-	            if ( !instanceXml.delete() ) {
-                    String msg = "Error deleting " + instanceXml.getAbsolutePath()
-                            + " prior to renaming submission.xml";
-                    Log.e(t, msg);
-	                throw new IOException(msg);
-	            }
-
-	            // rename the submission.xml to be the instanceXml
+	            // rename the submission.xml to be the instanceXml; the rename replaces
+	            // the restore Xml file atomically, so there is no need to delete it first.
 	            if ( !submissionXml.renameTo(instanceXml) ) {
                     String msg = "Error renaming submission.xml to " + instanceXml.getAbsolutePath();
                     Log.e(t, msg);
@@ -357,50 +355,48 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
 
     /**
-     * This method actually writes the xml to disk.
+     * Writes the xml to disk.  The payload is streamed through a buffer into a temporary file
+     * next to the target, which is synced once and then renamed over the target, so a crash
+     * leaves either the old file or the complete new one, never a partial write.
      * @param payload
      * @param path
-     * @return
      */
     static void exportXmlFile(ByteArrayPayload payload, String path) throws IOException {
         File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
-        }
+        File tempFile = new File(path + ".tmp");
 
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-//        try {
-            int read = is.read(data, 0, len);
-            if (read > 0) {
-                // write xml file
-                RandomAccessFile randomAccessFile = null;
-                try {
-                    // String filename = path + File.separator +
-                    // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                    randomAccessFile = new RandomAccessFile(file, "rws");
-                    randomAccessFile.write(data);
-                } finally {
-                    if (randomAccessFile != null) {
-                        try {
-                            randomAccessFile.close();
-                        } catch (IOException e) {
-                            Log.e(t, "Error closing RandomAccessFile: " + path, e);
-                        }
-                    }
+        ReadableByteChannel in = Channels.newChannel(payload.getPayloadStream());
+        FileOutputStream fos = null;
+        boolean written = false;
+        try {
+            fos = new FileOutputStream(tempFile);
+            FileChannel out = fos.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
                 }
+                buffer.clear();
+            }
+            // One flush of data and metadata for the whole file, rather than one per write.
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            written = true;
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(fos);
+            if (!written && tempFile.exists() && !tempFile.delete()) {
+                Log.w(t, "Error deleting " + tempFile.getAbsolutePath());
             }
-//        } catch (IOException e) {
-//            Log.e(t, "Error reading from payload data stream");
-//            e.printStackTrace();
-//            return false;
-//        }
-//
-//        return false;
+        }
+
+        // rename() replaces an existing target atomically.
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
+        }
     }
 
     @Override
@@ -0,0 +1,214 @@
+// Copyright 2015 The Project Buendia Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License.  You may obtain a copy
+// of the License at: http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software distrib-
+// uted under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+// OR CONDITIONS OF ANY KIND, either express or implied.  See the License for
+// specific language governing permissions and limitations under the License.
+
+package org.odk.collect.android.utilities;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.application.Collect;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the MD5 hashes of files, keyed by path, so that {@link FileUtils#getMd5Hash} doesn't
+ * read an unchanged file again.  A hash is only used while the file's size and modification
+ * time match those it was computed for.  The cache is kept in a file in the ODK metadata
+ * directory, so it also survives restarts of the app.  The file is written a few seconds after
+ * the last change, so that a scan that hashes many files writes it once rather than per file.
+ */
+class FileHashCache {
+    private final static String t = "FileHashCache";
+    private static final String CACHE_FILE_NAME = "md5hashes.txt";
+
+    /**
+     * Files modified more recently than this are not cached, since they may still be changing
+     * within the granularity of the file system's modification times.
+     */
+    private static final long SETTLE_MILLIS = 2000;
+
+    /** How long after a change the cache file is written, unless further changes come first. */
+    private static final long SAVE_DELAY_MILLIS = 3000;
+
+    private static final Map<String, Entry> sEntries = new HashMap<String, Entry>();
+    private static boolean sLoaded;
+    private static ScheduledFuture<?> sScheduledSave;
+    private static ScheduledExecutorService sSaveExecutor;
+    /** If set, the cache file to use in place of the one in the metadata directory. */
+    private static File sCacheFileOverride;
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final String md5;
+
+        Entry(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+
+    private FileHashCache() {
+    }
+
+    /**
+     * Forgets all remembered hashes and cancels any pending write, so that the cache is read
+     * again from the given file, or from the usual one if it is null.  Used by tests.
+     */
+    static synchronized void setCacheFile(File cacheFile) {
+        if (sScheduledSave != null) {
+            sScheduledSave.cancel(false);
+            sScheduledSave = null;
+        }
+        sCacheFileOverride = cacheFile;
+        sEntries.clear();
+        sLoaded = false;
+    }
+
+    /**
+     * Returns the remembered hash of a file, or null if there is none for the given size and
+     * modification time of the file.
+     */
+    static synchronized String get(File file, long length, long lastModified) {
+        load();
+        Entry entry = sEntries.get(file.getAbsolutePath());
+        return entry != null && entry.length == length && entry.lastModified == lastModified
+            ? entry.md5 : null;
+    }
+
+    /** Remembers the hash of a file that had the given size and modification time. */
+    static synchronized void put(File file, long length, long lastModified, String md5) {
+        if (lastModified > System.currentTimeMillis() - SETTLE_MILLIS) {
+            return;
+        }
+        load();
+        sEntries.put(file.getAbsolutePath(), new Entry(length, lastModified, md5));
+        scheduleSave();
+    }
+
+    private static void scheduleSave() {
+        if (sScheduledSave != null) {
+            return;
+        }
+        if (sSaveExecutor == null) {
+            sSaveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, t);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        sScheduledSave = sSaveExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static File getCacheFile() {
+        if (sCacheFileOverride != null) {
+            return sCacheFileOverride;
+        }
+        Collect collect = Collect.getInstance();
+        return collect == null ? null : new File(collect.getMetadataPath(), CACHE_FILE_NAME);
+    }
+
+    /** Reads the cache file, once, skipping entries for files that no longer exist. */
+    private static void load() {
+        File cacheFile = getCacheFile();
+        if (sLoaded || cacheFile == null) {
+            return;
+        }
+        sLoaded = true;
+        if (!cacheFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(cacheFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Each line is "length lastModified md5 path"; the path goes last as it may
+                // contain spaces.
+                String[] parts = line.split(" ", 4);
+                if (parts.length == 4 && isMd5(parts[2]) && new File(parts[3]).exists()) {
+                    sEntries.put(parts[3], new Entry(
+                        Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(t, "Could not read " + cacheFile + "; starting with an empty cache", e);
+            sEntries.clear();
+        } catch (NumberFormatException e) {
+            Log.w(t, "Could not parse " + cacheFile + "; starting with an empty cache", e);
+            sEntries.clear();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /** Whether a string looks like a hash that getMd5Hash returns: 32 lowercase hex digits. */
+    private static boolean isMd5(String md5) {
+        return md5.length() == 32 && md5.matches("[0-9a-f]+");
+    }
+
+    /**
+     * Rewrites the cache file, replacing it atomically so that a crash can't truncate it.  The
+     * entries are copied first, so that hashing can go on while the file is written.
+     */
+    static void save() {
+        File cacheFile;
+        Map<String, Entry> entries;
+        synchronized (FileHashCache.class) {
+            sScheduledSave = null;
+            cacheFile = getCacheFile();
+            if (cacheFile == null) {
+                return;
+            }
+            entries = new HashMap<String, Entry>(sEntries);
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(tempFile));
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                writer.println(entry.length + " " + entry.lastModified + " " + entry.md5
+                    + " " + item.getKey());
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                Log.w(t, "Could not replace " + cacheFile);
+            }
+        } catch (IOException e) {
+            Log.w(t, "Could not write " + tempFile, e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -48,6 +49,9 @@ import java.util.HashMap;
 public class FileUtils {
     private final static String t = "FileUtils";
 
+    // Large enough that hashing a big media file takes few reads.
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     public static final String FORMID = "formid";
     public static final String VERSION = "version"; // arbitrary string in OpenRosa 1.0
     public static final String TITLE = "title";
@@ -125,37 +129,36 @@ public class FileUtils {
     }
 
 
+    /**
+     * Returns the MD5 hash of a file as 32 hex digits, or null if it can't be read.  Hashes are
+     * remembered in {@link FileHashCache}, so an unchanged file is only read once.
+     */
     public static String getMd5Hash(File file) {
-        try {
-            // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
-
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long lLength = file.length();
-
-            if (lLength > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String md5 = FileHashCache.get(file, length, lastModified);
+        if (md5 == null) {
+            md5 = computeMd5Hash(file);
+            if (md5 != null) {
+                FileHashCache.put(file, length, lastModified, md5);
             }
+        }
+        return md5;
+    }
 
-            int length = (int) lLength;
 
-            InputStream is = null;
+    private static String computeMd5Hash(File file) {
+        FileInputStream is = null;
+        try {
+            // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
+            MessageDigest md = MessageDigest.getInstance("MD5");
             is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
-            }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
+            FileChannel channel = is.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
             byte[] messageDigest = md.digest();
 
@@ -163,7 +166,6 @@ public class FileUtils {
             String md5 = number.toString(16);
             while (md5.length() < 32)
                 md5 = "0" + md5;
-            is.close();
             return md5;
 
         } catch (NoSuchAlgorithmException e) {
@@ -176,6 +178,8 @@ public class FileUtils {
         } catch (IOException e) {
             Log.e("Problem reading from file", e.getMessage());
             return null;
+        } finally {
+            IOUtils.closeQuietly(is);
         }
 
     }